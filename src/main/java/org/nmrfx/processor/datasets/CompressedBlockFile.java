@@ -0,0 +1,575 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import org.nmrfx.datasets.DatasetHeaderIO;
+import org.nmrfx.datasets.DatasetLayout;
+import org.nmrfx.datasets.DatasetStorageInterface;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A lossless compressed storage backend for datasets. Each block of the
+ * DatasetLayout is byte-shuffled (so the exponent bytes of neighbouring values
+ * are adjacent) and then compressed independently, so random access stays per
+ * block. The file starts with the standard NMRView header, followed by a block
+ * index and then the compressed blocks. Recently used blocks are kept
+ * decompressed in an LRU cache. Space released when a block is rewritten is
+ * reused for later blocks, and free space at the end of the file is truncated
+ * when the file is forced.
+ *
+ * @author brucejohnson
+ */
+public class CompressedBlockFile implements DatasetStorageInterface, Closeable {
+
+    public static final String EXTENSION = ".nvz";
+    static final int MAGIC = 0x4e565a42;
+    static final int VERSION = 1;
+    static final int INDEX_HEADER_SIZE = 4 * Integer.BYTES;
+    static final int INDEX_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+    static final int DEFAULT_CACHE_BLOCKS = 256;
+
+    private RandomAccessFile raFile;
+    private FileChannel channel;
+    private final Dataset dataset;
+    private final File file;
+    private final DatasetLayout layout;
+    private boolean writable;
+    private final int nBlocks;
+    private final int blockPoints;
+    private final long indexStart;
+    private final long dataStart;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private long endOfData;
+    private boolean indexDirty = false;
+    private final Map<Integer, CachedBlock> cache;
+    private int cacheBlocks = DEFAULT_CACHE_BLOCKS;
+    private final TreeMap<Long, Integer> freeExtents = new TreeMap<>();
+
+    static class CachedBlock {
+
+        final float[] values;
+        boolean dirty = false;
+
+        CachedBlock(float[] values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Open a compressed dataset file.
+     *
+     * @param dataset Dataset object that uses this file
+     * @param file the file
+     * @param layout the layout read from the file header
+     * @param raFile The Random access file that actually stores data
+     * @param writable true if the file should be writable
+     * @throws IOException if an I/O error occurs
+     */
+    public CompressedBlockFile(final Dataset dataset, File file, final DatasetLayout layout, final RandomAccessFile raFile, final boolean writable) throws IOException {
+        this.dataset = dataset;
+        this.file = file;
+        this.layout = layout;
+        this.raFile = raFile;
+        this.channel = raFile.getChannel();
+        this.writable = writable;
+        int n = 1;
+        for (int i = 0; i < layout.nDim; i++) {
+            n *= layout.nBlocks[i];
+        }
+        nBlocks = n;
+        blockPoints = layout.blockPoints;
+        indexStart = layout.getFileHeaderSize();
+        dataStart = indexStart + INDEX_HEADER_SIZE + (long) INDEX_ENTRY_SIZE * nBlocks;
+        blockOffsets = new long[nBlocks];
+        blockLengths = new int[nBlocks];
+        cache = new LinkedHashMap<Integer, CachedBlock>(DEFAULT_CACHE_BLOCKS, 0.75f, true);
+        if (channel.size() < dataStart) {
+            if (!writable) {
+                throw new IOException("Compressed file " + file + " has no block index");
+            }
+            endOfData = dataStart;
+            indexDirty = true;
+            writeIndex();
+        } else {
+            readIndex();
+        }
+    }
+
+    /**
+     * Set the number of decompressed blocks kept in the cache of this file.
+     * Blocks beyond the new limit are written (if modified) and removed.
+     *
+     * @param n the number of blocks
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void setCacheBlocks(int n) throws IOException {
+        cacheBlocks = Math.max(1, n);
+        while (cache.size() > cacheBlocks) {
+            evictEldest();
+        }
+    }
+
+    public static boolean isCompressedFile(String fileName) {
+        return fileName.endsWith(EXTENSION);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of compressed file " + file);
+            }
+        }
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + INDEX_ENTRY_SIZE * nBlocks);
+        readFully(buffer, indexStart);
+        buffer.flip();
+        if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+            throw new IOException("Not a compressed dataset file " + file);
+        }
+        buffer.getInt();
+        if (buffer.getInt() != nBlocks) {
+            throw new IOException("Block index doesn't match layout in " + file);
+        }
+        TreeMap<Long, Integer> used = new TreeMap<>();
+        for (int i = 0; i < nBlocks; i++) {
+            blockOffsets[i] = buffer.getLong();
+            blockLengths[i] = buffer.getInt();
+            if (blockLengths[i] > 0) {
+                used.put(blockOffsets[i], blockLengths[i]);
+            }
+        }
+        // gaps between stored blocks (left by earlier rewrites) are free
+        freeExtents.clear();
+        endOfData = dataStart;
+        for (Map.Entry<Long, Integer> entry : used.entrySet()) {
+            if (entry.getKey() > endOfData) {
+                freeExtents.put(endOfData, (int) (entry.getKey() - endOfData));
+            }
+            endOfData = Math.max(endOfData, entry.getKey() + entry.getValue());
+        }
+    }
+
+    /*
+     * Find space for a compressed block, using the first free extent that is
+     * big enough or else the end of the data.
+     */
+    private long allocate(int length) {
+        for (Map.Entry<Long, Integer> entry : freeExtents.entrySet()) {
+            int extentLength = entry.getValue();
+            if (extentLength >= length) {
+                long offset = entry.getKey();
+                freeExtents.remove(offset);
+                if (extentLength > length) {
+                    freeExtents.put(offset + length, extentLength - length);
+                }
+                return offset;
+            }
+        }
+        long offset = endOfData;
+        endOfData += length;
+        return offset;
+    }
+
+    private void release(long offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        Map.Entry<Long, Integer> next = freeExtents.ceilingEntry(offset);
+        if ((next != null) && (next.getKey() == offset + length)) {
+            freeExtents.remove(next.getKey());
+            length += next.getValue();
+        }
+        Map.Entry<Long, Integer> prev = freeExtents.lowerEntry(offset);
+        if ((prev != null) && (prev.getKey() + prev.getValue() == offset)) {
+            freeExtents.remove(prev.getKey());
+            offset = prev.getKey();
+            length += prev.getValue();
+        }
+        if (offset + length == endOfData) {
+            endOfData = offset;
+        } else {
+            freeExtents.put(offset, length);
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        if (!indexDirty) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + INDEX_ENTRY_SIZE * nBlocks);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(blockPoints);
+        buffer.putInt(nBlocks);
+        for (int i = 0; i < nBlocks; i++) {
+            buffer.putLong(blockOffsets[i]);
+            buffer.putInt(blockLengths[i]);
+        }
+        buffer.flip();
+        channel.write(buffer, indexStart);
+        indexDirty = false;
+    }
+
+    static byte[] shuffle(float[] values) {
+        int n = values.length;
+        byte[] bytes = new byte[n * Float.BYTES];
+        for (int i = 0; i < n; i++) {
+            int bits = Float.floatToRawIntBits(values[i]);
+            bytes[i] = (byte) (bits >>> 24);
+            bytes[n + i] = (byte) (bits >>> 16);
+            bytes[2 * n + i] = (byte) (bits >>> 8);
+            bytes[3 * n + i] = (byte) bits;
+        }
+        return bytes;
+    }
+
+    static void unshuffle(byte[] bytes, float[] values) {
+        int n = values.length;
+        for (int i = 0; i < n; i++) {
+            int bits = ((bytes[i] & 0xff) << 24)
+                    | ((bytes[n + i] & 0xff) << 16)
+                    | ((bytes[2 * n + i] & 0xff) << 8)
+                    | (bytes[3 * n + i] & 0xff);
+            values[i] = Float.intBitsToFloat(bits);
+        }
+    }
+
+    static byte[] compress(float[] values) {
+        byte[] input = shuffle(values);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] output = new byte[input.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        deflater.end();
+        return Arrays.copyOf(output, length);
+    }
+
+    static void decompress(byte[] compressed, float[] values) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] output = new byte[values.length * Float.BYTES];
+        try {
+            int length = 0;
+            while (length < output.length && !inflater.finished()) {
+                int n = inflater.inflate(output, length, output.length - length);
+                if ((n == 0) && inflater.needsInput()) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != output.length) {
+                throw new IOException("Truncated compressed block");
+            }
+        } catch (DataFormatException dfE) {
+            throw new IOException("Corrupt compressed block " + dfE.getMessage());
+        } finally {
+            inflater.end();
+        }
+        unshuffle(output, values);
+    }
+
+    private float[] readBlock(int block) throws IOException {
+        float[] values = new float[blockPoints];
+        int length = blockLengths[block];
+        if (length > 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(buffer, blockOffsets[block]);
+            decompress(buffer.array(), values);
+        }
+        return values;
+    }
+
+    private void writeBlock(int block, float[] values) throws IOException {
+        boolean allZero = true;
+        for (float value : values) {
+            if (value != 0.0f) {
+                allZero = false;
+                break;
+            }
+        }
+        if (allZero) {
+            release(blockOffsets[block], blockLengths[block]);
+            blockOffsets[block] = 0;
+            blockLengths[block] = 0;
+        } else {
+            byte[] compressed = compress(values);
+            int oldLength = blockLengths[block];
+            if (compressed.length > oldLength) {
+                release(blockOffsets[block], oldLength);
+                blockOffsets[block] = allocate(compressed.length);
+            } else {
+                release(blockOffsets[block] + compressed.length, oldLength - compressed.length);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, blockOffsets[block] + buffer.position());
+            }
+            blockLengths[block] = compressed.length;
+        }
+        indexDirty = true;
+    }
+
+    private CachedBlock getBlock(int block) throws IOException {
+        CachedBlock cached = cache.get(block);
+        if (cached == null) {
+            cached = new CachedBlock(readBlock(block));
+            cache.put(block, cached);
+            if (cache.size() > cacheBlocks) {
+                evictEldest();
+            }
+        }
+        return cached;
+    }
+
+    private void evictEldest() throws IOException {
+        Iterator<Map.Entry<Integer, CachedBlock>> iter = cache.entrySet().iterator();
+        Map.Entry<Integer, CachedBlock> eldest = iter.next();
+        if (eldest.getValue().dirty) {
+            writeBlock(eldest.getKey(), eldest.getValue().values);
+        }
+        iter.remove();
+    }
+
+    @Override
+    public final synchronized void writeHeader(boolean nvExtra) {
+        if (file != null) {
+            DatasetHeaderIO headerIO = new DatasetHeaderIO(dataset);
+            headerIO.writeHeader(layout, raFile);
+        }
+    }
+
+    @Override
+    public void setWritable(boolean state) throws IOException {
+        if (writable != state) {
+            force();
+            raFile.close();
+            raFile = new RandomAccessFile(file, state ? "rw" : "r");
+            channel = raFile.getChannel();
+            writable = state;
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public long bytePosition(int... offsets) {
+        return pointPosition(offsets) * Float.BYTES;
+    }
+
+    @Override
+    public long pointPosition(int... offsets) {
+        long blockNum = 0;
+        long offsetInBlock = 0;
+        for (int iDim = 0; iDim < offsets.length; iDim++) {
+            blockNum += (long) (offsets[iDim] / layout.blockSize[iDim]) * layout.offsetBlocks[iDim];
+            offsetInBlock += (long) (offsets[iDim] % layout.blockSize[iDim]) * layout.offsetPoints[iDim];
+        }
+        return blockNum * blockPoints + offsetInBlock;
+    }
+
+    @Override
+    public int getSize(final int dim) {
+        return layout.sizes[dim];
+    }
+
+    @Override
+    public long getTotalSize() {
+        return (long) nBlocks * blockPoints;
+    }
+
+    @Override
+    public synchronized float getFloat(int... offsets) throws IOException {
+        long p = pointPosition(offsets);
+        return getBlock((int) (p / blockPoints)).values[(int) (p % blockPoints)];
+    }
+
+    @Override
+    public synchronized void setFloat(float d, int... offsets) throws IOException {
+        long p = pointPosition(offsets);
+        CachedBlock cached = getBlock((int) (p / blockPoints));
+        cached.values[(int) (p % blockPoints)] = d;
+        cached.dirty = true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raFile != null) {
+            if (writable) {
+                force();
+            }
+            raFile.close();
+            raFile = null;
+        }
+    }
+
+    @Override
+    public synchronized double sumValues() throws IOException {
+        double sum = 0.0;
+        for (int block = 0; block < nBlocks; block++) {
+            CachedBlock cached = cache.get(block);
+            float[] values = cached != null ? cached.values : readBlock(block);
+            for (float value : values) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public double sumFast() throws IOException {
+        return sumValues();
+    }
+
+    @Override
+    public synchronized void zero() throws IOException {
+        cache.clear();
+        Arrays.fill(blockOffsets, 0);
+        Arrays.fill(blockLengths, 0);
+        freeExtents.clear();
+        endOfData = dataStart;
+        indexDirty = true;
+        writeIndex();
+        raFile.setLength(dataStart);
+    }
+
+    @Override
+    public synchronized void force() {
+        try {
+            for (Map.Entry<Integer, CachedBlock> entry : cache.entrySet()) {
+                if (entry.getValue().dirty) {
+                    writeBlock(entry.getKey(), entry.getValue().values);
+                    entry.getValue().dirty = false;
+                }
+            }
+            writeIndex();
+            if (writable && (channel.size() > endOfData)) {
+                channel.truncate(endOfData);
+            }
+            channel.force(false);
+        } catch (IOException ioE) {
+            System.err.println("error flushing compressed file " + ioE.getMessage());
+        }
+    }
+
+    /**
+     * Return the ratio of the uncompressed data size to the size of the data
+     * region of the file.
+     *
+     * @return the compression ratio
+     */
+    public synchronized double getCompressionRatio() {
+        long stored = 0;
+        for (int length : blockLengths) {
+            stored += length;
+        }
+        return stored == 0 ? Double.POSITIVE_INFINITY : (double) getTotalSize() * Float.BYTES / stored;
+    }
+
+    /**
+     * Write a compressed copy of a dataset. The copy has the same header and
+     * block layout as the source, and stores the values held in the source
+     * file (before the dataset scale is applied). Convert back to the standard format by
+     * opening the compressed file as a Dataset and using copyDataset.
+     *
+     * @param source the dataset to compress
+     * @param fileName the name of the compressed file, which should end in
+     * .nvz
+     * @throws IOException if an I/O error occurs
+     */
+    public static void compressDataset(Dataset source, String fileName) throws IOException {
+        DatasetLayout layout = source.getLayout();
+        File outFile = new File(fileName);
+        try (RandomAccessFile outRaFile = new RandomAccessFile(outFile, "rw")) {
+            outRaFile.setLength(0);
+            DatasetHeaderIO headerIO = new DatasetHeaderIO(source);
+            headerIO.writeHeader(layout, outRaFile);
+            CompressedBlockFile compressedFile = new CompressedBlockFile(source, outFile, layout, outRaFile, true);
+            int nDim = layout.nDim;
+            int[] blockIndices = new int[nDim];
+            int[] inBlock = new int[nDim];
+            int[] point = new int[nDim];
+            float[] values = new float[compressedFile.blockPoints];
+            for (int block = 0; block < compressedFile.nBlocks; block++) {
+                Arrays.fill(values, 0.0f);
+                Arrays.fill(inBlock, 0);
+                int blockNum = 0;
+                for (int i = 0; i < nDim; i++) {
+                    blockNum += blockIndices[i] * layout.offsetBlocks[i];
+                }
+                boolean done = false;
+                while (!done) {
+                    boolean inside = true;
+                    int offset = 0;
+                    for (int i = 0; i < nDim; i++) {
+                        point[i] = blockIndices[i] * layout.blockSize[i] + inBlock[i];
+                        offset += inBlock[i] * layout.offsetPoints[i];
+                        if (point[i] >= layout.sizes[i]) {
+                            inside = false;
+                        }
+                    }
+                    if (inside) {
+                        values[offset] = source.readRawPoint(point);
+                    }
+                    done = increment(inBlock, layout.blockSize);
+                }
+                compressedFile.writeBlock(blockNum, values);
+                increment(blockIndices, layout.nBlocks);
+            }
+            compressedFile.writeIndex();
+        }
+    }
+
+    private static boolean increment(int[] counter, int[] limits) {
+        for (int i = 0; i < counter.length; i++) {
+            counter[i]++;
+            if (counter[i] < limits[i]) {
+                return false;
+            }
+            counter[i] = 0;
+        }
+        return true;
+    }
+}
@@ -24,7 +24,10 @@ import org.nmrfx.processor.math.Vec;
 import org.nmrfx.processor.processing.ProcessingException;
 import org.nmrfx.processor.operations.Util;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -62,6 +65,10 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
     LineShapeCatalog simVecs = null;
     Map<String, double[]> buffers = new HashMap<>();
     Dataset[] projections = null;
+    private DatasetPyramid pyramid = null;
+    private boolean pyramidChecked = false;
+    private FileChannel blockChannel = null;
+    private final Object blockChannelLock = new Object();
 
     public int length() {
         int length = 1;
@@ -121,7 +128,9 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
         DatasetParameterFile parFile = new DatasetParameterFile(this, layout);
         parFile.readFile();
         if (layout != null) {
-            if (useCacheFile) {
+            if (CompressedBlockFile.isCompressedFile(fullName)) {
+                dataFile = new CompressedBlockFile(this, file, layout, raFile, writable);
+            } else if (useCacheFile) {
                 dataFile = new SubMatrixFile(this, file, layout, raFile, writable);
             } else {
                 if (layout.getNDataBytes() > 512e6) {
@@ -285,6 +294,19 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
      * @throws DatasetException if an I/O error occurs
      */
     public Dataset(String title, int[] dimSizes) throws DatasetException {
+        this(title, dimSizes, SegmentedMemoryFile.isNeeded(getNBytes(dimSizes)));
+    }
+
+    /**
+     * Create a dataset in memory, optionally using segmented storage that can
+     * exceed 2 Gb and spill to disk when the memory budget is exceeded.
+     *
+     * @param title Dataset title
+     * @param dimSizes Sizes of the dataset dimensions
+     * @param segmented true to use a SegmentedMemoryFile
+     * @throws DatasetException if an I/O error occurs
+     */
+    public Dataset(String title, int[] dimSizes, boolean segmented) throws DatasetException {
         try {
             this.nDim = dimSizes.length;
 
@@ -299,13 +321,32 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
             this.fileName = title;
             setStrides();
             newHeader();
-            dataFile = new MemoryFile(this, true);
+            if (segmented) {
+                dataFile = new SegmentedMemoryFile(this, true);
+            } else {
+                dataFile = new MemoryFile(this, true);
+            }
             dataFile.zero();
         } catch (IOException ioe) {
             throw new DatasetException("Can't create dataset " + ioe.getMessage());
         }
     }
 
+    /**
+     * Get the number of bytes needed to store a dataset of the specified
+     * size.
+     *
+     * @param dimSizes Sizes of the dataset dimensions
+     * @return the number of bytes
+     */
+    public static long getNBytes(int[] dimSizes) {
+        long nBytes = Float.BYTES;
+        for (int dimSize : dimSizes) {
+            nBytes *= dimSize;
+        }
+        return nBytes;
+    }
+
     @Override
     public String toString() {
         return fileName;
@@ -344,6 +385,95 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
         return dataFile instanceof SubMatrixFile;
     }
 
+    /**
+     * Return whether the values are stored, as described by the layout, in an
+     * uncompressed file that is accessed directly (not through the storage
+     * cache), so that the bytes of the file can be copied.
+     *
+     * @return true if the dataset has a plain data file
+     */
+    boolean hasPlainDataFile() {
+        return (file != null) && (vecMat == null) && (layout != null) && (dataFile != null)
+                && !isCacheFile() && !(dataFile instanceof CompressedBlockFile);
+    }
+
+    File getDataFilePath() {
+        return file;
+    }
+
+    /**
+     * Read the value stored in the data file at a point, without dividing it
+     * by the dataset scale.
+     *
+     * @param point the point to read
+     * @return the stored value
+     * @throws IOException if an I/O error occurs
+     */
+    float readRawPoint(int[] point) throws IOException {
+        return dataFile.getFloat(point);
+    }
+
+    /**
+     * Read the bytes of one block of the data file with a single positional
+     * read. The buffer is filled with the blockPoints values of the block, in
+     * the order given by the layout offsetPoints, and its byte order is set to
+     * that of the dataset. Only valid for datasets with a plain data file.
+     *
+     * @param blockNum the index of the block in the file
+     * @param buffer the buffer to fill, which must hold at least blockPoints
+     * values
+     * @throws IOException if an I/O error occurs
+     */
+    void readFileBlock(long blockNum, ByteBuffer buffer) throws IOException {
+        FileChannel channel = getBlockChannel();
+        int blockBytes = layout.blockPoints * Float.BYTES;
+        long position = layout.getFileHeaderSize() + blockNum * (blockBytes + layout.blockHeaderSize);
+        buffer.clear();
+        buffer.limit(blockBytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("End of file reading block " + blockNum + " of " + fileName);
+            }
+        }
+        buffer.flip();
+        buffer.order(getByteOrder());
+    }
+
+    // uses its own lock, as blocks are read while the pyramid lock is held
+    private FileChannel getBlockChannel() throws IOException {
+        synchronized (blockChannelLock) {
+            if (blockChannel == null) {
+                blockChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return blockChannel;
+        }
+    }
+
+    private void closeBlockChannel() {
+        synchronized (blockChannelLock) {
+            if (blockChannel != null) {
+                try {
+                    blockChannel.close();
+                } catch (IOException e) {
+                    System.err.println("error closing block channel " + e.getMessage());
+                }
+                blockChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Write any changes to the data file to the storage device, so they can
+     * be read by other processes.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void forceDataFile() throws IOException {
+        if ((dataFile != null) && dataFile.isWritable()) {
+            dataFile.force();
+        }
+    }
+
     /**
      * Return whether the dataset is writable. Datasets that store data in a Vec
      * object are always writable. Datasets that store data in a file are only
@@ -495,6 +625,8 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
      */
     public void close() {
         removeFile(fileName);
+        closePyramid();
+        closeBlockChannel();
         try {
             if (dataFile != null) {
                 if (dataFile.isWritable()) {
@@ -566,6 +698,64 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
 //        }
 //    }
 //    close $f1
+    /**
+     * Build the multi-resolution pyramid file for this dataset, replacing any
+     * existing one. The pyramid is then kept up to date as vectors are written.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void buildPyramid() throws IOException {
+        closePyramid();
+        pyramid = DatasetPyramid.build(this, file);
+        pyramidChecked = true;
+    }
+
+    /**
+     * Get the multi-resolution pyramid for this dataset, opening the pyramid
+     * file if it exists.
+     *
+     * @return the pyramid or null if the dataset doesn't have one
+     */
+    public synchronized DatasetPyramid getPyramid() {
+        if (!pyramidChecked) {
+            pyramid = DatasetPyramid.open(this, file);
+            pyramidChecked = true;
+        }
+        return pyramid;
+    }
+
+    /*
+     * Get the pyramid that must be kept up to date when values are written,
+     * opening it on the first write so a pyramid file on disk isn't left stale.
+     */
+    private DatasetPyramid getPyramidForWrite() {
+        return pyramidChecked ? pyramid : getPyramid();
+    }
+
+    /**
+     * Record that values were written to the data file in bulk, without
+     * marking the points that changed, so the whole pyramid (if there is one)
+     * is rebuilt when it is next read.
+     */
+    void markPyramidDirty() {
+        DatasetPyramid currentPyramid = getPyramidForWrite();
+        if (currentPyramid != null) {
+            currentPyramid.markAllDirty();
+        }
+    }
+
+    private void closePyramid() {
+        if (pyramid != null) {
+            try {
+                pyramid.close();
+            } catch (IOException e) {
+                System.err.println("error closing pyramid " + e.getMessage());
+            }
+            pyramid = null;
+        }
+        pyramidChecked = false;
+    }
+
     /**
      * Return whether dataset has a data file.
      *
@@ -1557,6 +1747,7 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
                 dataFile.setFloat((float) (mat[planeOffset][rowOffset] * scale), point);
             }
         }
+        markPyramidDirty();
     }
 
     /**
@@ -1592,6 +1783,7 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
             }
             dataFile.setFloat((float) (matrix.getValue(index) * scale), point);
         }
+        markPyramidDirty();
     }
 
     /**
@@ -1883,6 +2075,21 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
      * @throws IOException if an I/O error occurs
      */
     public void readVectorFromDatasetFile(int[][] pt, int[] dim, VecBase rwVector) throws IOException {
+        readVectorFromDatasetFile(pt, dim, rwVector, null);
+    }
+
+    /**
+     * Read values along specified row. The values are taken from a slab that
+     * holds a group of vectors, if the slab isn't null
+     *
+     * @param pt indices specifying range of points to read from
+     * @param dim dataset dimensions that are used in pt array
+     * @param rwVector the vector to put values in
+     * @param slab a loaded slab containing the vector, or null to read values
+     * directly from the dataset file
+     * @throws IOException if an I/O error occurs
+     */
+    public void readVectorFromDatasetFile(int[][] pt, int[] dim, VecBase rwVector, DatasetSlab slab) throws IOException {
         //System.out.println("reading vector from dataset file");
         int n = 0;
 
@@ -1946,16 +2153,16 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
             int j = 0;
             for (int i = pt[0][0]; i <= pt[0][1]; i++) {
                 point[dim[0]] = i;
+                double value = slab != null ? slab.getValue(point) : readPoint(point);
                 if (rwVector.isComplex()) {
                     if ((i % 2) != 0) {
-                        double dImaginary = readPoint(point);
-                        rwVector.set(j, new Complex(dReal, dImaginary));
+                        rwVector.set(j, new Complex(dReal, value));
                         j++;
                     } else {
-                        dReal = readPoint(point);
+                        dReal = value;
                     }
                 } else {
-                    rwVector.set(j, readPoint(point));
+                    rwVector.set(j, value);
                     j++;
                 }
             }
@@ -2447,6 +2654,10 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
             }
         }
         dataFile.writeVector(pt[0][0], pt[0][1], point, dim[0], scale, vector);
+        DatasetPyramid currentPyramid = getPyramidForWrite();
+        if (currentPyramid != null) {
+            currentPyramid.markDirty(pt[0][0], pt[0][1], point, dim[0]);
+        }
 
         setSf(dim[0], vector.centerFreq);
         setSw(dim[0], 1.0 / vector.dwellTime);
@@ -2521,37 +2732,13 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
      * @throws DatasetException if an I/O error occured while creating dataset
      */
     public void copyDataset(String newFileName) throws IOException, DatasetException {
-        int[][] pt = new int[nDim][2];
-        int[] dim = new int[nDim];
-        dim[0] = 0;
-        pt[0][0] = 0;
-        pt[0][1] = 0;
-
         int[] datasetSizes = new int[nDim];
         for (int i = 0; i < nDim; i++) {
-            dim[i] = i;
-            pt[i][0] = 0;
-            pt[i][1] = getSize(i) - 1;
             datasetSizes[i] = getSize(i);
         }
-        int newSize = pt[0][1] - pt[0][0] + 1;
 
         Dataset newDataset = Dataset.createDataset(newFileName, newFileName, datasetSizes, false);
-
-        Vec scanVec = new Vec(newSize, false);
-        ScanRegion scanRegion = new ScanRegion(pt, dim, this);
-        int nEntries = scanRegion.buildIndex();
-        int origSize = pt[0][1];
-        for (int iEntry = 0; iEntry < nEntries; iEntry++) {
-            int[] iE = scanRegion.getIndexEntry(iEntry);
-            pt[0][1] = origSize;
-            for (int jDim = 1; jDim < nDim; jDim++) {
-                pt[jDim][0] = iE[jDim];
-                pt[jDim][1] = iE[jDim];
-            }
-            readVectorFromDatasetFile(pt, dim, scanVec);
-            newDataset.writeVector(scanVec);
-        }
+        DatasetCopier.copy(this, newDataset);
         for (int i = 0; i < nDim; i++) {
             newDataset.setSf(i, getSf(i));
             newDataset.setSw(i, getSw(i));
@@ -2571,6 +2758,7 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
             newDataset.setPh1(i, getPh1(i));
             newDataset.setPh0_r(i, getPh0_r(i));
             newDataset.setPh1_r(i, getPh1_r(i));
+            newDataset.setVSize(i, getSize(i));
         }
         newDataset.setNFreqDims(getNFreqDims());
         newDataset.setSolvent(getSolvent());
@@ -2581,6 +2769,17 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
         newDataset.close();
     }
 
+    /**
+     * Write a lossless compressed copy of this dataset. The copy can be opened
+     * like any other dataset and converted back with copyDataset.
+     *
+     * @param newFileName File name of compressed dataset (should end in .nvz)
+     * @throws IOException if an I/O error occurs
+     */
+    public void compressDataset(String newFileName) throws IOException {
+        CompressedBlockFile.compressDataset(this, newFileName);
+    }
+
     /**
      * Iterator for looping over vectors in dataset
      */
@@ -2817,6 +3016,23 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
         return cIter;
     }
 
+    /**
+     * Write a value to the dataset at the specified point, marking the
+     * pyramid cell that covers the point as out of date.
+     *
+     * @param pt the point to write to
+     * @param value the value to write
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void writePoint(int[] pt, double value) throws IOException {
+        super.writePoint(pt, value);
+        DatasetPyramid currentPyramid = getPyramidForWrite();
+        if (currentPyramid != null) {
+            currentPyramid.markDirty(pt[0], pt[0], pt, 0);
+        }
+    }
+
     public void clear() throws IOException {
         DimCounter.Iterator cIter = getPointIterator();
         while (cIter.hasNext()) {
@@ -2848,43 +3064,72 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
 
     public void toBuffer(String bufferName) throws IOException {
         double[] buffer = getBuffer(bufferName);
-        DimCounter.Iterator cIter = getPointIterator();
-        int j = 0;
-        while (cIter.hasNext()) {
-            int[] points = cIter.next();
-            double value = readPoint(points);
-            buffer[j++] = value;
-        }
+        int[] strides = getBufferStrides();
+        DatasetVectorMapper mapper = new DatasetVectorMapper(this);
+        mapper.forEachIndex(0, (pt, dim) -> {
+            int[] points = new int[nDim];
+            int j = 0;
+            for (int i = 1; i < nDim; i++) {
+                points[i] = pt[i][0];
+                j += points[i] * strides[i];
+            }
+            for (int k = 0; k <= pt[0][1]; k++) {
+                points[0] = k;
+                buffer[j++] = readPoint(points);
+            }
+        });
     }
 
     public void fromBuffer(String bufferName) throws IOException {
         if (bufferExists(bufferName)) {
             double[] buffer = getBuffer(bufferName);
-            DimCounter.Iterator cIter = getPointIterator();
-            int j = 0;
-            while (cIter.hasNext()) {
-                int[] points = cIter.next();
-                double value = buffer[j++];
-                writePoint(points, value);
-            }
+            int[] strides = getBufferStrides();
+            DatasetVectorMapper mapper = new DatasetVectorMapper(this);
+            mapper.forEachIndex(0, (pt, dim) -> {
+                int[] points = new int[nDim];
+                int j = 0;
+                for (int i = 1; i < nDim; i++) {
+                    points[i] = pt[i][0];
+                    j += points[i] * strides[i];
+                }
+                for (int k = 0; k <= pt[0][1]; k++) {
+                    points[0] = k;
+                    writePoint(points, buffer[j++]);
+                }
+            });
         } else {
             throw new IllegalArgumentException("No buffer named " + bufferName);
         }
     }
 
+    /**
+     * Get the offsets in a buffer between successive points of each
+     * dimension. The first dimension varies fastest, as with the point
+     * iterator.
+     *
+     * @return the strides
+     */
+    private int[] getBufferStrides() {
+        int[] strides = new int[nDim];
+        int stride = 1;
+        for (int i = 0; i < nDim; i++) {
+            strides[i] = stride;
+            stride *= getSize(i);
+        }
+        return strides;
+    }
+
     public void phaseDim(int iDim, double ph0, double ph1) throws IOException {
-        Iterator<Vec> vecIter = vectors(iDim);
         if (!isWritable()) {
             changeWriteMode(true);
         }
-        while (vecIter.hasNext()) {
-            Vec vec = vecIter.next();
+        DatasetVectorMapper mapper = new DatasetVectorMapper(this);
+        mapper.mapVectors(iDim, vec -> {
             if (vec.isReal()) {
                 vec.hft();
             }
             vec.phase(ph0, ph1, false, true);
-            writeVector(vec);
-        }
+        });
         double dph0 = Util.phaseMin(getPh0(iDim) + ph0);
         double dph1 = Util.phaseMin(getPh1(iDim) + ph1);
         setPh0(iDim, dph0);
@@ -2938,11 +3183,15 @@ public class Dataset extends DatasetBase implements Comparable<Dataset> {
         projVec.setName(getName() + "_proj_" + (iDim + 1));
         readVector(projVec, 0, iDim);
         projVec.zeros();
-        Iterator<Vec> iter = vectors(iDim);
-        while (iter.hasNext()) {
-            Vec vec = iter.next();
-            projVec.max(vec);
-        }
+        int projSize = projVec.getSize();
+        DatasetVectorMapper mapper = new DatasetVectorMapper(this);
+        Vec maxVec = mapper.reduceVectors(iDim, () -> new Vec(projSize),
+                (partMax, vec) -> partMax.max(vec),
+                (a, b) -> {
+                    a.max(b);
+                    return a;
+                });
+        projVec.max(maxVec);
         Dataset projDataset = new Dataset(projVec);
         projDataset.setLabel(0, getLabel(iDim));
         projections[iDim] = projDataset;
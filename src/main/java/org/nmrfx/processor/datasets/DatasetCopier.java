@@ -0,0 +1,237 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import org.nmrfx.datasets.DatasetLayout;
+
+/**
+ * Copies all the values of a dataset into another dataset, or into one plane
+ * of a dataset with more dimensions. If both datasets are stored in plain
+ * files whose block layouts match, so that the source file data is a
+ * contiguous range of the target file, the bytes are transferred directly
+ * between the file channels. Otherwise each block of the source is converted
+ * point by point, with blocks processed in parallel unless either dataset uses
+ * the storage cache. Each block is read while holding the source lock and
+ * written while holding the target lock.
+ *
+ * @author brucejohnson
+ */
+public class DatasetCopier {
+
+    private static boolean parallel = true;
+
+    private DatasetCopier() {
+    }
+
+    /**
+     * Set whether blocks are converted in parallel.
+     *
+     * @param state true to use multiple threads
+     */
+    public static void setParallel(boolean state) {
+        parallel = state;
+    }
+
+    /**
+     * Copy a dataset into another dataset. The first dimensions of the target
+     * must have the same sizes as the source.
+     *
+     * @param source the dataset to copy from
+     * @param target the dataset to copy to
+     * @param planeIndices the indices, along each extra dimension of the
+     * target, of the plane to copy to
+     * @return true if the blocks were transferred directly
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean copy(Dataset source, Dataset target, int... planeIndices) throws IOException {
+        int nDim = source.getNDim();
+        if (target.getNDim() != nDim + planeIndices.length) {
+            throw new IllegalArgumentException("Target dataset must have " + (nDim + planeIndices.length) + " dimensions");
+        }
+        for (int i = 0; i < nDim; i++) {
+            if (source.getSize(i) != target.getSize(i)) {
+                throw new IllegalArgumentException("Size of dimension " + (i + 1) + " doesn't match");
+            }
+        }
+        boolean transferred = false;
+        if (canTransferBlocks(source, target, planeIndices)) {
+            transferBlocks(source, target, planeIndices);
+            target.markPyramidDirty();
+            transferred = true;
+        } else {
+            convertBlocks(source, target, planeIndices);
+        }
+        return transferred;
+    }
+
+    /**
+     * Check whether the source file data can be copied as a single range of
+     * bytes into the target file. The layouts must have the same blocks for
+     * the dimensions of the source, extra dimensions of the target must have a
+     * block size of one, and the blocks of each plane must be contiguous.
+     *
+     * @param source the dataset to copy from
+     * @param target the dataset to copy to
+     * @param planeIndices the indices of the plane to copy to
+     * @return true if the blocks can be transferred
+     */
+    static boolean canTransferBlocks(Dataset source, Dataset target, int[] planeIndices) {
+        if (!source.hasPlainDataFile() || !target.hasPlainDataFile() || !target.isWritable()) {
+            return false;
+        }
+        if (!source.getByteOrder().equals(target.getByteOrder()) || (source.getDataType() != target.getDataType())) {
+            return false;
+        }
+        if (source.getScale() != target.getScale()) {
+            return false;
+        }
+        DatasetLayout sLayout = source.getLayout();
+        DatasetLayout tLayout = target.getLayout();
+        if ((sLayout.blockPoints != tLayout.blockPoints) || (sLayout.blockHeaderSize != tLayout.blockHeaderSize)) {
+            return false;
+        }
+        int nDim = source.getNDim();
+        long nPlaneBlocks = 1;
+        for (int i = 0; i < nDim; i++) {
+            if ((sLayout.sizes[i] != tLayout.sizes[i])
+                    || (sLayout.blockSize[i] != tLayout.blockSize[i])
+                    || (sLayout.nBlocks[i] != tLayout.nBlocks[i])
+                    || (sLayout.offsetBlocks[i] != tLayout.offsetBlocks[i])
+                    || (sLayout.offsetPoints[i] != tLayout.offsetPoints[i])) {
+                return false;
+            }
+            nPlaneBlocks *= sLayout.nBlocks[i];
+        }
+        for (int j = 0; j < planeIndices.length; j++) {
+            long offsetBlocks = tLayout.offsetBlocks[nDim + j];
+            if ((tLayout.blockSize[nDim + j] != 1) || ((offsetBlocks % nPlaneBlocks) != 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void transferBlocks(Dataset source, Dataset target, int[] planeIndices) throws IOException {
+        DatasetLayout sLayout = source.getLayout();
+        DatasetLayout tLayout = target.getLayout();
+        int nDim = source.getNDim();
+        long nPlaneBlocks = 1;
+        for (int i = 0; i < nDim; i++) {
+            nPlaneBlocks *= sLayout.nBlocks[i];
+        }
+        long planeBlock = 0;
+        for (int j = 0; j < planeIndices.length; j++) {
+            planeBlock += (long) planeIndices[j] * tLayout.offsetBlocks[nDim + j];
+        }
+        long planeBytes = sLayout.getNDataBytes();
+        long targetStart = tLayout.getFileHeaderSize() + (planeBlock / nPlaneBlocks) * planeBytes;
+        source.forceDataFile();
+        try (FileChannel sChannel = FileChannel.open(source.getDataFilePath().toPath(), StandardOpenOption.READ);
+                FileChannel tChannel = FileChannel.open(target.getDataFilePath().toPath(), StandardOpenOption.WRITE)) {
+            long position = sLayout.getFileHeaderSize();
+            long remaining = planeBytes;
+            tChannel.position(targetStart);
+            while (remaining > 0) {
+                long nTransferred = sChannel.transferTo(position, remaining, tChannel);
+                if (nTransferred <= 0) {
+                    throw new IOException("Couldn't copy data from " + source.getFileName());
+                }
+                position += nTransferred;
+                remaining -= nTransferred;
+            }
+        }
+    }
+
+    private static void convertBlocks(Dataset source, Dataset target, int[] planeIndices) throws IOException {
+        int nDim = source.getNDim();
+        int[] sizes = new int[nDim];
+        int[] blockSizes = new int[nDim];
+        int[] nBlocks = new int[nDim];
+        DatasetLayout sLayout = source.getLayout();
+        int nTotalBlocks = 1;
+        for (int i = 0; i < nDim; i++) {
+            sizes[i] = source.getSize(i);
+            blockSizes[i] = sLayout == null ? sizes[i] : Math.min(sLayout.blockSize[i], sizes[i]);
+            nBlocks[i] = (sizes[i] + blockSizes[i] - 1) / blockSizes[i];
+            nTotalBlocks *= nBlocks[i];
+        }
+        IntStream blocks = IntStream.range(0, nTotalBlocks);
+        if (parallel && !source.isCacheFile() && !target.isCacheFile()) {
+            blocks = blocks.parallel();
+        }
+        try {
+            blocks.forEach(iBlock -> {
+                try {
+                    convertBlock(source, target, planeIndices, iBlock, sizes, blockSizes, nBlocks);
+                } catch (IOException ioE) {
+                    throw new UncheckedIOException(ioE);
+                }
+            });
+        } catch (UncheckedIOException uioE) {
+            throw uioE.getCause();
+        }
+    }
+
+    private static void convertBlock(Dataset source, Dataset target, int[] planeIndices, int iBlock,
+            int[] sizes, int[] blockSizes, int[] nBlocks) throws IOException {
+        int nDim = sizes.length;
+        int[] start = new int[nDim];
+        int[] end = new int[nDim];
+        int rem = iBlock;
+        for (int i = 0; i < nDim; i++) {
+            start[i] = (rem % nBlocks[i]) * blockSizes[i];
+            end[i] = Math.min(sizes[i], start[i] + blockSizes[i]);
+            rem /= nBlocks[i];
+        }
+        int nPoints = 1;
+        for (int i = 0; i < nDim; i++) {
+            nPoints *= end[i] - start[i];
+        }
+        double[] values = new double[nPoints];
+        int[] sPoint = start.clone();
+        synchronized (source) {
+            for (int j = 0; j < nPoints; j++) {
+                values[j] = source.readPoint(sPoint);
+                nextPoint(sPoint, start, end);
+            }
+        }
+        int[] tPoint = new int[nDim + planeIndices.length];
+        System.arraycopy(planeIndices, 0, tPoint, nDim, planeIndices.length);
+        synchronized (target) {
+            for (int j = 0; j < nPoints; j++) {
+                System.arraycopy(sPoint, 0, tPoint, 0, nDim);
+                target.writePoint(tPoint, values[j]);
+                nextPoint(sPoint, start, end);
+            }
+        }
+    }
+
+    private static void nextPoint(int[] point, int[] start, int[] end) {
+        for (int i = 0; i < point.length; i++) {
+            if (++point[i] < end[i]) {
+                break;
+            }
+            point[i] = start[i];
+        }
+    }
+}
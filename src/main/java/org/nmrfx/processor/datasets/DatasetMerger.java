@@ -19,63 +19,93 @@ package org.nmrfx.processor.datasets;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
-import org.nmrfx.processor.math.Vec;
+import java.util.stream.IntStream;
 
 /**
+ * Merge a series of datasets with the same size into a single dataset with one
+ * more dimension. Each input becomes one plane of the output. The output file
+ * is created (and so preallocated) at its full size before any data is copied,
+ * and the inputs are then opened and copied in parallel with DatasetCopier,
+ * which transfers whole blocks when the layouts allow it.
  *
  * @author Bruce Johnson
  */
 public class DatasetMerger {
 
     public void merge(List<String> fileNames, String outFileName) throws IOException, DatasetException {
-        Dataset outputDataset = null;
         int nInputFiles = fileNames.size();
-        int iFile = 0;
-        Vec inVec = null;
-        int[] indices = null;
-        int nDim = 0;
-        for (String fileName : fileNames) {
-            Dataset inputDataset = new Dataset(fileName, fileName, false, true);
-            if (outputDataset == null) {
-                nDim = inputDataset.getNDim();
-                File outFile = new File(outFileName);
-                int[] dimSizes = new int[nDim + 1];
-                for (int i = 0; i < nDim; i++) {
-                    dimSizes[i] = inputDataset.getSize(i);
-                }
-                dimSizes[nDim] = nInputFiles;
-                outputDataset = Dataset.createDataset(outFileName, outFile.getName(), dimSizes, false);
+        if (nInputFiles == 0) {
+            return;
+        }
+        Dataset firstDataset = openInput(fileNames.get(0));
+        int nDim = firstDataset.getNDim();
+        File outFile = new File(outFileName);
+        int[] dimSizes = new int[nDim + 1];
+        for (int i = 0; i < nDim; i++) {
+            dimSizes[i] = firstDataset.getSize(i);
+        }
+        dimSizes[nDim] = nInputFiles;
+        Dataset outputDataset;
+        try {
+            outputDataset = Dataset.createDataset(outFileName, outFile.getName(), dimSizes, false);
+        } catch (DatasetException e) {
+            closeInput(firstDataset);
+            throw e;
+        }
+        try {
+            try {
                 for (int i = 0; i < outputDataset.getNDim(); i++) {
                     outputDataset.setComplex(i, false);
                     outputDataset.syncPars(i);
                 }
                 outputDataset.setNFreqDims(nDim);
-                inVec = new Vec(inputDataset.getSize(0));
-                indices = new int[nDim];
-            }
-            if (nDim == 1) {
-                inputDataset.readVector(inVec, 0, 0);
-                indices[0] = iFile;
-                outputDataset.writeVector(inVec, indices, 0);
-            } else if (nDim == 2) {
-                int nRows = inputDataset.getSize(1);
-                for (int iRow = 0; iRow < nRows; iRow++) {
-                    inputDataset.readVector(inVec, iRow, 0);
-                    indices[0] = iRow;
-                    indices[1] = iFile;
-                    outputDataset.writeVector(inVec, indices, 0);
+                for (int i = 0; i < nDim; i++) {
+                    firstDataset.copyHeader(outputDataset, i);
                 }
-                inputDataset.copyHeader(outputDataset, 0);
-                inputDataset.copyHeader(outputDataset, 1);
+                DatasetCopier.copy(firstDataset, outputDataset, 0);
+            } finally {
+                closeInput(firstDataset);
+            }
+
+            IntStream fileIndices = IntStream.range(1, nInputFiles);
+            if (!outputDataset.isCacheFile()) {
+                fileIndices = fileIndices.parallel();
+            }
+            try {
+                fileIndices.forEach(iFile -> {
+                    try {
+                        Dataset inputDataset = openInput(fileNames.get(iFile));
+                        try {
+                            DatasetCopier.copy(inputDataset, outputDataset, iFile);
+                        } finally {
+                            closeInput(inputDataset);
+                        }
+                    } catch (IOException ioE) {
+                        throw new UncheckedIOException(ioE);
+                    }
+                });
+            } catch (UncheckedIOException uioE) {
+                throw uioE.getCause();
+            }
+            for (int i = 0; i < outputDataset.getNDim(); i++) {
+                outputDataset.setVSize(i, dimSizes[i]);
             }
-            iFile++;
-        }
-        if (outputDataset != null) {
             outputDataset.writeHeader();
             outputDataset.writeParFile();
+        } finally {
             outputDataset.close();
         }
     }
 
+    // the list of open datasets isn't thread safe so open and close one at a time
+    private static synchronized Dataset openInput(String fileName) throws IOException {
+        return new Dataset(fileName, fileName, false, true);
+    }
+
+    private static synchronized void closeInput(Dataset dataset) {
+        dataset.close();
+    }
+
 }
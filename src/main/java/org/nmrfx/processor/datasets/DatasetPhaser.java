@@ -28,7 +28,6 @@ import org.nmrfx.math.VecBase.IndexValue;
 import org.nmrfx.processor.operations.TestBasePoints;
 import org.nmrfx.processor.operations.Util;
 import java.io.IOException;
-import java.util.Iterator;
 import org.apache.commons.math3.util.FastMath;
 import org.nmrfx.processor.operations.IDBaseline2;
 
@@ -83,12 +82,9 @@ public class DatasetPhaser {
      * @throws java.io.IOException if an I/O error occurs
      */
     public void setup(int iDim, int phaseWinSize, double phaseRatio, IDBaseline2.ThreshMode threshMode) throws IOException {
-        int[][] pt = new int[nDim][2];
         int[] dim = new int[nDim];
         int[] dimSize = new int[nDim];
         dim[0] = iDim;
-        pt[0][0] = 0;
-        pt[0][1] = 0;
         int nSegments = 16;
         int nTotal = 1;
 
@@ -99,65 +95,50 @@ public class DatasetPhaser {
             }
 
             dim[i] = j;
-            pt[i][0] = 0;
-            pt[i][1] = dataset.getSize(dim[i]) - 1;
             dimSize[i] = dataset.getSize(dim[i]);
             nTotal *= nSegments;
             j++;
         }
-        Index[] regionMax = new Index[nTotal];
-        for (int i = 0; i < nTotal; i++) {
-            regionMax[i] = null;
-
-        }
-        pt[0][1] = dataset.getSize(iDim) - 1;
-        int newSize = pt[0][1] - pt[0][0] + 1;
+        final int nRegions = nTotal;
+        int newSize = dataset.getSize(iDim);
 
-        Vec testVec = new Vec(newSize, false);
         Vec phaseVec = new Vec(newSize, false);
         testBase = new TestBasePoints(phaseWinSize, "test");
 
-        ScanRegion scanRegion = new ScanRegion(pt, dim, dataset);
-        int nEntries = scanRegion.buildIndex();
-
         int winSize = dataset.getSize(iDim) / 32;
         int nWin = 4;
-        int origSize = pt[0][1];
-        for (int iEntry = 0; iEntry < nEntries; iEntry++) {
-            int[] iE = scanRegion.getIndexEntry(iEntry);
-            pt[0][1] = origSize;
-            for (int jDim = 1; jDim < nDim; jDim++) {
-                pt[jDim][0] = iE[jDim];
-                pt[jDim][1] = iE[jDim];
-            }
-            dataset.readVectorFromDatasetFile(pt, dim, testVec);
+        DatasetVectorMapper mapper = new DatasetVectorMapper(dataset);
+        Index[] regionMax = mapper.reduceVectors(iDim, () -> new Index[nRegions], (regionMaxes, testVec) -> {
+            int[][] pt = testVec.getPt();
             double sdev = Util.sdev(testVec, winSize, nWin);
             testVec.hft();
             testVec.abs();
             int dSize = 1;
             int index = 0;
-            boolean ok = true;
             for (int i = 1; i < pt.length; i++) {
                 int offset = 16 * pt[i][0] / dimSize[i];
                 if ((offset == 0) || (offset == (nSegments - 1))) {
-                    ok = false;
-                    break;
+                    return;
                 }
                 index += dSize * offset;
                 dSize *= 16;
             }
-            if (!ok) {
-                continue;
-            }
 
             IndexValue indexVal = testVec.maxIndex();
             double max = indexVal.getValue();
             double aMax = FastMath.abs(max);
             double threshold = 30.0 * sdev;
-            if ((aMax > threshold) && ((regionMax[index] == null) || (regionMax[index].amax < aMax))) {
-                regionMax[index] = new Index(aMax, pt);
+            if ((aMax > threshold) && ((regionMaxes[index] == null) || (regionMaxes[index].amax < aMax))) {
+                regionMaxes[index] = new Index(aMax, pt);
             }
-        }
+        }, (a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                if ((b[i] != null) && ((a[i] == null) || (a[i].amax < b[i].amax))) {
+                    a[i] = b[i];
+                }
+            }
+            return a;
+        });
         for (int i = 0; i < nTotal; i++) {
             if (regionMax[i] != null) {
                 dataset.readVectorFromDatasetFile(regionMax[i].pt, dim, phaseVec);
@@ -183,58 +164,18 @@ public class DatasetPhaser {
     }
 
     public void applyPhases(int iDim, double ph0, double ph1) throws IOException {
-        int[][] pt = new int[nDim][2];
-        int[] dim = new int[nDim];
-        dim[0] = iDim;
-        pt[0][0] = 0;
-        pt[0][1] = 0;
-
-        int j = 0;
-        for (int i = 1; i < nDim; i++) {
-            if (j == iDim) {
-                j++;
-            }
-
-            dim[i] = j;
-            pt[i][0] = 0;
-            pt[i][1] = dataset.getSize(dim[i]) - 1;
-            j++;
-        }
-        pt[0][1] = dataset.getSize(iDim) - 1;
-        int newSize = pt[0][1] - pt[0][0] + 1;
-
-        Vec phaseVec = new Vec(newSize, false);
-
-        ScanRegion scanRegion = new ScanRegion(pt, dim, dataset);
-        int nEntries = scanRegion.buildIndex();
-
-        int origSize = pt[0][1];
-        for (int iEntry = 0; iEntry < nEntries; iEntry++) {
-            int[] iE = scanRegion.getIndexEntry(iEntry);
-            pt[0][1] = origSize;
-            for (int jDim = 1; jDim < nDim; jDim++) {
-                pt[jDim][0] = iE[jDim];
-                pt[jDim][1] = iE[jDim];
-            }
-            dataset.readVectorFromDatasetFile(pt, dim, phaseVec);
+        DatasetVectorMapper mapper = new DatasetVectorMapper(dataset);
+        mapper.mapVectors(iDim, phaseVec -> {
             phaseVec.hft();
             phaseVec.phase(ph0, ph1);
             phaseVec.makeReal();
-            dataset.writeVector(phaseVec);
-        }
+        });
     }
 
     public void applyPhases2(int iDim, double ph0, double ph1) throws IOException {
-        Iterator<Vec> vectors = dataset.vectors(iDim);
         double dataPh0 = dataset.getPh0(iDim) + ph0;
         double dataPh1 = dataset.getPh1(iDim) + ph1;
-        while (vectors.hasNext()) {
-            Vec phaseVec = vectors.next();
-            phaseVec.hft();
-            phaseVec.phase(ph0, ph1);
-            phaseVec.makeReal();
-            dataset.writeVector(phaseVec);
-        }
+        applyPhases(iDim, ph0, ph1);
         dataset.setPh0(iDim, dataPh0);
         dataset.setPh1(iDim, dataPh1);
     }
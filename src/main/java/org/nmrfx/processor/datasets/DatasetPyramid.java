@@ -0,0 +1,530 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * A multi-resolution sidecar file that stores downsampled copies of each plane
+ * (dimensions 0 and 1) of a dataset. Each cell of a level holds the value with
+ * the largest absolute magnitude of the points it covers, so peaks survive
+ * downsampling. The first level is reduced by MIN_FACTOR in each dimension and
+ * each further level halves the previous one. Used to give fast overview reads
+ * of large datasets.
+ *
+ * @author brucejohnson
+ */
+public class DatasetPyramid implements Closeable {
+
+    static final int MAGIC = 0x4e565059;
+    static final int VERSION = 1;
+    public static final int MIN_FACTOR = 4;
+    static final int MIN_LEVEL_SIZE = 32;
+    private static final String SUFFIX = ".pyramid";
+
+    private final Dataset dataset;
+    private final File file;
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private final int[] sizes;
+    private final int[] planeStrides;
+    private final int nPlanes;
+    private final int[] factors;
+    private final int[] levelNX;
+    private final int[] levelNY;
+    private final long[] levelOffsets;
+    private final long headerSize;
+    private final long planeBytes;
+    private final Map<Integer, BitSet> dirtyCells = new TreeMap<>();
+    private final BitSet dirtyPlanes = new BitSet();
+
+    private DatasetPyramid(Dataset dataset, File file, boolean create) throws IOException {
+        this.dataset = dataset;
+        this.file = file;
+        int nDim = dataset.getNDim();
+        sizes = new int[nDim];
+        for (int i = 0; i < nDim; i++) {
+            sizes[i] = dataset.getSize(i);
+        }
+        planeStrides = new int[nDim];
+        int planes = 1;
+        for (int i = 2; i < nDim; i++) {
+            planeStrides[i] = planes;
+            planes *= sizes[i];
+        }
+        nPlanes = planes;
+
+        List<Integer> factorList = new ArrayList<>();
+        int factor = MIN_FACTOR;
+        while (true) {
+            factorList.add(factor);
+            int nx = (sizes[0] + factor - 1) / factor;
+            int ny = (sizes[1] + factor - 1) / factor;
+            if ((nx <= MIN_LEVEL_SIZE) && (ny <= MIN_LEVEL_SIZE)) {
+                break;
+            }
+            factor *= 2;
+        }
+        int nLevels = factorList.size();
+        factors = new int[nLevels];
+        levelNX = new int[nLevels];
+        levelNY = new int[nLevels];
+        levelOffsets = new long[nLevels];
+        long offset = 0;
+        for (int i = 0; i < nLevels; i++) {
+            factors[i] = factorList.get(i);
+            levelNX[i] = (sizes[0] + factors[i] - 1) / factors[i];
+            levelNY[i] = (sizes[1] + factors[i] - 1) / factors[i];
+            levelOffsets[i] = offset;
+            offset += (long) levelNX[i] * levelNY[i] * Float.BYTES;
+        }
+        planeBytes = offset;
+        headerSize = (long) Integer.BYTES * (4 + nDim);
+
+        raFile = new RandomAccessFile(file, create ? "rw" : (file.canWrite() ? "rw" : "r"));
+        channel = raFile.getChannel();
+        if (create) {
+            raFile.setLength(headerSize + planeBytes * nPlanes);
+            writeFileHeader();
+        } else if (!headerMatches()) {
+            raFile.close();
+            throw new IOException("Pyramid file " + file + " doesn't match dataset " + dataset.getFileName());
+        }
+    }
+
+    /**
+     * Return the sidecar file used to store the pyramid for the dataset. The
+     * name keeps the extension of the dataset file so that, for example, a
+     * compressed copy of a dataset doesn't share the pyramid of the original.
+     *
+     * @param datasetFile the dataset file
+     * @return the pyramid file
+     */
+    public static File getPyramidFile(File datasetFile) {
+        return new File(datasetFile.getParentFile(), datasetFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Open an existing pyramid for the dataset.
+     *
+     * @param dataset the dataset
+     * @param datasetFile the file the dataset is stored in
+     * @return the pyramid or null if there is no valid pyramid file
+     */
+    static DatasetPyramid open(Dataset dataset, File datasetFile) {
+        if (!isSupported(dataset, datasetFile)) {
+            return null;
+        }
+        File pyramidFile = getPyramidFile(datasetFile);
+        if (!pyramidFile.exists() || (pyramidFile.lastModified() < datasetFile.lastModified() - 2000)) {
+            return null;
+        }
+        try {
+            return new DatasetPyramid(dataset, pyramidFile, false);
+        } catch (IOException ioE) {
+            System.err.println("Can't open pyramid " + ioE.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create (or replace) the pyramid for the dataset. Planes of datasets
+     * stored in a plain data file are processed in parallel.
+     *
+     * @param dataset the dataset
+     * @param datasetFile the file the dataset is stored in
+     * @return the new pyramid
+     * @throws IOException if an I/O error occurs
+     */
+    static DatasetPyramid build(Dataset dataset, File datasetFile) throws IOException {
+        if (!isSupported(dataset, datasetFile)) {
+            throw new IllegalArgumentException("Pyramid requires a file based dataset with at least 2 dimensions");
+        }
+        dataset.forceDataFile();
+        DatasetPyramid pyramid = new DatasetPyramid(dataset, getPyramidFile(datasetFile), true);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        IntStream planes = IntStream.range(0, pyramid.nPlanes);
+        if (dataset.hasPlainDataFile()) {
+            planes = planes.parallel();
+        }
+        planes.forEach(plane -> {
+            if (error.get() == null) {
+                try {
+                    pyramid.buildPlane(plane);
+                } catch (IOException ioE) {
+                    error.compareAndSet(null, ioE);
+                }
+            }
+        });
+        if (error.get() != null) {
+            pyramid.close();
+            throw error.get();
+        }
+        return pyramid;
+    }
+
+    static boolean isSupported(Dataset dataset, File datasetFile) {
+        return (dataset.getNDim() > 1) && (datasetFile != null) && (dataset.getVec() == null);
+    }
+
+    private void writeFileHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) headerSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sizes.length);
+        for (int size : sizes) {
+            buffer.putInt(size);
+        }
+        buffer.putInt(MIN_FACTOR);
+        buffer.flip();
+        channel.write(buffer, 0);
+    }
+
+    private boolean headerMatches() throws IOException {
+        if (channel.size() != headerSize + planeBytes * nPlanes) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) headerSize);
+        channel.read(buffer, 0);
+        buffer.flip();
+        if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION) || (buffer.getInt() != sizes.length)) {
+            return false;
+        }
+        for (int size : sizes) {
+            if (buffer.getInt() != size) {
+                return false;
+            }
+        }
+        return buffer.getInt() == MIN_FACTOR;
+    }
+
+    static float maxAbs(float a, float b) {
+        return Math.abs(b) > Math.abs(a) ? b : a;
+    }
+
+    private int[] planePoint(int plane) {
+        int[] point = new int[sizes.length];
+        for (int i = sizes.length - 1; i >= 2; i--) {
+            point[i] = plane / planeStrides[i];
+            plane %= planeStrides[i];
+        }
+        return point;
+    }
+
+    private int planeIndex(int[] point) {
+        int plane = 0;
+        for (int i = 2; i < point.length; i++) {
+            plane += point[i] * planeStrides[i];
+        }
+        return plane;
+    }
+
+    private double readPoint(int[] point) throws IOException {
+        return dataset.readPoint(point);
+    }
+
+    private long position(int plane, int level, int row) {
+        return headerSize + plane * planeBytes + levelOffsets[level] + (long) row * levelNX[level] * Float.BYTES;
+    }
+
+    /*
+     * Compute all levels of a plane. Rows are read through a slab, so each
+     * block of the data file is read once.
+     */
+    private void buildPlane(int plane) throws IOException {
+        int f = factors[0];
+        int nx = levelNX[0];
+        float[] cells = new float[nx * levelNY[0]];
+        int[] point = planePoint(plane);
+        int nDim = sizes.length;
+        int[] dim = new int[nDim];
+        int[][] region = new int[nDim][2];
+        for (int i = 0; i < nDim; i++) {
+            dim[i] = i;
+            region[i][0] = i < 2 ? 0 : point[i];
+            region[i][1] = i < 2 ? sizes[i] - 1 : point[i];
+        }
+        DatasetSlab slab = new DatasetSlab(dataset, region, dim);
+        boolean useSlab = slab.fits();
+        for (int j = 0; j < sizes[1]; j++) {
+            point[1] = j;
+            region[1][0] = j;
+            region[1][1] = j;
+            if (useSlab && !slab.contains(region)) {
+                slab.load(region);
+            }
+            int rowOffset = (j / f) * nx;
+            for (int i = 0; i < sizes[0]; i++) {
+                point[0] = i;
+                int k = rowOffset + i / f;
+                float value = useSlab ? (float) slab.getValue(point) : (float) readPoint(point);
+                cells[k] = maxAbs(cells[k], value);
+            }
+        }
+        writeLevels(plane, cells);
+    }
+
+    /*
+     * Write the first level for a plane and derive the coarser levels from it.
+     */
+    private void writeLevels(int plane, float[] cells) throws IOException {
+        writeLevel(plane, 0, cells);
+        for (int level = 1; level < factors.length; level++) {
+            int nx = levelNX[level];
+            int ny = levelNY[level];
+            int prevNX = levelNX[level - 1];
+            int prevNY = levelNY[level - 1];
+            float[] coarse = new float[nx * ny];
+            for (int j = 0; j < prevNY; j++) {
+                int rowOffset = (j / 2) * nx;
+                for (int i = 0; i < prevNX; i++) {
+                    int k = rowOffset + i / 2;
+                    coarse[k] = maxAbs(coarse[k], cells[j * prevNX + i]);
+                }
+            }
+            writeLevel(plane, level, coarse);
+            cells = coarse;
+        }
+    }
+
+    private void writeLevel(int plane, int level, float[] cells) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(cells.length * Float.BYTES);
+        buffer.asFloatBuffer().put(cells);
+        channel.write(buffer, position(plane, level, 0));
+    }
+
+    private float[] readLevel(int plane, int level) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(levelNX[level] * levelNY[level] * Float.BYTES);
+        channel.read(buffer, position(plane, level, 0));
+        buffer.flip();
+        float[] cells = new float[levelNX[level] * levelNY[level]];
+        buffer.asFloatBuffer().get(cells);
+        return cells;
+    }
+
+    /**
+     * Record that a vector was written to the dataset so the cells that cover
+     * it are recomputed on the next flush.
+     *
+     * @param first first point of the vector
+     * @param last last point of the vector
+     * @param point the dataset point of the vector (the entry for vecDim is
+     * ignored)
+     * @param vecDim the dataset dimension the vector lies along
+     */
+    public synchronized void markDirty(int first, int last, int[] point, int vecDim) {
+        if (dirtyPlanes.cardinality() == nPlanes) {
+            return;
+        }
+        int f = factors[0];
+        int nx = levelNX[0];
+        if (vecDim < 2) {
+            int plane = planeIndex(point);
+            BitSet bits = dirtyCells.computeIfAbsent(plane, k -> new BitSet());
+            if (vecDim == 0) {
+                int row = (point[1] / f) * nx;
+                bits.set(row + first / f, row + last / f + 1);
+            } else {
+                int col = point[0] / f;
+                for (int j = first / f; j <= last / f; j++) {
+                    bits.set(j * nx + col);
+                }
+            }
+        } else {
+            int[] planePt = point.clone();
+            int cell = (point[1] / f) * nx + point[0] / f;
+            for (int i = first; i <= last; i++) {
+                planePt[vecDim] = i;
+                dirtyCells.computeIfAbsent(planeIndex(planePt), k -> new BitSet()).set(cell);
+            }
+        }
+    }
+
+    /**
+     * Record that values were written to the dataset without marking the
+     * cells they cover (for example by copying blocks of the data file), so
+     * every plane is rebuilt on the next flush.
+     */
+    public synchronized void markAllDirty() {
+        dirtyPlanes.set(0, nPlanes);
+        dirtyCells.clear();
+    }
+
+    /**
+     * Recompute all cells that have been marked dirty since the last flush.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void flush() throws IOException {
+        if (dirtyCells.isEmpty() && dirtyPlanes.isEmpty()) {
+            return;
+        }
+        if (!dirtyPlanes.isEmpty()) {
+            dataset.forceDataFile();
+            for (int plane = dirtyPlanes.nextSetBit(0); plane >= 0; plane = dirtyPlanes.nextSetBit(plane + 1)) {
+                buildPlane(plane);
+                dirtyCells.remove(plane);
+            }
+            dirtyPlanes.clear();
+        }
+        int f = factors[0];
+        int nx = levelNX[0];
+        for (Map.Entry<Integer, BitSet> entry : dirtyCells.entrySet()) {
+            int plane = entry.getKey();
+            float[] cells = readLevel(plane, 0);
+            int[] point = planePoint(plane);
+            BitSet bits = entry.getValue();
+            for (int k = bits.nextSetBit(0); k >= 0; k = bits.nextSetBit(k + 1)) {
+                int cx = k % nx;
+                int cy = k / nx;
+                float value = 0.0f;
+                int lastY = Math.min(sizes[1], (cy + 1) * f);
+                int lastX = Math.min(sizes[0], (cx + 1) * f);
+                for (int j = cy * f; j < lastY; j++) {
+                    point[1] = j;
+                    for (int i = cx * f; i < lastX; i++) {
+                        point[0] = i;
+                        value = maxAbs(value, (float) readPoint(point));
+                    }
+                }
+                cells[k] = value;
+            }
+            writeLevels(plane, cells);
+        }
+        dirtyCells.clear();
+    }
+
+    /**
+     * Return the downsampling factor of the finest level that is no finer than
+     * the requested factor or 1 if the full resolution data should be used.
+     *
+     * @param requestedFactor the ratio between data points and output points
+     * @return the factor of the level to use
+     */
+    public int getFactor(int requestedFactor) {
+        int result = 1;
+        for (int factor : factors) {
+            if (factor <= requestedFactor) {
+                result = factor;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fill a matrix with a downsampled view of a region of a plane. Each value
+     * in the matrix is the largest magnitude value of the region it covers.
+     *
+     * @param pt the region to read, in dataset points
+     * @param dim the dataset dimensions that correspond to the region. The
+     * first two entries must be dimensions 0 and 1 (in either order)
+     * @param matrix the matrix to fill, indexed as [row along dim[1]][column
+     * along dim[0]]
+     * @return the maximum absolute value in the matrix
+     * @throws IOException if an I/O error occurs
+     */
+    public float readMatrix(int[][] pt, int[] dim, float[][] matrix) throws IOException {
+        flush();
+        boolean swapped = dim[0] == 1;
+        int[] point = new int[sizes.length];
+        for (int i = 2; i < dim.length; i++) {
+            point[dim[i]] = pt[i][0];
+        }
+        int xi = swapped ? 1 : 0;
+        int yi = swapped ? 0 : 1;
+        int x0 = pt[xi][0];
+        int x1 = pt[xi][1];
+        int y0 = pt[yi][0];
+        int y1 = pt[yi][1];
+        int nOutX = swapped ? matrix.length : matrix[0].length;
+        int nOutY = swapped ? matrix[0].length : matrix.length;
+        int requested = Math.min((x1 - x0 + 1) / nOutX, (y1 - y0 + 1) / nOutY);
+        int factor = getFactor(requested);
+        int level = -1;
+        for (int i = 0; i < factors.length; i++) {
+            if (factors[i] == factor) {
+                level = i;
+            }
+        }
+        if (level < 0) {
+            throw new IllegalArgumentException("Region is too small for pyramid read");
+        }
+        int nx = levelNX[level];
+        int cx0 = x0 / factor;
+        int cx1 = Math.min(x1 / factor, nx - 1);
+        int cy0 = y0 / factor;
+        int cy1 = Math.min(y1 / factor, levelNY[level] - 1);
+        int nCols = cx1 - cx0 + 1;
+        int plane = planeIndex(point);
+        ByteBuffer buffer = ByteBuffer.allocate(nCols * Float.BYTES);
+        float[] rowValues = new float[nCols];
+        for (float[] row : matrix) {
+            Arrays.fill(row, 0.0f);
+        }
+        float maxValue = 0.0f;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            buffer.clear();
+            channel.read(buffer, position(plane, level, cy) + (long) cx0 * Float.BYTES);
+            buffer.flip();
+            FloatBuffer floatBuffer = buffer.asFloatBuffer();
+            floatBuffer.get(rowValues);
+            int oy = (int) ((long) (cy - cy0) * nOutY / (cy1 - cy0 + 1));
+            for (int cx = 0; cx < nCols; cx++) {
+                int ox = (int) ((long) cx * nOutX / nCols);
+                float value = rowValues[cx];
+                if (swapped) {
+                    matrix[ox][oy] = maxAbs(matrix[ox][oy], value);
+                } else {
+                    matrix[oy][ox] = maxAbs(matrix[oy][ox], value);
+                }
+                maxValue = Math.max(maxValue, Math.abs(value));
+            }
+        }
+        return maxValue;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNLevels() {
+        return factors.length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raFile.getChannel().isOpen()) {
+            flush();
+            raFile.close();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import org.nmrfx.datasets.DatasetLayout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounded memory buffer that holds all vectors along one dimension whose
+ * other coordinates fall within a single block of the dataset layout. The slab
+ * is filled by walking the blocks in file order, so every block is read once
+ * with sequential access, rather than once for every vector that crosses it.
+ * Datasets stored in a plain file are read a whole block at a time with a
+ * single read of the file.
+ * This performs an in-memory transpose of each slab when processing indirect
+ * dimensions of datasets that are larger than memory.
+ *
+ * @author brucejohnson
+ */
+public class DatasetSlab {
+
+    private static long maxPoints = 1L << 26;
+
+    private final Dataset dataset;
+    private final int[] dim;
+    private final int[][] region;
+    private final int[] blockSize;
+    private final int[] sizes;
+    private final int[] fileOrder;
+    private final int[] blockOrder;
+    private final long[] offsetPoints;
+    private final long[] offsetBlocks;
+    private final ByteBuffer blockBuffer;
+    private final int[][] slabRange;
+    private final int[] slabStrides;
+    private final int vecStart;
+    private final int vecLen;
+    private float[] values = null;
+    private boolean loaded = false;
+
+    /**
+     * Create a slab reader for vectors along dim[0] within a region of the
+     * dataset.
+     *
+     * @param dataset the dataset to read
+     * @param region the region (in processing dimension order) that will be
+     * read
+     * @param dim the dataset dimensions corresponding to the entries of region.
+     * Vectors lie along dim[0]
+     */
+    public DatasetSlab(Dataset dataset, int[][] region, int[] dim) {
+        this.dataset = dataset;
+        this.dim = dim.clone();
+        int nDim = dim.length;
+        this.region = new int[nDim][];
+        for (int i = 0; i < nDim; i++) {
+            this.region[i] = region[i].clone();
+        }
+        DatasetLayout layout = dataset.getLayout();
+        blockSize = new int[nDim];
+        sizes = new int[nDim];
+        Integer[] order = new Integer[nDim];
+        for (int i = 0; i < nDim; i++) {
+            blockSize[i] = layout.getBlockSize(i);
+            sizes[i] = dataset.getSize(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(layout.offsetPoints[a], layout.offsetPoints[b]));
+        fileOrder = new int[nDim];
+        for (int i = 0; i < nDim; i++) {
+            fileOrder[i] = order[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(layout.offsetBlocks[a], layout.offsetBlocks[b]));
+        blockOrder = new int[nDim];
+        offsetPoints = new long[nDim];
+        offsetBlocks = new long[nDim];
+        for (int i = 0; i < nDim; i++) {
+            blockOrder[i] = order[i];
+            offsetPoints[i] = layout.offsetPoints[i];
+            offsetBlocks[i] = layout.offsetBlocks[i];
+        }
+        blockBuffer = dataset.hasPlainDataFile() ? ByteBuffer.allocate(layout.blockPoints * Float.BYTES) : null;
+        vecStart = region[0][0];
+        vecLen = region[0][1] - region[0][0] + 1;
+        slabRange = new int[nDim][2];
+        slabStrides = new int[nDim];
+    }
+
+    /**
+     * Set the maximum number of values a slab may hold. Slabs that would be
+     * bigger than this are not loaded.
+     *
+     * @param n the number of values
+     */
+    public static void setMaxPoints(long n) {
+        maxPoints = n;
+    }
+
+    /**
+     * Check whether a slab would fit within the memory limit.
+     *
+     * @return true if the slab can be used
+     */
+    public boolean fits() {
+        long n = vecLen;
+        for (int i = 1; i < dim.length; i++) {
+            n *= Math.min(blockSize[dim[i]], region[i][1] - region[i][0] + 1);
+        }
+        return n <= maxPoints;
+    }
+
+    /**
+     * Check whether the vector at the specified location is held in the
+     * currently loaded slab.
+     *
+     * @param pt the location of the vector
+     * @return true if the vector is in the slab
+     */
+    public boolean contains(int[][] pt) {
+        if (!loaded) {
+            return false;
+        }
+        for (int i = 1; i < dim.length; i++) {
+            int d = dim[i];
+            if ((pt[i][0] < slabRange[d][0]) || (pt[i][0] > slabRange[d][1])) {
+                return false;
+            }
+        }
+        return (pt[0][0] >= vecStart) && (pt[0][1] < vecStart + vecLen);
+    }
+
+    /**
+     * Load the slab that contains the vector at the specified location.
+     *
+     * @param pt the location of a vector
+     * @throws IOException if an I/O error occurs
+     */
+    public void load(int[][] pt) throws IOException {
+        int nDim = dim.length;
+        int nPoints = vecLen;
+        slabRange[dim[0]][0] = vecStart;
+        slabRange[dim[0]][1] = vecStart + vecLen - 1;
+        for (int i = 1; i < nDim; i++) {
+            int d = dim[i];
+            int block = pt[i][0] / blockSize[d];
+            slabRange[d][0] = Math.max(region[i][0], block * blockSize[d]);
+            slabRange[d][1] = Math.min(Math.min(region[i][1], sizes[d] - 1), (block + 1) * blockSize[d] - 1);
+            nPoints *= slabRange[d][1] - slabRange[d][0] + 1;
+        }
+        int stride = vecLen;
+        for (int i = 1; i < nDim; i++) {
+            slabStrides[dim[i]] = stride;
+            stride *= slabRange[dim[i]][1] - slabRange[dim[i]][0] + 1;
+        }
+        slabStrides[dim[0]] = 1;
+        if ((values == null) || (values.length < nPoints)) {
+            values = new float[nPoints];
+        }
+
+        if (blockBuffer != null) {
+            loadBlocks();
+        } else {
+            loadPoints();
+        }
+        loaded = true;
+    }
+
+    /*
+     * Fill the slab by reading each file block that overlaps it with a single
+     * read, visiting the blocks in file order.
+     */
+    private void loadBlocks() throws IOException {
+        int nDim = dim.length;
+        int[] firstBlock = new int[nDim];
+        int[] lastBlock = new int[nDim];
+        int[] block = new int[nDim];
+        for (int i = 0; i < nDim; i++) {
+            firstBlock[i] = slabRange[i][0] / blockSize[i];
+            lastBlock[i] = slabRange[i][1] / blockSize[i];
+            block[i] = firstBlock[i];
+        }
+        boolean isFloat = dataset.getDataType() == 0;
+        double scale = dataset.getScale();
+        int[] point = new int[nDim];
+        int[] start = new int[nDim];
+        int[] end = new int[nDim];
+        boolean blocksDone = false;
+        while (!blocksDone) {
+            long blockNum = 0;
+            for (int i = 0; i < nDim; i++) {
+                blockNum += block[i] * offsetBlocks[i];
+                start[i] = Math.max(slabRange[i][0], block[i] * blockSize[i]);
+                end[i] = Math.min(slabRange[i][1], (block[i] + 1) * blockSize[i] - 1);
+                point[i] = start[i];
+            }
+            dataset.readFileBlock(blockNum, blockBuffer);
+            boolean done = false;
+            while (!done) {
+                int offset = 0;
+                for (int i = 0; i < nDim; i++) {
+                    offset += (int) ((point[i] % blockSize[i]) * offsetPoints[i]);
+                }
+                double raw = isFloat ? blockBuffer.getFloat(offset * Float.BYTES) : blockBuffer.getInt(offset * Integer.BYTES);
+                values[index(point)] = (float) (raw / scale);
+                done = true;
+                for (int d : fileOrder) {
+                    point[d]++;
+                    if (point[d] <= end[d]) {
+                        done = false;
+                        break;
+                    }
+                    point[d] = start[d];
+                }
+            }
+            blocksDone = true;
+            for (int d : blockOrder) {
+                block[d]++;
+                if (block[d] <= lastBlock[d]) {
+                    blocksDone = false;
+                    break;
+                }
+                block[d] = firstBlock[d];
+            }
+        }
+    }
+
+    /*
+     * Fill the slab one point at a time, for datasets that aren't stored in a
+     * plain file.
+     */
+    private void loadPoints() throws IOException {
+        int nDim = dim.length;
+        int vecDim = dim[0];
+        int[] point = new int[nDim];
+        int[][] blockRange = new int[nDim][2];
+        for (int i = 0; i < nDim; i++) {
+            blockRange[i][0] = slabRange[i][0];
+            blockRange[i][1] = slabRange[i][1];
+        }
+        int firstBlock = slabRange[vecDim][0] / blockSize[vecDim];
+        int lastBlock = slabRange[vecDim][1] / blockSize[vecDim];
+        for (int block = firstBlock; block <= lastBlock; block++) {
+            blockRange[vecDim][0] = Math.max(slabRange[vecDim][0], block * blockSize[vecDim]);
+            blockRange[vecDim][1] = Math.min(slabRange[vecDim][1], (block + 1) * blockSize[vecDim] - 1);
+            for (int i = 0; i < nDim; i++) {
+                point[i] = blockRange[i][0];
+            }
+            boolean done = false;
+            while (!done) {
+                values[index(point)] = (float) dataset.readPoint(point);
+                done = true;
+                for (int d : fileOrder) {
+                    point[d]++;
+                    if (point[d] <= blockRange[d][1]) {
+                        done = false;
+                        break;
+                    }
+                    point[d] = blockRange[d][0];
+                }
+            }
+        }
+    }
+
+    private int index(int[] point) {
+        int index = 0;
+        for (int i = 0; i < point.length; i++) {
+            index += (point[i] - slabRange[i][0]) * slabStrides[i];
+        }
+        return index;
+    }
+
+    /**
+     * Get a value from the slab
+     *
+     * @param point the dataset point, which must be in the slab
+     * @return the value
+     */
+    public double getValue(int[] point) {
+        return values[index(point)];
+    }
+
+    /**
+     * Mark the slab as no longer holding valid data.
+     */
+    public void invalidate() {
+        loaded = false;
+    }
+}
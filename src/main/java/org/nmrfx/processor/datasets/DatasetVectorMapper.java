@@ -0,0 +1,255 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.math.VecPool;
+
+/**
+ * Applies a function to every vector along one dimension of a dataset, using
+ * all available processors. The vectors are divided into batches. Each batch
+ * is read with a single acquisition of the dataset lock, processed on a worker
+ * thread without holding the lock, and then written back with a second
+ * acquisition of the lock. Vectors within a batch are written in index order,
+ * but batches are written in the order they finish, which varies from run to
+ * run. Reads and writes of the dataset file are always serial; only the
+ * processing runs in parallel. Vectors are borrowed from the VecPool of the
+ * worker thread, so no vectors are allocated after the first batch.
+ *
+ * @author brucejohnson
+ */
+public class DatasetVectorMapper {
+
+    /**
+     * A function that is applied to a vector read from the dataset.
+     */
+    @FunctionalInterface
+    public interface VectorFunction {
+
+        void apply(Vec vec) throws IOException;
+    }
+
+    /**
+     * A function that is applied to the location of a vector.
+     */
+    @FunctionalInterface
+    public interface IndexFunction {
+
+        void apply(int[][] pt, int[] dim) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface BatchTask {
+
+        void run(int start, int end) throws IOException;
+    }
+
+    private static int defaultBatchSize = 64;
+
+    private final Dataset dataset;
+    private int batchSize = defaultBatchSize;
+
+    public DatasetVectorMapper(Dataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * Set the number of vectors in each batch for new mappers.
+     *
+     * @param n the number of vectors
+     */
+    public static void setDefaultBatchSize(int n) {
+        defaultBatchSize = Math.max(1, n);
+    }
+
+    /**
+     * Set the number of vectors in each batch.
+     *
+     * @param n the number of vectors
+     */
+    public void setBatchSize(int n) {
+        batchSize = Math.max(1, n);
+    }
+
+    /**
+     * Get the dataset dimensions used in the location of vectors along the
+     * specified dimension. The first entry is iDim and the remaining entries
+     * are the other dimensions in increasing order.
+     *
+     * @param iDim the dimension vectors lie along
+     * @return the dimensions
+     */
+    public int[] getDims(int iDim) {
+        int nDim = dataset.getNDim();
+        int[] dim = new int[nDim];
+        dim[0] = iDim;
+        int j = 0;
+        for (int i = 1; i < nDim; i++) {
+            if (j == iDim) {
+                j++;
+            }
+            dim[i] = j;
+            j++;
+        }
+        return dim;
+    }
+
+    /**
+     * Get the locations of all the vectors along the specified dimension, in
+     * the order they are returned by the dataset vector iterator.
+     *
+     * @param iDim the dimension vectors lie along
+     * @return the list of locations
+     * @throws IOException if an I/O error occurs
+     */
+    public List<int[][]> getIndices(int iDim) throws IOException {
+        return dataset.getIndices(iDim, 0, dataset.getSize(iDim) - 1);
+    }
+
+    /**
+     * Read every vector along a dimension, apply a function to it and write it
+     * back to the dataset.
+     *
+     * @param iDim the dimension vectors lie along
+     * @param fn the function to apply. It is called concurrently on different
+     * vectors so should not modify shared state.
+     * @throws IOException if an I/O error occurs
+     */
+    public void mapVectors(int iDim, VectorFunction fn) throws IOException {
+        List<int[][]> indices = getIndices(iDim);
+        int[] dim = getDims(iDim);
+        int vecSize = dataset.getSize(iDim);
+        runBatches(indices.size(), (start, end) -> {
+            VecPool pool = VecPool.get();
+            List<Vec> vecs = readBatch(pool, indices, dim, vecSize, start, end);
+            for (Vec vec : vecs) {
+                fn.apply(vec);
+            }
+            synchronized (dataset) {
+                for (Vec vec : vecs) {
+                    dataset.writeVector(vec);
+                }
+            }
+            pool.releaseAll(vecs);
+        });
+    }
+
+    /**
+     * Read every vector along a dimension and combine them into a single
+     * result. Each batch is accumulated into its own result container and the
+     * containers are combined in vector order, so the result doesn't depend on
+     * the number of threads.
+     *
+     * @param <T> the type of the result
+     * @param iDim the dimension vectors lie along
+     * @param supplier creates an empty result container
+     * @param accumulator adds a vector to a result container
+     * @param combiner combines two result containers
+     * @return the result
+     * @throws IOException if an I/O error occurs
+     */
+    public <T> T reduceVectors(int iDim, Supplier<T> supplier, BiConsumer<T, Vec> accumulator,
+            BinaryOperator<T> combiner) throws IOException {
+        List<int[][]> indices = getIndices(iDim);
+        int[] dim = getDims(iDim);
+        int vecSize = dataset.getSize(iDim);
+        int nBatches = (indices.size() + batchSize - 1) / batchSize;
+        try {
+            return IntStream.range(0, nBatches).parallel().mapToObj(iBatch -> {
+                T result = supplier.get();
+                int start = iBatch * batchSize;
+                int end = Math.min(indices.size(), start + batchSize);
+                VecPool pool = VecPool.get();
+                try {
+                    List<Vec> vecs = readBatch(pool, indices, dim, vecSize, start, end);
+                    for (Vec vec : vecs) {
+                        accumulator.accept(result, vec);
+                    }
+                    pool.releaseAll(vecs);
+                } catch (IOException ioE) {
+                    throw new UncheckedIOException(ioE);
+                }
+                return result;
+            }).reduce(combiner).orElseGet(supplier);
+        } catch (UncheckedIOException uioE) {
+            throw uioE.getCause();
+        }
+    }
+
+    /**
+     * Apply a function to the location of every vector along a dimension. No
+     * data is read or written by the mapper, so the function is responsible
+     * for any I/O. Each call of the function is made while holding the dataset
+     * lock, as the dataset file is not safe for concurrent access, so the
+     * function may call readPoint and writePoint. This means the I/O done by
+     * the function is serial; calls for different batches only interleave.
+     *
+     * @param iDim the dimension vectors lie along
+     * @param fn the function to apply
+     * @throws IOException if an I/O error occurs
+     */
+    public void forEachIndex(int iDim, IndexFunction fn) throws IOException {
+        List<int[][]> indices = getIndices(iDim);
+        int[] dim = getDims(iDim);
+        runBatches(indices.size(), (start, end) -> {
+            for (int i = start; i < end; i++) {
+                synchronized (dataset) {
+                    fn.apply(indices.get(i), dim);
+                }
+            }
+        });
+    }
+
+    private List<Vec> readBatch(VecPool pool, List<int[][]> indices, int[] dim, int vecSize,
+            int start, int end) throws IOException {
+        List<Vec> vecs = new ArrayList<>(end - start);
+        synchronized (dataset) {
+            for (int i = start; i < end; i++) {
+                Vec vec = pool.borrow(vecSize, false);
+                dataset.readVectorFromDatasetFile(indices.get(i), dim, vec);
+                vecs.add(vec);
+            }
+        }
+        return vecs;
+    }
+
+    private void runBatches(int nItems, BatchTask task) throws IOException {
+        int nBatches = (nItems + batchSize - 1) / batchSize;
+        try {
+            IntStream.range(0, nBatches).parallel().forEach(iBatch -> {
+                int start = iBatch * batchSize;
+                int end = Math.min(nItems, start + batchSize);
+                try {
+                    task.run(start, end);
+                } catch (IOException ioE) {
+                    throw new UncheckedIOException(ioE);
+                }
+            });
+        } catch (UncheckedIOException uioE) {
+            throw uioE.getCause();
+        }
+    }
+}
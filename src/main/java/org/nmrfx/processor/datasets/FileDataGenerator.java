@@ -595,6 +595,11 @@ public class FileDataGenerator extends DataGenerator implements Cloneable {
     public float[][] readMatrix(int iChunk, String chunkLabelStr, int[][] apt, float[][] matrix) throws IOException {
         int ny = apt[1][1] - apt[1][0] + 1;
         int nx = apt[0][1] - apt[0][0] + 1;
+        if ((matrix != null) && (matrix.length > 0) && usePyramid(apt, matrix)) {
+            float maxValue = theFile.getPyramid().readMatrix(apt, dim, matrix);
+            extremes.put(chunkLabelStr + iChunk, maxValue);
+            return matrix;
+        }
         if ((matrix == null) || (matrix.length != ny) || (matrix[0].length != nx)) {
             matrix = new float[ny][nx];
         }
@@ -604,6 +609,61 @@ public class FileDataGenerator extends DataGenerator implements Cloneable {
         return (matrix);
     }
 
+    /**
+     * Read a downsampled overview of a region. Each value is the largest
+     * magnitude value of the points it covers. The dataset pyramid is used when
+     * available.
+     *
+     * @param apt the region to read
+     * @param nx number of output columns (along the first display dimension)
+     * @param ny number of output rows (along the second display dimension)
+     * @return the overview matrix
+     * @throws IOException if an I/O error occurs
+     */
+    public float[][] readOverview(int[][] apt, int nx, int ny) throws IOException {
+        float[][] overview = new float[ny][nx];
+        if (usePyramid(apt, overview)) {
+            theFile.getPyramid().readMatrix(apt, dim, overview);
+            return overview;
+        }
+        int nRows = apt[1][1] - apt[1][0] + 1;
+        int nCols = apt[0][1] - apt[0][0] + 1;
+        float[][] matrix = new float[nRows][nCols];
+        theFile.readMatrix(theFile, apt, dim, matrix);
+        for (int j = 0; j < nRows; j++) {
+            int oy = (int) ((long) j * ny / nRows);
+            for (int i = 0; i < nCols; i++) {
+                int ox = (int) ((long) i * nx / nCols);
+                overview[oy][ox] = DatasetPyramid.maxAbs(overview[oy][ox], matrix[j][i]);
+            }
+        }
+        return overview;
+    }
+
+    /**
+     * Check whether a matrix read can be satisfied from the dataset pyramid.
+     * This is the case when the matrix is coarser than the region by at least
+     * the pyramid's minimum downsampling factor and the region lies in the
+     * plane of dataset dimensions 0 and 1.
+     *
+     * @param apt the region to read
+     * @param matrix the matrix that will hold the values
+     * @return true if the pyramid should be used
+     */
+    boolean usePyramid(int[][] apt, float[][] matrix) {
+        if ((dim.length < 2) || ((dim[0] + dim[1]) != 1)) {
+            return false;
+        }
+        int ny = apt[1][1] - apt[1][0] + 1;
+        int nx = apt[0][1] - apt[0][0] + 1;
+        int factor = Math.min(nx / matrix[0].length, ny / matrix.length);
+        if (factor < DatasetPyramid.MIN_FACTOR) {
+            return false;
+        }
+        DatasetPyramid pyramid = theFile.getPyramid();
+        return (pyramid != null) && (pyramid.getFactor(factor) > 1);
+    }
+
     public synchronized int getDim(int userDim) {
         if ((userDim >= 0) && (userDim < dim.length)) {
             return (dim[userDim]);
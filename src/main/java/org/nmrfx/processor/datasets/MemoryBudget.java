@@ -0,0 +1,97 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the off-heap memory used by all the in-memory datasets of
+ * the process. Memory files reserve their buffers here, and segmented memory
+ * files spill segments to disk when a new segment would take the total over
+ * the limit. The default limit is half of the maximum heap size. The JVM's
+ * default limit on direct buffers is the maximum heap size, so this leaves
+ * room for direct buffers that aren't dataset storage.
+ *
+ * @author brucejohnson
+ */
+public class MemoryBudget {
+
+    private static volatile long limit = Runtime.getRuntime().maxMemory() / 2;
+    private static final AtomicLong USED = new AtomicLong(0);
+
+    private MemoryBudget() {
+    }
+
+    /**
+     * Set the maximum number of bytes that in-memory datasets should use.
+     *
+     * @param nBytes the number of bytes
+     */
+    public static void setLimit(long nBytes) {
+        limit = nBytes;
+    }
+
+    public static long getLimit() {
+        return limit;
+    }
+
+    public static long getUsed() {
+        return USED.get();
+    }
+
+    /**
+     * Get the number of bytes that can still be reserved without exceeding
+     * the limit.
+     *
+     * @return the number of bytes (zero if the limit is already exceeded)
+     */
+    public static long getAvailable() {
+        return Math.max(0, limit - USED.get());
+    }
+
+    /**
+     * Reserve memory if it is available.
+     *
+     * @param nBytes the number of bytes
+     * @return true if the memory was reserved
+     */
+    public static boolean tryReserve(long nBytes) {
+        while (true) {
+            long used = USED.get();
+            if (used + nBytes > limit) {
+                return false;
+            }
+            if (USED.compareAndSet(used, used + nBytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Record memory that is being used, even if that exceeds the limit.
+     *
+     * @param nBytes the number of bytes
+     */
+    public static void reserve(long nBytes) {
+        USED.addAndGet(nBytes);
+    }
+
+    public static void release(long nBytes) {
+        USED.addAndGet(-nBytes);
+    }
+}
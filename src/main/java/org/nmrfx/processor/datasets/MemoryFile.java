@@ -35,6 +35,8 @@ public class MemoryFile implements DatasetStorageInterface, Closeable {
     private final int dataType;
     final boolean writable;
     private final FloatBuffer floatBuffer;
+    private final long reservedBytes;
+    private boolean closed = false;
     int BYTES = Float.BYTES;
 
     public MemoryFile(final Dataset dataset, final boolean writable) {
@@ -55,7 +57,20 @@ public class MemoryFile implements DatasetStorageInterface, Closeable {
         }
         //System.out.println("size " + totalSize);
         totalSize = size;
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect((int) totalSize * Float.BYTES);
+        long nBytes = totalSize * Float.BYTES;
+        if (nBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Dataset too large for MemoryFile, use SegmentedMemoryFile");
+        }
+        // the budget only counts off-heap memory, so if the buffer doesn't fit
+        // in what is left of it the buffer is allocated on the heap instead
+        ByteBuffer byteBuffer;
+        if (MemoryBudget.tryReserve(nBytes)) {
+            reservedBytes = nBytes;
+            byteBuffer = ByteBuffer.allocateDirect((int) nBytes);
+        } else {
+            reservedBytes = 0;
+            byteBuffer = ByteBuffer.allocate((int) nBytes);
+        }
         floatBuffer = byteBuffer.asFloatBuffer();
         try {
             zero();
@@ -123,6 +138,10 @@ public class MemoryFile implements DatasetStorageInterface, Closeable {
 
     @Override
     public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            MemoryBudget.release(reservedBytes);
+        }
     }
 
     @Override
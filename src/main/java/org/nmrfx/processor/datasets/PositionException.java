@@ -11,7 +11,7 @@ class PositionException extends IOException {
     
     String message;
     long limit;
-    int position;
+    long position;
     int[] offsets;
 
     @Override
@@ -24,7 +24,7 @@ class PositionException extends IOException {
         return sBuilder.toString();
     }
 
-    PositionException(String message, long limit, int position, int... offsets) {
+    PositionException(String message, long limit, long position, int... offsets) {
         super();
         this.message = message;
         this.limit = limit;
@@ -250,7 +250,7 @@ public class ScanRegion {
 
     public void reset() {
         for (int i = 0; i < nDim; i++) {
-            iBlock[i] = 0;
+            iBlock[i] = block[i][0];
         }
         scanVector.clear();
     }
@@ -274,4 +274,24 @@ public class ScanRegion {
         }
         return indexList.get(i);
     }
+
+    /**
+     * Get the location of a vector, in the form returned by nextPoint2, from
+     * the index of the vector in the order the vectors are returned by
+     * nextPoint2. The index is built on the first call, which resets the scan.
+     *
+     * @param i the index of the vector
+     * @return the start and end point of the vector in each dimension
+     */
+    public int[][] getPoint2(final int i) {
+        int[] myVec = getIndexEntry(i);
+        int[][] result = new int[myVec.length][2];
+        result[0][0] = vecRange[0];
+        result[0][1] = vecRange[1];
+        for (int j = 1; j < myVec.length; j++) {
+            result[j][0] = myVec[j];
+            result[j][1] = myVec[j];
+        }
+        return result;
+    }
 }
@@ -0,0 +1,440 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.nmrfx.datasets.DatasetStorageInterface;
+import org.nmrfx.processor.math.Vec;
+
+/**
+ * An in-memory dataset store that is divided into segments, so it can hold
+ * more than 2 Gb of data. Segments are allocated as direct buffers when they
+ * are first written (unwritten segments read as zero) and their memory is
+ * counted against the MemoryBudget shared by all in-memory datasets. When a
+ * new segment would exceed the budget, the least recently used segments of all
+ * segmented files are copied to a temporary memory mapped file, and are then
+ * accessed through the mapping so the operating system can page them.
+ * <p>
+ * Values are read without locking, as a segment that is being spilled keeps
+ * its values. Writes share a read lock that spilling a segment of the file
+ * takes exclusively, so no write can be lost while a segment is copied.
+ *
+ * @author brucejohnson
+ */
+public class SegmentedMemoryFile implements DatasetStorageInterface, Closeable {
+
+    private static final List<SegmentedMemoryFile> OPEN_FILES = new CopyOnWriteArrayList<>();
+    private static final AtomicLong USE_COUNTER = new AtomicLong(0);
+    private static int segmentShift = 24;
+
+    private final int[] sizes;
+    private final long[] strides;
+    private final long totalSize;
+    private final int dataType;
+    final boolean writable;
+    private final int shift;
+    private final long segmentMask;
+    private final long segmentBytes;
+    private final Segment[] segments;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private File spillFile = null;
+    private RandomAccessFile spillRAFile = null;
+    int BYTES = Float.BYTES;
+
+    static class Segment {
+
+        final int index;
+        final int nPoints;
+        volatile FloatBuffer buffer = null;
+        volatile boolean resident = false;
+        volatile long lastUse = 0;
+
+        Segment(int index, int nPoints) {
+            this.index = index;
+            this.nPoints = nPoints;
+        }
+    }
+
+    public SegmentedMemoryFile(final Dataset dataset, final boolean writable) {
+        dataType = dataset.getDataType();
+        sizes = new int[dataset.getNDim()];
+        strides = new long[dataset.getNDim()];
+        this.writable = writable;
+        long size = 1;
+        for (int i = 0; i < dataset.getNDim(); i++) {
+            sizes[i] = dataset.getSize(i);
+            size *= sizes[i];
+            if (i == 0) {
+                strides[i] = 1;
+            } else {
+                strides[i] = strides[i - 1] * sizes[i - 1];
+            }
+        }
+        totalSize = size;
+        shift = segmentShift;
+        long segmentPoints = 1L << shift;
+        segmentMask = segmentPoints - 1;
+        segmentBytes = segmentPoints * BYTES;
+        int nSegments = (int) ((totalSize + segmentPoints - 1) / segmentPoints);
+        segments = new Segment[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            int nPoints = (int) Math.min(segmentPoints, totalSize - i * segmentPoints);
+            segments[i] = new Segment(i, nPoints);
+        }
+        OPEN_FILES.add(this);
+    }
+
+    /**
+     * Set the size of the segments of new files.
+     *
+     * @param shift the number of points in each segment is 2 to the power of
+     * this value
+     */
+    public static void setSegmentShift(int shift) {
+        segmentShift = shift;
+    }
+
+    /**
+     * Check whether a dataset of the specified size should be stored in a
+     * segmented file rather than a single buffer. That is the case if it is
+     * too big for a single buffer or if it doesn't fit within the memory
+     * budget.
+     *
+     * @param nBytes the size of the dataset in bytes
+     * @return true if a segmented file should be used
+     */
+    public static boolean isNeeded(long nBytes) {
+        return (nBytes > Integer.MAX_VALUE) || (nBytes > MemoryBudget.getAvailable());
+    }
+
+    /**
+     * Get the number of bytes of this file that are held in memory (rather
+     * than spilled to disk).
+     *
+     * @return the number of bytes
+     */
+    public long getResidentBytes() {
+        long nBytes = 0;
+        for (Segment segment : segments) {
+            if (segment.resident) {
+                nBytes += (long) segment.nPoints * BYTES;
+            }
+        }
+        return nBytes;
+    }
+
+    private Segment ensureSegment(int iSegment) throws IOException {
+        Segment segment = segments[iSegment];
+        if (segment.buffer == null) {
+            synchronized (segment) {
+                if (segment.buffer == null) {
+                    allocate(segment);
+                }
+            }
+        }
+        return segment;
+    }
+
+    private void allocate(Segment segment) throws IOException {
+        long nBytes = (long) segment.nPoints * BYTES;
+        boolean reserved = MemoryBudget.tryReserve(nBytes);
+        if (!reserved) {
+            spillColdSegments(nBytes);
+            reserved = MemoryBudget.tryReserve(nBytes);
+        }
+        if (reserved) {
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.allocateDirect((int) nBytes);
+                byteBuffer.order(ByteOrder.nativeOrder());
+                segment.buffer = byteBuffer.asFloatBuffer();
+                segment.resident = true;
+                return;
+            } catch (OutOfMemoryError oomE) {
+                MemoryBudget.release(nBytes);
+            }
+        }
+        FloatBuffer mapped = mapSpill(segment);
+        for (int i = 0; i < segment.nPoints; i++) {
+            mapped.put(i, 0.0f);
+        }
+        segment.buffer = mapped;
+    }
+
+    /**
+     * Spill the least recently used segments of all open files until the
+     * requested number of bytes have been freed, or there are no more
+     * segments that can be spilled. Segments of files that are being written
+     * by another thread are skipped.
+     */
+    private static synchronized void spillColdSegments(long nBytes) throws IOException {
+        List<Object[]> candidates = new ArrayList<>();
+        for (SegmentedMemoryFile memFile : OPEN_FILES) {
+            for (Segment segment : memFile.segments) {
+                if (segment.resident) {
+                    candidates.add(new Object[]{memFile, segment});
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingLong(c -> ((Segment) c[1]).lastUse));
+        long freed = 0;
+        for (Object[] candidate : candidates) {
+            if (freed >= nBytes) {
+                break;
+            }
+            SegmentedMemoryFile memFile = (SegmentedMemoryFile) candidate[0];
+            Segment segment = (Segment) candidate[1];
+            if (memFile.lock.writeLock().tryLock()) {
+                try {
+                    freed += memFile.spill(segment);
+                } finally {
+                    memFile.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private long spill(Segment segment) throws IOException {
+        FloatBuffer buffer = segment.buffer;
+        if (!segment.resident || (buffer == null)) {
+            return 0;
+        }
+        FloatBuffer mapped = mapSpill(segment);
+        FloatBuffer source = buffer.duplicate();
+        source.clear();
+        mapped.put(source);
+        segment.buffer = mapped;
+        segment.resident = false;
+        long nBytes = (long) segment.nPoints * BYTES;
+        MemoryBudget.release(nBytes);
+        return nBytes;
+    }
+
+    private synchronized FloatBuffer mapSpill(Segment segment) throws IOException {
+        if (spillRAFile == null) {
+            spillFile = File.createTempFile("nmrfx", ".seg");
+            spillFile.deleteOnExit();
+            spillRAFile = new RandomAccessFile(spillFile, "rw");
+        }
+        ByteBuffer byteBuffer = spillRAFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                segment.index * segmentBytes, (long) segment.nPoints * BYTES);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        return byteBuffer.asFloatBuffer();
+    }
+
+    @Override
+    public void setWritable(boolean state) {
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public long bytePosition(int... offsets) {
+        return pointPosition(offsets) * BYTES;
+    }
+
+    @Override
+    public long pointPosition(int... offsets) {
+        long position;
+        position = offsets[0];
+        for (int iDim = 1; iDim < offsets.length; iDim++) {
+            position += offsets[iDim] * strides[iDim];
+        }
+        return position;
+    }
+
+    @Override
+    public int getSize(final int dim) {
+        return sizes[dim];
+    }
+
+    @Override
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    private float get(long position) {
+        Segment segment = segments[(int) (position >>> shift)];
+        FloatBuffer buffer = segment.buffer;
+        return buffer == null ? 0.0f : buffer.get((int) (position & segmentMask));
+    }
+
+    @Override
+    public float getFloat(int... offsets) throws IOException {
+        long p = pointPosition(offsets);
+        if (p >= totalSize) {
+            throw new PositionException("Out of range in SegmentedMemoryFile getFloat", totalSize, p, offsets);
+        }
+        return get(p);
+    }
+
+    @Override
+    public void setFloat(float d, int... offsets) throws IOException {
+        long p = pointPosition(offsets);
+        if (p >= totalSize) {
+            throw new PositionException("Out of range in SegmentedMemoryFile setFloat", totalSize, p, offsets);
+        }
+        Segment segment = ensureSegment((int) (p >>> shift));
+        lock.readLock().lock();
+        try {
+            segment.buffer.put((int) (p & segmentMask), d);
+            segment.lastUse = USE_COUNTER.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            dropSegments();
+            if (spillRAFile != null) {
+                spillRAFile.close();
+                spillRAFile = null;
+                if (!spillFile.delete()) {
+                    System.err.println("Couldn't delete " + spillFile);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        OPEN_FILES.remove(this);
+    }
+
+    private void dropSegments() {
+        for (Segment segment : segments) {
+            if (segment.resident) {
+                MemoryBudget.release((long) segment.nPoints * BYTES);
+            }
+            segment.resident = false;
+            segment.buffer = null;
+        }
+    }
+
+    @Override
+    public double sumValues() throws IOException {
+        double sum = 0.0;
+        for (Segment segment : segments) {
+            FloatBuffer buffer = segment.buffer;
+            if (buffer != null) {
+                for (int i = 0; i < segment.nPoints; i++) {
+                    sum += buffer.get(i);
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public double sumFast() throws IOException {
+        return sumValues();
+    }
+
+    @Override
+    public void zero() throws IOException {
+        lock.writeLock().lock();
+        try {
+            dropSegments();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void force() {
+    }
+
+    // allocate the segments that will be written before taking the lock
+    private void ensureSegments(long position, long stride, int nPoints) throws IOException {
+        int lastSegment = -1;
+        for (int i = 0; i < nPoints; i++) {
+            int iSegment = (int) (position >>> shift);
+            if (iSegment != lastSegment) {
+                ensureSegment(iSegment);
+                lastSegment = iSegment;
+            }
+            position += stride;
+        }
+    }
+
+    public void writeVector(int first, int last, int[] point, int dim, double scale, Vec vector) throws IOException {
+        point[dim] = first;
+        long position = pointPosition(point);
+        long stride = strides[dim];
+        int nPoints = last - first + 1;
+        ensureSegments(position, stride, nPoints);
+        long use = USE_COUNTER.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            int j = 0;
+            boolean complex = vector.isComplex();
+            for (int i = 0; i < nPoints; i++) {
+                double value;
+                if (complex) {
+                    value = (i % 2) == 0 ? vector.getReal(j) : vector.getImag(j++);
+                } else {
+                    value = vector.getReal(j++);
+                }
+                Segment segment = segments[(int) (position >>> shift)];
+                segment.buffer.put((int) (position & segmentMask), (float) (value * scale));
+                segment.lastUse = use;
+                position += stride;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void readVector(int first, int last, int[] point, int dim, double scale, Vec vector) throws IOException {
+        int j = 0;
+        point[dim] = first;
+        long position = pointPosition(point);
+        long stride = strides[dim];
+        if (vector.isComplex()) {
+            for (int i = first; i <= last; i += 2) {
+                double real = get(position) / scale;
+                position += stride;
+                double imag = get(position) / scale;
+                position += stride;
+                vector.set(j++, real, imag);
+            }
+        } else {
+            for (int i = first; i <= last; i++) {
+                double real = get(position) / scale;
+                position += stride;
+                vector.set(j++, real);
+            }
+        }
+    }
+}
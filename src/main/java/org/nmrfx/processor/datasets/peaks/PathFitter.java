@@ -14,6 +14,7 @@ import org.nmrfx.peaks.PeakPaths.PATHMODE;
 import org.nmrfx.peaks.PeakPath;
 import org.nmrfx.peaks.PeakDistance;
 import org.nmrfx.processor.optimization.Fitter;
+import org.nmrfx.processor.optimization.ResampleEngine;
 import smile.data.DataFrame;
 import smile.data.formula.Formula;
 import smile.regression.OLS;
@@ -37,6 +38,7 @@ public class PathFitter {
     int nPaths;
     int nDims = 2;
     double pScale = 0.001;
+    ResampleEngine resampleEngine = null;
 
     class PathFunction implements BiFunction<double[], double[][], Double> {
 
@@ -220,6 +222,16 @@ public class PathFitter {
 
     }
 
+    /**
+     * Set the engine used to bootstrap the fit errors. By default the Fitter's
+     * default engine is used.
+     *
+     * @param resampleEngine the engine
+     */
+    public void setResampleEngine(ResampleEngine resampleEngine) {
+        this.resampleEngine = resampleEngine;
+    }
+
     public double[] getPars() {
         return bestPars;
     }
@@ -383,6 +395,9 @@ public class PathFitter {
     void fitTitration() throws Exception {
         PathFunction fun = new PathFunction();
         Fitter fitter = Fitter.getArrayFitter(fun::apply);
+        if (resampleEngine != null) {
+            fitter.setResampleEngine(resampleEngine);
+        }
         fitter.setXYE(xValues, yValues[0], errValues);
         int[] indices = new int[yValues[0].length];
         for (int i = 0; i < indices.length; i++) {
@@ -19,6 +19,7 @@ package org.nmrfx.processor.datasets.peaks;
 
 import org.nmrfx.peaks.CouplingItem;
 import org.nmrfx.peaks.CouplingPattern;
+import org.nmrfx.processor.optimization.LMSolver;
 import org.nmrfx.processor.optimization.NNLSMat;
 import org.nmrfx.processor.optimization.SineSignal;
 import java.util.List;
@@ -52,6 +53,7 @@ import org.apache.commons.math3.util.FastMath;
 public class PeakFit implements MultivariateFunction {
 
     static RandomGenerator random = new SynchronizedRandomGenerator(new Well19937c());
+    private static final ThreadLocal<LMSolver> LM_SOLVER = ThreadLocal.withInitial(() -> new LMSolver(256, 16));
 
     double[][] freqs = null;
     double[][] amplitudes = null;
@@ -142,6 +144,181 @@ public class PeakFit implements MultivariateFunction {
         return result.getValue();
     }
 
+    /**
+     * Fit the signals, including their amplitudes, by minimizing the sum of
+     * squared deviations with the Levenberg-Marquardt algorithm, keeping the
+     * parameters within their bounds. The derivatives of the spectrum with
+     * respect to the linewidths, amplitudes and line frequencies are
+     * analytic. The derivatives with respect to the center and couplings of
+     * coupled multiplets are calculated from the analytic derivatives with
+     * respect to the line frequencies and amplitudes, and finite differences of
+     * the line frequencies and amplitudes of the coupling pattern. Each thread
+     * reuses one LMSolver, and its working arrays, for all its fits.
+     *
+     * @param maxEval the maximum number of evaluations
+     * @return the rms deviation of the best fit
+     */
+    public double optimizeLM(int maxEval) {
+        if (!fitAmps) {
+            throw new IllegalStateException("Least squares fitting requires fitting amplitudes");
+        }
+        best = null;
+        int nPars = newStart.length;
+        int nPoints = xv.length;
+        double[][] jacobian = new double[nPoints][nPars];
+        double[] scales = new double[nPars];
+        for (int j = 0; j < nPars; j++) {
+            scales[j] = (boundaries[1][j] - boundaries[0][j]) / 100.0;
+        }
+        LMSolver.Model model = (scaled, residuals, jac) -> {
+            double[] a = unscalePar(scaled);
+            if (jac == null) {
+                RealVector values = calcVec(a);
+                for (int i = 0; i < nPoints; i++) {
+                    residuals[i] = values.getEntry(i) - yv[i];
+                }
+                return false;
+            }
+            for (double[] jRow : jacobian) {
+                Arrays.fill(jRow, 0.0);
+            }
+            calculateJacobian(a, residuals, jacobian);
+            for (int i = 0; i < nPoints; i++) {
+                residuals[i] -= yv[i];
+                double[] jRow = jacobian[i];
+                int row = i * nPars;
+                for (int j = 0; j < nPars; j++) {
+                    jac[row + j] = jRow[j] * scales[j];
+                }
+            }
+            return true;
+        };
+        LMSolver solver = LM_SOLVER.get();
+        solver.setMaxEvaluations(maxEval);
+        solver.setMaxIterations(maxEval);
+        double[] point = clampScaled(newStart.clone());
+        solver.solve(model, nPoints, point, uniformBoundaries[0], uniformBoundaries[1]);
+        return valueWithUnScaled(unscalePar(point));
+    }
+
+    private double[] clampScaled(double[] point) {
+        for (int i = 0; i < point.length; i++) {
+            point[i] = Math.max(uniformBoundaries[0][i], Math.min(uniformBoundaries[1][i], point[i]));
+        }
+        return point;
+    }
+
+    /**
+     * Calculate the spectrum (as calcVec does) and its derivatives with
+     * respect to the (unscaled) parameters.
+     *
+     * @param a the unscaled parameters
+     * @param values the calculated spectrum
+     * @param jacobian the derivatives, one row for each point
+     */
+    void calculateJacobian(double[] a, double[] values, double[][] jacobian) {
+        int nPoints = xv.length;
+        Arrays.fill(values, 0.0);
+        double[] dLw = new double[nPoints];
+        double[] dFreq = new double[nPoints];
+        double[] shape = new double[nPoints];
+        for (int iSig = 0; iSig < nSignals; iSig++) {
+            int start = sigStarts[iSig];
+            int lwIndex = start++;
+            double sigLw = a[lwIndex];
+            int nLines = freqs[iSig].length;
+            if ((cplItems[iSig].length == 1) && (cplItems[iSig][0].getNSplits() < 0)) { // generic multiplet
+                for (int iLine = 0; iLine < nLines; iLine++) {
+                    int ampIndex = start++;
+                    int freqIndex = start++;
+                    double amp = a[ampIndex];
+                    lShapeProfile(sigLw, a[freqIndex], shape, dLw, dFreq);
+                    for (int i = 0; i < nPoints; i++) {
+                        values[i] += amp * shape[i];
+                        jacobian[i][lwIndex] += amp * dLw[i];
+                        jacobian[i][ampIndex] += shape[i];
+                        jacobian[i][freqIndex] += amp * dFreq[i];
+                    }
+                }
+            } else {
+                int ampIndex = start++;
+                double thisAmp = a[ampIndex];
+                int nPatternPars = 1 + 2 * cplItems[iSig].length;
+                double[] lineFreqs = new double[nLines];
+                double[] lineAmps = new double[nLines];
+                patternLines(a, iSig, lineFreqs, lineAmps);
+                double[][] dLineFreqs = new double[nPatternPars][nLines];
+                double[][] dLineAmps = new double[nPatternPars][nLines];
+                double[] aTemp = a.clone();
+                double[] freqsP = new double[nLines];
+                double[] ampsP = new double[nLines];
+                double[] freqsM = new double[nLines];
+                double[] ampsM = new double[nLines];
+                for (int iPar = 0; iPar < nPatternPars; iPar++) {
+                    int index = start + iPar;
+                    double h = 1.0e-6 * Math.max(1.0, Math.abs(a[index]));
+                    aTemp[index] = a[index] + h;
+                    patternLines(aTemp, iSig, freqsP, ampsP);
+                    aTemp[index] = a[index] - h;
+                    patternLines(aTemp, iSig, freqsM, ampsM);
+                    aTemp[index] = a[index];
+                    for (int iLine = 0; iLine < nLines; iLine++) {
+                        dLineFreqs[iPar][iLine] = (freqsP[iLine] - freqsM[iLine]) / (2.0 * h);
+                        dLineAmps[iPar][iLine] = (ampsP[iLine] - ampsM[iLine]) / (2.0 * h);
+                    }
+                }
+                for (int iLine = 0; iLine < nLines; iLine++) {
+                    double lineAmp = lineAmps[iLine];
+                    lShapeProfile(sigLw, lineFreqs[iLine], shape, dLw, dFreq);
+                    for (int i = 0; i < nPoints; i++) {
+                        double[] jRow = jacobian[i];
+                        values[i] += thisAmp * lineAmp * shape[i];
+                        jRow[lwIndex] += thisAmp * lineAmp * dLw[i];
+                        jRow[ampIndex] += lineAmp * shape[i];
+                        for (int iPar = 0; iPar < nPatternPars; iPar++) {
+                            jRow[start + iPar] += thisAmp * (dLineAmps[iPar][iLine] * shape[i]
+                                    + lineAmp * dFreq[i] * dLineFreqs[iPar][iLine]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the line frequencies and relative amplitudes of a coupled
+     * multiplet.
+     */
+    private void patternLines(double[] a, int iSig, double[] lineFreqs, double[] lineAmps) {
+        int start = sigStarts[iSig] + 2;
+        double center = a[start++];
+        CouplingItem[] items = new CouplingItem[cplItems[iSig].length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new CouplingItem(a[start++], a[start++], center, cplItems[iSig][i].getNSplits());
+        }
+        lineFreqs[0] = center;
+        Arrays.fill(lineAmps, 1.0);
+        CouplingPattern.jSplittings(items, lineFreqs, lineAmps);
+    }
+
+    /**
+     * Calculate lShape and its derivatives with respect to the linewidth and
+     * frequency at every point.
+     */
+    private void lShapeProfile(double b, double freq, double[] shape, double[] dB, double[] dFreq) {
+        double h = 0.5 * b;
+        double h2 = h * h;
+        for (int i = 0; i < xv.length; i++) {
+            double dX = xv[i] - freq;
+            double dX2 = dX * dX;
+            double denom = h2 + dX2;
+            double denom2 = denom * denom;
+            shape[i] = h2 / denom;
+            dB[i] = h * dX2 / denom2;
+            dFreq[i] = 2.0 * h2 * dX / denom2;
+        }
+    }
+
     public double optimizeBOBYQA(final int nSteps, final int nInterpolationPoints) {
         BOBYQAOptimizer optimizer = new BOBYQAOptimizer(nInterpolationPoints);
         PointValuePair result = optimizer.optimize(nSteps, this, GoalType.MINIMIZE, newStart, uniformBoundaries[0], uniformBoundaries[1]);
@@ -501,7 +501,11 @@ public class PeakFitter {
                 }   //System.out.println(guesses.length + " " + nInterpolationPoints + " " + nSteps);
                 long startTime = System.currentTimeMillis();
                 try {
-                    peakFit.optimizeCMAES(nSteps);
+                    if (fitAmps && PeakListTools.useLeastSquares) {
+                        peakFit.optimizeLM(Math.max(200, nSteps));
+                    } else {
+                        peakFit.optimizeCMAES(nSteps);
+                    }
                 } catch (TooManyEvaluationsException tmE) {
                 } catch (Exception ex) {
                     Logger.getLogger(PeakFitter.class.getName()).log(Level.SEVERE, null, ex);
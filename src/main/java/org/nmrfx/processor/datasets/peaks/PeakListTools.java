@@ -53,6 +53,19 @@ import org.nmrfx.processor.project.Project;
  */
 public class PeakListTools {
 
+    /**
+     * Set whether peak fits whose lineshape model has an analytic gradient are
+     * done with least squares (Levenberg-Marquardt) rather than BOBYQA (or
+     * CMA-ES in PeakFitter). Least squares minimizes the sum of squared
+     * deviations, while the other optimizers minimize the deviation measure
+     * that is reported as the quality of the fit, so it is off by default.
+     *
+     * @param state true to use least squares
+     */
+    public static void setUseLeastSquares(boolean state) {
+        useLeastSquares = state;
+    }
+
     public static ResonanceFactory resFactory() {
         Project project = (Project) Project.getActive();
         return project.resFactory;
@@ -88,6 +101,8 @@ public class PeakListTools {
      */
     public static final int FIT_RMS = 4;
 
+    static boolean useLeastSquares = false;
+
     /**
      *
      */
@@ -1520,7 +1535,11 @@ public class PeakListTools {
         //System.out.println(guess.length + " " + nInterpolationPoints);
         PointValuePair result;
         try {
-            result = peakFit.optimizeBOBYQA(nSteps, nInterpolationPoints);
+            if (useLeastSquares && peakFit.hasAnalyticGradient()) {
+                result = peakFit.optimizeLM(Math.max(200, nSteps));
+            } else {
+                result = peakFit.optimizeBOBYQA(nSteps, nInterpolationPoints);
+            }
         } catch (TooManyEvaluationsException tmE) {
             throw new PeakFitException(tmE.getMessage());
         }
@@ -116,42 +116,70 @@ public class PeakPathAnalyzer {
 
     }
 
+    /**
+     * Finds the peaks in each of the lists of a PeakPaths within a radius of a
+     * peak, sorted by distance.
+     */
+    @FunctionalInterface
+    public interface NearPeakFinder {
+
+        ArrayList<ArrayList<PeakDistance>> getNearPeaks(Peak peak, double radius);
+    }
+
     public static void checkListsForUnambigous(PeakPaths peakPaths, double radius) {
         PeakList firstList = peakPaths.getPeakLists().get(0);
-        boolean useLast = true;
-        for (PeakPath path : peakPaths.getPathMap().values()) {
-            if (path.getPeakDistances().size() > 1) {
-                useLast = false;
-                break;
-            }
-
-        }
+        boolean useLast = useLastForUnambigous(peakPaths);
         for (Peak peak : firstList.peaks()) {
             if (peak.getStatus() == 0) {
 //                System.out.print(peak.getName() + " ");
-                ArrayList<ArrayList<PeakDistance>> filteredLists
-                        = peakPaths.getNearPeaks(peak, radius);
-                PeakPath path = checkForUnambigous(peakPaths, filteredLists, useLast);
-                double delta = checkPath(peakPaths, path.getPeakDistances());
-                if (delta < 1.0) {
+                PeakPath path = findUnambigousPath(peakPaths, peakPaths::getNearPeaks, peak, radius, useLast);
+                if (path != null) {
                     peakPaths.getPathMap().put(path.getFirstPeak(), path);
 //                    System.out.println(path.toString());
-//                    System.out.printf(" unam %.3f\n", delta);
-                } else {
-//                    System.out.println("");
                 }
             }
         }
         peakPaths.dumpPaths();
     }
 
+    /**
+     * Whether checking for unambiguous paths should use the distance to the
+     * last list, which is done until a path with more than one peak has been
+     * found.
+     */
+    public static boolean useLastForUnambigous(PeakPaths peakPaths) {
+        boolean useLast = true;
+        for (PeakPath path : peakPaths.getPathMap().values()) {
+            if (path.getPeakDistances().size() > 1) {
+                useLast = false;
+                break;
+            }
+
+        }
+        return useLast;
+    }
+
+    /**
+     * Find the unambiguous path from a peak, as checkListsForUnambigous does,
+     * without adding it to the paths.
+     *
+     * @return the path or null if there is no unambiguous path
+     */
+    public static PeakPath findUnambigousPath(PeakPaths peakPaths, NearPeakFinder nearPeaks, Peak peak,
+            double radius, boolean useLast) {
+        ArrayList<ArrayList<PeakDistance>> filteredLists
+                = nearPeaks.getNearPeaks(peak, radius);
+        PeakPath path = checkForUnambigous(peakPaths, filteredLists, useLast);
+        double delta = checkPath(peakPaths, path.getPeakDistances());
+//        System.out.printf(" unam %.3f\n", delta);
+        return delta < 1.0 ? path : null;
+    }
+
     public static void extendPath(PeakPaths peakPaths, Peak peak, double radius, double tol) {
         if (peak.getStatus() == 0) {
             System.out.print(peak.getName() + " ");
-            ArrayList<ArrayList<PeakDistance>> filteredLists
-                    = peakPaths.getNearPeaks(peak, radius);
-            PeakPath path = extendPath(peakPaths, filteredLists, tol);
-            if (!path.getPeakDistances().isEmpty()) {
+            PeakPath path = findExtendedPath(peakPaths, peakPaths::getNearPeaks, peak, radius, tol);
+            if (path != null) {
                 peakPaths.getPathMap().put(path.getFirstPeak(), path);
                 System.out.println(path.toString());
 //                    for (PeakDistance pathPeak : path.peakDists) {
@@ -168,6 +196,20 @@ public class PeakPathAnalyzer {
 
     }
 
+    /**
+     * Find the path extended from a peak, as extendPath does, without adding it
+     * to the paths.
+     *
+     * @return the path or null if no path was found
+     */
+    public static PeakPath findExtendedPath(PeakPaths peakPaths, NearPeakFinder nearPeaks, Peak peak,
+            double radius, double tol) {
+        ArrayList<ArrayList<PeakDistance>> filteredLists
+                = nearPeaks.getNearPeaks(peak, radius);
+        PeakPath path = extendPath(peakPaths, filteredLists, tol);
+        return path.getPeakDistances().isEmpty() ? null : path;
+    }
+
     public static void extendPaths(PeakPaths peakPath, double radius, double tol) {
         PeakList firstList = peakPath.getPeakLists().get(0);
         for (Peak peak : firstList.peaks()) {
@@ -393,6 +435,23 @@ public class PeakPathAnalyzer {
     }
 
     public static ArrayList<PeakDistance> scan(PeakPaths peakPaths, final Peak startPeak, double radius, double tolMul, int midListIndex, final Peak lastPeak, boolean requireLinear) {
+        ArrayList<PeakDistance> bestPath = findScanPath(peakPaths, peakPaths::getNearPeaks, startPeak,
+                radius, tolMul, midListIndex, lastPeak, requireLinear);
+        PeakPath newPath = makeScanPath(peakPaths, startPeak, bestPath);
+        peakPaths.getPathMap().put(newPath.getFirstPeak(), newPath);
+        return bestPath;
+    }
+
+    /**
+     * Find the best path from a start peak, as scan does, without adding it to
+     * the paths.
+     *
+     * @param nearPeaks gets the peaks in each list within a radius of a peak
+     * (for example PeakPaths.getNearPeaks)
+     * @return the peaks of the best path, or an empty list if none was found
+     */
+    public static ArrayList<PeakDistance> findScanPath(PeakPaths peakPaths, NearPeakFinder nearPeaks,
+            final Peak startPeak, double radius, double tolMul, int midListIndex, final Peak lastPeak, boolean requireLinear) {
         ArrayList<PeakDistance> endPeakDists = new ArrayList<>();
         ArrayList<ArrayList<PeakDistance>> filteredLists;
         if ((lastPeak != null)
@@ -401,9 +460,9 @@ public class PeakPathAnalyzer {
             double[] deltas = peakPaths.calcDeltas(startPeak, lastPeak);
             PeakDistance peakDis = new PeakDistance(lastPeak, distance, deltas);
             endPeakDists.add(peakDis);
-            filteredLists = peakPaths.getNearPeaks(startPeak, distance * 1.1);
+            filteredLists = nearPeaks.getNearPeaks(startPeak, distance * 1.1);
         } else {
-            filteredLists = peakPaths.getNearPeaks(startPeak, radius);
+            filteredLists = nearPeaks.getNearPeaks(startPeak, radius);
             ArrayList<PeakDistance> lastPeaks = filteredLists.get(filteredLists.size() - 1);
             for (PeakDistance peakDis : lastPeaks) {
                 endPeakDists.add(peakDis);
@@ -584,6 +643,14 @@ public class PeakPathAnalyzer {
                 }
             }
         }
+        return bestPath;
+    }
+
+    /**
+     * Make the path found by findScanPath. If no path was found the path only
+     * contains the start peak, otherwise it is confirmed.
+     */
+    public static PeakPath makeScanPath(PeakPaths peakPaths, Peak startPeak, List<PeakDistance> bestPath) {
         PeakPath newPath;
         if (bestPath.isEmpty()) {
             newPath = new PeakPath(peakPaths, startPeak);
@@ -591,9 +658,7 @@ public class PeakPathAnalyzer {
             newPath = new PeakPath(peakPaths, bestPath);
             newPath.confirm();
         }
-        peakPaths.getPathMap().put(newPath.getFirstPeak(), newPath);
-
-        return bestPath;
+        return newPath;
     }
 
     public static ArrayList<Peak> scan2(PeakPaths peakPaths, final String startPeakName, double radius, double tolMul, int midListIndex, final String lastPeakName) {
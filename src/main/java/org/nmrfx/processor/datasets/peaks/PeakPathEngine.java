@@ -0,0 +1,312 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.datasets.peaks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDistance;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.peaks.PeakPath;
+import org.nmrfx.peaks.PeakPaths;
+import org.nmrfx.processor.optimization.Fitter;
+import org.nmrfx.processor.optimization.ResampleEngine;
+
+/**
+ * Traces and fits the peak paths of a titration or pressure series in
+ * parallel.
+ * <p>
+ * The peaks of each list of the series are indexed by their weighted shift in
+ * the first path dimension, so finding the peaks near a start peak only
+ * calculates distances to the peaks within the radius in that dimension. The
+ * index is built once and used for all the start peaks of scan, extendPaths
+ * and checkListsForUnambigous. It should be rebuilt if peaks are added, moved
+ * or deleted.
+ * <p>
+ * The paths from different start peaks are found in parallel, then added to
+ * the PeakPaths in the order of the start peaks, so the result is the same as
+ * the corresponding PeakPathAnalyzer methods. Path fits are also done in
+ * parallel, each with a seeded single threaded bootstrap, so the errors don't
+ * depend on the number of threads.
+ *
+ * @author brucejohnson
+ */
+public class PeakPathEngine {
+
+    /**
+     * The peaks of one list sorted by weighted shift in the first path
+     * dimension.
+     */
+    static class ListIndex {
+
+        final Peak[] peaks;
+        final double[] keys;
+
+        ListIndex(PeakList peakList, int iDim, double weight) {
+            List<Peak> listPeaks = peakList.peaks().stream()
+                    .filter(p -> !p.isDeleted())
+                    .sorted(Comparator.comparingDouble(p -> p.getPeakDim(iDim).getChemShiftValue()))
+                    .collect(Collectors.toList());
+            peaks = listPeaks.toArray(new Peak[listPeaks.size()]);
+            keys = new double[peaks.length];
+            for (int i = 0; i < peaks.length; i++) {
+                keys[i] = peaks[i].getPeakDim(iDim).getChemShiftValue() / weight;
+            }
+        }
+
+        int lowerBound(double key) {
+            int lo = 0;
+            int hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private final PeakPaths peakPaths;
+    private ListIndex[] listIndices;
+    private int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private long seed = 0;
+
+    public PeakPathEngine(PeakPaths peakPaths) {
+        this.peakPaths = peakPaths;
+        buildIndex();
+    }
+
+    /**
+     * Build the index of the peaks in each list. Call this if peaks have been
+     * added, moved or deleted since the engine was created.
+     */
+    public final void buildIndex() {
+        List<PeakList> peakLists = peakPaths.getPeakLists();
+        int iDim = peakPaths.getPeakDims()[0];
+        double weight = peakPaths.getWeights()[iDim];
+        listIndices = new ListIndex[peakLists.size()];
+        for (int i = 0; i < listIndices.length; i++) {
+            listIndices[i] = new ListIndex(peakLists.get(i), iDim, weight);
+        }
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Set the seed of the bootstraps used to estimate the errors of path fits.
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Get the peaks in each list within a weighted distance (as calculated by
+     * PeakPaths.calcDistance) of a peak, sorted by distance. Deleted peaks are
+     * skipped.
+     *
+     * @param startPeak the peak
+     * @param radius the distance
+     * @return a list of peaks for each peak list
+     */
+    public ArrayList<ArrayList<PeakDistance>> getNearPeaks(Peak startPeak, double radius) {
+        int iDim = peakPaths.getPeakDims()[0];
+        double key = startPeak.getPeakDim(iDim).getChemShiftValue() / peakPaths.getWeights()[iDim];
+        ArrayList<ArrayList<PeakDistance>> filteredLists = new ArrayList<>();
+        for (ListIndex listIndex : listIndices) {
+            ArrayList<PeakDistance> peakDists = new ArrayList<>();
+            for (int i = listIndex.lowerBound(key - radius); i < listIndex.keys.length; i++) {
+                if (listIndex.keys[i] > key + radius) {
+                    break;
+                }
+                Peak peak = listIndex.peaks[i];
+                double distance = peakPaths.calcDistance(startPeak, peak);
+                if (distance < radius) {
+                    peakDists.add(new PeakDistance(peak, distance, peakPaths.calcDeltas(startPeak, peak)));
+                }
+            }
+            Collections.sort(peakDists);
+            filteredLists.add(peakDists);
+        }
+        return filteredLists;
+    }
+
+    private List<Peak> getFreeStartPeaks() {
+        return peakPaths.getPeakLists().get(0).peaks().stream()
+                .filter(p -> p.getStatus() == 0)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Scan for the best path from each of the start peaks, as
+     * PeakPathAnalyzer.scan does, and add the paths to the PeakPaths.
+     *
+     * @param startPeaks the start peaks
+     * @param radius the radius within which peaks are considered
+     * @param tolMul the multiple of the start peak's bounds used as the
+     * tolerance for linear paths
+     * @param midListIndex the index of the list used for the middle point of
+     * the path
+     * @param requireLinear true if the paths must be close to linear
+     * @return the paths, in the order of the start peaks
+     */
+    public List<PeakPath> scan(List<Peak> startPeaks, double radius, double tolMul, int midListIndex,
+            boolean requireLinear) {
+        PeakPath[] paths = new PeakPath[startPeaks.size()];
+        run(paths.length, i -> {
+            Peak startPeak = startPeaks.get(i);
+            ArrayList<PeakDistance> bestPath = PeakPathAnalyzer.findScanPath(peakPaths, this::getNearPeaks,
+                    startPeak, radius, tolMul, midListIndex, null, requireLinear);
+            paths[i] = PeakPathAnalyzer.makeScanPath(peakPaths, startPeak, bestPath);
+        });
+        return addPaths(paths);
+    }
+
+    /**
+     * Extend paths from each of the peaks of the first list that aren't in a
+     * path, as PeakPathAnalyzer.extendPaths does, and add them to the
+     * PeakPaths.
+     *
+     * @param radius the radius within which peaks are considered
+     * @param tol the tolerance for the distance from the predicted position
+     * @return the paths found, in the order of the start peaks
+     */
+    public List<PeakPath> extendPaths(double radius, double tol) {
+        List<Peak> startPeaks = getFreeStartPeaks();
+        PeakPath[] paths = new PeakPath[startPeaks.size()];
+        run(paths.length, i -> paths[i] = PeakPathAnalyzer.findExtendedPath(peakPaths, this::getNearPeaks,
+                startPeaks.get(i), radius, tol));
+        List<PeakPath> result = addPaths(paths);
+        peakPaths.dumpPaths();
+        return result;
+    }
+
+    /**
+     * Find the unambiguous paths from each of the peaks of the first list that
+     * aren't in a path, as PeakPathAnalyzer.checkListsForUnambigous does, and
+     * add them to the PeakPaths.
+     *
+     * @param radius the radius within which peaks are considered
+     * @return the paths found, in the order of the start peaks
+     */
+    public List<PeakPath> checkListsForUnambigous(double radius) {
+        List<Peak> startPeaks = getFreeStartPeaks();
+        boolean useLast = PeakPathAnalyzer.useLastForUnambigous(peakPaths);
+        PeakPath[] paths = new PeakPath[startPeaks.size()];
+        run(paths.length, i -> paths[i] = PeakPathAnalyzer.findUnambigousPath(peakPaths, this::getNearPeaks,
+                startPeaks.get(i), radius, useLast));
+        List<PeakPath> result = addPaths(paths);
+        peakPaths.dumpPaths();
+        return result;
+    }
+
+    private List<PeakPath> addPaths(PeakPath[] paths) {
+        List<PeakPath> result = new ArrayList<>();
+        for (PeakPath path : paths) {
+            if (path != null) {
+                peakPaths.getPathMap().put(path.getFirstPeak(), path);
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fit each of the paths separately, setting their fit parameters and
+     * errors.
+     *
+     * @param paths the paths to fit
+     * @return the fitters used, in the order of the paths. The fitter is null
+     * if the fit failed.
+     */
+    public List<PathFitter> fitPaths(List<PeakPath> paths) {
+        ResampleEngine defaultEngine = Fitter.getDefaultResampleEngine();
+        PathFitter[] fitters = new PathFitter[paths.size()];
+        run(fitters.length, i -> {
+            PathFitter pathFitter = new PathFitter();
+            pathFitter.setup(peakPaths, paths.get(i));
+            ResampleEngine resampleEngine = new ResampleEngine(seed);
+            resampleEngine.setNThreads(1);
+            resampleEngine.setBatchSize(defaultEngine.getBatchSize());
+            resampleEngine.setStopping(defaultEngine.getMinSamples(), defaultEngine.getSDTolerance());
+            pathFitter.setResampleEngine(resampleEngine);
+            try {
+                pathFitter.fit();
+                fitters[i] = pathFitter;
+            } catch (Exception ex) {
+                System.err.println("Couldn't fit path " + paths.get(i).getFirstPeak().getName() + " " + ex.getMessage());
+            }
+        });
+        return Arrays.asList(fitters);
+    }
+
+    /**
+     * Fit each of the paths in the PeakPaths, in their sorted order.
+     *
+     * @return the fitters used
+     */
+    public List<PathFitter> fitPaths() {
+        List<PeakPath> paths = peakPaths.getPathMap().values().stream()
+                .sorted().collect(Collectors.toList());
+        return fitPaths(paths);
+    }
+
+    /**
+     * Run a task for each index on the common pool, with at most nThreads
+     * tasks running at once. Each worker takes the next index when it
+     * finishes one, so tasks of different lengths are balanced. With one
+     * thread the tasks are run on the calling thread.
+     */
+    private void run(int n, IntConsumer task) {
+        int nWorkers = Math.min(nThreads, n);
+        if (nWorkers <= 1) {
+            for (int i = 0; i < n; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        AtomicInteger next = new AtomicInteger(0);
+        IntStream.range(0, nWorkers).parallel().forEach(iWorker -> {
+            int i;
+            while ((i = next.getAndIncrement()) < n) {
+                task.accept(i);
+            }
+        });
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.nmrfx.processor.operations.Util;
+
+/**
+ * Baseline correction of batches of vectors that share their size and signal
+ * regions, as is usual for the rows of a 2D or 3D dataset.
+ * <p>
+ * The Whittaker smoother solves the banded system (W/lambda + D'D) z =
+ * W y/lambda of Eilers' asmooth. The matrix only depends on the vector size,
+ * the difference order, lambda and the signal regions (which set W), so its
+ * Cholesky factorization is cached and the triangular solves for all the
+ * vectors of a batch are done together.
+ * <p>
+ * The polynomial and sine corrections fit functions to the mean values of the
+ * windows without signal. The design matrix only depends on the vector size,
+ * window size, order and which windows are baseline, so its QR decomposition
+ * (or SVD for high polynomial orders) is cached and the least squares problems
+ * for a batch are solved together.
+ * <p>
+ * Caches are shared by the threads processing a dataset and keep the most
+ * recently used factorizations.
+ *
+ * @author brucejohnson
+ */
+public class BaselineEngine {
+
+    private static final BaselineEngine DEFAULT_ENGINE = new BaselineEngine(16);
+
+    /**
+     * The highest polynomial order solved by QR decomposition. The powers of
+     * x become nearly dependent at higher orders, where the SVD solver used by
+     * Util.fitPoly discards the smallest singular values and QR doesn't, so
+     * higher orders use SVD to give the same results.
+     */
+    static final int MAX_QR_POLY_ORDER = 8;
+
+    /**
+     * Identifies a factorization by its sizes, parameter and the pattern of
+     * points (or windows) in the signal (or baseline).
+     */
+    static class Key {
+
+        final int type;
+        final int size;
+        final int winSize;
+        final int order;
+        final double lambda;
+        final boolean[] pattern;
+        final int hash;
+
+        Key(int type, int size, int winSize, int order, double lambda, boolean[] pattern) {
+            this.type = type;
+            this.size = size;
+            this.winSize = winSize;
+            this.order = order;
+            this.lambda = lambda;
+            this.pattern = pattern;
+            int h = type;
+            h = 31 * h + size;
+            h = 31 * h + winSize;
+            h = 31 * h + order;
+            h = 31 * h + Double.hashCode(lambda);
+            h = 31 * h + Arrays.hashCode(pattern);
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return (hash == key.hash) && (type == key.type) && (size == key.size)
+                    && (winSize == key.winSize) && (order == key.order)
+                    && (Double.compare(lambda, key.lambda) == 0)
+                    && Arrays.equals(pattern, key.pattern);
+        }
+    }
+
+    static final int WHITTAKER = 0;
+    static final int POLY = 1;
+    static final int SINE = 2;
+
+    /**
+     * The Cholesky factorization of the Whittaker smoother's band matrix.
+     * Row i of the band (diagonal then the multipliers of the n points after
+     * it) is stored starting at band[i * (n + 1)].
+     */
+    static class WhittakerFactor {
+
+        final int m;
+        final int n;
+        final double lambda;
+        final double[] w;
+        final double[] band;
+
+        WhittakerFactor(boolean[] inSignal, int m, int n, double lambda) {
+            this.m = m;
+            this.n = n;
+            this.lambda = lambda;
+            w = new double[m];
+            for (int i = 0; i < m; i++) {
+                w[i] = inSignal[i] ? 0.0 : 1.0;
+            }
+            double[] a = new double[n + 1];
+            Util.pascalrow(a, n);
+            int stride = n + 1;
+            band = new double[m * stride];
+            // construct band matrix, D'D has no contribution from the n
+            // points at each end that are outside the difference equation
+            for (int i = 0; i < m; i++) {
+                int j2 = Math.min(m - 1 - i, n);
+                for (int j = 0; j <= j2; j++) {
+                    double s = 0.0;
+                    if (j == 0) {
+                        s = w[i] / lambda;
+                    }
+                    for (int k = j; k <= n; k++) {
+                        int iv = i + 1 + k;
+                        if ((iv > n) && (iv <= m)) {
+                            s = s + a[k] * a[k - j];
+                        }
+                    }
+                    band[i * stride + j] = s;
+                }
+            }
+            // compute LDL' decomposition
+            for (int i = 0; i < m; i++) {
+                int iRow = i * stride;
+                double s = band[iRow];
+                for (int j = Math.max(0, i - n); j < i; j++) {
+                    double bji = band[j * stride + i - j];
+                    s = s - band[j * stride] * bji * bji;
+                }
+                band[iRow] = s;
+                int j2 = Math.min(m - 1, i + n);
+                for (int j = i + 1; j <= j2; j++) {
+                    s = band[iRow + j - i];
+                    for (int k = Math.max(0, j - n); k < i; k++) {
+                        int kRow = k * stride;
+                        s = s - band[kRow] * band[kRow + i - k] * band[kRow + j - k];
+                    }
+                    band[iRow + j - i] = s / band[iRow];
+                }
+            }
+        }
+
+        /**
+         * Smooth a batch of vectors, replacing the values with the smoothed
+         * values.
+         *
+         * @param z the values of each vector
+         * @param nVecs the number of vectors
+         */
+        void solve(double[][] z, int nVecs) {
+            int stride = n + 1;
+            double[] s = new double[nVecs];
+            for (int i = 0; i < m; i++) {
+                double wi = w[i];
+                for (int v = 0; v < nVecs; v++) {
+                    s[v] = wi * z[v][i] / lambda;
+                }
+                for (int j = Math.max(0, i - n); j < i; j++) {
+                    double bji = band[j * stride + i - j];
+                    for (int v = 0; v < nVecs; v++) {
+                        s[v] = s[v] - z[v][j] * bji;
+                    }
+                }
+                for (int v = 0; v < nVecs; v++) {
+                    z[v][i] = s[v];
+                }
+            }
+            for (int i = m - 1; i >= 0; i--) {
+                int iRow = i * stride;
+                double d = band[iRow];
+                for (int v = 0; v < nVecs; v++) {
+                    s[v] = z[v][i] / d;
+                }
+                int j2 = Math.min(m - 1, i + n);
+                for (int j = i + 1; j <= j2; j++) {
+                    double bij = band[iRow + j - i];
+                    for (int v = 0; v < nVecs; v++) {
+                        s[v] = s[v] - z[v][j] * bij;
+                    }
+                }
+                for (int v = 0; v < nVecs; v++) {
+                    z[v][i] = s[v];
+                }
+            }
+        }
+    }
+
+    private final Map<Key, Object> cache;
+    private int batchSize = 64;
+    private long nFactorizations = 0;
+
+    /**
+     * Create an engine.
+     *
+     * @param maxCached the number of factorizations to keep
+     */
+    public BaselineEngine(int maxCached) {
+        cache = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxCached;
+            }
+        };
+    }
+
+    /**
+     * Get the engine shared by the baseline correction methods and operations.
+     *
+     * @return the engine
+     */
+    public static BaselineEngine getDefault() {
+        return DEFAULT_ENGINE;
+    }
+
+    /**
+     * Set the maximum number of vectors solved together.
+     *
+     * @param batchSize the number of vectors
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the number of factorizations done (rather than found in the cache).
+     *
+     * @return the number of factorizations
+     */
+    public synchronized long getNFactorizations() {
+        return nFactorizations;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private synchronized Object getCached(Key key) {
+        return cache.get(key);
+    }
+
+    private synchronized void putCached(Key key, Object value) {
+        cache.put(key, value);
+        nFactorizations++;
+    }
+
+    WhittakerFactor getWhittakerFactor(Key key) {
+        WhittakerFactor factor = (WhittakerFactor) getCached(key);
+        if (factor == null) {
+            factor = new WhittakerFactor(key.pattern, key.size, key.order, key.lambda);
+            putCached(key, factor);
+        }
+        return factor;
+    }
+
+    /**
+     * Group the indices of the vectors by their keys, keeping the order in
+     * which keys are first found. Vectors with a null key are left out.
+     */
+    private static Map<Key, List<Integer>> group(List<Key> keys) {
+        Map<Key, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.get(i);
+            if (key != null) {
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Baseline correct a vector with the Whittaker smoother, as Vec.bcWhit.
+     *
+     * @param vector the vector
+     * @param lambda smoothing parameter
+     * @param order order of the difference equation
+     * @param baselineMode if true set the vector to be the fitted baseline,
+     * rather than correcting the values
+     */
+    public void whittaker(Vec vector, double lambda, int order, boolean baselineMode) {
+        whittaker(Arrays.asList(vector), lambda, order, baselineMode);
+    }
+
+    /**
+     * Baseline correct vectors with the Whittaker smoother. Points in the
+     * signal regions of each vector have zero weight. Vectors without signal
+     * regions are unchanged, and complex vectors with signal regions are made
+     * real.
+     *
+     * @param vectors the vectors
+     * @param lambda smoothing parameter
+     * @param order order of the difference equation
+     * @param baselineMode if true set the vectors to be the fitted baselines,
+     * rather than correcting the values
+     */
+    public void whittaker(List<Vec> vectors, double lambda, int order, boolean baselineMode) {
+        List<Key> keys = new ArrayList<>();
+        for (Vec vector : vectors) {
+            boolean[] inSignal = vector.getSignalRegion();
+            if ((inSignal != null) && (inSignal.length > 4)) {
+                keys.add(new Key(WHITTAKER, vector.getSize(), 0, order, lambda,
+                        Arrays.copyOf(inSignal, vector.getSize())));
+            } else {
+                keys.add(null);
+            }
+        }
+        for (Map.Entry<Key, List<Integer>> entry : group(keys).entrySet()) {
+            Key key = entry.getKey();
+            WhittakerFactor factor = getWhittakerFactor(key);
+            List<Integer> indices = entry.getValue();
+            for (int start = 0; start < indices.size(); start += batchSize) {
+                int nVecs = Math.min(batchSize, indices.size() - start);
+                double[][] z = new double[nVecs][];
+                for (int v = 0; v < nVecs; v++) {
+                    Vec vector = vectors.get(indices.get(start + v));
+                    if (vector.isComplex()) {
+                        vector.makeReal();
+                    }
+                    z[v] = Arrays.copyOf(vector.rvec, key.size);
+                }
+                factor.solve(z, nVecs);
+                for (int v = 0; v < nVecs; v++) {
+                    double[] rvec = vectors.get(indices.get(start + v)).rvec;
+                    if (baselineMode) {
+                        System.arraycopy(z[v], 0, rvec, 0, key.size);
+                    } else {
+                        for (int i = 0; i < key.size; i++) {
+                            rvec[i] -= z[v][i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the value of each correction function at x.
+     */
+    static void basis(boolean sine, double x, int size, int order, double[] values) {
+        values[0] = 1.0;
+        for (int j = 1; j < order; j++) {
+            if (sine) {
+                int trigOrder = (j + 1) / 2;
+                if ((j % 2) == 0) {
+                    values[j] = Math.sin(x * trigOrder * 2 * Math.PI / (size - 1));
+                } else {
+                    values[j] = Math.cos(x * trigOrder * 2 * Math.PI / (size - 1));
+                }
+            } else {
+                values[j] = values[j - 1] * (x / size);
+            }
+        }
+    }
+
+    /**
+     * The least squares solver for the design matrix of a set of baseline
+     * windows.
+     */
+    static class RegionFit {
+
+        final int nBase;
+        final DecompositionSolver solver;
+
+        RegionFit(int nBase, DecompositionSolver solver) {
+            this.nBase = nBase;
+            this.solver = solver;
+        }
+    }
+
+    RegionFit getRegionFit(Key key) {
+        RegionFit regionFit = (RegionFit) getCached(key);
+        if (regionFit == null) {
+            boolean sine = key.type == SINE;
+            int nBase = 0;
+            for (boolean isBase : key.pattern) {
+                if (isBase) {
+                    nBase++;
+                }
+            }
+            RealMatrix A = new Array2DRowRealMatrix(nBase, key.order);
+            double[] values = new double[key.order];
+            int iBase = 0;
+            for (int i = 0; i < key.pattern.length; i++) {
+                if (key.pattern[i]) {
+                    double x = ((i * key.winSize) + (key.winSize / 2)) - 0.5;
+                    basis(sine, x, key.size, key.order, values);
+                    A.setRow(iBase++, values);
+                }
+            }
+            DecompositionSolver solver = null;
+            if (sine || (key.order <= MAX_QR_POLY_ORDER)) {
+                solver = new QRDecomposition(A).getSolver();
+            }
+            if ((solver == null) || !solver.isNonSingular()) {
+                solver = new SingularValueDecomposition(A).getSolver();
+            }
+            regionFit = new RegionFit(nBase, solver);
+            putCached(key, regionFit);
+        }
+        return regionFit;
+    }
+
+    /**
+     * Baseline correct vectors by subtracting a polynomial, as the BcPoly
+     * operation.
+     *
+     * @param vectors the vectors, which must be real
+     * @param order the number of polynomial coefficients
+     * @param winSize the size of the windows averaged for the fit
+     */
+    public void poly(List<Vec> vectors, int order, int winSize) {
+        correct(vectors, POLY, order, winSize);
+    }
+
+    /**
+     * Baseline correct vectors by subtracting a sum of sines and cosines, as
+     * the BcSine operation.
+     *
+     * @param vectors the vectors, which must be real
+     * @param order the number of coefficients
+     * @param winSize the size of the windows averaged for the fit
+     */
+    public void sine(List<Vec> vectors, int order, int winSize) {
+        correct(vectors, SINE, order, winSize);
+    }
+
+    private void correct(List<Vec> vectors, int type, int order, int winSize) {
+        List<Key> keys = new ArrayList<>();
+        List<double[]> means = new ArrayList<>();
+        for (Vec vector : vectors) {
+            boolean[] inSignal = vector.getSignalRegion();
+            if ((inSignal == null) || (inSignal.length <= 4)) {
+                keys.add(null);
+                means.add(null);
+                continue;
+            }
+            int vecSize = vector.getSize();
+            int nRegions = vecSize / winSize;
+            double[] reVec = new double[nRegions];
+            boolean[] baseVec = new boolean[nRegions];
+            int nBaseRegions = 0;
+            int k = 0;
+            for (int j = 0; j < nRegions; j++) {
+                double reSum = 0.0;
+                int pointsInRegion = 0;
+                boolean justBase = true;
+                for (int i = 0; ((i < winSize) && (k < vecSize)); i++) {
+                    if (inSignal[k]) {
+                        justBase = false;
+                    }
+                    reSum += vector.rvec[k];
+                    pointsInRegion++;
+                    k++;
+                }
+                if (justBase) {
+                    nBaseRegions++;
+                    baseVec[j] = true;
+                }
+                reVec[j] = reSum / pointsInRegion;
+            }
+            if (nBaseRegions > (2 * order)) {
+                keys.add(new Key(type, vecSize, winSize, order, 0.0, baseVec));
+                means.add(reVec);
+            } else {
+                keys.add(null);
+                means.add(null);
+            }
+        }
+        for (Map.Entry<Key, List<Integer>> entry : group(keys).entrySet()) {
+            Key key = entry.getKey();
+            RegionFit regionFit = getRegionFit(key);
+            List<Integer> indices = entry.getValue();
+            for (int start = 0; start < indices.size(); start += batchSize) {
+                int nVecs = Math.min(batchSize, indices.size() - start);
+                List<Vec> batch = new ArrayList<>(nVecs);
+                RealMatrix B = new Array2DRowRealMatrix(regionFit.nBase, nVecs);
+                for (int v = 0; v < nVecs; v++) {
+                    int index = indices.get(start + v);
+                    batch.add(vectors.get(index));
+                    double[] reVec = means.get(index);
+                    int iBase = 0;
+                    for (int i = 0; i < reVec.length; i++) {
+                        if (key.pattern[i]) {
+                            B.setEntry(iBase++, v, reVec[i]);
+                        }
+                    }
+                }
+                RealMatrix X = regionFit.solver.solve(B);
+                subtract(batch, key.type == SINE, order, X);
+            }
+        }
+    }
+
+    /**
+     * Subtract the fitted functions from a batch of vectors, calculating the
+     * functions at each point once for the batch.
+     */
+    private static void subtract(List<Vec> batch, boolean sine, int order, RealMatrix X) {
+        int size = batch.get(0).getSize();
+        int nVecs = batch.size();
+        double[][] coefs = new double[nVecs][];
+        for (int v = 0; v < nVecs; v++) {
+            coefs[v] = X.getColumn(v);
+        }
+        double[] values = new double[order];
+        for (int i = 0; i < size; i++) {
+            values[0] = 1.0;
+            double xval = (1.0 * i) / size;
+            for (int j = 1; j < order; j++) {
+                if (sine) {
+                    int trigOrder = (j + 1) / 2;
+                    if ((j % 2) == 0) {
+                        values[j] = Math.sin(i * trigOrder * 2 * Math.PI / (size - 1));
+                    } else {
+                        values[j] = Math.cos(i * trigOrder * 2 * Math.PI / (size - 1));
+                    }
+                } else {
+                    values[j] = xval;
+                    xval *= ((1.0 * i) / size);
+                }
+            }
+            for (int v = 0; v < nVecs; v++) {
+                double[] c = coefs[v];
+                double yval = c[0];
+                for (int j = 1; j < order; j++) {
+                    yval += values[j] * c[j];
+                }
+                batch.get(v).rvec[i] -= yval;
+            }
+        }
+    }
+}
@@ -17,9 +17,14 @@
  */
 package org.nmrfx.processor.math;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.nmrfx.math.VecBase;
 import org.nmrfx.processor.processing.ProcessingException;
 import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
 
 /**
  * Finite Impulse Response (FIR) filter. See Oppenheim, "Digital Signal Processing", pp. 468 - 472.
@@ -42,6 +47,18 @@ public class FirFilter {
      */
     private double[] coefs;
 
+    /**
+     * coefficients of each polyphase component, polyphaseCoefs[p][m] =
+     * coefs[m * factor + p]
+     */
+    private double[][] polyphaseCoefs;
+
+    /**
+     * transforms of the time reversed coefficients, by FFT size, for overlap-save
+     * convolution
+     */
+    private final Map<Integer, double[][]> filterTransforms = new ConcurrentHashMap<>();
+
     /**
      * decimation factor, must be positive integer, usually > 2
      */
@@ -186,6 +203,15 @@ public class FirFilter {
                 coefs[ncoefs - i - 1] *= -1.0;
             }
         }
+        polyphaseCoefs = new double[factor][];
+        for (int p = 0; p < factor; p++) {
+            int nH = Math.max(0, (ncoefs - p + factor - 1) / factor);
+            polyphaseCoefs[p] = new double[nH];
+            for (int m = 0; m < nH; m++) {
+                polyphaseCoefs[p][m] = coefs[m * factor + p];
+            }
+        }
+        filterTransforms.clear();
     }
 
     /**
@@ -219,7 +245,10 @@ public class FirFilter {
     }
 
     /**
-     * Perform filtering on a vector.
+     * Perform filtering on a vector. Only the output points that are kept
+     * after decimation are calculated, either directly from the polyphase
+     * components of the filter or, for long filters where it is cheaper, by
+     * overlap-save FFT convolution.
      *
      * @param vector input
      * @return vector output
@@ -240,37 +269,37 @@ public class FirFilter {
         if (offset != 0.0) {
             vector.multiplyByFrequency(offset, ncoefs / 2);
         }
-        if (vector.isComplex()) {
-            if (vector.useApache()) {
-                Complex[] cvec = vector.getCvec();
-                for (int i = 0; i < size; i++) {
-                    double sumr = 0.0, sumi = 0.0;
-                    for (int j = 0; j < ncoefs; j++) {
-                        sumr += cvec[i * factor + j].getReal() * coefs[j];
-                        sumi += cvec[i * factor + j].getImaginary() * coefs[j];
-                    }
-                    outVec.set(i, new Complex(sumr, sumi));
-                }
-            } else {
-                double[] rvec = vector.getRvec();
-                double[] ivec = vector.getIvec();
-                for (int i = 0; i < size; i++) {
-                    double sumr = 0.0, sumi = 0.0;
-                    for (int j = 0; j < ncoefs; j++) {
-                        sumr += rvec[i * factor + j] * coefs[j];
-                        sumi += ivec[i * factor + j] * coefs[j];
-                    }
-                    outVec.set(i, sumr, sumi);
-                }
+        int nIn = vector.getSize();
+        boolean complex = vector.isComplex();
+        double[] re;
+        double[] im = null;
+        if (complex && vector.useApache()) {
+            Complex[] cvec = vector.getCvec();
+            re = new double[nIn];
+            im = new double[nIn];
+            for (int i = 0; i < nIn; i++) {
+                re[i] = cvec[i].getReal();
+                im[i] = cvec[i].getImaginary();
             }
-        } else {  // vector not Complex
-            double[] rvec = vector.getRvec();
-            for (int i = 0; i < size; i++) {
-                double sumr = 0.0;
-                for (int j = 0; j < ncoefs; j++) {
-                    sumr += rvec[i * factor + j] * coefs[j];
-                }
-                outVec.set(i, sumr);
+        } else {
+            re = vector.getRvec();
+            if (complex) {
+                im = vector.getIvec();
+            }
+        }
+        double[] outRe = new double[size];
+        double[] outIm = complex ? new double[size] : null;
+        int blockSize = fftBlockSize(size, complex);
+        if (blockSize > 0) {
+            filterFFT(re, im, outRe, outIm, blockSize);
+        } else {
+            filterPolyphase(re, im, nIn, outRe, outIm);
+        }
+        for (int i = 0; i < size; i++) {
+            if (complex) {
+                outVec.set(i, outRe[i], outIm[i]);
+            } else {
+                outVec.set(i, outRe[i]);
             }
         }
         if (offset != 0.0 && type.startsWith("n")) {  // notch filter
@@ -281,6 +310,156 @@ public class FirFilter {
         return vector;
     }
 
+    /**
+     * Get the FFT size to use for overlap-save convolution, or 0 if
+     * calculating the output points directly is cheaper. The direct cost is
+     * ncoefs multiply-adds for each output point (each real and imaginary
+     * value). The FFT cost of a block of size L, giving L - ncoefs + 1 points
+     * before decimation, is a forward and inverse complex FFT plus the product
+     * with the filter's transform, roughly 4 L log2(L) + 6 L operations with
+     * a factor of 2 for the overhead of the FFTs.
+     *
+     * @param nOut the number of output points
+     * @param complex true if the vector is complex
+     * @return the FFT size or 0
+     */
+    int fftBlockSize(int nOut, boolean complex) {
+        double directCost = (double) nOut * ncoefs * (complex ? 2 : 1);
+        int nAll = (nOut - 1) * factor + 1;
+        int bestL = 0;
+        double bestCost = directCost;
+        for (int l = 64; l <= 1 << 20; l *= 2) {
+            int nValid = l - ncoefs + 1;
+            if (nValid < ncoefs) {
+                continue;
+            }
+            int nBlocks = (nAll + nValid - 1) / nValid;
+            double log2L = Math.log(l) / Math.log(2.0);
+            double cost = 2.0 * nBlocks * (4.0 * l * log2L + 6.0 * l);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestL = l;
+            }
+            if (nValid >= nAll) {
+                break;
+            }
+        }
+        return bestL;
+    }
+
+    /**
+     * Calculate the decimated output points directly. The input and filter are
+     * split into factor polyphase components so the inner loops run over
+     * contiguous values: output i is the sum over the phases p of
+     * sum(h_p[m] * x_p[i + m]), with x_p[k] = x[k * factor + p] and h_p[m] =
+     * coefs[m * factor + p].
+     */
+    void filterPolyphase(double[] re, double[] im, int nIn, double[] outRe, double[] outIm) {
+        int nOut = outRe.length;
+        for (int p = 0; p < factor; p++) {
+            int nH = (ncoefs - p + factor - 1) / factor;
+            if (nH <= 0) {
+                continue;
+            }
+            double[] h = polyphaseCoefs[p];
+            int nX = nOut + nH - 1;
+            double[] xRe = new double[nX];
+            double[] xIm = im == null ? null : new double[nX];
+            for (int k = 0; k < nX; k++) {
+                int index = k * factor + p;
+                if (index < nIn) {
+                    xRe[k] = re[index];
+                    if (xIm != null) {
+                        xIm[k] = im[index];
+                    }
+                }
+            }
+            if (xIm == null) {
+                for (int i = 0; i < nOut; i++) {
+                    double sumr = 0.0;
+                    for (int m = 0; m < nH; m++) {
+                        sumr += h[m] * xRe[i + m];
+                    }
+                    outRe[i] += sumr;
+                }
+            } else {
+                for (int i = 0; i < nOut; i++) {
+                    double sumr = 0.0;
+                    double sumi = 0.0;
+                    for (int m = 0; m < nH; m++) {
+                        sumr += h[m] * xRe[i + m];
+                        sumi += h[m] * xIm[i + m];
+                    }
+                    outRe[i] += sumr;
+                    outIm[i] += sumi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the output points by overlap-save FFT convolution, keeping
+     * every factor'th point.
+     */
+    void filterFFT(double[] re, double[] im, double[] outRe, double[] outIm, int blockSize) {
+        double[][] hFT = filterTransform(blockSize);
+        int nOut = outRe.length;
+        int nAll = (nOut - 1) * factor + 1;
+        int nValid = blockSize - ncoefs + 1;
+        double[] bRe = new double[blockSize];
+        double[] bIm = new double[blockSize];
+        double[][] block = {bRe, bIm};
+        for (int start = 0; start < nAll; start += nValid) {
+            // output point t (before decimation) uses input points t to t + ncoefs - 1
+            for (int j = 0; j < blockSize; j++) {
+                int index = start + j;
+                if (index < re.length) {
+                    bRe[j] = re[index];
+                    bIm[j] = im == null ? 0.0 : im[index];
+                } else {
+                    bRe[j] = 0.0;
+                    bIm[j] = 0.0;
+                }
+            }
+            FastFourierTransformer.transformInPlace(block, DftNormalization.STANDARD, TransformType.FORWARD);
+            for (int j = 0; j < blockSize; j++) {
+                double xr = bRe[j];
+                double xi = bIm[j];
+                bRe[j] = xr * hFT[0][j] - xi * hFT[1][j];
+                bIm[j] = xr * hFT[1][j] + xi * hFT[0][j];
+            }
+            FastFourierTransformer.transformInPlace(block, DftNormalization.STANDARD, TransformType.INVERSE);
+            // the first ncoefs - 1 points of the circular convolution wrap around
+            int first = Math.floorDiv(start + factor - 1, factor);
+            for (int i = first; i < nOut; i++) {
+                int t = i * factor - start;
+                if (t >= nValid) {
+                    break;
+                }
+                outRe[i] = bRe[t + ncoefs - 1];
+                if (outIm != null) {
+                    outIm[i] = bIm[t + ncoefs - 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the transform of the time reversed filter, zero filled to the block
+     * size, so the product with the transform of the input is the correlation
+     * used by filter.
+     */
+    private double[][] filterTransform(int blockSize) {
+        return filterTransforms.computeIfAbsent(blockSize, n -> {
+            double[][] hFT = new double[2][n];
+            for (int j = 0; j < ncoefs; j++) {
+                hFT[0][j] = coefs[ncoefs - 1 - j];
+            }
+            FastFourierTransformer.transformInPlace(hFT, DftNormalization.STANDARD, TransformType.FORWARD);
+            return hFT;
+        });
+    }
+
     /**
      * Create simulated Bruker FID correction artifact.
      *
@@ -0,0 +1,327 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes matrices (or vectors) to a single container file, instead of a data
+ * file and a parameter file for each matrix as MatrixND.exportData does.
+ * <p>
+ * The file starts with a 16 byte header: the characters NMRFXMTX, the format
+ * version and a flag that is 1 if the rest of the file is little endian. Each
+ * matrix is appended as a record: its index, its number of dimensions, its
+ * size in each dimension and then its values as doubles. When the container
+ * is closed a table of the index and file offset of each record is appended,
+ * followed by the table's offset, the number of entries and the characters
+ * NMRFXIDX. MatrixContainerReader reads the table, or scans the records if
+ * the container wasn't closed.
+ * <p>
+ * Values are written through a direct buffer that is reused for every record.
+ * If a queue size is given, the records are copied to a queue and written by
+ * a separate thread, so processing threads only wait when the queue is full.
+ * Containers opened with open are shared by the threads writing to the same
+ * file and closed by closeAll at the end of processing.
+ *
+ * @author brucejohnson
+ */
+public class MatrixContainer implements Closeable {
+
+    static final byte[] FILE_MAGIC = "NMRFXMTX".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "NMRFXIDX".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int TRAILER_SIZE = 20;
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private static final Map<String, MatrixContainer> CONTAINERS = new LinkedHashMap<>();
+
+    private static class Record {
+
+        final int index;
+        final int[] sizes;
+        final double[] data;
+
+        Record(int index, int[] sizes, double[] data) {
+            this.index = index;
+            this.sizes = sizes;
+            this.data = data;
+        }
+    }
+
+    private static final Record END = new Record(-1, null, null);
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Map<Integer, Long> offsets = new LinkedHashMap<>();
+    private final BlockingQueue<Record> queue;
+    private final Thread writerThread;
+    private volatile IOException writeError = null;
+    private boolean closed = false;
+
+    /**
+     * Create a container file, replacing any existing file.
+     *
+     * @param fileName the name of the file
+     * @param littleEndian true if values should be written in little endian
+     * order
+     * @param queueSize the number of records that can wait to be written by a
+     * separate thread, or 0 to write records in the calling thread
+     * @throws IOException if an I/O error occurs
+     */
+    public MatrixContainer(String fileName, boolean littleEndian, int queueSize) throws IOException {
+        this.fileName = fileName;
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.put(FILE_MAGIC).putInt(VERSION).putInt(littleEndian ? 1 : 0);
+        buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        flush();
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+            writerThread = new Thread(this::writeQueued, "MatrixContainer " + Paths.get(fileName).getFileName());
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            queue = null;
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Get the shared container for a file, creating it if it isn't open.
+     *
+     * @param fileName the name of the file
+     * @param littleEndian true if values should be written in little endian
+     * order
+     * @param queueSize the size of the queue of records to write, or 0 to
+     * write records in the calling thread
+     * @return the container
+     * @throws IOException if an I/O error occurs
+     */
+    public static MatrixContainer open(String fileName, boolean littleEndian, int queueSize) throws IOException {
+        String key = Paths.get(fileName).toAbsolutePath().normalize().toString();
+        synchronized (CONTAINERS) {
+            MatrixContainer container = CONTAINERS.get(key);
+            if (container == null) {
+                container = new MatrixContainer(fileName, littleEndian, queueSize);
+                CONTAINERS.put(key, container);
+            }
+            return container;
+        }
+    }
+
+    /**
+     * Close all the containers opened with open.
+     */
+    public static void closeAll() {
+        List<MatrixContainer> containers;
+        synchronized (CONTAINERS) {
+            containers = new ArrayList<>(CONTAINERS.values());
+            CONTAINERS.clear();
+        }
+        for (MatrixContainer container : containers) {
+            try {
+                container.close();
+            } catch (IOException ioE) {
+                System.err.println("Error closing " + container.getFileName() + " " + ioE.getMessage());
+            }
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Append a matrix to the container.
+     *
+     * @param index the index of the matrix, used to read it
+     * @param sizes the size of each dimension of the matrix
+     * @param data the values, in the order of the matrix data array
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(int index, int[] sizes, double[] data) throws IOException {
+        long nElems = 1;
+        for (int size : sizes) {
+            nElems *= size;
+        }
+        if (nElems != data.length) {
+            throw new IllegalArgumentException("Matrix sizes don't match number of values " + data.length);
+        }
+        checkError();
+        if (queue == null) {
+            synchronized (this) {
+                checkOpen();
+                writeRecord(index, sizes, data);
+            }
+        } else {
+            Record record = new Record(index, sizes.clone(), data.clone());
+            synchronized (this) {
+                checkOpen();
+                try {
+                    queue.put(record);
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted writing to " + fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a vector to the container.
+     *
+     * @param index the index of the vector, used to read it
+     * @param data the values
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(int index, double[] data) throws IOException {
+        write(index, new int[]{data.length}, data);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Container " + fileName + " is closed");
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (writeError != null) {
+            throw new IOException("Error writing " + fileName + ": " + writeError.getMessage(), writeError);
+        }
+    }
+
+    private void writeQueued() {
+        while (true) {
+            Record record;
+            try {
+                record = queue.take();
+            } catch (InterruptedException iE) {
+                return;
+            }
+            if (record == END) {
+                return;
+            }
+            if (writeError == null) {
+                try {
+                    writeRecord(record.index, record.sizes, record.data);
+                } catch (IOException ioE) {
+                    writeError = ioE;
+                }
+            }
+        }
+    }
+
+    private void writeRecord(int index, int[] sizes, double[] data) throws IOException {
+        synchronized (offsets) {
+            offsets.put(index, channel.position());
+        }
+        buffer.putInt(index).putInt(sizes.length);
+        for (int size : sizes) {
+            buffer.putInt(size);
+        }
+        int i = 0;
+        while (i < data.length) {
+            int n = Math.min(data.length - i, buffer.remaining() / Double.BYTES);
+            if (n == 0) {
+                flush();
+                continue;
+            }
+            buffer.asDoubleBuffer().put(data, i, n);
+            buffer.position(buffer.position() + n * Double.BYTES);
+            i += n;
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Finish writing any queued records, append the table of record offsets
+     * and close the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            if (writerThread != null) {
+                try {
+                    queue.put(END);
+                    writerThread.join();
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted closing " + fileName);
+                }
+                checkError();
+            }
+            long tableOffset = channel.position();
+            for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+                if (buffer.remaining() < 12) {
+                    flush();
+                }
+                buffer.putInt(entry.getKey()).putLong(entry.getValue());
+            }
+            if (buffer.remaining() < TRAILER_SIZE) {
+                flush();
+            }
+            buffer.putLong(tableOffset).putInt(offsets.size()).put(INDEX_MAGIC);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the number of matrices written.
+     *
+     * @return the number of matrices
+     */
+    public int size() {
+        synchronized (offsets) {
+            return offsets.size();
+        }
+    }
+}
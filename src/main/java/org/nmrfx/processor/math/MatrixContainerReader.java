@@ -0,0 +1,242 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the matrices written to a container file by MatrixContainer.
+ *
+ * @author brucejohnson
+ */
+public class MatrixContainerReader implements Closeable {
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteOrder byteOrder;
+    private final Map<Integer, Long> offsets = new LinkedHashMap<>();
+
+    /**
+     * Open a container file and read its table of records. If the file has no
+     * table, because the container wasn't closed, the complete records are
+     * found by reading their headers.
+     *
+     * @param fileName the name of the file
+     * @throws IOException if the file can't be read or isn't a container
+     */
+    public MatrixContainerReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        buffer = ByteBuffer.allocateDirect(MatrixContainer.BUFFER_SIZE);
+        try {
+            readFully(0, MatrixContainer.HEADER_SIZE);
+            byte[] magic = new byte[MatrixContainer.FILE_MAGIC.length];
+            buffer.get(magic);
+            int version = buffer.getInt();
+            if (!Arrays.equals(magic, MatrixContainer.FILE_MAGIC) || (version != MatrixContainer.VERSION)) {
+                throw new IOException(fileName + " is not a matrix container");
+            }
+            byteOrder = buffer.getInt() == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            buffer.order(byteOrder);
+            if (!readTable()) {
+                scanRecords();
+            }
+        } catch (IOException ioE) {
+            channel.close();
+            throw ioE;
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isLittleEndian() {
+        return byteOrder == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    private void readFully(long position, int nBytes) throws IOException {
+        buffer.clear();
+        buffer.limit(nBytes);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + fileName);
+            }
+        }
+        buffer.flip();
+    }
+
+    private boolean readTable() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < MatrixContainer.HEADER_SIZE + MatrixContainer.TRAILER_SIZE) {
+            return false;
+        }
+        readFully(fileSize - MatrixContainer.TRAILER_SIZE, MatrixContainer.TRAILER_SIZE);
+        long tableOffset = buffer.getLong();
+        int nEntries = buffer.getInt();
+        byte[] magic = new byte[MatrixContainer.INDEX_MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MatrixContainer.INDEX_MAGIC)
+                || (tableOffset + 12L * nEntries != fileSize - MatrixContainer.TRAILER_SIZE)) {
+            return false;
+        }
+        int maxEntries = MatrixContainer.BUFFER_SIZE / 12;
+        for (int i = 0; i < nEntries; i += maxEntries) {
+            int n = Math.min(maxEntries, nEntries - i);
+            readFully(tableOffset + 12L * i, 12 * n);
+            for (int j = 0; j < n; j++) {
+                offsets.put(buffer.getInt(), buffer.getLong());
+            }
+        }
+        return true;
+    }
+
+    private void scanRecords() throws IOException {
+        long fileSize = channel.size();
+        long position = MatrixContainer.HEADER_SIZE;
+        while (position + 8 <= fileSize) {
+            readFully(position, 8);
+            int index = buffer.getInt();
+            int nDim = buffer.getInt();
+            if ((nDim < 1) || (position + 8 + 4L * nDim > fileSize)) {
+                break;
+            }
+            long nElems = 1;
+            for (int size : readSizes(position + 8, nDim)) {
+                nElems *= size;
+            }
+            long end = position + 8 + 4L * nDim + Double.BYTES * nElems;
+            if (end > fileSize) {
+                break;
+            }
+            offsets.put(index, position);
+            position = end;
+        }
+    }
+
+    private int[] readSizes(long position, int nDim) throws IOException {
+        readFully(position, 4 * nDim);
+        int[] sizes = new int[nDim];
+        for (int i = 0; i < nDim; i++) {
+            sizes[i] = buffer.getInt();
+        }
+        return sizes;
+    }
+
+    private long getOffset(int index) throws IOException {
+        Long offset = offsets.get(index);
+        if (offset == null) {
+            throw new IOException("No matrix with index " + index + " in " + fileName);
+        }
+        return offset;
+    }
+
+    /**
+     * Get the indices of the matrices in the container, in the order they were
+     * written.
+     *
+     * @return the indices
+     */
+    public Set<Integer> getIndices() {
+        return offsets.keySet();
+    }
+
+    public boolean contains(int index) {
+        return offsets.containsKey(index);
+    }
+
+    /**
+     * Get the sizes of a matrix.
+     *
+     * @param index the index of the matrix
+     * @return the size of each dimension
+     * @throws IOException if an I/O error occurs or there is no matrix with the
+     * index
+     */
+    public synchronized int[] getSizes(int index) throws IOException {
+        long offset = getOffset(index);
+        readFully(offset + 4, 4);
+        int nDim = buffer.getInt();
+        return readSizes(offset + 8, nDim);
+    }
+
+    /**
+     * Read the values of a matrix.
+     *
+     * @param index the index of the matrix
+     * @param data the array to read the values into, whose length must be the
+     * number of values in the matrix
+     * @throws IOException if an I/O error occurs, there is no matrix with the
+     * index or the matrix has a different number of values
+     */
+    public synchronized void read(int index, double[] data) throws IOException {
+        long offset = getOffset(index);
+        int[] sizes = getSizes(index);
+        long nElems = 1;
+        for (int size : sizes) {
+            nElems *= size;
+        }
+        if (nElems != data.length) {
+            throw new IOException("Matrix " + index + " in " + fileName + " has " + nElems
+                    + " values, not " + data.length);
+        }
+        long position = offset + 8 + 4L * sizes.length;
+        int maxValues = MatrixContainer.BUFFER_SIZE / Double.BYTES;
+        for (int i = 0; i < data.length; i += maxValues) {
+            int n = Math.min(maxValues, data.length - i);
+            readFully(position + (long) Double.BYTES * i, Double.BYTES * n);
+            buffer.asDoubleBuffer().get(data, i, n);
+        }
+    }
+
+    /**
+     * Read the values of a matrix into a new array.
+     *
+     * @param index the index of the matrix
+     * @return the values
+     * @throws IOException if an I/O error occurs or there is no matrix with the
+     * index
+     */
+    public synchronized double[] read(int index) throws IOException {
+        int[] sizes = getSizes(index);
+        long nElems = 1;
+        for (int size : sizes) {
+            nElems *= size;
+        }
+        double[] data = new double[(int) nElems];
+        read(index, data);
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -148,6 +148,18 @@ public class MatrixND implements MatrixType {
         return outFileName;
     }
 
+    /**
+     * Append the matrix to a container file, indexed by the matrix's index.
+     *
+     * @param container the container
+     * @return the name of the container file
+     * @throws IOException if an I/O error occurs
+     */
+    public String exportData(MatrixContainer container) throws IOException {
+        container.write(getIndex(), sizes, data);
+        return container.getFileName();
+    }
+
     @Override
     public String importData(String rootName, String suffix) throws IOException {
         return importData(rootName, suffix, false);
@@ -172,6 +184,19 @@ public class MatrixND implements MatrixType {
         return inFileName;
     }
 
+    /**
+     * Read the matrix with the matrix's index from a container file.
+     *
+     * @param reader the reader of the container
+     * @return the name of the container file
+     * @throws IOException if an I/O error occurs or the container has no
+     * matrix of this size with the index
+     */
+    public String importData(MatrixContainerReader reader) throws IOException {
+        reader.read(getIndex(), data);
+        return reader.getFileName();
+    }
+
     public void dump() throws IOException {
         dump(null);
     }
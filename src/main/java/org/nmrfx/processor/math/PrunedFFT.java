@@ -0,0 +1,257 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Forward FFTs (in natural order, without normalization) of complex data in
+ * separate real and imaginary arrays, skipping work that doesn't contribute to
+ * the result when the input is zero beyond a point (as after zero filling)
+ * and/or only a range of the output is needed (as when the spectrum is
+ * extracted after the transform).
+ * <p>
+ * The transform is a radix-2 decimation in frequency FFT. Each stage splits
+ * every block into two half size blocks, so while the non-zero input of a
+ * block fits in its first half, the stage only needs to multiply that input
+ * by the twiddle factors. At a depth d, a block only contributes to the output
+ * points with one residue modulo 2^d, so blocks whose residue has no point in
+ * the output range are skipped.
+ *
+ * @author brucejohnson
+ */
+public class PrunedFFT {
+
+    private static final Map<Integer, double[][]> TWIDDLES = new ConcurrentHashMap<>();
+
+    private PrunedFFT() {
+    }
+
+    /**
+     * Get the twiddle factors for each stage of a size n transform. The factors
+     * for the stage with half block size h, exp(-2 pi i j / (2 h)) for j < h,
+     * are stored contiguously starting at index h - 1.
+     */
+    private static double[][] twiddles(int n) {
+        return TWIDDLES.computeIfAbsent(n, k -> {
+            double[][] w = new double[2][Math.max(1, k - 1)];
+            for (int h = 1; h < k; h *= 2) {
+                for (int j = 0; j < h; j++) {
+                    double angle = -Math.PI * j / h;
+                    w[0][h - 1 + j] = Math.cos(angle);
+                    w[1][h - 1 + j] = Math.sin(angle);
+                }
+            }
+            return w;
+        });
+    }
+
+    /**
+     * Return whether pruning saves enough work to be worth using instead of a
+     * full transform. Only the first log2(n / nInput) and last log2(n / nOut)
+     * stages can be pruned, so input that is only zero filled by 2 or output
+     * that is more than an eighth of the transform saves little.
+     *
+     * @param n the size of the transform
+     * @param nInput the number of possibly non-zero input points
+     * @param nOut the number of output points needed
+     * @return true if the transform should be pruned
+     */
+    public static boolean canPrune(int n, int nInput, int nOut) {
+        return (nInput <= n / 4) || (nOut <= n / 8);
+    }
+
+    /**
+     * Calculate the forward FFT of the data in place, in natural order.
+     *
+     * @param re the real values, whose size must be a power of 2
+     * @param im the imaginary values
+     * @param nInput the input values at this point and beyond are zero
+     * @param kStart the first output point needed
+     * @param nOut the number of output points needed, starting at kStart and
+     * wrapping around the end of the arrays. Other output points are set to
+     * zero.
+     */
+    public static void fft(double[] re, double[] im, int nInput, int kStart, int nOut) {
+        int n = re.length;
+        transform(re, im, nInput, kStart, nOut);
+        nOut = Math.max(0, Math.min(nOut, n));
+        kStart = Math.floorMod(kStart, n);
+        double[] outRe = new double[nOut];
+        double[] outIm = new double[nOut];
+        for (int q = 0; q < nOut; q++) {
+            int pos = position((kStart + q) & (n - 1), n);
+            outRe[q] = re[pos];
+            outIm[q] = im[pos];
+        }
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        for (int q = 0; q < nOut; q++) {
+            int k = (kStart + q) & (n - 1);
+            re[k] = outRe[q];
+            im[k] = outIm[q];
+        }
+    }
+
+    /**
+     * Get the position of an output point of the transform calculated by the
+     * transform method.
+     *
+     * @param k the index of the output point
+     * @param n the size of the transform
+     * @return the position in the arrays
+     */
+    public static int position(int k, int n) {
+        return reverse(k, n);
+    }
+
+    /**
+     * Calculate the forward FFT of the data in place, leaving the output in
+     * bit reversed order (see position). Only the output points needed are
+     * valid.
+     *
+     * @param re the real values, whose size must be a power of 2
+     * @param im the imaginary values
+     * @param nInput the input values at this point and beyond are zero
+     * @param kStart the first output point needed
+     * @param nOut the number of output points needed, starting at kStart and
+     * wrapping around the end of the arrays
+     */
+    public static void transform(double[] re, double[] im, int nInput, int kStart, int nOut) {
+        int n = re.length;
+        if (Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("FFT size " + n + " is not a power of 2");
+        }
+        nInput = Math.max(1, Math.min(nInput, n));
+        nOut = Math.max(0, Math.min(nOut, n));
+        kStart = Math.floorMod(kStart, n);
+        double[][] w = twiddles(n);
+        int nz = nInput;
+        int nBlocks = 1;
+        boolean[] blockNeeded = null;
+        for (int h = n / 2; h >= 1; h /= 2, nBlocks *= 2) {
+            if (nOut < nBlocks) {
+                if (blockNeeded == null) {
+                    blockNeeded = new boolean[n / 2];
+                }
+                for (int iBlock = 0; iBlock < nBlocks; iBlock++) {
+                    blockNeeded[iBlock] = needed(reverse(iBlock, nBlocks), nBlocks, kStart, nOut);
+                }
+                if (nz <= h) {
+                    zeroHalfStage(re, im, h, nz, w, blockNeeded);
+                } else {
+                    prunedStage(re, im, h, w, blockNeeded);
+                }
+            } else if (nz <= h) {
+                zeroHalfStage(re, im, h, nz, w, null);
+            } else {
+                stage(re, im, h, w);
+            }
+            nz = Math.min(nz, h);
+        }
+    }
+
+    /**
+     * A stage in which the second half of each block is zero, so the first
+     * half only has to be copied to it with the twiddle factors applied.
+     */
+    private static void zeroHalfStage(double[] re, double[] im, int h, int nz, double[][] w, boolean[] blockNeeded) {
+        double[] wRe = w[0];
+        double[] wIm = w[1];
+        int nBlocks = re.length / (2 * h);
+        for (int iBlock = 0; iBlock < nBlocks; iBlock++) {
+            if ((blockNeeded != null) && !blockNeeded[iBlock]) {
+                continue;
+            }
+            int b = iBlock * 2 * h;
+            for (int j = 0; j < nz; j++) {
+                double xr = re[b + j];
+                double xi = im[b + j];
+                double wr = wRe[h - 1 + j];
+                double wi = wIm[h - 1 + j];
+                re[b + j + h] = xr * wr - xi * wi;
+                im[b + j + h] = xr * wi + xi * wr;
+            }
+        }
+    }
+
+    private static void stage(double[] re, double[] im, int h, double[][] w) {
+        double[] wRe = w[0];
+        double[] wIm = w[1];
+        int n = re.length;
+        if (h >= n / (2 * h)) {
+            for (int b = 0; b < n; b += 2 * h) {
+                for (int j = 0; j < h; j++) {
+                    butterfly(re, im, b + j, h, wRe[h - 1 + j], wIm[h - 1 + j]);
+                }
+            }
+        } else {
+            // in the later stages there are more blocks than twiddle factors,
+            // so go through the blocks for each twiddle factor
+            for (int j = 0; j < h; j++) {
+                double wr = wRe[h - 1 + j];
+                double wi = wIm[h - 1 + j];
+                for (int b = j; b < n; b += 2 * h) {
+                    butterfly(re, im, b, h, wr, wi);
+                }
+            }
+        }
+    }
+
+    private static void prunedStage(double[] re, double[] im, int h, double[][] w, boolean[] blockNeeded) {
+        double[] wRe = w[0];
+        double[] wIm = w[1];
+        int nBlocks = re.length / (2 * h);
+        for (int iBlock = 0; iBlock < nBlocks; iBlock++) {
+            if (blockNeeded[iBlock]) {
+                int b = iBlock * 2 * h;
+                for (int j = 0; j < h; j++) {
+                    butterfly(re, im, b + j, h, wRe[h - 1 + j], wIm[h - 1 + j]);
+                }
+            }
+        }
+    }
+
+    private static void butterfly(double[] re, double[] im, int j1, int h, double wr, double wi) {
+        int j2 = j1 + h;
+        double xr = re[j1];
+        double xi = im[j1];
+        double yr = re[j2];
+        double yi = im[j2];
+        re[j1] = xr + yr;
+        im[j1] = xi + yi;
+        double dr = xr - yr;
+        double di = xi - yi;
+        re[j2] = dr * wr - di * wi;
+        im[j2] = dr * wi + di * wr;
+    }
+
+    /**
+     * Whether any output point in the range has the residue modulo nBlocks.
+     */
+    private static boolean needed(int residue, int nBlocks, int kStart, int nOut) {
+        int offset = (residue - kStart) & (nBlocks - 1);
+        return offset < nOut;
+    }
+
+    private static int reverse(int i, int n) {
+        return Integer.reverse(i) >>> (Integer.numberOfLeadingZeros(n) + 1);
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.univariate.BrentOptimizer;
+import org.apache.commons.math3.optim.univariate.SearchInterval;
+import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
+import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
+import org.nmrfx.processor.optimization.LMSolver;
+
+/**
+ * Relaxation calculations for many residues at one or more fields.
+ * <p>
+ * The constants that depend on the field (the squared frequencies at which
+ * the spectral density is needed, the dipolar and CSA constants and the TRACT
+ * constants) are calculated once per field and nucleus pair and shared by
+ * all RelaxBatch objects. Spectral densities and rates are calculated over
+ * flat arrays, with values for field f and residue i at index f * nRes + i
+ * (times 5 for spectral densities, which are in the order of
+ * RelaxEquations.getJ: J(0), J(wS), J(wI - wS), J(wI), J(wI + wS)). The
+ * results are the same as those of RelaxEquations.
+ * <p>
+ * Residues are fitted in parallel. Model free fits share a global overall
+ * correlation time, which is optimized with a one dimensional search, while
+ * the order parameter, internal correlation time and exchange of each residue
+ * are fitted by least squares at each trial correlation time.
+ *
+ * @author brucejohnson
+ */
+public class RelaxBatch {
+
+    static final int N_FREQS = 5;
+
+    private static final Map<String, FieldConstants> FIELD_CONSTANTS = new ConcurrentHashMap<>();
+
+    static class FieldConstants {
+
+        final RelaxEquations relaxEquations;
+        final double[] w2 = new double[N_FREQS];
+        final double d2;
+        final double c2;
+        final double gammaRatio;
+        final double sigma;
+        final double tractP;
+        final double gammaSB0;
+
+        FieldConstants(RelaxEquations relaxEquations) {
+            this.relaxEquations = relaxEquations;
+            double wI = relaxEquations.getWI();
+            double wS = relaxEquations.getWS();
+            double[] w = {0.0, wS, wI - wS, wI, wI + wS};
+            for (int k = 0; k < N_FREQS; k++) {
+                w2[k] = w[k] * w[k];
+            }
+            d2 = relaxEquations.getD2();
+            c2 = relaxEquations.getC2();
+            double gammaI = relaxEquations.getGammaI();
+            double gammaS = relaxEquations.getGammaS();
+            gammaRatio = gammaI / gammaS;
+            sigma = relaxEquations.getSigma();
+            double r = relaxEquations.getR();
+            tractP = RelaxEquations.MU0 * gammaI * gammaS * RelaxEquations.PLANCK
+                    / (8.0 * Math.PI * RelaxEquations.SQRT2 * r * r * r);
+            double B0 = wI / RelaxEquations.GAMMA_H;
+            gammaSB0 = gammaS * B0;
+        }
+    }
+
+    /**
+     * The result of a model free fit of residues with a shared overall
+     * correlation time.
+     */
+    public static class ModelFreeFit {
+
+        final double tauM;
+        final double[] s2;
+        final double[] tauF;
+        final double[] rex;
+        final double[] chiSq;
+
+        ModelFreeFit(double tauM, int nRes) {
+            this.tauM = tauM;
+            s2 = new double[nRes];
+            tauF = new double[nRes];
+            rex = new double[nRes];
+            chiSq = new double[nRes];
+        }
+
+        /**
+         * Get the overall correlation time.
+         *
+         * @return the correlation time in seconds
+         */
+        public double getTauM() {
+            return tauM;
+        }
+
+        public double[] getS2() {
+            return s2.clone();
+        }
+
+        /**
+         * Get the internal correlation times.
+         *
+         * @return the correlation times in seconds
+         */
+        public double[] getTauF() {
+            return tauF.clone();
+        }
+
+        public double[] getRex() {
+            return rex.clone();
+        }
+
+        public double[] getChiSq() {
+            return chiSq.clone();
+        }
+
+        public double getTotalChiSq() {
+            double sum = 0.0;
+            for (double value : chiSq) {
+                sum += value;
+            }
+            return sum;
+        }
+    }
+
+    private static final ThreadLocal<LMSolver> LM_SOLVER = ThreadLocal.withInitial(() -> new LMSolver(12, 3));
+
+    private final FieldConstants[] fields;
+    private int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Create a batch calculator.
+     *
+     * @param sfs the 1H spectrometer frequency of each field
+     * @param elemI the first element ("H" for 1H NMR)
+     * @param elemS the second element (C, N, etc.)
+     */
+    public RelaxBatch(double[] sfs, String elemI, String elemS) {
+        fields = new FieldConstants[sfs.length];
+        for (int i = 0; i < sfs.length; i++) {
+            double sf = sfs[i];
+            String key = sf + ":" + elemI + ":" + elemS;
+            fields[i] = FIELD_CONSTANTS.computeIfAbsent(key,
+                    k -> new FieldConstants(new RelaxEquations(sf, elemI, elemS)));
+        }
+    }
+
+    public int getNFields() {
+        return fields.length;
+    }
+
+    public RelaxEquations getRelaxEquations(int iField) {
+        return fields[iField].relaxEquations;
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Model free spectral density with fast and slow internal motions, which
+     * gives models 1, 2 and 5 when tauF and tauS are zero and sf2 equals s2
+     * as appropriate.
+     */
+    static double jModelFree(double w2, double tauM, double s2, double tauF, double sf2, double tauS) {
+        double value1 = s2 / (1.0 + w2 * tauM * tauM);
+        double value2 = ((1.0 - sf2) * (tauF + tauM) * tauF) / ((tauF + tauM) * (tauF + tauM) + w2 * tauM * tauM * tauF * tauF);
+        double value3 = ((sf2 - s2) * (tauS + tauM) * tauS) / ((tauS + tauM) * (tauS + tauM) + w2 * tauM * tauM * tauS * tauS);
+        return 0.4 * tauM * (value1 + value2 + value3);
+    }
+
+    private static double value(double[] values, int i, double defaultValue) {
+        if (values == null) {
+            return defaultValue;
+        }
+        return values.length == 1 ? values[0] : values[i];
+    }
+
+    /**
+     * Calculate the model free spectral densities of residues at each field.
+     * The model is set by which parameters are given: model 1 with only tauM
+     * and s2, model 2 with tauF, model 5 with sf2 and tauS and model 6 with
+     * all of them.
+     *
+     * @param tauM the overall correlation time of each residue, or one value
+     * shared by all residues
+     * @param s2 the order parameter of each residue
+     * @param tauF the fast internal correlation times, or null
+     * @param sf2 the order parameters for fast internal motions, or null for
+     * s2
+     * @param tauS the slow internal correlation times, or null
+     * @param jValues array for the spectral densities, of length at least
+     * nFields * nRes * 5
+     */
+    public void spectralDensities(double[] tauM, double[] s2, double[] tauF, double[] sf2, double[] tauS,
+            double[] jValues) {
+        int nRes = s2.length;
+        for (int iField = 0; iField < fields.length; iField++) {
+            double[] w2 = fields[iField].w2;
+            for (int iRes = 0; iRes < nRes; iRes++) {
+                double resS2 = s2[iRes];
+                double resTauM = value(tauM, iRes, 0.0);
+                double resTauF = value(tauF, iRes, 0.0);
+                double resSf2 = value(sf2, iRes, resS2);
+                double resTauS = value(tauS, iRes, 0.0);
+                int base = (iField * nRes + iRes) * N_FREQS;
+                for (int k = 0; k < N_FREQS; k++) {
+                    jValues[base + k] = jModelFree(w2[k], resTauM, resS2, resTauF, resSf2, resTauS);
+                }
+            }
+        }
+    }
+
+    static double r1(FieldConstants fc, double[] J, int base) {
+        double dipolarContrib = fc.d2 / 4.0 * (J[base + RelaxEquations.ImS] + 3.0 * J[base + RelaxEquations.S]
+                + 6.0 * J[base + RelaxEquations.IpS]);
+        double csaContrib = fc.c2 * J[base + RelaxEquations.S];
+        return dipolarContrib + csaContrib;
+    }
+
+    static double r2(FieldConstants fc, double[] J, int base, double rex) {
+        double dipolarContrib = fc.d2 / 8.0 * (4.0 * J[base] + J[base + RelaxEquations.ImS]
+                + 3.0 * J[base + RelaxEquations.S]
+                + 6.0 * J[base + RelaxEquations.I] + 6.0 * J[base + RelaxEquations.IpS]);
+        double csaContrib = fc.c2 / 6 * (4.0 * J[base] + 3.0 * J[base + RelaxEquations.S]);
+        return dipolarContrib + csaContrib + rex;
+    }
+
+    static double noe(FieldConstants fc, double[] J, int base, double r1) {
+        return 1.0 + (fc.d2 / (4.0 * r1)) * fc.gammaRatio
+                * (6.0 * J[base + RelaxEquations.IpS] - J[base + RelaxEquations.ImS]);
+    }
+
+    /**
+     * Calculate R1, R2 and NOE values from spectral densities.
+     *
+     * @param jValues the spectral densities, as calculated by
+     * spectralDensities
+     * @param rex the exchange contribution to R2 of each residue, or null
+     * @param r1 array for the R1 values, of length nFields * nRes
+     * @param r2 array for the R2 values, or null
+     * @param noe array for the NOE values, or null
+     */
+    public void rates(double[] jValues, double[] rex, double[] r1, double[] r2, double[] noe) {
+        int nRes = r1.length / fields.length;
+        for (int iField = 0; iField < fields.length; iField++) {
+            FieldConstants fc = fields[iField];
+            for (int iRes = 0; iRes < nRes; iRes++) {
+                int index = iField * nRes + iRes;
+                int base = index * N_FREQS;
+                r1[index] = r1(fc, jValues, base);
+                if (r2 != null) {
+                    r2[index] = r2(fc, jValues, base, value(rex, iRes, 0.0));
+                }
+                if (noe != null) {
+                    noe[index] = noe(fc, jValues, base, r1[index]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the TRACT difference between the relaxation rates of the
+     * alpha and beta states, as RelaxEquations.TRACTdeltaAlphaBeta.
+     *
+     * @param iField the index of the field
+     * @param tauC the correlation time in seconds
+     * @param sigmaVal the chemical shift anisotropy (not in ppm)
+     * @param theta the angle between the CSA and dipolar tensors in degrees
+     * @return the difference in rates
+     */
+    public double tractDeltaAlphaBeta(int iField, double tauC, double sigmaVal, double theta) {
+        FieldConstants fc = fields[iField];
+        double dN = fc.gammaSB0 * sigmaVal / (3.0 * RelaxEquations.SQRT2);
+        double cosTheta = Math.cos(theta * Math.PI / 180.0);
+        double J0 = 0.4 * tauC / (1.0 + fc.w2[0] * tauC * tauC);
+        double JS = 0.4 * tauC / (1.0 + fc.w2[RelaxEquations.S] * tauC * tauC);
+        return 2.0 * fc.tractP * dN * (4.0 * J0 + 3.0 * JS) * (3.0 * cosTheta * cosTheta - 1.0);
+    }
+
+    /**
+     * Calculate the TRACT differences for an array of correlation times.
+     *
+     * @param iField the index of the field
+     * @param tauC the correlation times in seconds
+     * @param sigmaVal the chemical shift anisotropy (not in ppm)
+     * @param theta the angle between the CSA and dipolar tensors in degrees
+     * @param result array for the differences
+     */
+    public void tractDeltaAlphaBeta(int iField, double[] tauC, double sigmaVal, double theta, double[] result) {
+        for (int i = 0; i < tauC.length; i++) {
+            result[i] = tractDeltaAlphaBeta(iField, tauC[i], sigmaVal, theta);
+        }
+    }
+
+    /**
+     * Find the correlation time of each residue from its TRACT rates, as
+     * TRACTFit.fit does for one residue.
+     *
+     * @param iField the index of the field
+     * @param rA the rates of the alpha state
+     * @param rB the rates of the beta state
+     * @return the correlation times in seconds
+     */
+    public double[] fitTRACT(int iField, double[] rA, double[] rB) {
+        double sigmaVal = fields[iField].sigma;
+        double[] tauCs = new double[rA.length];
+        double tolAbs = 1E-12;
+        run(rA.length, i -> {
+            double delta = rB[i] - rA[i];
+            UnivariateObjectiveFunction fOpt = new UnivariateObjectiveFunction(
+                    tauC -> Math.abs(delta - tractDeltaAlphaBeta(iField, tauC, sigmaVal, 17.0)));
+            BrentOptimizer brentOptimizer = new BrentOptimizer(tolAbs * 10.0, tolAbs);
+            UnivariatePointValuePair optValue = brentOptimizer.optimize(fOpt, GoalType.MINIMIZE,
+                    new SearchInterval(1.0e-9, 300.0e-9), new MaxEval(100));
+            tauCs[i] = optValue.getPoint();
+        });
+        return tauCs;
+    }
+
+    /**
+     * Fit model free parameters to the R1, R2 and NOE values of residues at
+     * each field, with an overall correlation time shared by all residues.
+     * Each residue is fitted with model 1 (s2), or model 2 (s2 and tauF) if
+     * fitTauF is true, and optionally an exchange contribution to R2. Values
+     * are at index f * nRes + i for field f and residue i, and NaN values are
+     * ignored.
+     *
+     * @param r1 the R1 values
+     * @param r1Err the R1 errors
+     * @param r2 the R2 values
+     * @param r2Err the R2 errors
+     * @param noe the NOE values
+     * @param noeErr the NOE errors
+     * @param fitTauF true to fit an internal correlation time for each residue
+     * @param fitRex true to fit an exchange contribution for each residue
+     * @param tauMMin the smallest overall correlation time, in seconds
+     * @param tauMMax the largest overall correlation time, in seconds
+     * @return the fit
+     */
+    public ModelFreeFit fitModelFree(double[] r1, double[] r1Err, double[] r2, double[] r2Err,
+            double[] noe, double[] noeErr, boolean fitTauF, boolean fitRex, double tauMMin, double tauMMax) {
+        int nRes = r1.length / fields.length;
+        double[][] data = {r1, r1Err, r2, r2Err, noe, noeErr};
+        // the correlation time is optimized in ns so tolerances are sensible
+        UnivariateObjectiveFunction fOpt = new UnivariateObjectiveFunction(tauMNs -> {
+            ModelFreeFit fit = fitResidues(data, nRes, tauMNs * 1.0e-9, fitTauF, fitRex);
+            return fit.getTotalChiSq();
+        });
+        BrentOptimizer brentOptimizer = new BrentOptimizer(1.0e-6, 1.0e-6);
+        UnivariatePointValuePair optValue = brentOptimizer.optimize(fOpt, GoalType.MINIMIZE,
+                new SearchInterval(tauMMin * 1.0e9, tauMMax * 1.0e9), new MaxEval(200));
+        return fitResidues(data, nRes, optValue.getPoint() * 1.0e-9, fitTauF, fitRex);
+    }
+
+    /**
+     * Fit the model free parameters of each residue with a fixed overall
+     * correlation time.
+     *
+     * @param r1 the R1 values
+     * @param r1Err the R1 errors
+     * @param r2 the R2 values
+     * @param r2Err the R2 errors
+     * @param noe the NOE values
+     * @param noeErr the NOE errors
+     * @param tauM the overall correlation time in seconds
+     * @param fitTauF true to fit an internal correlation time for each residue
+     * @param fitRex true to fit an exchange contribution for each residue
+     * @return the fit
+     */
+    public ModelFreeFit fitModelFree(double[] r1, double[] r1Err, double[] r2, double[] r2Err,
+            double[] noe, double[] noeErr, double tauM, boolean fitTauF, boolean fitRex) {
+        int nRes = r1.length / fields.length;
+        double[][] data = {r1, r1Err, r2, r2Err, noe, noeErr};
+        return fitResidues(data, nRes, tauM, fitTauF, fitRex);
+    }
+
+    private ModelFreeFit fitResidues(double[][] data, int nRes, double tauM,
+            boolean fitTauF, boolean fitRex) {
+        ModelFreeFit fit = new ModelFreeFit(tauM, nRes);
+        run(nRes, iRes -> fitResidue(data, nRes, iRes, tauM, fitTauF, fitRex, fit));
+        return fit;
+    }
+
+    /**
+     * Fit one residue. The parameters are s2, then tauF in ns and Rex if they
+     * are fitted.
+     */
+    private void fitResidue(double[][] data, int nRes, int iRes, double tauM,
+            boolean fitTauF, boolean fitRex, ModelFreeFit fit) {
+        int nFields = fields.length;
+        int nPars = 1 + (fitTauF ? 1 : 0) + (fitRex ? 1 : 0);
+        int iTauF = fitTauF ? 1 : -1;
+        int iRex = fitRex ? nPars - 1 : -1;
+        double[] jValues = new double[N_FREQS];
+        LMSolver.Model model = (x, residuals, jacobian) -> {
+            double s2 = x[0];
+            double tauF = iTauF >= 0 ? x[iTauF] * 1.0e-9 : 0.0;
+            double rex = iRex >= 0 ? x[iRex] : 0.0;
+            for (int iField = 0; iField < nFields; iField++) {
+                FieldConstants fc = fields[iField];
+                for (int k = 0; k < N_FREQS; k++) {
+                    jValues[k] = jModelFree(fc.w2[k], tauM, s2, tauF, s2, 0.0);
+                }
+                int index = iField * nRes + iRes;
+                double calcR1 = r1(fc, jValues, 0);
+                double calcR2 = r2(fc, jValues, 0, rex);
+                double calcNOE = noe(fc, jValues, 0, calcR1);
+                residuals[iField * 3] = residual(calcR1, data[0], data[1], index);
+                residuals[iField * 3 + 1] = residual(calcR2, data[2], data[3], index);
+                residuals[iField * 3 + 2] = residual(calcNOE, data[4], data[5], index);
+            }
+            return false;
+        };
+        double[] x = new double[nPars];
+        double[] lower = new double[nPars];
+        double[] upper = new double[nPars];
+        x[0] = 0.8;
+        upper[0] = 1.0;
+        if (iTauF >= 0) {
+            x[iTauF] = 0.02;
+            upper[iTauF] = Math.min(1.0, tauM * 1.0e9);
+        }
+        if (iRex >= 0) {
+            upper[iRex] = 100.0;
+        }
+        LMSolver solver = LM_SOLVER.get();
+        solver.solve(model, 3 * nFields, x, lower, upper);
+        fit.s2[iRes] = x[0];
+        fit.tauF[iRes] = iTauF >= 0 ? x[iTauF] * 1.0e-9 : 0.0;
+        fit.rex[iRes] = iRex >= 0 ? x[iRex] : 0.0;
+        fit.chiSq[iRes] = solver.getCost();
+    }
+
+    private static double residual(double calc, double[] values, double[] errs, int index) {
+        if ((values == null) || Double.isNaN(values[index])) {
+            return 0.0;
+        }
+        return (calc - values[index]) / errs[index];
+    }
+
+    /**
+     * Run a task for each residue index on the common pool. At most nThreads
+     * workers are used, each taking the next residue when it is done with one.
+     */
+    private void run(int n, IntConsumer task) {
+        int nWorkers = Math.min(nThreads, n);
+        if (nWorkers <= 1) {
+            for (int i = 0; i < n; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        AtomicInteger next = new AtomicInteger(0);
+        IntStream.range(0, nWorkers).parallel().forEach(iWorker -> {
+            int i;
+            while ((i = next.getAndIncrement()) < n) {
+                task.accept(i);
+            }
+        });
+    }
+}
@@ -91,6 +91,62 @@ public class RelaxEquations {
         this.sf = sf;
     }
 
+    public double getSF() {
+        return sf;
+    }
+
+    public double getWI() {
+        return wI;
+    }
+
+    public double getWS() {
+        return wS;
+    }
+
+    public double getGammaI() {
+        return gammaI;
+    }
+
+    public double getGammaS() {
+        return gammaS;
+    }
+
+    /**
+     * Get the internuclear distance.
+     *
+     * @return the distance in meters.
+     */
+    public double getR() {
+        return r;
+    }
+
+    /**
+     * Get the square of the dipolar coupling constant.
+     *
+     * @return d^2
+     */
+    public double getD2() {
+        return d2;
+    }
+
+    /**
+     * Get the square of the chemical shift anisotropy constant.
+     *
+     * @return c^2
+     */
+    public double getC2() {
+        return c2;
+    }
+
+    /**
+     * Get the chemical shift anisotropy.
+     *
+     * @return the anisotropy (not in ppm).
+     */
+    public double getSigma() {
+        return sigma;
+    }
+
     // Note: tauM = tm in Art Palmer's code, and taui in Relax. 
     /**
      * Model Free spectral density function, J(omega), calculation using Model
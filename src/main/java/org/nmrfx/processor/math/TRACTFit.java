@@ -25,6 +25,7 @@ public class TRACTFit {
     int reportAt = 10;
     long startTime = 0;
     RelaxEquations[] relaxEquations;
+    RelaxBatch relaxBatch;
     double rA;
     double rB;
     double[][] xValues;
@@ -34,16 +35,20 @@ public class TRACTFit {
     double[] parErrs;
 
     public TRACTFit(double sf, String elemI, String elemS) {
-        relaxEquations = new RelaxEquations[1];
-        relaxEquations[0] = new RelaxEquations(sf, elemI, elemS);
+        this(new double[]{sf}, elemI, elemS);
     }
 
     public TRACTFit(double[] sf, String elemI, String elemS) {
+        relaxBatch = new RelaxBatch(sf, elemI, elemS);
         relaxEquations = new RelaxEquations[sf.length];
         for (int i = 0; i < sf.length; i++) {
-            relaxEquations[i] = new RelaxEquations(sf[i], elemI, elemS);
+            relaxEquations[i] = relaxBatch.getRelaxEquations(i);
         }
     }
+
+    public RelaxBatch getRelaxBatch() {
+        return relaxBatch;
+    }
     
     public double[] getParErrors() {
         return parErrs.clone();
@@ -72,7 +77,7 @@ public class TRACTFit {
             int iSF = (int) Math.round(values[1][i]);
             double tauC = pars[iRes + 2];
 
-            double nab2 = relaxEquations[iSF].TRACTdeltaAlphaBeta(tauC * 1.0e-9, csa * 1.0e-6, theta);
+            double nab2 = relaxBatch.tractDeltaAlphaBeta(iSF, tauC * 1.0e-9, csa * 1.0e-6, theta);
             double delta = (nab2 - values[2][i])/values[3][i];
             sum += Math.abs(delta);
         }
@@ -134,4 +139,16 @@ public class TRACTFit {
         best = optValue.getPoint();
         return best;
     }
+
+    /**
+     * Find the correlation time of each residue from its alpha and beta state
+     * rates at the first field, fitting the residues in parallel.
+     *
+     * @param rA the rates of the alpha state
+     * @param rB the rates of the beta state
+     * @return the correlation times in seconds
+     */
+    public double[] fit(double[] rA, double[] rB) {
+        return relaxBatch.fitTRACT(0, rA, rB);
+    }
 }
@@ -62,6 +62,8 @@ public class TRACTSimFit {
         double tauC = pars[3];
         int n = values[0].length;
         double sum = 0.0;
+        // the same for every point, so only calculate it once
+        double nab2 = relaxEquations.TRACTdeltaAlphaBeta(tauC * 1.0e-9);
         for (int i = 0; i < n; i++) {
             double r;
             double a;
@@ -69,7 +71,6 @@ public class TRACTSimFit {
                 r = r0;
                 a = a0;
             } else {
-                double nab2 = relaxEquations.TRACTdeltaAlphaBeta(tauC * 1.0e-9);
                 r = r0 - nab2;
                 a = a1;
 
@@ -0,0 +1,243 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * Randomized truncated singular value decomposition (Halko, Martinsson and
+ * Tropp, 2011). Only the largest nComp singular values and vectors are
+ * calculated. The matrix is multiplied by a random block of vectors (with a
+ * fixed seed so results are reproducible), refined with a few power
+ * iterations, and the small projected matrix is decomposed with the full SVD.
+ * The matrix products are done in parallel on the primitive row arrays.
+ *
+ * @author brucejohnson
+ */
+public class TruncatedSVD {
+
+    private static final int CHUNK_ROWS = 256;
+
+    private final double[] singularValues;
+    private final double[][] u;
+    private final double[][] v;
+
+    /**
+     * Calculate the truncated SVD of a matrix, using 10 extra random vectors
+     * and 2 power iterations.
+     *
+     * @param a the rows of the matrix
+     * @param nComp the number of components to calculate
+     */
+    public TruncatedSVD(double[][] a, int nComp) {
+        this(a, nComp, 10, 2, 1L);
+    }
+
+    /**
+     * Calculate the truncated SVD of a matrix.
+     *
+     * @param a the rows of the matrix
+     * @param nComp the number of components to calculate
+     * @param nOversample the number of extra random vectors used
+     * @param nPower the number of power iterations
+     * @param seed seed for the random vectors
+     */
+    public TruncatedSVD(double[][] a, int nComp, int nOversample, int nPower, long seed) {
+        int m = a.length;
+        int n = m == 0 ? 0 : a[0].length;
+        int maxRank = Math.min(m, n);
+        if ((nComp < 1) || (nComp > maxRank)) {
+            throw new IllegalArgumentException("Number of components must be between 1 and " + maxRank);
+        }
+        int l = Math.min(nComp + nOversample, maxRank);
+
+        Random random = new Random(seed);
+        double[][] omega = new double[n][l];
+        for (int j = 0; j < n; j++) {
+            for (int c = 0; c < l; c++) {
+                omega[j][c] = random.nextGaussian();
+            }
+        }
+        double[][] q = multiply(a, omega, n, l);
+        orthonormalize(q, l);
+        for (int iPower = 0; iPower < nPower; iPower++) {
+            double[][] z = multiplyTransposed(a, q, n, l);
+            orthonormalize(z, l);
+            q = multiply(a, z, n, l);
+            orthonormalize(q, l);
+        }
+
+        // B = Qt A is l x n, store its transpose (At Q) and decompose that
+        double[][] bt = multiplyTransposed(a, q, n, l);
+        SingularValueDecomposition smallSVD = new SingularValueDecomposition(new Array2DRowRealMatrix(bt, false));
+        // Bt = Ub S Vbt so B = Vb S Ubt, the right vectors of A are Ub
+        double[] sVals = smallSVD.getSingularValues();
+        RealMatrix ub = smallSVD.getU();
+        RealMatrix vb = smallSVD.getV();
+        singularValues = new double[nComp];
+        System.arraycopy(sVals, 0, singularValues, 0, nComp);
+
+        v = new double[n][nComp];
+        for (int j = 0; j < n; j++) {
+            for (int c = 0; c < nComp; c++) {
+                v[j][c] = ub.getEntry(j, c);
+            }
+        }
+        u = new double[m][nComp];
+        double[][] vbData = vb.getData();
+        double[][] qFinal = q;
+        IntStream.range(0, m).parallel().forEach(i -> {
+            for (int c = 0; c < nComp; c++) {
+                double sum = 0.0;
+                for (int k = 0; k < l; k++) {
+                    sum += qFinal[i][k] * vbData[k][c];
+                }
+                u[i][c] = sum;
+            }
+        });
+    }
+
+    /**
+     * Calculate A B where A is m x n and B is n x l
+     */
+    static double[][] multiply(double[][] a, double[][] b, int n, int l) {
+        int m = a.length;
+        double[][] result = new double[m][l];
+        IntStream.range(0, m).parallel().forEach(i -> {
+            double[] row = a[i];
+            double[] rRow = result[i];
+            for (int j = 0; j < n; j++) {
+                double aij = row[j];
+                if (aij != 0.0) {
+                    double[] bRow = b[j];
+                    for (int c = 0; c < l; c++) {
+                        rRow[c] += aij * bRow[c];
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calculate At B where A is m x n and B is m x l. Blocks of rows are
+     * summed in parallel, and the block sums are then added sequentially in
+     * block order so the result doesn't depend on the number of threads.
+     */
+    static double[][] multiplyTransposed(double[][] a, double[][] b, int n, int l) {
+        int m = a.length;
+        int nChunks = (m + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        double[][][] partials = new double[nChunks][][];
+        IntStream.range(0, nChunks).parallel().forEach(iChunk -> {
+            double[][] partial = new double[n][l];
+            int end = Math.min(m, (iChunk + 1) * CHUNK_ROWS);
+            for (int i = iChunk * CHUNK_ROWS; i < end; i++) {
+                double[] row = a[i];
+                double[] bRow = b[i];
+                for (int j = 0; j < n; j++) {
+                    double aij = row[j];
+                    if (aij != 0.0) {
+                        double[] pRow = partial[j];
+                        for (int c = 0; c < l; c++) {
+                            pRow[c] += aij * bRow[c];
+                        }
+                    }
+                }
+            }
+            partials[iChunk] = partial;
+        });
+        double[][] result = new double[n][l];
+        for (double[][] partial : partials) {
+            for (int j = 0; j < n; j++) {
+                double[] rRow = result[j];
+                double[] pRow = partial[j];
+                for (int c = 0; c < l; c++) {
+                    rRow[c] += pRow[c];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orthonormalize the columns of a matrix with modified Gram-Schmidt,
+     * repeated once to reduce the loss of orthogonality. Columns that are
+     * linearly dependent on earlier columns are set to zero.
+     */
+    static void orthonormalize(double[][] x, int l) {
+        int m = x.length;
+        for (int c = 0; c < l; c++) {
+            double origNorm = columnNorm(x, c);
+            for (int pass = 0; pass < 2; pass++) {
+                for (int k = 0; k < c; k++) {
+                    double dot = 0.0;
+                    for (int i = 0; i < m; i++) {
+                        dot += x[i][k] * x[i][c];
+                    }
+                    for (int i = 0; i < m; i++) {
+                        x[i][c] -= dot * x[i][k];
+                    }
+                }
+            }
+            double norm = columnNorm(x, c);
+            double scale = (norm > 1.0e-12 * origNorm) && (norm > 0.0) ? 1.0 / norm : 0.0;
+            for (int i = 0; i < m; i++) {
+                x[i][c] *= scale;
+            }
+        }
+    }
+
+    private static double columnNorm(double[][] x, int c) {
+        double sum = 0.0;
+        for (double[] row : x) {
+            sum += row[c] * row[c];
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Get the singular values, in decreasing order.
+     *
+     * @return the singular values
+     */
+    public double[] getSingularValues() {
+        return singularValues.clone();
+    }
+
+    /**
+     * Get the left singular vectors (m x nComp).
+     *
+     * @return the matrix of left singular vectors
+     */
+    public RealMatrix getU() {
+        return new Array2DRowRealMatrix(u, true);
+    }
+
+    /**
+     * Get the right singular vectors (n x nComp).
+     *
+     * @return the matrix of right singular vectors
+     */
+    public RealMatrix getV() {
+        return new Array2DRowRealMatrix(v, true);
+    }
+}
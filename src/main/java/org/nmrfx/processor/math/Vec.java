@@ -80,6 +80,11 @@ public class Vec extends VecBase {
 
     public static final String TYPE_NAME = "nmrfxvector";
 
+    /**
+     * Newly created vector whose reference values are copied by reset.
+     */
+    private static final Vec DEFAULTS = new Vec(1, false);
+
     private double[] annotationData = null;
 
     /**
@@ -104,6 +109,42 @@ public class Vec extends VecBase {
         super(size, pt, dim, complex);
     }
 
+    /**
+     * Return this vector to the state of a newly created vector with the
+     * specified size, location and complex mode, so it can be reused for
+     * reading another vector of a dataset. Existing storage arrays are kept if
+     * they are large enough.
+     *
+     * @param newSize Size of vector.
+     * @param pt location of vector in dataset, or null
+     * @param dim dataset dimensions of location, or null
+     * @param complex true if vector stores complex data
+     */
+    public void reset(int newSize, int[][] pt, int[] dim, boolean complex) {
+        if (useApache) {
+            makeNotApache();
+        }
+        resize(newSize, complex);
+        if (pt != null) {
+            setPt(pt, dim);
+        } else {
+            this.pt = null;
+            this.dim = null;
+        }
+        setTDSize(newSize);
+        zfSize = 0;
+        freqDomain = false;
+        setGroupDelay(0.0);
+        ph0 = 0.0;
+        ph1 = 0.0;
+        dwellTime = DEFAULTS.dwellTime;
+        centerFreq = DEFAULTS.centerFreq;
+        refValue = DEFAULTS.refValue;
+        inSignalRegion = null;
+        schedule = null;
+        clearAnnotation();
+    }
+
     /**
      * Create a vector with the specified name, size and complex mode and store
      * it in a Map of Vec objects.
@@ -1038,23 +1079,24 @@ public class Vec extends VecBase {
      */
     public void fft(boolean negatePairs, boolean negateImaginary, boolean fixGroupDelay) {
         if (isComplex()) {
-            if (!useApache()) {
-                makeApache();
-            }
             if (negatePairs) {
                 negatePairs();
             }
             checkPowerOf2();
-            Complex[] ftvector = new Complex[getSize()];
-            if (negateImaginary) {
-                for (int i = 0; i < getSize(); i++) {
-                    ftvector[i] = new Complex(cvec[i].getReal(), -cvec[i].getImaginary());
+            if (useApache()) {
+                Complex[] ftvector = VecPool.get().getComplexScratch(getSize());
+                if (negateImaginary) {
+                    for (int i = 0; i < getSize(); i++) {
+                        ftvector[i] = new Complex(cvec[i].getReal(), -cvec[i].getImaginary());
+                    }
+                } else {
+                    System.arraycopy(cvec, 0, ftvector, 0, getSize());
                 }
+                Complex[] ftResult = apache_fft(ftvector);
+                System.arraycopy(ftResult, 0, cvec, 0, getSize());
             } else {
-                System.arraycopy(cvec, 0, ftvector, 0, getSize());
+                splitFFT(negateImaginary, false);
             }
-            Complex[] ftResult = apache_fft(ftvector);
-            System.arraycopy(ftResult, 0, cvec, 0, getSize());
             setFreqDomain(true);
             if (fixGroupDelay) {
                 fixGroupDelay();
@@ -1062,6 +1104,90 @@ public class Vec extends VecBase {
         }
     }
 
+    /**
+     * Perform Fast Fourier Transform (FFT) of this vector, skipping work when
+     * the points from nInput on are known to be zero, or only the points from
+     * first to last of the spectrum are needed. Points of the spectrum outside
+     * that range are set to zero if the transform is pruned.
+     *
+     * @param negatePairs negate alternate real/imaginary pairs
+     * @param negateImaginary negate imaginary pairs
+     * @param fixGroupDelay modify vector to remove DSP charge-up at front of
+     * vector
+     * @param nInput the number of points that may be non-zero
+     * @param first the first point of the spectrum needed
+     * @param last the last point of the spectrum needed
+     */
+    public void fft(boolean negatePairs, boolean negateImaginary, boolean fixGroupDelay, int nInput, int first, int last) {
+        nInput = Math.min(nInput, getSize());
+        first = Math.max(0, first);
+        last = Math.min(getSize() - 1, last);
+        if (!isComplex() || useApache() || (last < first)
+                || !PrunedFFT.canPrune(getSize(), nInput, last - first + 1)) {
+            fft(negatePairs, negateImaginary, fixGroupDelay);
+            return;
+        }
+        if (negatePairs) {
+            negatePairs();
+        }
+        checkPowerOf2();
+        prunedFFT(negateImaginary, nInput, first, last);
+        setFreqDomain(true);
+        if (fixGroupDelay) {
+            fixGroupDelay();
+        }
+    }
+
+    private void prunedFFT(boolean negateImaginary, int nInput, int first, int last) {
+        VecPool pool = VecPool.get();
+        double[] re = pool.getRealScratch(size);
+        double[] im = pool.getImagScratch(size);
+        System.arraycopy(rvec, 0, re, 0, nInput);
+        System.arraycopy(ivec, 0, im, 0, nInput);
+        if (negateImaginary) {
+            for (int i = 0; i < nInput; i++) {
+                im[i] = -im[i];
+            }
+        }
+        Arrays.fill(re, nInput, size, 0.0);
+        Arrays.fill(im, nInput, size, 0.0);
+        int mid = size / 2;
+        PrunedFFT.transform(re, im, nInput, (first + mid) % size, last - first + 1);
+        Arrays.fill(rvec, 0, first, 0.0);
+        Arrays.fill(ivec, 0, first, 0.0);
+        Arrays.fill(rvec, last + 1, size, 0.0);
+        Arrays.fill(ivec, last + 1, size, 0.0);
+        // zero frequency at the center, as with splitFFT
+        for (int i = first; i <= last; i++) {
+            int pos = PrunedFFT.position((i + mid) & (size - 1), size);
+            rvec[i] = re[pos];
+            ivec[i] = im[pos];
+        }
+    }
+
+    /**
+     * Get the number of points up to and including the last non-zero point.
+     *
+     * @return the number of points that may be non-zero
+     */
+    public int getNonZeroSize() {
+        int n = getSize();
+        if (useApache()) {
+            while ((n > 0) && cvec[n - 1].equals(Complex.ZERO)) {
+                n--;
+            }
+        } else if (isComplex()) {
+            while ((n > 0) && (rvec[n - 1] == 0.0) && (ivec[n - 1] == 0.0)) {
+                n--;
+            }
+        } else {
+            while ((n > 0) && (rvec[n - 1] == 0.0)) {
+                n--;
+            }
+        }
+        return n;
+    }
+
     /**
      * Perform inverse Fast Fourier Transform (FFT) of this vector.
      */
@@ -1078,20 +1204,21 @@ public class Vec extends VecBase {
      */
     public void ifft(boolean negatePairs, boolean negateImaginary) {
         if (isComplex()) {
-            if (!useApache()) {
-                makeApache();
-            }
             checkPowerOf2();
-            Complex[] ftvector = new Complex[getSize()];
-            System.arraycopy(cvec, 0, ftvector, 0, getSize());
-            Complex[] ftResult = apache_ift(ftvector);
+            if (useApache()) {
+                Complex[] ftvector = VecPool.get().getComplexScratch(getSize());
+                System.arraycopy(cvec, 0, ftvector, 0, getSize());
+                Complex[] ftResult = apache_ift(ftvector);
 
-            if (negateImaginary) {
-                for (int i = 0; i < getSize(); i++) {
-                    cvec[i] = new Complex(ftResult[i].getReal(), -ftResult[i].getImaginary());
+                if (negateImaginary) {
+                    for (int i = 0; i < getSize(); i++) {
+                        cvec[i] = new Complex(ftResult[i].getReal(), -ftResult[i].getImaginary());
+                    }
+                } else {
+                    System.arraycopy(ftResult, 0, cvec, 0, getSize());
                 }
             } else {
-                System.arraycopy(ftResult, 0, cvec, 0, getSize());
+                splitFFT(negateImaginary, true);
             }
 
             setFreqDomain(false);
@@ -1103,6 +1230,53 @@ public class Vec extends VecBase {
         }
     }
 
+    /**
+     * FFT of a complex vector stored in the separate real and imaginary
+     * arrays. The transform is done in place on primitive arrays, so no Complex
+     * objects are created. Output (or input for the inverse transform) is
+     * ordered with zero frequency at the center, as with apache_fft.
+     *
+     * @param negateImaginary negate the imaginary values of the time domain
+     * data
+     * @param inverse if true do the inverse transform
+     */
+    private void splitFFT(boolean negateImaginary, boolean inverse) {
+        VecPool pool = VecPool.get();
+        double[] re = pool.getRealScratch(size);
+        double[] im = pool.getImagScratch(size);
+        int mid = size / 2;
+        if (inverse) {
+            System.arraycopy(rvec, 0, re, mid, mid);
+            System.arraycopy(rvec, mid, re, 0, mid);
+            System.arraycopy(ivec, 0, im, mid, mid);
+            System.arraycopy(ivec, mid, im, 0, mid);
+        } else {
+            System.arraycopy(rvec, 0, re, 0, size);
+            System.arraycopy(ivec, 0, im, 0, size);
+            if (negateImaginary) {
+                for (int i = 0; i < size; i++) {
+                    im[i] = -im[i];
+                }
+            }
+        }
+        FastFourierTransformer.transformInPlace(new double[][]{re, im}, DftNormalization.STANDARD,
+                inverse ? TransformType.INVERSE : TransformType.FORWARD);
+        if (inverse) {
+            System.arraycopy(re, 0, rvec, 0, size);
+            System.arraycopy(im, 0, ivec, 0, size);
+            if (negateImaginary) {
+                for (int i = 0; i < size; i++) {
+                    ivec[i] = -ivec[i];
+                }
+            }
+        } else {
+            System.arraycopy(re, 0, rvec, mid, mid);
+            System.arraycopy(re, mid, rvec, 0, mid);
+            System.arraycopy(im, 0, ivec, mid, mid);
+            System.arraycopy(im, mid, ivec, 0, mid);
+        }
+    }
+
     /**
      *
      */
@@ -1144,7 +1318,7 @@ public class Vec extends VecBase {
     public void rft(boolean inverse, boolean negatePairs, boolean negateOdd) {
         if (!isComplex) {
             checkPowerOf2();
-            double[] ftvec = new double[size];
+            double[] ftvec = VecPool.get().getRealScratch(size);
             if (negatePairs) {
                 negatePairs();
             }
@@ -1995,41 +2169,7 @@ public class Vec extends VecBase {
     }
 
     public Vec bcWhit(double lambda, int order, boolean baselineMode) {
-        int vecSize = getSize();
-
-        boolean[] isInSignalRegion = getSignalRegion();
-
-        if ((isInSignalRegion != null) && (isInSignalRegion.length > 4)) {
-            double[] w = new double[vecSize + 1];
-            double[] z = new double[vecSize + 1];
-            double[] y = new double[vecSize + 1];
-            if (isComplex()) {
-                makeReal();
-            }
-            for (int i = 0; i < vecSize; i++) {
-                y[i + 1] = rvec[i];
-                if (isInSignalRegion[i]) {
-                    w[i + 1] = 0;
-                } else {
-                    w[i + 1] = 1;
-                }
-            }
-            double[] a = new double[order + 1];
-
-            Util.pascalrow(a, order);
-
-            //is this fine?
-            Util.asmooth(w, y, z, a, lambda, vecSize, order);
-            if (baselineMode) {
-                for (int i = 0; i < vecSize; i++) {
-                    rvec[i] = z[i + 1];
-                }
-            } else {
-                for (int i = 0; i < vecSize; i++) {
-                    rvec[i] -= z[i + 1];
-                }
-            }
-        }
+        BaselineEngine.getDefault().whittaker(this, lambda, order, baselineMode);
         return this;
     }
 
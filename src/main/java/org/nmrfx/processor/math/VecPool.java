@@ -0,0 +1,205 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.math;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.math3.complex.Complex;
+
+/**
+ * A per-thread pool of Vec objects and scratch arrays. Processing threads
+ * borrow vectors when reading data and return them once they have been written
+ * to the dataset, so the same vectors (and their storage arrays) are used for
+ * every vector of a processing pass. Scratch arrays are used by vector
+ * operations for temporary values and are only valid until the next call that
+ * requests a scratch array of the same type on the same thread.
+ *
+ * @author brucejohnson
+ */
+public class VecPool {
+
+    private static final ThreadLocal<VecPool> POOLS = ThreadLocal.withInitial(VecPool::new);
+    private static boolean enabled = true;
+    private static int maxPooled = 256;
+    private static final AtomicLong VECS_CREATED = new AtomicLong(0);
+    private static final AtomicLong VECS_REUSED = new AtomicLong(0);
+    private static final AtomicLong SCRATCH_CREATED = new AtomicLong(0);
+    private static final AtomicLong SCRATCH_REUSED = new AtomicLong(0);
+
+    private final ArrayDeque<Vec> freeVecs = new ArrayDeque<>();
+    private double[] realScratch = null;
+    private double[] imagScratch = null;
+    private Complex[] complexScratch = null;
+
+    /**
+     * Get the pool for the current thread.
+     *
+     * @return the pool
+     */
+    public static VecPool get() {
+        return POOLS.get();
+    }
+
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the maximum number of free vectors kept by each thread.
+     *
+     * @param n the number of vectors
+     */
+    public static void setMaxPooled(int n) {
+        maxPooled = n;
+    }
+
+    /**
+     * Borrow a vector from the pool, creating a new one if none are free.
+     *
+     * @param size the size of the vector
+     * @param pt the location of the vector in the dataset, or null
+     * @param dim the dataset dimensions of the location, or null
+     * @param complex true if the vector should be complex
+     * @return the vector
+     */
+    public Vec borrow(int size, int[][] pt, int[] dim, boolean complex) {
+        Vec vec = enabled ? freeVecs.pollLast() : null;
+        if (vec == null) {
+            VECS_CREATED.incrementAndGet();
+            if (pt == null) {
+                vec = new Vec(size, complex);
+            } else {
+                vec = new Vec(size, pt, dim, complex);
+            }
+        } else {
+            VECS_REUSED.incrementAndGet();
+            vec.reset(size, pt, dim, complex);
+        }
+        return vec;
+    }
+
+    /**
+     * Borrow a vector from the pool, creating a new one if none are free.
+     *
+     * @param size the size of the vector
+     * @param complex true if the vector should be complex
+     * @return the vector
+     */
+    public Vec borrow(int size, boolean complex) {
+        return borrow(size, null, null, complex);
+    }
+
+    /**
+     * Return a vector to the pool. The caller must not use the vector after it
+     * has been returned.
+     *
+     * @param vec the vector
+     */
+    public void release(Vec vec) {
+        if (enabled && (freeVecs.size() < maxPooled)) {
+            freeVecs.addLast(vec);
+        }
+    }
+
+    /**
+     * Return a collection of vectors to the pool.
+     *
+     * @param vecs the vectors
+     */
+    public void releaseAll(Collection<Vec> vecs) {
+        for (Vec vec : vecs) {
+            release(vec);
+        }
+    }
+
+    /**
+     * Get a scratch array for real values with exactly the specified size (the
+     * transforms require the array length to equal the data size).
+     *
+     * @param size the size
+     * @return the scratch array
+     */
+    public double[] getRealScratch(int size) {
+        if ((realScratch == null) || (realScratch.length != size)) {
+            realScratch = new double[size];
+            SCRATCH_CREATED.incrementAndGet();
+        } else {
+            SCRATCH_REUSED.incrementAndGet();
+        }
+        return realScratch;
+    }
+
+    /**
+     * Get a second scratch array, for imaginary values, with exactly the
+     * specified size.
+     *
+     * @param size the size
+     * @return the scratch array
+     */
+    public double[] getImagScratch(int size) {
+        if ((imagScratch == null) || (imagScratch.length != size)) {
+            imagScratch = new double[size];
+            SCRATCH_CREATED.incrementAndGet();
+        } else {
+            SCRATCH_REUSED.incrementAndGet();
+        }
+        return imagScratch;
+    }
+
+    /**
+     * Get a scratch array of Complex references with exactly the specified
+     * size.
+     *
+     * @param size the size
+     * @return the scratch array
+     */
+    public Complex[] getComplexScratch(int size) {
+        if ((complexScratch == null) || (complexScratch.length != size)) {
+            complexScratch = new Complex[size];
+            SCRATCH_CREATED.incrementAndGet();
+        } else {
+            SCRATCH_REUSED.incrementAndGet();
+        }
+        return complexScratch;
+    }
+
+    public static void resetCounts() {
+        VECS_CREATED.set(0);
+        VECS_REUSED.set(0);
+        SCRATCH_CREATED.set(0);
+        SCRATCH_REUSED.set(0);
+    }
+
+    public static long getVecsCreated() {
+        return VECS_CREATED.get();
+    }
+
+    public static long getVecsReused() {
+        return VECS_REUSED.get();
+    }
+
+    public static String getStats() {
+        return String.format("vectors created %d reused %d, scratch arrays created %d reused %d",
+                VECS_CREATED.get(), VECS_REUSED.get(), SCRATCH_CREATED.get(), SCRATCH_REUSED.get());
+    }
+}
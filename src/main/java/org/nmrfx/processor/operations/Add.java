@@ -31,7 +31,7 @@ import org.apache.commons.math3.complex.Complex;
  *
  * @author johnsonb
  */
-public class Add extends Operation {
+public class Add extends Operation implements PointwiseOperation {
 
     private final int first;
     private final int last;
@@ -106,4 +106,33 @@ public class Add extends Operation {
         return this;
     }
 
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    @Override
+    public void prepare(Vec vector) {
+    }
+
+    @Override
+    public void apply(Vec vector, boolean complex, int first, int last) {
+        int start = Math.max(first, this.first);
+        int end = this.last < 0 ? last : Math.min(last, this.last + 1);
+        double[] rvec = vector.rvec;
+        double[] ivec = vector.ivec;
+        for (int i = start; i < end; i++) {
+            rvec[i] += real;
+        }
+        if (complex && !isReal) {
+            for (int i = start; i < end; i++) {
+                ivec[i] += imag;
+            }
+        }
+    }
+
+    @Override
+    public boolean preservesZero() {
+        return (real == 0.0) && (imag == 0.0);
+    }
 }
@@ -25,9 +25,10 @@ import org.nmrfx.processor.processing.ProcessingException;
  *
  * @author johnsonb
  */
-public abstract class Apodization extends MatrixOperation {
+public abstract class Apodization extends MatrixOperation implements PointwiseOperation {
 
     protected double[] apodVec;
+    private boolean deferApply = false;
 
     protected void initApod(int vStart) {
         for (int i = 0; i < vStart; i++) {
@@ -39,7 +40,81 @@ public abstract class Apodization extends MatrixOperation {
         return this;
     }
 
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    /**
+     * Set up apodVec for the vector by evaluating the operation with the
+     * application of apodVec deferred.
+     *
+     * @param vector the vector the apodization will be applied to
+     * @throws ProcessingException if the apodization can't be set up
+     */
+    @Override
+    public void prepare(Vec vector) throws ProcessingException {
+        deferApply = true;
+        try {
+            eval(vector);
+        } finally {
+            deferApply = false;
+        }
+    }
+
+    @Override
+    public void apply(Vec vector, boolean complex, int first, int last) {
+        int size2 = Math.min(last, apodVec.length);
+        double[] rvec = vector.rvec;
+        double[] ivec = vector.ivec;
+        if (invertOp) {
+            for (int i = first; i < size2; i++) {
+                if (apodVec[i] < 1.0e-8) {
+                    throw new ProcessingException("apodVec value < 1.0e-8");
+                }
+            }
+            for (int i = first; i < size2; i++) {
+                rvec[i] /= apodVec[i];
+            }
+            if (complex) {
+                for (int i = first; i < size2; i++) {
+                    ivec[i] /= apodVec[i];
+                }
+            }
+        } else {
+            for (int i = first; i < size2; i++) {
+                rvec[i] *= apodVec[i];
+            }
+            if (complex) {
+                for (int i = first; i < size2; i++) {
+                    ivec[i] *= apodVec[i];
+                }
+            }
+        }
+        for (int i = Math.max(first, size2); i < last; i++) {
+            rvec[i] = 0.0;
+            if (complex) {
+                ivec[i] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * Dividing by the window is only done where the window has been checked,
+     * so the zero-filled tail is not skipped for inverse apodization.
+     *
+     * @return true unless this is an inverse apodization
+     */
+    @Override
+    public boolean preservesZero() {
+        return !invertOp;
+    }
+
     protected void applyApod(Vec vector) {
+        if (deferApply) {
+            vector.setAnnotation(apodVec);
+            return;
+        }
         int size2;
 
         if (apodVec.length < vector.getSize()) {
@@ -49,7 +124,17 @@ public abstract class Apodization extends MatrixOperation {
         }
         vector.setAnnotation(apodVec);
 
-        if (vector.isComplex()) {
+        if (vector.isComplex() && !vector.useApache()) {
+            for (int i = 0; i < size2; i++) {
+                vector.rvec[i] *= apodVec[i];
+                vector.ivec[i] *= apodVec[i];
+            }
+
+            for (int i = size2; i < vector.getSize(); i++) {
+                vector.rvec[i] = 0.0;
+                vector.ivec[i] = 0.0;
+            }
+        } else if (vector.isComplex()) {
             for (int i = 0; i < size2; i++) {
                 vector.set(i, vector.getReal(i) * apodVec[i], vector.getImag(i) * apodVec[i]);
             }
@@ -72,6 +157,9 @@ public abstract class Apodization extends MatrixOperation {
 
     // fixme should we check for apodVec value being zero
     protected void invertApod(Vec vector) {
+        if (deferApply) {
+            return;
+        }
         int size2;
 
         if (apodVec.length < vector.getSize()) {
@@ -80,7 +168,20 @@ public abstract class Apodization extends MatrixOperation {
             size2 = vector.getSize();
         }
 
-        if (vector.isComplex()) {
+        if (vector.isComplex() && !vector.useApache()) {
+            for (int i = 0; i < size2; i++) {
+                if (apodVec[i] < 1.0e-8) {
+                    throw new ProcessingException("apodVec value < 1.0e-8");
+                }
+                vector.rvec[i] /= apodVec[i];
+                vector.ivec[i] /= apodVec[i];
+            }
+
+            for (int i = size2; i < vector.getSize(); i++) {
+                vector.rvec[i] = 0.0;
+                vector.ivec[i] = 0.0;
+            }
+        } else if (vector.isComplex()) {
             for (int i = 0; i < size2; i++) {
                 if (apodVec[i] < 1.0e-8) {
                     throw new ProcessingException("apodVec value < 1.0e-8");
@@ -17,11 +17,11 @@
  */
 package org.nmrfx.processor.operations;
 
+import org.nmrfx.processor.math.BaselineEngine;
 import org.nmrfx.processor.math.Vec;
 import org.nmrfx.processor.processing.ProcessingException;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -37,14 +37,11 @@ public class BcPoly extends Operation {
         this.winSize = winSize;
     }
 
-    @Override
-    public Operation eval(Vec vector) throws ProcessingException {
+    private void check(Vec vector) throws OperationException {
         if ((winSize < 0) || (winSize > vector.getSize())) {
             throw new OperationException("bcpoly: error in winSize");
         }
-
-        int vecSize = vector.getSize();
-        int nRegions = vecSize / winSize;
+        int nRegions = vector.getSize() / winSize;
         if ((order < 1) || (order > 16) || (order > (nRegions / 2))) {
             throw new OperationException(
                     "bcpoly: order must be <= 16 and >= 1 and <= (nRegions/2)");
@@ -52,48 +49,29 @@ public class BcPoly extends Operation {
         if (vector.isComplex()) {
             vector.makeReal();
         }
+    }
 
-        boolean[] isInSignalRegion = vector.getSignalRegion();
-
-        if ((isInSignalRegion != null) && (isInSignalRegion.length > 4)) {
-            double[] reVec = new double[nRegions];
-            boolean[] baseVec = new boolean[nRegions];
-            double reSum = 0.0;
-            int k = 0;
-            int nBaseRegions = 0;
-            for (int j = 0; j < nRegions; j++) {
-                reSum = 0.0;
-                int pointsInRegion = 0;
-                boolean justBase = true;
-                for (int i = 0; ((i < winSize) && (k < vector.getSize())); i++) {
-                    if (isInSignalRegion[k]) {
-                        justBase = false;
-                    }
-                    reSum += vector.getReal(k);
-                    pointsInRegion++;
-                    k++;
-                }
-                if (justBase) {
-                    nBaseRegions++;
-                    baseVec[j] = true;
-                }
-                reVec[j] = reSum / pointsInRegion;
-            }
-            RealMatrix xyVals = new Array2DRowRealMatrix(nBaseRegions, 2);
-            int iBase = 0;
-            for (int i = 0; i < nRegions; i++) {
-                if (baseVec[i]) {
-                    xyVals.setEntry(iBase, 0, (((i * winSize) + (winSize / 2)) - 0.5));
-                    xyVals.setEntry(iBase, 1, reVec[i]);
-                    iBase++;
-                }
-            }
+    @Override
+    public Operation eval(Vec vector) throws ProcessingException {
+        check(vector);
+        BaselineEngine.getDefault().poly(Collections.singletonList(vector), order, winSize);
+        return this;
+    }
 
-            if (xyVals.getRowDimension() > (2 * order)) {
-                RealVector X = Util.fitPoly(vector, order, xyVals);
-                vector.correctVec(order, X);
-            }
+    /**
+     * Correct the vectors together, so vectors with the same baseline windows
+     * share one least squares factorization.
+     *
+     * @param vectors the vectors to correct
+     * @return this operation
+     * @throws ProcessingException if the window size or order are invalid
+     */
+    @Override
+    public Operation eval(List<Vec> vectors) throws ProcessingException {
+        for (Vec vector : vectors) {
+            check(vector);
         }
+        BaselineEngine.getDefault().poly(vectors, order, winSize);
         return this;
     }
 
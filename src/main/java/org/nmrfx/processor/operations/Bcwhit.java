@@ -17,9 +17,11 @@
  */
 package org.nmrfx.processor.operations;
 
+import org.nmrfx.processor.math.BaselineEngine;
 import org.nmrfx.processor.math.Vec;
 import org.nmrfx.processor.processing.ProcessingException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -42,4 +44,17 @@ public class Bcwhit extends Operation {
         vector.bcWhit(lambda, order, baselineMode);
         return this;
     }
+
+    /**
+     * Correct the vectors together, so vectors with the same size and signal
+     * regions share one factorization of the smoother.
+     *
+     * @param vectors the vectors to correct
+     * @return this operation
+     */
+    @Override
+    public Operation eval(List<Vec> vectors) {
+        BaselineEngine.getDefault().whittaker(vectors, lambda, order, baselineMode);
+        return this;
+    }
 }
@@ -88,7 +88,6 @@ public class Blackman extends Apodization implements Invertible {
     }
 
     public void apply(Vec vector) {
-        vector.makeApache();
         setupApod(vector.getTDSize(), vector.getStart());
         if (invertOp) {
             invertApod(vector);
@@ -19,6 +19,8 @@ package org.nmrfx.processor.operations;
 
 import org.nmrfx.datasets.MatrixType;
 import java.io.IOException;
+import org.nmrfx.processor.math.MatrixContainer;
+import org.nmrfx.processor.math.MatrixND;
 
 /**
  *
@@ -28,16 +30,42 @@ public class ExportMatrix extends MatrixOperation {
 
     private final String rootName;
     private final String suffix;
+    private final boolean useContainer;
+    private final int queueSize;
 
     public ExportMatrix(String rootName, String suffix) {
+        this(rootName, suffix, false, 0);
+    }
+
+    /**
+     * Export matrices either to separate files, or appended to one container
+     * file named rootName.suffix.mtx (see MatrixContainer). The container is
+     * closed at the end of processing.
+     *
+     * @param rootName the root of the file names
+     * @param suffix the suffix of the file names
+     * @param useContainer true if the matrices should be written to one
+     * container file
+     * @param queueSize the number of matrices that can wait to be written to
+     * the container by a separate thread, or 0 to write in the processing
+     * threads
+     */
+    public ExportMatrix(String rootName, String suffix, boolean useContainer, int queueSize) {
         this.rootName = rootName;
         this.suffix = suffix;
+        this.useContainer = useContainer;
+        this.queueSize = queueSize;
     }
 
     @Override
     public Operation evalMatrix(MatrixType matrix) {
         try {
-            matrix.exportData(rootName, suffix);
+            if (useContainer && (matrix instanceof MatrixND)) {
+                String fileName = rootName + "." + suffix + ".mtx";
+                ((MatrixND) matrix).exportData(MatrixContainer.open(fileName, false, queueSize));
+            } else {
+                matrix.exportData(rootName, suffix);
+            }
         } catch (IOException ioE) {
             throw new OperationException(ioE.getMessage());
         }
@@ -45,7 +73,7 @@ public class ExportMatrix extends MatrixOperation {
     }
 
     public ExportMatrix clone() {
-        return new ExportMatrix(rootName, suffix);
+        return new ExportMatrix(rootName, suffix, useContainer, queueSize);
     }
 
 }
@@ -90,6 +90,8 @@ public class ExtendNew extends Operation {
     }
 
     private void svdPredLP(Vec vector, int start, int fitEnd, int ncoef, double threshold, int startPred, int endPred, boolean calculateBackward, boolean calculateForward) throws OperationException, Exception {
+        // prediction works on the Complex array
+        vector.makeApache();
         if (ncoef <= 0) {
             ncoef = vector.getSize() / 4;
         }
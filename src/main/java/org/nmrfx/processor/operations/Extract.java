@@ -60,8 +60,21 @@ public class Extract extends Operation {
 
     @Override
     public Operation eval(Vec vector) throws ProcessingException {
+        int[] range = getRange(vector);
+        vector.extract(range[0], range[1]);
+        return this;
+    }
+
+    /**
+     * Get the points of the vector that will be kept by this operation.
+     *
+     * @param vector the vector
+     * @return the first and last (inclusive) points
+     * @throws ProcessingException if the region is not within the vector
+     */
+    public int[] getRange(Vec vector) throws ProcessingException {
         if (ppmMode) {
-            return evalPPMMode(vector);
+            return getPPMRange(vector);
         }
         int start;
         int end;
@@ -88,11 +101,10 @@ public class Extract extends Operation {
             throw new OperationException(
                     "Extract: end value must be > " + start + " and < " + (size - 1));
         }
-        vector.extract(start, end);
-        return this;
+        return new int[]{start, end};
     }
 
-    Operation evalPPMMode(Vec vector) throws ProcessingException {
+    int[] getPPMRange(Vec vector) throws ProcessingException {
 
         PPM ppm1 = new PPM(dstart);
         PPM ppm2 = new PPM(dend);
@@ -108,7 +120,6 @@ public class Extract extends Operation {
             throw new OperationException(
                     "Extract: end value must be > " + start + " and < " + (size - 1));
         }
-        vector.extract(start, end);
-        return this;
+        return new int[]{start, end};
     }
 }
@@ -52,6 +52,31 @@ public class Ft extends Operation implements Invertible {
         this.negatePairs = negatePairs;
     }
 
+    /**
+     * Fourier transform the vector, skipping work when the points from nInput
+     * on are known to be zero, or only the points from first to last of the
+     * spectrum are needed.
+     *
+     * @param vector the vector to transform
+     * @param nInput the number of points that may be non-zero
+     * @param first the first point of the spectrum needed
+     * @param last the last point of the spectrum needed
+     * @return this operation
+     * @throws ProcessingException if the vector can't be transformed
+     */
+    public Ft evalPruned(Vec vector, int nInput, int first, int last) throws ProcessingException {
+        if (invertOp) {
+            ift(vector);
+        } else if (vector.isComplex()) {
+            vector.fft(negatePairs, negateImaginary, true, nInput, first, last);
+        }
+        return this;
+    }
+
+    public boolean isInverse() {
+        return invertOp;
+    }
+
     private void ft(Vec vector) throws ProcessingException {
         if (vector.isComplex()) {
             vector.fft(negatePairs, negateImaginary, true);
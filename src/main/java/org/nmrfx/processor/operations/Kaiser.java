@@ -90,7 +90,6 @@ public class Kaiser extends Apodization implements Invertible {
     }
 
     public void apply(Vec vector) {
-        vector.makeApache();
         setupApod(vector.getTDSize(), vector.getStart());
         if (invertOp) {
             invertApod(vector);
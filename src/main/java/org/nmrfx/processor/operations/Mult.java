@@ -31,7 +31,7 @@ import org.apache.commons.math3.complex.Complex;
  *
  * @author johnsonb
  */
-public class Mult extends Operation {
+public class Mult extends Operation implements PointwiseOperation {
 
     private final boolean isReal;
     private final double real;
@@ -82,4 +82,37 @@ public class Mult extends Operation {
         return this;
     }
 
+    @Override
+    public boolean isPointwise() {
+        return true;
+    }
+
+    @Override
+    public void prepare(Vec vector) {
+    }
+
+    @Override
+    public void apply(Vec vector, boolean complex, int first, int last) {
+        int start = Math.max(first, this.first);
+        int end = this.last < this.first ? last : Math.min(last, this.last + 1);
+        double[] rvec = vector.rvec;
+        double[] ivec = vector.ivec;
+        if (isReal || !complex) {
+            for (int i = start; i < end; i++) {
+                rvec[i] *= real;
+            }
+            if (complex) {
+                for (int i = start; i < end; i++) {
+                    ivec[i] *= real;
+                }
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                double rValue = rvec[i];
+                double iValue = ivec[i];
+                rvec[i] = rValue * real - iValue * imag;
+                ivec[i] = rValue * imag + iValue * real;
+            }
+        }
+    }
 }
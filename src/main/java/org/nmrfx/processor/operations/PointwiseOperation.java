@@ -0,0 +1,79 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data 
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.operations;
+
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.processing.ProcessingException;
+
+/**
+ * An Operation that changes each point of a vector independently of the other
+ * points. A run of these can be fused so that a vector is traversed once, in
+ * blocks, with each operation applied to a block while it is in cache.
+ *
+ * @author brucejohnson
+ */
+public interface PointwiseOperation {
+
+    /**
+     * Return whether this operation, as configured, can be applied point by
+     * point.
+     *
+     * @return true if the operation can be fused
+     */
+    public boolean isPointwise();
+
+    /**
+     * Set up anything the operation needs for this vector (for example, an
+     * apodization window) without changing its values.
+     *
+     * @param vector the vector the operation will be applied to
+     * @throws ProcessingException if the operation can't be applied
+     */
+    public void prepare(Vec vector) throws ProcessingException;
+
+    /**
+     * Apply the operation to a range of points of a vector that doesn't use
+     * Apache Complex storage.
+     *
+     * @param vector the vector
+     * @param complex true if the imaginary values are in use, false if only the
+     * real values need to be changed
+     * @param first the first point
+     * @param last one past the last point
+     */
+    public void apply(Vec vector, boolean complex, int first, int last);
+
+    /**
+     * Return whether points that are zero stay zero.
+     *
+     * @return true if the operation is multiplicative
+     */
+    public default boolean preservesZero() {
+        return true;
+    }
+
+    /**
+     * Return whether only the real values of the vector are used after the
+     * operation.
+     *
+     * @return true if the operation makes the vector real
+     */
+    public default boolean makesReal() {
+        return false;
+    }
+}
@@ -25,10 +25,14 @@ package org.nmrfx.processor.operations;
 import org.nmrfx.datasets.MatrixType;
 import org.nmrfx.processor.math.Vec;
 import org.nmrfx.processor.processing.ProcessingException;
+import org.python.core.PyCode;
 import org.python.core.PyObject;
 import org.python.core.PyJavaType;
+import org.python.core.PyStringMap;
 import org.python.util.PythonInterpreter;
 
+import java.util.List;
+
 /**
  *
  * @author johnsonb
@@ -55,7 +59,40 @@ public class PythonScript extends MatrixOperation {
      * different vector.
      */
     private final boolean encapsulate;
+
+    /**
+     * If True, the script is compiled once and run in an interpreter kept by
+     * each processing thread. With encapsulate, the variables of the
+     * interpreter are reset to their state after initialization before each
+     * evaluation instead of creating a new interpreter.
+     */
+    private final boolean compiled;
+
+    /**
+     * If True (and compiled), the script is run once for all of the vectors
+     * received in one processing loop, which are available as the list "vecs".
+     * The "vecmat" variable is not set for a batch.
+     */
+    private final boolean batch;
     private PythonInterpreter interpreter;
+    private final ThreadLocal<CompiledState> compiledStates = new ThreadLocal<>();
+
+    /**
+     * The interpreter, compiled script and initial variables used by one
+     * thread.
+     */
+    private static class CompiledState {
+
+        final PythonInterpreter interpreter;
+        final PyCode code;
+        final PyStringMap initialLocals;
+
+        CompiledState(PythonInterpreter interpreter, PyCode code, PyStringMap initialLocals) {
+            this.interpreter = interpreter;
+            this.code = code;
+            this.initialLocals = initialLocals;
+        }
+    }
 
     public PythonScript(String script) {
         this(script, "", "", true);
@@ -68,11 +105,27 @@ public class PythonScript extends MatrixOperation {
      * @param encapsulate Whether the interpreter should persist between evaluations
      */
     public PythonScript(String script, String initialScript, String execFileName, boolean encapsulate) {
+        this(script, initialScript, execFileName, encapsulate, false, false);
+    }
+
+    /**
+     *
+     * @param script The script to run at each Operation evaluation
+     * @param initialScript An optional script to run when initializing the interpreter
+     * @param execFileName An optional file to exec when initializing the interpreter
+     * @param encapsulate Whether variables should be reset between evaluations
+     * @param compiled Whether to compile the script once and keep an interpreter for each processing thread
+     * @param batch Whether to run the script once for each list of vectors (only used if compiled)
+     */
+    public PythonScript(String script, String initialScript, String execFileName, boolean encapsulate,
+            boolean compiled, boolean batch) {
         this.script = script;
         this.encapsulate = encapsulate;
         this.initialScript = initialScript;
         this.execFileName = execFileName;
-        if (!this.encapsulate) {
+        this.compiled = compiled;
+        this.batch = compiled && batch;
+        if (!this.encapsulate && !this.compiled) {
             interpreter = new PythonInterpreter();
             if (execFileName.length() != 0) {
                 interpreter.execfile(execFileName);
@@ -83,8 +136,62 @@ public class PythonScript extends MatrixOperation {
         }
     }
 
+    private CompiledState getCompiledState() {
+        CompiledState state = compiledStates.get();
+        if (state == null) {
+            PythonInterpreter threadInterpreter = new PythonInterpreter();
+            if (execFileName.length() != 0) {
+                threadInterpreter.execfile(execFileName);
+            }
+            if (initialScript.length() != 0) {
+                threadInterpreter.exec(initialScript);
+            }
+            PyCode code = threadInterpreter.compile(script);
+            PyStringMap initialLocals = null;
+            PyObject locals = threadInterpreter.getLocals();
+            if (locals instanceof PyStringMap) {
+                initialLocals = ((PyStringMap) locals).copy();
+            }
+            state = new CompiledState(threadInterpreter, code, initialLocals);
+            compiledStates.set(state);
+        }
+        return state;
+    }
+
+    private void execCompiled(String name, Object object, boolean setVecMat) {
+        CompiledState state = getCompiledState();
+        if (encapsulate && (state.initialLocals != null)) {
+            state.interpreter.setLocals(state.initialLocals.copy());
+        }
+        try {
+            state.interpreter.set(name, object);
+            if (setVecMat) {
+                state.interpreter.set("vecmat", object);
+            }
+            state.interpreter.exec(state.code);
+        } catch (Exception e) {
+            throw new ProcessingException(e.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    public Operation eval(List<Vec> vectors) throws ProcessingException {
+        if (batch) {
+            execCompiled("vecs", vectors, false);
+        } else {
+            for (Vec vector : vectors) {
+                eval(vector);
+            }
+        }
+        return this;
+    }
+
     @Override
     public Operation eval(Vec vector) throws ProcessingException {
+        if (compiled) {
+            execCompiled("vec", PyJavaType.wrapJavaObject(vector), true);
+            return this;
+        }
         /**
          * If the interpreter is created in a per-Operation basis, then we could share variables between all vectors
          * which are being evaluated by the PythonScript Operation.
@@ -112,6 +219,10 @@ public class PythonScript extends MatrixOperation {
 
     @Override
     public Operation evalMatrix(MatrixType matrix) {
+        if (compiled) {
+            execCompiled("matrix", PyJavaType.wrapJavaObject(matrix), true);
+            return this;
+        }
         /**
          * If the interpreter is created in a per-Operation basis, then we could share variables between all vectors
          * which are being evaluated by the PythonScript Operation.
@@ -134,7 +245,7 @@ public class PythonScript extends MatrixOperation {
     }
 
     public PythonScript clone() {
-        return new PythonScript(script, initialScript, execFileName, encapsulate);
+        return new PythonScript(script, initialScript, execFileName, encapsulate, compiled, batch);
     }
 
 }
@@ -25,7 +25,7 @@ import org.nmrfx.processor.processing.ProcessingException;
  *
  * @author johnsonb
  */
-public class Real extends Operation implements Invertible {
+public class Real extends Operation implements Invertible, PointwiseOperation {
 
     public Real() {
         this(false);
@@ -44,4 +44,22 @@ public class Real extends Operation implements Invertible {
         }
         return this;
     }
+
+    @Override
+    public boolean isPointwise() {
+        return !invertOp;
+    }
+
+    @Override
+    public void prepare(Vec vector) {
+    }
+
+    @Override
+    public void apply(Vec vector, boolean complex, int first, int last) {
+    }
+
+    @Override
+    public boolean makesReal() {
+        return true;
+    }
 }
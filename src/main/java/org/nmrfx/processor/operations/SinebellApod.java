@@ -52,7 +52,6 @@ public class SinebellApod extends Apodization implements Invertible {
     }
 
     public void sb(Vec vector) {
-        vector.makeApache();
         int apodSize = this.apodSize;
         if (this.apodSize > vector.getSize()) {
             apodSize = vector.getSize();
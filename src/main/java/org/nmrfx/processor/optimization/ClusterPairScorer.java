@@ -0,0 +1,210 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.optimization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.nmrfx.peaks.Peak;
+
+/**
+ * Scores the pairs of experimental and predicted clusters for a
+ * PeakClusterMatcher. Only pairs whose shifts are within the cluster tolerance
+ * are scored: the predicted clusters are sorted by shift so the candidates for
+ * each experimental cluster are found by binary search. The candidates are
+ * scored in parallel, and the scores are kept so a later call only scores the
+ * pairs that are new or in which a cluster's peaks have changed (in shift,
+ * intensity, scale or frozen state) since they were scored.
+ *
+ * @author brucejohnson
+ */
+public class ClusterPairScorer {
+
+    /**
+     * A score and the state of the clusters it was calculated for.
+     */
+    private static class PairScore {
+
+        final double[] expState;
+        final double[] predState;
+        final double score;
+
+        PairScore(double[] expState, double[] predState, double score) {
+            this.expState = expState;
+            this.predState = predState;
+            this.score = score;
+        }
+    }
+
+    private final Map<PeakCluster, Map<PeakCluster, PairScore>> scores = new IdentityHashMap<>();
+    private int nScored = 0;
+    private int nReused = 0;
+
+    /**
+     * Calculate the weights for matching the clusters. Pairs that aren't within
+     * tolerance of each other are given no weight.
+     *
+     * @param expClusters the experimental clusters
+     * @param predClusters the predicted clusters
+     * @return the weights, indexed by experimental and then predicted cluster.
+     * Pairs that aren't candidates have the value Double.NaN.
+     */
+    public double[][] score(PeakCluster[] expClusters, PeakCluster[] predClusters) {
+        nScored = 0;
+        nReused = 0;
+        double[][] weights = new double[expClusters.length][predClusters.length];
+        for (double[] row : weights) {
+            Arrays.fill(row, Double.NaN);
+        }
+        Map<PeakCluster, double[]> states = new IdentityHashMap<>();
+        for (PeakCluster cluster : expClusters) {
+            states.put(cluster, state(cluster));
+        }
+        for (PeakCluster cluster : predClusters) {
+            states.put(cluster, state(cluster));
+        }
+        List<int[]> toScore = new ArrayList<>();
+        for (int[] pair : candidates(expClusters, predClusters)) {
+            PeakCluster expCluster = expClusters[pair[0]];
+            PeakCluster predCluster = predClusters[pair[1]];
+            PairScore pairScore = scores.getOrDefault(expCluster, Map.of()).get(predCluster);
+            if ((pairScore != null) && Arrays.equals(pairScore.expState, states.get(expCluster))
+                    && Arrays.equals(pairScore.predState, states.get(predCluster))) {
+                weights[pair[0]][pair[1]] = pairScore.score;
+                nReused++;
+            } else {
+                toScore.add(pair);
+            }
+        }
+        double[] newScores = IntStream.range(0, toScore.size()).parallel().mapToDouble(i -> {
+            int[] pair = toScore.get(i);
+            return expClusters[pair[0]].comparisonScore(predClusters[pair[1]]);
+        }).toArray();
+        for (int i = 0; i < newScores.length; i++) {
+            int[] pair = toScore.get(i);
+            PeakCluster expCluster = expClusters[pair[0]];
+            PeakCluster predCluster = predClusters[pair[1]];
+            weights[pair[0]][pair[1]] = newScores[i];
+            PairScore pairScore = new PairScore(states.get(expCluster), states.get(predCluster), newScores[i]);
+            scores.computeIfAbsent(expCluster, k -> new IdentityHashMap<>()).put(predCluster, pairScore);
+        }
+        nScored = newScores.length;
+        return weights;
+    }
+
+    /**
+     * Find the pairs of clusters within tolerance of each other. The pairs are
+     * found in the same order as comparing every experimental cluster with
+     * every predicted cluster would, and are recorded in each cluster's list
+     * of clusters within tolerance.
+     */
+    private List<int[]> candidates(PeakCluster[] expClusters, PeakCluster[] predClusters) {
+        Integer[] order = new Integer[predClusters.length];
+        for (int j = 0; j < order.length; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(j -> predClusters[j].getShift()));
+        double[] sortedShifts = new double[order.length];
+        for (int k = 0; k < order.length; k++) {
+            sortedShifts[k] = predClusters[order[k]].getShift();
+        }
+        List<int[]> pairs = new ArrayList<>();
+        for (int i = 0; i < expClusters.length; i++) {
+            PeakCluster expCluster = expClusters[i];
+            double tol = expCluster.getTolerance();
+            int k = lowerBound(sortedShifts, expCluster.getShift() - tol);
+            List<Integer> js = new ArrayList<>();
+            for (; (k < sortedShifts.length) && (sortedShifts[k] <= expCluster.getShift() + tol); k++) {
+                js.add(order[k]);
+            }
+            js.sort(null);
+            for (int j : js) {
+                if (expCluster.isInTol(predClusters[j])) {
+                    pairs.add(new int[]{i, j});
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static int lowerBound(double[] values, double value) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Get the values the score of a pair of clusters depends on.
+     */
+    private static double[] state(PeakCluster cluster) {
+        List<Peak> peaks = cluster.getLinkedPeaks();
+        int nValues = 0;
+        for (Peak peak : peaks) {
+            nValues += 2 + 2 * peak.getPeakDims().length;
+        }
+        double[] state = new double[nValues];
+        int k = 0;
+        for (Peak peak : peaks) {
+            state[k++] = peak.getIntensity();
+            state[k++] = peak.getPeakList().scale;
+            for (int dim = 0; dim < peak.getPeakDims().length; dim++) {
+                state[k++] = peak.getPeakDim(dim).getChemShiftValue();
+                state[k++] = peak.getPeakDim(dim).isFrozen() ? 1.0 : 0.0;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Discard the saved scores.
+     */
+    public void clear() {
+        scores.clear();
+    }
+
+    /**
+     * Get the number of pairs scored by the last call to score.
+     *
+     * @return the number of pairs
+     */
+    public int getNScored() {
+        return nScored;
+    }
+
+    /**
+     * Get the number of pairs whose saved score was used by the last call to
+     * score.
+     *
+     * @return the number of pairs
+     */
+    public int getNReused() {
+        return nReused;
+    }
+}
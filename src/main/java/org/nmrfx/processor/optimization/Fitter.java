@@ -3,7 +3,6 @@ package org.nmrfx.processor.optimization;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.function.BiFunction;
-import java.util.stream.IntStream;
 import org.apache.commons.math3.analysis.MultivariateFunction;
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.NotPositiveException;
@@ -20,14 +19,13 @@ import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.random.SynchronizedRandomGenerator;
 import org.apache.commons.math3.random.Well19937c;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.util.FastMath;
 import org.codehaus.commons.compiler.CompileException;
 import org.codehaus.janino.ExpressionEvaluator;
 
 public class Fitter {
 
-    static RandomGenerator random = new SynchronizedRandomGenerator(new Well19937c());
+    static ResampleEngine defaultResampleEngine = new ResampleEngine();
 
     boolean reportFitness = false;
     int reportAt = 10;
@@ -43,6 +41,7 @@ public class Fitter {
     BiFunction<double[], double[], Double> function;
     BiFunction<double[], double[][], Double> valuesFunction = null;
     ExpressionEvaluator ee = null;
+    ResampleEngine resampleEngine = defaultResampleEngine;
 
     private Fitter() {
 
@@ -463,46 +462,94 @@ public class Fitter {
         }
     }
 
-    public double[] bootstrap(double[] guess, int nSim) {
-        reportFitness = false;
-        int nPar = start.length;
-        parValues = new double[nPar + 1][nSim];
-
-        IntStream.range(0, nSim).parallel().forEach(iSim -> {
-            double[][] newX = new double[xValues.length][yValues.length];
-            double[] newY = new double[yValues.length];
-            double[] newErr = new double[yValues.length];
-            Optimizer optimizer = new Optimizer();
-            for (int iValue = 0; iValue < yValues.length; iValue++) {
-                int rI = random.nextInt(yValues.length);
+    public static ResampleEngine getDefaultResampleEngine() {
+        return defaultResampleEngine;
+    }
+
+    public void setResampleEngine(ResampleEngine resampleEngine) {
+        this.resampleEngine = resampleEngine;
+    }
+
+    public ResampleEngine getResampleEngine() {
+        return resampleEngine;
+    }
+
+    public double[][] getParValues() {
+        return parValues;
+    }
+
+    /**
+     * Fits samples of the data, starting from the best fit. Each thread's
+     * instance keeps its sample arrays and optimizer between fits.
+     */
+    class SampleFitter implements ResampleEngine.SampleFit {
+
+        final double[] guess;
+        final Optimizer optimizer = new Optimizer();
+        double[][] newX;
+        double[] newY;
+        double[] newErr;
+
+        SampleFitter(double[] guess) {
+            this.guess = guess;
+        }
+
+        @Override
+        public double[] fit(int[] indices, int nValues) {
+            if ((newY == null) || (newY.length != nValues)) {
+                newX = new double[xValues.length][nValues];
+                newY = new double[nValues];
+                newErr = new double[nValues];
+            }
+            for (int iValue = 0; iValue < nValues; iValue++) {
+                int rI = indices[iValue];
                 for (int xIndex = 0; xIndex < newX.length; xIndex++) {
                     newX[xIndex][iValue] = xValues[xIndex][rI];
                 }
                 newY[iValue] = yValues[rI];
                 newErr[iValue] = errValues[rI];
             }
-
-            // fixme  idNum should be set in above loop
             optimizer.setXYE(newX, newY, newErr);
-
             PointValuePair result;
             try {
                 result = optimizer.refineCMAES(guess, inputSigma);
             } catch (Exception ex) {
-                return;
+                return null;
             }
             double[] rPoint = result.getPoint();
-            for (int j = 0; j < nPar; j++) {
-                parValues[j][iSim] = rPoint[j];
-            }
-            parValues[nPar][iSim] = result.getValue();
-        });
-
-        double[] parSDev = new double[nPar];
-        for (int i = 0; i < nPar; i++) {
-            DescriptiveStatistics dStat = new DescriptiveStatistics(parValues[i]);
-            parSDev[i] = dStat.getStandardDeviation();
+            double[] values = Arrays.copyOf(rPoint, rPoint.length + 1);
+            values[rPoint.length] = result.getValue();
+            return values;
         }
-        return parSDev;
+    }
+
+    /**
+     * Estimate the standard deviations of the parameters by fitting bootstrap
+     * samples of the data with the resampling engine. Fitting may stop before
+     * nSim samples if the engine's stopping tolerance is set.
+     *
+     * @param guess the starting parameters for each fit, usually the best fit
+     * @param nSim the maximum number of samples
+     * @return the standard deviations of the parameters
+     */
+    public double[] bootstrap(double[] guess, int nSim) {
+        reportFitness = false;
+        int nPar = start.length;
+        parValues = resampleEngine.bootstrap(yValues.length, nPar, nSim, () -> new SampleFitter(guess));
+        return ResampleEngine.sDevs(parValues, nPar, parValues[0].length);
+    }
+
+    /**
+     * Estimate the standard errors of the parameters by fitting the data with
+     * each value left out in turn.
+     *
+     * @param guess the starting parameters for each fit, usually the best fit
+     * @return the standard errors of the parameters
+     */
+    public double[] jackknife(double[] guess) {
+        reportFitness = false;
+        int nPar = start.length;
+        parValues = resampleEngine.jackknife(yValues.length, nPar, () -> new SampleFitter(guess));
+        return ResampleEngine.jackknifeErrors(parValues, nPar);
     }
 }
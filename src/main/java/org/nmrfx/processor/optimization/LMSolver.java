@@ -0,0 +1,748 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.optimization;
+
+import java.util.Arrays;
+
+/**
+ * Levenberg-Marquardt least squares solver with bounds on the parameters.
+ * <p>
+ * Parameters, residuals and the Jacobian (row major, one row per residual)
+ * are flat, zero based arrays. The working arrays are allocated when the
+ * solver is created and reused by later solves (only growing for larger
+ * problems), so a solver should be reused for a series of fits by one
+ * thread. Parameters that are at a bound, and whose gradient points out of
+ * the bounds, are held fixed for the step, and trial points are clamped to
+ * the bounds.
+ * <p>
+ * Each step can be improved with the geodesic acceleration of Transtrum and
+ * Sethna, which costs one extra evaluation of the residuals and lets the
+ * solver follow curved valleys with larger steps. The Jacobian is only
+ * recalculated after accepted steps, and can be updated with Broyden rank one
+ * updates between full calculations, which is useful if it is calculated by
+ * finite differences.
+ * <p>
+ * Lmder_fcn and Lmdif_fcn functions, with their one based arrays, are used
+ * through the models returned by fromLmder and fromLmdif.
+ *
+ * @author brucejohnson
+ */
+public class LMSolver {
+
+    /**
+     * A function whose residuals are minimized.
+     */
+    public interface Model {
+
+        /**
+         * Calculate the residuals, and if requested and available the
+         * derivatives of the residuals with respect to the parameters.
+         *
+         * @param x the parameters
+         * @param residuals array to store the residuals in, which may be
+         * longer than the number of residuals
+         * @param jacobian array to store the derivative of residual i with
+         * respect to parameter j in at [i * nPars + j], or null if the
+         * derivatives aren't needed
+         * @return true if the derivatives were stored, false if they should be
+         * calculated by finite differences
+         */
+        boolean evaluate(double[] x, double[] residuals, double[] jacobian);
+    }
+
+    /**
+     * Receives the statistics of each iteration.
+     */
+    public interface IterationListener {
+
+        /**
+         * Called after each iteration.
+         *
+         * @param iteration the iteration number, starting at 1
+         * @param cost the sum of squared residuals at the current point
+         * @param lambda the damping parameter
+         * @param stepNorm the norm of the step taken (0 if no step was
+         * accepted)
+         * @param accelerated true if the step included the geodesic
+         * acceleration
+         * @param nEvaluations the number of evaluations of the residuals so
+         * far
+         */
+        void iteration(int iteration, double cost, double lambda, double stepNorm,
+                boolean accelerated, int nEvaluations);
+    }
+
+    public enum Status {
+        COST_CONVERGED,
+        STEP_CONVERGED,
+        GRADIENT_CONVERGED,
+        MAX_ITERATIONS,
+        MAX_EVALUATIONS,
+        DAMPING_LIMIT
+    }
+
+    static final double EPSMCH = 2.22044604926e-16;
+    static final double MAX_LAMBDA = 1.0e16;
+
+    private int m;
+    private int n;
+    private double[] x;
+    private double[] xTrial;
+    private double[] lower;
+    private double[] upper;
+    private double[] r;
+    private double[] rTrial;
+    private double[] jac;
+    private double[] jtj;
+    private double[] chol;
+    private double[] g;
+    private double[] diag;
+    private double[] v;
+    private double[] a;
+    private double[] step;
+    private double[] work;
+    private double[] rWork;
+    private boolean[] free;
+
+    private int maxIterations = 200;
+    private int maxEvaluations = 2000;
+    private double costTolerance = 1.0e-10;
+    private double stepTolerance = 1.0e-10;
+    private double gradientTolerance = 1.0e-12;
+    private boolean useAcceleration = true;
+    private double accelerationRatio = 0.75;
+    private double accelerationStep = 0.1;
+    private int jacobianInterval = 1;
+    private IterationListener listener = null;
+
+    private int nIterations = 0;
+    private int nEvaluations = 0;
+    private int nJacobians = 0;
+    private int nAccelerated = 0;
+    private int nRejected = 0;
+    private double cost = 0.0;
+    private double lambda = 0.0;
+    private Status status = null;
+
+    /**
+     * Create a solver with working arrays for problems of up to a size.
+     *
+     * @param m the number of residuals
+     * @param n the number of parameters
+     */
+    public LMSolver(int m, int n) {
+        allocateResiduals(m, n);
+        allocateParameters(n);
+    }
+
+    private void allocateResiduals(int m, int n) {
+        r = new double[m];
+        rTrial = new double[m];
+        rWork = new double[m];
+        jac = new double[m * n];
+    }
+
+    private void allocateParameters(int n) {
+        x = new double[n];
+        xTrial = new double[n];
+        lower = new double[n];
+        upper = new double[n];
+        jtj = new double[n * n];
+        chol = new double[n * n];
+        g = new double[n];
+        diag = new double[n];
+        v = new double[n];
+        a = new double[n];
+        step = new double[n];
+        work = new double[n];
+        free = new boolean[n];
+    }
+
+    /**
+     * Set the problem size. The residual arrays grow as needed, but the
+     * parameter arrays, which are passed to the model, must be the exact
+     * size.
+     */
+    private void setSize(int m, int n) {
+        if ((m > r.length) || (m * n > jac.length)) {
+            allocateResiduals(Math.max(m, r.length), Math.max(n, x.length));
+        }
+        if (n != x.length) {
+            allocateParameters(n);
+        }
+        this.m = m;
+        this.n = n;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public void setMaxEvaluations(int maxEvaluations) {
+        this.maxEvaluations = maxEvaluations;
+    }
+
+    /**
+     * Set the convergence tolerances.
+     *
+     * @param costTolerance stop when an accepted step reduces the sum of
+     * squares by less than this fraction
+     * @param stepTolerance stop when the step is smaller than this fraction of
+     * the norm of the parameters
+     * @param gradientTolerance stop when the largest component of the
+     * gradient, for parameters that can move, is smaller than this
+     */
+    public void setTolerances(double costTolerance, double stepTolerance, double gradientTolerance) {
+        this.costTolerance = costTolerance;
+        this.stepTolerance = stepTolerance;
+        this.gradientTolerance = gradientTolerance;
+    }
+
+    /**
+     * Set whether steps include the geodesic acceleration.
+     *
+     * @param useAcceleration true to use the acceleration
+     * @param ratio the acceleration is only used if the ratio of its norm to
+     * the norm of the step is less than this (typically 0.75)
+     */
+    public void setAcceleration(boolean useAcceleration, double ratio) {
+        this.useAcceleration = useAcceleration;
+        this.accelerationRatio = ratio;
+    }
+
+    /**
+     * Set how often the Jacobian is fully calculated. Between calculations
+     * it is updated with Broyden rank one updates, and it is recalculated if
+     * a step with an updated Jacobian fails.
+     *
+     * @param interval the number of accepted steps between full calculations
+     * (1 to calculate it after every accepted step)
+     */
+    public void setJacobianInterval(int interval) {
+        this.jacobianInterval = Math.max(1, interval);
+    }
+
+    public void setIterationListener(IterationListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return nIterations;
+    }
+
+    public int getEvaluations() {
+        return nEvaluations;
+    }
+
+    public int getJacobianEvaluations() {
+        return nJacobians;
+    }
+
+    public int getAcceleratedSteps() {
+        return nAccelerated;
+    }
+
+    public int getRejectedSteps() {
+        return nRejected;
+    }
+
+    /**
+     * Get the sum of squared residuals at the solution.
+     *
+     * @return the sum of squares
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    public double getRms() {
+        return m == 0 ? 0.0 : Math.sqrt(cost / m);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Minimize the sum of squared residuals of a model without bounds.
+     *
+     * @param model the model
+     * @param m the number of residuals
+     * @param start the starting parameters, replaced by the solution
+     * @return the reason the solver stopped
+     */
+    public Status solve(Model model, int m, double[] start) {
+        return solve(model, m, start, null, null);
+    }
+
+    /**
+     * Minimize the sum of squared residuals of a model, keeping the
+     * parameters within bounds.
+     *
+     * @param model the model
+     * @param m the number of residuals
+     * @param start the starting parameters, replaced by the solution
+     * @param lowerBounds the lower bounds, or null for no lower bounds
+     * @param upperBounds the upper bounds, or null for no upper bounds
+     * @return the reason the solver stopped
+     */
+    public Status solve(Model model, int m, double[] start, double[] lowerBounds, double[] upperBounds) {
+        setSize(m, start.length);
+        for (int j = 0; j < n; j++) {
+            lower[j] = lowerBounds == null ? Double.NEGATIVE_INFINITY : lowerBounds[j];
+            upper[j] = upperBounds == null ? Double.POSITIVE_INFINITY : upperBounds[j];
+            x[j] = clamp(start[j], j);
+        }
+        nIterations = 0;
+        nEvaluations = 0;
+        nJacobians = 0;
+        nAccelerated = 0;
+        nRejected = 0;
+        status = null;
+        Arrays.fill(diag, 0, n, 0.0);
+
+        calculateJacobian(model);
+        cost = sumSq(r);
+        lambda = 1.0e-3;
+        double nu = 2.0;
+        int sinceJacobian = 0;
+
+        while (status == null) {
+            if (nIterations >= maxIterations) {
+                status = Status.MAX_ITERATIONS;
+                break;
+            }
+            nIterations++;
+            normalEquations();
+            if (projectedGradient() <= gradientTolerance) {
+                status = Status.GRADIENT_CONVERGED;
+                break;
+            }
+            double stepNorm = 0.0;
+            boolean accelerated = false;
+            boolean accepted = false;
+            while (!accepted && (status == null)) {
+                if (nEvaluations >= maxEvaluations) {
+                    status = Status.MAX_EVALUATIONS;
+                    break;
+                }
+                if (lambda > MAX_LAMBDA) {
+                    status = Status.DAMPING_LIMIT;
+                    break;
+                }
+                if (!factor()) {
+                    lambda *= nu;
+                    nu *= 2.0;
+                    continue;
+                }
+                // velocity, the usual LM step
+                for (int j = 0; j < n; j++) {
+                    work[j] = free[j] ? -g[j] : 0.0;
+                }
+                cholSolve(work, v);
+                accelerated = useAcceleration && accelerate(model);
+                for (int j = 0; j < n; j++) {
+                    double dj = accelerated ? v[j] + 0.5 * a[j] : v[j];
+                    xTrial[j] = clamp(x[j] + dj, j);
+                    step[j] = xTrial[j] - x[j];
+                }
+                evaluate(model, xTrial, rTrial);
+                double trialCost = sumSq(rTrial);
+                double predicted = predictedReduction();
+                double actual = cost - trialCost;
+                if (actual > 0.0) {
+                    double rho = predicted > 0.0 ? actual / predicted : 0.25;
+                    double t = 2.0 * rho - 1.0;
+                    lambda *= Math.max(1.0 / 3.0, 1.0 - t * t * t);
+                    nu = 2.0;
+                    accepted = true;
+                    if (accelerated) {
+                        nAccelerated++;
+                    }
+                    stepNorm = norm(step, n);
+                    double xNorm = norm(xTrial, n);
+                    double oldCost = cost;
+                    if (sinceJacobian + 1 < jacobianInterval) {
+                        broydenUpdate();
+                        sinceJacobian++;
+                        System.arraycopy(xTrial, 0, x, 0, n);
+                        System.arraycopy(rTrial, 0, r, 0, m);
+                    } else {
+                        System.arraycopy(xTrial, 0, x, 0, n);
+                        calculateJacobian(model);
+                        sinceJacobian = 0;
+                    }
+                    cost = trialCost;
+                    if ((cost == 0.0) || (actual <= costTolerance * oldCost)) {
+                        status = Status.COST_CONVERGED;
+                    } else if (stepNorm <= stepTolerance * (xNorm + stepTolerance)) {
+                        status = Status.STEP_CONVERGED;
+                    }
+                } else {
+                    nRejected++;
+                    if (sinceJacobian > 0) {
+                        // the updated Jacobian may be poor, so recalculate
+                        // it before increasing the damping
+                        calculateJacobian(model);
+                        cost = sumSq(r);
+                        sinceJacobian = 0;
+                        normalEquations();
+                        projectedGradient();
+                    } else {
+                        lambda *= nu;
+                        nu *= 2.0;
+                    }
+                }
+            }
+            if (listener != null) {
+                listener.iteration(nIterations, cost, lambda, stepNorm, accelerated, nEvaluations);
+            }
+        }
+        System.arraycopy(x, 0, start, 0, n);
+        return status;
+    }
+
+    private double clamp(double value, int j) {
+        return Math.max(lower[j], Math.min(upper[j], value));
+    }
+
+    private static double sumSq(double[] values, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += values[i] * values[i];
+        }
+        return sum;
+    }
+
+    private double sumSq(double[] values) {
+        return sumSq(values, m);
+    }
+
+    private static double norm(double[] values, int length) {
+        return Math.sqrt(sumSq(values, length));
+    }
+
+    private void evaluate(Model model, double[] point, double[] residuals) {
+        nEvaluations++;
+        model.evaluate(point, residuals, null);
+    }
+
+    /**
+     * Calculate the residuals and Jacobian at x, by finite differences if the
+     * model doesn't supply derivatives.
+     */
+    private void calculateJacobian(Model model) {
+        nEvaluations++;
+        nJacobians++;
+        if (model.evaluate(x, r, jac)) {
+            return;
+        }
+        for (int j = 0; j < n; j++) {
+            double h = Math.sqrt(EPSMCH) * Math.max(Math.abs(x[j]), 1.0);
+            if (x[j] + h > upper[j]) {
+                h = -h;
+            }
+            double hold = x[j];
+            x[j] = hold + h;
+            evaluate(model, x, rWork);
+            x[j] = hold;
+            for (int i = 0; i < m; i++) {
+                jac[i * n + j] = (rWork[i] - r[i]) / h;
+            }
+        }
+    }
+
+    /**
+     * Calculate J'J and the gradient J'r, and update the scaling of the
+     * damping.
+     */
+    private void normalEquations() {
+        Arrays.fill(jtj, 0, n * n, 0.0);
+        Arrays.fill(g, 0, n, 0.0);
+        for (int i = 0; i < m; i++) {
+            int row = i * n;
+            double ri = r[i];
+            for (int j = 0; j < n; j++) {
+                double jij = jac[row + j];
+                if (jij == 0.0) {
+                    continue;
+                }
+                g[j] += jij * ri;
+                int jRow = j * n;
+                for (int k = 0; k <= j; k++) {
+                    jtj[jRow + k] += jij * jac[row + k];
+                }
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            for (int k = 0; k < j; k++) {
+                jtj[k * n + j] = jtj[j * n + k];
+            }
+            diag[j] = Math.max(diag[j], jtj[j * n + j]);
+        }
+    }
+
+    /**
+     * Find the parameters that can move and return the largest component of
+     * the gradient for them.
+     */
+    private double projectedGradient() {
+        double maxGrad = 0.0;
+        for (int j = 0; j < n; j++) {
+            free[j] = !(((x[j] <= lower[j]) && (g[j] > 0.0)) || ((x[j] >= upper[j]) && (g[j] < 0.0)));
+            if (free[j]) {
+                maxGrad = Math.max(maxGrad, Math.abs(g[j]));
+            }
+        }
+        return maxGrad;
+    }
+
+    /**
+     * Cholesky factor J'J plus the damping, with rows and columns of fixed
+     * parameters replaced by the identity.
+     *
+     * @return false if the matrix isn't positive definite
+     */
+    private boolean factor() {
+        for (int j = 0; j < n; j++) {
+            int jRow = j * n;
+            for (int k = 0; k <= j; k++) {
+                double value;
+                if (free[j] && free[k]) {
+                    value = jtj[jRow + k];
+                    if (j == k) {
+                        value += lambda * (diag[j] > 0.0 ? diag[j] : 1.0);
+                    }
+                } else {
+                    value = j == k ? 1.0 : 0.0;
+                }
+                chol[jRow + k] = value;
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            int jRow = j * n;
+            double sum = chol[jRow + j];
+            for (int k = 0; k < j; k++) {
+                sum -= chol[jRow + k] * chol[jRow + k];
+            }
+            if (!(sum > 0.0)) {
+                return false;
+            }
+            double d = Math.sqrt(sum);
+            chol[jRow + j] = d;
+            for (int i = j + 1; i < n; i++) {
+                int iRow = i * n;
+                double s = chol[iRow + j];
+                for (int k = 0; k < j; k++) {
+                    s -= chol[iRow + k] * chol[jRow + k];
+                }
+                chol[iRow + j] = s / d;
+            }
+        }
+        return true;
+    }
+
+    private void cholSolve(double[] b, double[] result) {
+        for (int i = 0; i < n; i++) {
+            int iRow = i * n;
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= chol[iRow + k] * result[k];
+            }
+            result[i] = s / chol[iRow + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double s = result[i];
+            for (int k = i + 1; k < n; k++) {
+                s -= chol[k * n + i] * result[k];
+            }
+            result[i] = s / chol[i * n + i];
+        }
+    }
+
+    /**
+     * Calculate the geodesic acceleration for the velocity v from the second
+     * directional derivative of the residuals along v, estimated by finite
+     * differences.
+     *
+     * @return true if the acceleration is small enough relative to the
+     * velocity to be used
+     */
+    private boolean accelerate(Model model) {
+        double h = accelerationStep;
+        for (int j = 0; j < n; j++) {
+            xTrial[j] = clamp(x[j] + h * v[j], j);
+        }
+        evaluate(model, xTrial, rWork);
+        for (int j = 0; j < n; j++) {
+            work[j] = 0.0;
+        }
+        for (int i = 0; i < m; i++) {
+            int row = i * n;
+            double jv = 0.0;
+            for (int j = 0; j < n; j++) {
+                jv += jac[row + j] * v[j];
+            }
+            double rpp = (2.0 / h) * ((rWork[i] - r[i]) / h - jv);
+            for (int j = 0; j < n; j++) {
+                work[j] -= jac[row + j] * rpp;
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            if (!free[j]) {
+                work[j] = 0.0;
+            }
+        }
+        cholSolve(work, a);
+        double aNorm = 0.0;
+        double vNorm = 0.0;
+        for (int j = 0; j < n; j++) {
+            double d = diag[j] > 0.0 ? diag[j] : 1.0;
+            aNorm += d * a[j] * a[j];
+            vNorm += d * v[j] * v[j];
+        }
+        return Math.sqrt(aNorm) <= accelerationRatio * Math.sqrt(vNorm);
+    }
+
+    /**
+     * The reduction of the sum of squares predicted by the linear model for
+     * the step.
+     */
+    private double predictedReduction() {
+        double gStep = 0.0;
+        double quad = 0.0;
+        for (int j = 0; j < n; j++) {
+            gStep += g[j] * step[j];
+            int jRow = j * n;
+            double s = 0.0;
+            for (int k = 0; k < n; k++) {
+                s += jtj[jRow + k] * step[k];
+            }
+            quad += step[j] * s;
+        }
+        return -(2.0 * gStep + quad);
+    }
+
+    /**
+     * Update the Jacobian for the accepted step so it predicts the change in
+     * residuals.
+     */
+    private void broydenUpdate() {
+        double stepSq = sumSq(step, n);
+        if (stepSq == 0.0) {
+            return;
+        }
+        for (int i = 0; i < m; i++) {
+            int row = i * n;
+            double js = 0.0;
+            for (int j = 0; j < n; j++) {
+                js += jac[row + j] * step[j];
+            }
+            double f = (rTrial[i] - r[i] - js) / stepSq;
+            for (int j = 0; j < n; j++) {
+                jac[row + j] += f * step[j];
+            }
+        }
+    }
+
+    /**
+     * Get a model for a function with the one based arrays of Lmder_fcn. The
+     * model uses the function's analytic derivatives.
+     *
+     * @param fcn the function
+     * @param m the number of residuals
+     * @return the model
+     */
+    public static Model fromLmder(Lmder_fcn fcn, int m) {
+        int n = fcn.getN();
+        double[] a1 = new double[n + 1];
+        double[] fvec1 = new double[m + 1];
+        double[][] fjac1 = new double[m + 1][n + 1];
+        int[] iflag = {0, 1};
+        return (xp, residuals, jacobian) -> {
+            System.arraycopy(xp, 0, a1, 1, n);
+            iflag[1] = 1;
+            fcn.fcn(m, n, a1, fvec1, fjac1, iflag);
+            System.arraycopy(fvec1, 1, residuals, 0, m);
+            if (jacobian != null) {
+                iflag[1] = 2;
+                fcn.fcn(m, n, a1, fvec1, fjac1, iflag);
+                for (int i = 0; i < m; i++) {
+                    System.arraycopy(fjac1[i + 1], 1, jacobian, i * n, n);
+                }
+                return true;
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Get a model for a function with the one based arrays of Lmdif_fcn. The
+     * solver calculates derivatives by finite differences.
+     *
+     * @param fcn the function
+     * @param m the number of residuals
+     * @return the model
+     */
+    public static Model fromLmdif(Lmdif_fcn fcn, int m) {
+        int n = fcn.getN();
+        double[] a1 = new double[n + 1];
+        double[] fvec1 = new double[m + 1];
+        int[] iflag = {0, 1};
+        return (xp, residuals, jacobian) -> {
+            System.arraycopy(xp, 0, a1, 1, n);
+            iflag[1] = 1;
+            fcn.fcn(m, n, a1, fvec1, iflag);
+            System.arraycopy(fvec1, 1, residuals, 0, m);
+            return false;
+        };
+    }
+
+    /**
+     * Minimize a function with the one based arrays of Lmder_fcn, in place of
+     * Lmder_f77.lmder1_f77.
+     *
+     * @param fcn the function
+     * @param m the number of residuals
+     * @param a the parameters, starting at index 1, replaced by the solution
+     * @return the reason the solver stopped
+     */
+    public Status solve(Lmder_fcn fcn, int m, double[] a) {
+        return solveOneBased(fromLmder(fcn, m), m, fcn.getN(), a);
+    }
+
+    /**
+     * Minimize a function with the one based arrays of Lmdif_fcn, in place of
+     * Minpack_f77.lmdif1_f77.
+     *
+     * @param fcn the function
+     * @param m the number of residuals
+     * @param a the parameters, starting at index 1, replaced by the solution
+     * @return the reason the solver stopped
+     */
+    public Status solve(Lmdif_fcn fcn, int m, double[] a) {
+        return solveOneBased(fromLmdif(fcn, m), m, fcn.getN(), a);
+    }
+
+    private Status solveOneBased(Model model, int m, int n, double[] a) {
+        double[] start = Arrays.copyOfRange(a, 1, n + 1);
+        Status result = solve(model, m, start);
+        System.arraycopy(start, 0, a, 1, n);
+        return result;
+    }
+}
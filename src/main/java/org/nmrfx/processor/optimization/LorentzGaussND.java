@@ -17,9 +17,21 @@
  */
 package org.nmrfx.processor.optimization;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.TreeSet;
 import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.ConvergenceException;
 import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.TooManyIterationsException;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.optim.PointValuePair;
 import org.apache.commons.math3.util.FastMath;
 import org.apache.commons.math3.util.MultidimensionalCounter;
@@ -30,7 +42,20 @@ import org.apache.commons.math3.optim.SimpleBounds;
 import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
 import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.BOBYQAOptimizer;
-
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Fits a sum of signals, each the product of a Lorentzian/Gaussian lineshape
+ * in each dimension, to the intensities at a set of grid positions. Because the
+ * lineshapes are separable, the 1D profile of each signal in each dimension is
+ * calculated once per parameter vector at the distinct coordinates of the
+ * positions, and the value at each position is the product of the profiles.
+ * The derivatives of the profiles are calculated in the same way, so the fit
+ * can be done with bounded Levenberg-Marquardt using an analytic Jacobian, as
+ * well as with BOBYQA.
+ *
+ * @author brucejohnson
+ */
 public class LorentzGaussND implements MultivariateFunction {
 
     final int nDim;
@@ -57,6 +82,20 @@ public class LorentzGaussND implements MultivariateFunction {
     boolean calcLorentz = true;
     double fracLorentz = 1.0;
     Random generator = null;
+    int nAmpPars = 1;
+    // index of the coordinate of each position in dimCoords
+    int[][] posIndex;
+    // distinct coordinates of the positions in each dimension
+    double[][] dimCoords;
+    // [signal][dimension][coordinate] lineshape profiles and their derivatives
+    double[][][] profiles;
+    double[][][] dLwProfiles;
+    double[][][] dFreqProfiles;
+    // [signal][position] product of the profiles
+    double[][] shapes;
+    // column of the Jacobian for each parameter, or -1 if not floating
+    int[] allToCol;
+    double[] colScale;
 
     public LorentzGaussND(final int[][] positions) {
         int nPoints = positions.length;
@@ -65,6 +104,7 @@ public class LorentzGaussND implements MultivariateFunction {
         for (int i = 0; i < nPoints; i++) {
             this.positions[i] = positions[i].clone();
         }
+        indexPositions();
     }
 
     public LorentzGaussND(final int[] sizes) {
@@ -87,6 +127,26 @@ public class LorentzGaussND implements MultivariateFunction {
             }
             i++;
         }
+        indexPositions();
+    }
+
+    private void indexPositions() {
+        dimCoords = new double[nDim][];
+        posIndex = new int[positions.length][nDim];
+        for (int iDim = 0; iDim < nDim; iDim++) {
+            TreeSet<Integer> values = new TreeSet<>();
+            for (int[] position : positions) {
+                values.add(position[iDim]);
+            }
+            int[] sorted = values.stream().mapToInt(Integer::intValue).toArray();
+            dimCoords[iDim] = new double[sorted.length];
+            for (int k = 0; k < sorted.length; k++) {
+                dimCoords[iDim][k] = sorted[k];
+            }
+            for (int i = 0; i < positions.length; i++) {
+                posIndex[i][iDim] = Arrays.binarySearch(sorted, positions[i][iDim]);
+            }
+        }
     }
 
     public void setIntensities(final double[][] intensities) {
@@ -127,6 +187,76 @@ public class LorentzGaussND implements MultivariateFunction {
         return result;
     }
 
+    /**
+     * Return whether the model supplies an analytic Jacobian, so it can be
+     * fit with optimizeLM.
+     *
+     * @return true if optimizeLM can be used
+     */
+    public boolean hasAnalyticGradient() {
+        return true;
+    }
+
+    /**
+     * Fit the model by minimizing the sum of squared deviations with the
+     * Levenberg-Marquardt algorithm, keeping the parameters within their
+     * bounds.
+     *
+     * @param maxEval the maximum number of evaluations
+     * @return the best parameters (unscaled) and the mean absolute deviation
+     * at those parameters
+     */
+    public PointValuePair optimizeLM(final int maxEval) {
+        best = null;
+        int nPos = positions.length;
+        double[] target = new double[nDelays * nPos];
+        for (int iDelay = 0; iDelay < nDelays; iDelay++) {
+            System.arraycopy(intensities[iDelay], 0, target, iDelay * nPos, nPos);
+        }
+        double[] lmBest = newStart.clone();
+        double[] lmBestSq = {Double.MAX_VALUE};
+        MultivariateJacobianFunction model = (RealVector point) -> {
+            double[] scaled = clampScaled(point.toArray());
+            double[] values = new double[target.length];
+            double[][] jacobian = new double[target.length][nFloating];
+            calculateJacobian(unscalePar(scaled), values, jacobian);
+            double sumSq = 0.0;
+            for (int i = 0; i < values.length; i++) {
+                double delta = target[i] - values[i];
+                sumSq += delta * delta;
+            }
+            if (sumSq < lmBestSq[0]) {
+                lmBestSq[0] = sumSq;
+                System.arraycopy(scaled, 0, lmBest, 0, nFloating);
+            }
+            return new Pair<>(new ArrayRealVector(values, false), new Array2DRowRealMatrix(jacobian, false));
+        };
+        LeastSquaresProblem problem = new LeastSquaresBuilder()
+                .start(newStart)
+                .model(model)
+                .target(target)
+                .parameterValidator(point -> new ArrayRealVector(clampScaled(point.toArray()), false))
+                .maxEvaluations(maxEval)
+                .maxIterations(maxEval)
+                .build();
+        double[] point;
+        try {
+            LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+            point = clampScaled(optimum.getPoint().toArray());
+        } catch (TooManyEvaluationsException | TooManyIterationsException | ConvergenceException e) {
+            point = lmBest;
+        }
+        double value = valueWithUnScaled(unscalePar(point));
+        return new PointValuePair(unscalePar(point), value);
+    }
+
+    private double[] clampScaled(double[] point) {
+        for (int i = 0; i < point.length; i++) {
+            point[i] = Math.max(uniformBoundaries[0][i], Math.min(uniformBoundaries[1][i], point[i]));
+        }
+        return point;
+    }
+
     public void simulate(final double[] parameters, final double sdev) {
         if (generator == null) {
             initRandom(0);
@@ -153,9 +283,13 @@ public class LorentzGaussND implements MultivariateFunction {
 
     public double valueWithUnScaled(final double[] parameters) {
         double sum = 0.0;
+        fillProfiles(parameters, false);
         for (int iDelay = 0; iDelay < nDelays; iDelay++) {
             for (int i = 0; i < positions.length; i++) {
-                double y = calculate(parameters, positions[i], iDelay);
+                double y = parameters[0];
+                for (int iSig = 0; iSig < nSignals; iSig++) {
+                    y += sigAmplitude(parameters, iSig, iDelay) * shapes[iSig][i] + sigBase(parameters, iSig);
+                }
                 double delta = intensities[iDelay][i] - y;
                 //sum += delta * delta;
                 sum += FastMath.abs(delta);
@@ -197,6 +331,129 @@ public class LorentzGaussND implements MultivariateFunction {
         return null;
     }
 
+    /**
+     * Calculate the profiles of each signal in each dimension at the distinct
+     * coordinates of the positions, and the products of the profiles at each
+     * position.
+     *
+     * @param a the unscaled parameters
+     * @param withDerivatives if true, also calculate the derivatives of the
+     * profiles with respect to the linewidths and frequencies
+     */
+    void fillProfiles(final double[] a, boolean withDerivatives) {
+        for (int iSig = 0; iSig < nSignals; iSig++) {
+            int iPar = sigStarts[iSig] + nAmpPars;
+            for (int iDim = 0; iDim < nDim; iDim++) {
+                double lw = a[iPar++];
+                double freq = a[iPar++];
+                double[] coords = dimCoords[iDim];
+                double[] profile = profiles[iSig][iDim];
+                for (int k = 0; k < coords.length; k++) {
+                    profile[k] = lShape(coords[k], lw, freq);
+                }
+                if (withDerivatives) {
+                    lShapeDerivatives(coords, lw, freq, dLwProfiles[iSig][iDim], dFreqProfiles[iSig][iDim]);
+                }
+            }
+            double[] shape = shapes[iSig];
+            for (int i = 0; i < positions.length; i++) {
+                double y = 1.0;
+                for (int iDim = 0; iDim < nDim; iDim++) {
+                    y *= profiles[iSig][iDim][posIndex[i][iDim]];
+                }
+                shape[i] = y;
+            }
+        }
+    }
+
+    double sigAmplitude(final double[] a, int iSig, int iDelay) {
+        int iPar = sigStarts[iSig];
+        if (intensities.length > 1) {
+            if (delays != null) {
+                return a[iPar] * FastMath.exp(-1.0 * delays[iDelay] / a[iPar + 1]);
+            } else {
+                return a[iPar + iDelay];
+            }
+        } else {
+            return a[iPar];
+        }
+    }
+
+    double sigBase(final double[] a, int iSig) {
+        if ((intensities.length > 1) && (delays != null) && fitC) {
+            return a[sigStarts[iSig] + 2];
+        } else {
+            return 0.0;
+        }
+    }
+
+    /**
+     * Calculate the value at each position and delay, and the derivatives of
+     * the values with respect to the floating (scaled) parameters.
+     *
+     * @param a the unscaled parameters
+     * @param values the values, indexed by delay and then position
+     * @param jacobian the derivatives, one row for each value
+     */
+    void calculateJacobian(final double[] a, double[] values, double[][] jacobian) {
+        fillProfiles(a, true);
+        int nPos = positions.length;
+        double[] dAll = new double[nParDim];
+        for (int iDelay = 0; iDelay < nDelays; iDelay++) {
+            for (int i = 0; i < nPos; i++) {
+                Arrays.fill(dAll, 0.0);
+                double y = a[0];
+                dAll[0] = 1.0;
+                for (int iSig = 0; iSig < nSignals; iSig++) {
+                    int iPar = sigStarts[iSig];
+                    double shape = shapes[iSig][i];
+                    double amplitude;
+                    if (intensities.length > 1) {
+                        if (delays != null) {
+                            double tau = a[iPar + 1];
+                            double decay = FastMath.exp(-1.0 * delays[iDelay] / tau);
+                            amplitude = a[iPar] * decay;
+                            dAll[iPar] += decay * shape;
+                            dAll[iPar + 1] += amplitude * shape * delays[iDelay] / (tau * tau);
+                            if (fitC) {
+                                y += a[iPar + 2];
+                                dAll[iPar + 2] += 1.0;
+                            }
+                        } else {
+                            amplitude = a[iPar + iDelay];
+                            dAll[iPar + iDelay] += shape;
+                        }
+                    } else {
+                        amplitude = a[iPar];
+                        dAll[iPar] += shape;
+                    }
+                    y += amplitude * shape;
+                    int shapePar = iPar + nAmpPars;
+                    for (int iDim = 0; iDim < nDim; iDim++) {
+                        double other = amplitude;
+                        for (int jDim = 0; jDim < nDim; jDim++) {
+                            if (jDim != iDim) {
+                                other *= profiles[iSig][jDim][posIndex[i][jDim]];
+                            }
+                        }
+                        int k = posIndex[i][iDim];
+                        dAll[shapePar + 2 * iDim] += other * dLwProfiles[iSig][iDim][k];
+                        dAll[shapePar + 2 * iDim + 1] += other * dFreqProfiles[iSig][iDim][k];
+                    }
+                }
+                int row = iDelay * nPos + i;
+                values[row] = y;
+                double[] jRow = jacobian[row];
+                for (int iPar = 0; iPar < nParDim; iPar++) {
+                    int col = allToCol[iPar];
+                    if (col >= 0) {
+                        jRow[col] += dAll[iPar] * colScale[col];
+                    }
+                }
+            }
+        }
+    }
+
     public double calculate(double[] a, int[] x, int iDelay) {
         double y = a[0];
         for (int k = 0; k < nSignals; k++) {
@@ -250,6 +507,35 @@ public class LorentzGaussND implements MultivariateFunction {
         return yL + yG;
     }
 
+    /**
+     * Calculate the derivatives of lShape with respect to the linewidth and
+     * frequency at a set of coordinates.
+     */
+    void lShapeDerivatives(double[] coords, double b, double freq, double[] dB, double[] dFreq) {
+        for (int k = 0; k < coords.length; k++) {
+            double dX = coords[k] - freq;
+            double dX2 = dX * dX;
+            double bG = b;
+            double dBG = 1.0;
+            dB[k] = 0.0;
+            dFreq[k] = 0.0;
+            if (calcLorentz) {
+                double h = 0.5 * b;
+                double denom = h * h + dX2;
+                double denom2 = denom * denom;
+                dB[k] += fracLorentz * h * dX2 / denom2;
+                dFreq[k] += fracLorentz * 2.0 * h * h * dX / denom2;
+                bG = h;
+                dBG = 0.5;
+            }
+            if (calcGauss) {
+                double yG = (1.0 - fracLorentz) * Math.exp(-dX2 / bG);
+                dB[k] += yG * dX2 / (bG * bG) * dBG;
+                dFreq[k] += yG * 2.0 * dX / bG;
+            }
+        }
+    }
+
     public double[] unscalePar(final double[] par) {
         for (int i = 0; i < nFloating; i++) {
             double f = (par[i] - 0.0) / (100.0 - 0.0);
@@ -293,6 +579,7 @@ public class LorentzGaussND implements MultivariateFunction {
         if (nSignals * (nDim * 2 + 1 + nRelaxPar) != start.length - 1) {
             throw new IllegalArgumentException("Wrong number of starting parameters " + start.length + " nSig " + nSignals + " nCalc " + (nDim * 2 + 1 + nRelaxPar));
         }
+        nAmpPars = 1 + nRelaxPar;
         nParDim = start.length;
         nFloating = 0;
         for (boolean floats : floating) {
@@ -343,7 +630,32 @@ public class LorentzGaussND implements MultivariateFunction {
                 System.out.println(i + " " + syncPars[i][0] + " " + syncPars[i][1]);
             }
         }
-
+        profiles = new double[nSignals][nDim][];
+        dLwProfiles = new double[nSignals][nDim][];
+        dFreqProfiles = new double[nSignals][nDim][];
+        for (int iSig = 0; iSig < nSignals; iSig++) {
+            for (int iDim = 0; iDim < nDim; iDim++) {
+                profiles[iSig][iDim] = new double[dimCoords[iDim].length];
+                dLwProfiles[iSig][iDim] = new double[dimCoords[iDim].length];
+                dFreqProfiles[iSig][iDim] = new double[dimCoords[iDim].length];
+            }
+        }
+        shapes = new double[nSignals][positions.length];
+        allToCol = new int[nParDim];
+        Arrays.fill(allToCol, -1);
+        colScale = new double[nFloating];
+        for (int i = 0; i < nFloating; i++) {
+            allToCol[mapToAll[i]] = i;
+            colScale[i] = (boundaries[1][i] - boundaries[0][i]) / 100.0;
+        }
+        if (syncPars != null) {
+            // a synced parameter varies with the parameter it is copied from
+            for (int[] syncPar : this.syncPars) {
+                if (syncPar[0] != syncPar[1]) {
+                    allToCol[syncPar[0]] = allToCol[syncPar[1]];
+                }
+            }
+        }
     }
 
     public static void main(String[] args) {
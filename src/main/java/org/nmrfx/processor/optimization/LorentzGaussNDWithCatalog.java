@@ -24,6 +24,11 @@ public class LorentzGaussNDWithCatalog extends LorentzGaussND {
         this.lsCatalog = lsCatalog;
     }
 
+    @Override
+    public boolean hasAnalyticGradient() {
+        return false;
+    }
+
     @Override
     public double valueWithUnScaled(final double[] pars) {
         double sum = 0.0;
@@ -347,6 +347,14 @@ public class PeakCluster {
         return null;
     }
 
+    public double getShift() {
+        return ppm;
+    }
+
+    public double getTolerance() {
+        return tol;
+    }
+
     public double clusterDistance(PeakCluster other) {
         return Math.abs(ppm - other.ppm);
     }
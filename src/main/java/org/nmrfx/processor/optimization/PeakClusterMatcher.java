@@ -31,6 +31,7 @@ public class PeakClusterMatcher {
     private int[] clusterMatch = null;
     private List<PeakCluster[]> matchedClusters = null;
     private final int iDim;
+    private final ClusterPairScorer pairScorer = new ClusterPairScorer();
 
     public PeakClusterMatcher(List<PeakList> expPeakLists, List<PeakList> predPeakLists, int iDim) {
         this.expPeakLists = expPeakLists;
@@ -78,6 +79,7 @@ public class PeakClusterMatcher {
     public void runMatch() throws IllegalArgumentException {
         if (clusterMatch == null) {
             System.out.println("Running match method");
+            pairScorer.clear();
             setupClusters();
             runBPClusterMatches(expPeakClusters, predPeakClusters);
         } else {
@@ -161,20 +163,15 @@ public class PeakClusterMatcher {
     }
 
     private void runBPClusterMatches(PeakCluster[] expClusArr, PeakCluster[] predClusArr) throws IllegalArgumentException {
-        // initializations
-        PeakCluster iExpClus, jPredClus;
         BipartiteMatcher clusterMatcher = new BipartiteMatcher();
         int nClusters = expClusArr.length + predClusArr.length;
         clusterMatcher.reset(nClusters, true);
 
-        // main loop
+        double[][] weights = pairScorer.score(expClusArr, predClusArr);
         for (int i = 0; i < expClusArr.length; i++) {
-            iExpClus = expClusArr[i];
             for (int j = 0; j < predClusArr.length; j++) {
-                jPredClus = predClusArr[j];
-                if (iExpClus.isInTol(jPredClus)) {
-                    double peakMaxSum = iExpClus.comparisonScore(jPredClus);
-                    clusterMatcher.setWeight(i, j, peakMaxSum);
+                if (!Double.isNaN(weights[i][j])) {
+                    clusterMatcher.setWeight(i, j, weights[i][j]);
                 }
             }
         }
@@ -182,6 +179,10 @@ public class PeakClusterMatcher {
         setupMatchedClusters(expClusArr, predClusArr);
     }
 
+    public ClusterPairScorer getPairScorer() {
+        return pairScorer;
+    }
+
     private void setupMatchedClusters(PeakCluster[] expClusArr, PeakCluster[] predClusArr) {
         if (expClusArr != null && predClusArr != null) {
             matchedClusters = new ArrayList<>();
@@ -0,0 +1,324 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.optimization;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the fits of bootstrap and jackknife resampling in parallel, on a
+ * dedicated pool of threads rather than the common pool. An engine with one
+ * thread fits the samples on the calling thread, so engines used by several
+ * threads at once don't share a pool.
+ * <p>
+ * Each bootstrap sample gets its own random number generator, split in order
+ * from a generator seeded with the engine's seed, so the samples, and the
+ * results, don't depend on the number of threads or the order the fits are
+ * done in. Each thread gets one SampleFit from the supplier and reuses it for
+ * all the samples it fits, so work arrays and optimizers are allocated once
+ * per thread.
+ * <p>
+ * Bootstrap samples are fit in batches. If a tolerance is set, fitting stops
+ * once at least the minimum number of samples have been fit and no parameter's
+ * standard deviation changed by more than the tolerance (relative to its
+ * value) over the last batch.
+ *
+ * @author brucejohnson
+ */
+public class ResampleEngine {
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    /**
+     * Fits the values selected by an array of indices. Implementations are
+     * used by one thread at a time and can keep work arrays between fits.
+     */
+    public interface SampleFit {
+
+        /**
+         * Fit a sample of the values.
+         *
+         * @param indices the indices of the values in the sample, which can
+         * repeat
+         * @param nValues the number of indices to use
+         * @return the fitted parameters followed by the fit's score, or null if
+         * the fit failed
+         */
+        double[] fit(int[] indices, int nValues);
+    }
+
+    private long seed = 0;
+    private int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int batchSize = 50;
+    private int minSamples = 100;
+    private double sdTolerance = 0.0;
+    private int nSamples = 0;
+
+    public ResampleEngine() {
+    }
+
+    public ResampleEngine(long seed) {
+        this.seed = seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set when fitting bootstrap samples can stop before the maximum number
+     * of samples.
+     *
+     * @param minSamples the minimum number of samples to fit
+     * @param sdTolerance the relative change in the parameter standard
+     * deviations over a batch below which fitting stops. A value of 0 fits all
+     * the samples.
+     */
+    public void setStopping(int minSamples, double sdTolerance) {
+        this.minSamples = minSamples;
+        this.sdTolerance = sdTolerance;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    public double getSDTolerance() {
+        return sdTolerance;
+    }
+
+    /**
+     * Get the number of samples fit in the last call to bootstrap or
+     * jackknife.
+     *
+     * @return the number of samples
+     */
+    public int getNSamples() {
+        return nSamples;
+    }
+
+    private static ForkJoinPool getPool(int nThreads) {
+        return POOLS.computeIfAbsent(nThreads, ForkJoinPool::new);
+    }
+
+    /**
+     * Fit bootstrap samples of the values.
+     *
+     * @param nValues the number of values
+     * @param nPar the number of fitted parameters
+     * @param maxSamples the maximum number of samples to fit
+     * @param fitSupplier supplies the SampleFit for each thread
+     * @return the parameters (and, in the last row, the score) of each sample
+     * fit, with one column for each sample. Samples whose fit failed have NaN
+     * values.
+     */
+    public double[][] bootstrap(int nValues, int nPar, int maxSamples, Supplier<SampleFit> fitSupplier) {
+        ThreadLocal<SampleFit> fits = ThreadLocal.withInitial(fitSupplier);
+        ThreadLocal<int[]> indexArrays = ThreadLocal.withInitial(() -> new int[nValues]);
+        double[][] values = new double[nPar + 1][maxSamples];
+        SplittableRandom random = new SplittableRandom(seed);
+        double[] lastSDevs = null;
+        int nDone = 0;
+        while (nDone < maxSamples) {
+            int start = nDone;
+            int end = Math.min(maxSamples, start + batchSize);
+            SplittableRandom[] randoms = new SplittableRandom[end - start];
+            for (int i = 0; i < randoms.length; i++) {
+                randoms[i] = random.split();
+            }
+            run(start, end, iSample -> {
+                SplittableRandom sampleRandom = randoms[iSample - start];
+                int[] indices = indexArrays.get();
+                for (int i = 0; i < nValues; i++) {
+                    indices[i] = sampleRandom.nextInt(nValues);
+                }
+                store(values, iSample, fits.get().fit(indices, nValues));
+            });
+            nDone = end;
+            if ((sdTolerance > 0.0) && (nDone < maxSamples)) {
+                double[] sDevs = sDevs(values, nPar, nDone);
+                if ((nDone >= minSamples) && (lastSDevs != null) && converged(lastSDevs, sDevs)) {
+                    break;
+                }
+                lastSDevs = sDevs;
+            }
+        }
+        nSamples = nDone;
+        if (nDone < maxSamples) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Arrays.copyOf(values[i], nDone);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Fit the jackknife samples of the values, each leaving out one value.
+     *
+     * @param nValues the number of values
+     * @param nPar the number of fitted parameters
+     * @param fitSupplier supplies the SampleFit for each thread
+     * @return the parameters (and, in the last row, the score) of each sample
+     * fit, with one column for each left out value. Samples whose fit failed
+     * have NaN values.
+     */
+    public double[][] jackknife(int nValues, int nPar, Supplier<SampleFit> fitSupplier) {
+        ThreadLocal<SampleFit> fits = ThreadLocal.withInitial(fitSupplier);
+        ThreadLocal<int[]> indexArrays = ThreadLocal.withInitial(() -> new int[nValues - 1]);
+        double[][] values = new double[nPar + 1][nValues];
+        run(0, nValues, iSample -> {
+            int[] indices = indexArrays.get();
+            for (int i = 0, j = 0; i < nValues; i++) {
+                if (i != iSample) {
+                    indices[j++] = i;
+                }
+            }
+            store(values, iSample, fits.get().fit(indices, nValues - 1));
+        });
+        nSamples = nValues;
+        return values;
+    }
+
+    private void run(int start, int end, IntConsumer task) {
+        if (nThreads == 1) {
+            for (int i = start; i < end; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        try {
+            getPool(nThreads).submit(() -> IntStream.range(start, end).parallel().forEach(task)).get();
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Resampling interrupted");
+        } catch (ExecutionException eE) {
+            Throwable cause = eE.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static void store(double[][] values, int iSample, double[] result) {
+        for (int j = 0; j < values.length; j++) {
+            values[j][iSample] = result == null ? Double.NaN : result[j];
+        }
+    }
+
+    private boolean converged(double[] lastSDevs, double[] sDevs) {
+        for (int i = 0; i < sDevs.length; i++) {
+            double delta = Math.abs(sDevs[i] - lastSDevs[i]);
+            if (!(delta <= sdTolerance * Math.abs(sDevs[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the standard deviation of each parameter over the first n samples,
+     * skipping failed fits.
+     *
+     * @param values the values returned by bootstrap
+     * @param nPar the number of parameters
+     * @param n the number of samples to use
+     * @return the standard deviations
+     */
+    public static double[] sDevs(double[][] values, int nPar, int n) {
+        double[] sDevs = new double[nPar];
+        for (int i = 0; i < nPar; i++) {
+            double sum = 0.0;
+            double sumSq = 0.0;
+            int nOK = 0;
+            for (int k = 0; k < n; k++) {
+                double v = values[i][k];
+                if (!Double.isNaN(v)) {
+                    sum += v;
+                    sumSq += v * v;
+                    nOK++;
+                }
+            }
+            if (nOK < 2) {
+                sDevs[i] = Double.NaN;
+            } else {
+                double mean = sum / nOK;
+                sDevs[i] = Math.sqrt(Math.max(0.0, (sumSq - nOK * mean * mean) / (nOK - 1)));
+            }
+        }
+        return sDevs;
+    }
+
+    /**
+     * Get the jackknife estimate of the standard error of each parameter,
+     * sqrt((n - 1) / n * sum((p_i - mean(p))^2)), skipping failed fits.
+     *
+     * @param values the values returned by jackknife
+     * @param nPar the number of parameters
+     * @return the standard errors
+     */
+    public static double[] jackknifeErrors(double[][] values, int nPar) {
+        double[] errors = new double[nPar];
+        for (int i = 0; i < nPar; i++) {
+            double sum = 0.0;
+            int nOK = 0;
+            for (double v : values[i]) {
+                if (!Double.isNaN(v)) {
+                    sum += v;
+                    nOK++;
+                }
+            }
+            double mean = sum / nOK;
+            double sumSq = 0.0;
+            for (double v : values[i]) {
+                if (!Double.isNaN(v)) {
+                    sumSq += (v - mean) * (v - mean);
+                }
+            }
+            errors[i] = nOK < 2 ? Double.NaN : Math.sqrt((nOK - 1.0) / nOK * sumSq);
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * The per-dimension header values of a dataset that processing changes (valid
+ * sizes, complex and frequency domain flags, referencing and phases). When
+ * processing is distributed, each process only sees the header changes made
+ * by the vectors it writes itself, so these values are sent over the
+ * coordinator connection: the coordinator sends its values at the start of
+ * each pass, and every process sends its values with each range it completes
+ * so the coordinator can merge them before writing the header.
+ *
+ * @author brucejohnson
+ */
+class DatasetGeometry {
+
+    private static final int VSIZE = 0;
+    private static final int VSIZE_R = 1;
+    private static final int COMPLEX = 2;
+    private static final int COMPLEX_R = 3;
+    private static final int FREQ_DOMAIN = 4;
+    private static final int FREQ_DOMAIN_R = 5;
+    private static final int SF = 6;
+    private static final int SW = 7;
+    private static final int SW_R = 8;
+    private static final int REF_VALUE = 9;
+    private static final int REF_VALUE_R = 10;
+    private static final int REF_PT = 11;
+    private static final int REF_PT_R = 12;
+    private static final int REF_UNITS = 13;
+    private static final int PH0 = 14;
+    private static final int PH0_R = 15;
+    private static final int PH1 = 16;
+    private static final int PH1_R = 17;
+    private static final int EXT_FIRST = 18;
+    private static final int EXT_LAST = 19;
+    private static final int ZF_SIZE = 20;
+    private static final int TD_SIZE = 21;
+    private static final int N_FIELDS = 22;
+
+    private final double[][] values;
+
+    private DatasetGeometry(double[][] values) {
+        this.values = values;
+    }
+
+    /**
+     * Get the current values of a dataset.
+     *
+     * @param dataset the dataset
+     * @return the values
+     */
+    static DatasetGeometry of(Dataset dataset) {
+        int nDim = dataset.getNDim();
+        double[][] values = new double[nDim][N_FIELDS];
+        for (int i = 0; i < nDim; i++) {
+            double[] v = values[i];
+            v[VSIZE] = dataset.getVSize(i);
+            v[VSIZE_R] = dataset.getVSize_r(i);
+            v[COMPLEX] = dataset.getComplex(i) ? 1 : 0;
+            v[COMPLEX_R] = dataset.getComplex_r(i) ? 1 : 0;
+            v[FREQ_DOMAIN] = dataset.getFreqDomain(i) ? 1 : 0;
+            v[FREQ_DOMAIN_R] = dataset.getFreqDomain_r(i) ? 1 : 0;
+            v[SF] = dataset.getSf(i);
+            v[SW] = dataset.getSw(i);
+            v[SW_R] = dataset.getSw_r(i);
+            v[REF_VALUE] = dataset.getRefValue(i);
+            v[REF_VALUE_R] = dataset.getRefValue_r(i);
+            v[REF_PT] = dataset.getRefPt(i);
+            v[REF_PT_R] = dataset.getRefPt_r(i);
+            v[REF_UNITS] = dataset.getRefUnits(i);
+            v[PH0] = dataset.getPh0(i);
+            v[PH0_R] = dataset.getPh0_r(i);
+            v[PH1] = dataset.getPh1(i);
+            v[PH1_R] = dataset.getPh1_r(i);
+            v[EXT_FIRST] = dataset.getExtFirst(i);
+            v[EXT_LAST] = dataset.getExtLast(i);
+            v[ZF_SIZE] = dataset.getZFSize(i);
+            v[TD_SIZE] = dataset.getTDSize(i);
+        }
+        return new DatasetGeometry(values);
+    }
+
+    /**
+     * Parse values written with toString.
+     *
+     * @param text the text
+     * @return the values
+     * @throws IllegalArgumentException if the text isn't valid
+     */
+    static DatasetGeometry parse(String text) {
+        String[] dims = text.trim().split("/");
+        double[][] values = new double[dims.length][];
+        for (int i = 0; i < dims.length; i++) {
+            String[] fields = dims[i].split(",");
+            if (fields.length != N_FIELDS) {
+                throw new IllegalArgumentException("Invalid dataset geometry " + text);
+            }
+            values[i] = new double[N_FIELDS];
+            for (int j = 0; j < N_FIELDS; j++) {
+                values[i][j] = Double.parseDouble(fields[j]);
+            }
+        }
+        return new DatasetGeometry(values);
+    }
+
+    int getNDim() {
+        return values.length;
+    }
+
+    int getVSize(int iDim) {
+        return (int) values[iDim][VSIZE];
+    }
+
+    /**
+     * Merge in the values reported by a process that wrote data in a pass. All
+     * values of the dimensions the pass processed are taken from the report,
+     * and the valid sizes of the other dimensions are the larger of the two,
+     * as they are when a single process writes all the vectors.
+     *
+     * @param report the values of the other process
+     * @param passDims the dimensions processed by the pass
+     */
+    void merge(DatasetGeometry report, int[] passDims) {
+        if (report.values.length != values.length) {
+            throw new IllegalArgumentException("Dataset geometry has " + report.values.length
+                    + " dimensions, not " + values.length);
+        }
+        boolean[] processed = new boolean[values.length];
+        for (int iDim : passDims) {
+            processed[iDim] = true;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (processed[i]) {
+                System.arraycopy(report.values[i], 0, values[i], 0, N_FIELDS);
+            } else {
+                values[i][VSIZE] = Math.max(values[i][VSIZE], report.values[i][VSIZE]);
+                values[i][VSIZE_R] = Math.max(values[i][VSIZE_R], report.values[i][VSIZE_R]);
+            }
+        }
+    }
+
+    /**
+     * Set the values in a dataset.
+     *
+     * @param dataset the dataset
+     */
+    void apply(Dataset dataset) {
+        if (dataset.getNDim() != values.length) {
+            throw new IllegalArgumentException("Dataset geometry has " + values.length
+                    + " dimensions, not " + dataset.getNDim());
+        }
+        for (int i = 0; i < values.length; i++) {
+            double[] v = values[i];
+            dataset.setVSize(i, (int) v[VSIZE]);
+            dataset.setVSize_r(i, (int) v[VSIZE_R]);
+            dataset.setComplex(i, v[COMPLEX] != 0);
+            dataset.setComplex_r(i, v[COMPLEX_R] != 0);
+            dataset.setFreqDomain(i, v[FREQ_DOMAIN] != 0);
+            dataset.setFreqDomain_r(i, v[FREQ_DOMAIN_R] != 0);
+            dataset.setSf(i, v[SF]);
+            dataset.setSw(i, v[SW]);
+            dataset.setSw_r(i, v[SW_R]);
+            dataset.setRefValue(i, v[REF_VALUE]);
+            dataset.setRefValue_r(i, v[REF_VALUE_R]);
+            dataset.setRefPt(i, v[REF_PT]);
+            dataset.setRefPt_r(i, v[REF_PT_R]);
+            dataset.setRefUnits(i, (int) v[REF_UNITS]);
+            dataset.setPh0(i, v[PH0]);
+            dataset.setPh0_r(i, v[PH0_R]);
+            dataset.setPh1(i, v[PH1]);
+            dataset.setPh1_r(i, v[PH1_R]);
+            dataset.setExtFirst(i, (int) v[EXT_FIRST]);
+            dataset.setExtLast(i, (int) v[EXT_LAST]);
+            dataset.setZFSize(i, (int) v[ZF_SIZE]);
+            dataset.setTDSize(i, (int) v[TD_SIZE]);
+        }
+    }
+
+    /**
+     * Write the values as a single line of text, without spaces.
+     *
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sBuilder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sBuilder.append('/');
+            }
+            for (int j = 0; j < N_FIELDS; j++) {
+                if (j > 0) {
+                    sBuilder.append(',');
+                }
+                sBuilder.append(values[i][j]);
+            }
+        }
+        return sBuilder.toString();
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coordinates processing that is distributed over several processes running
+ * the same processing script. The coordinator creates the dataset and writes
+ * its header. At the start of each pass the items of the pass are divided into
+ * ranges, which are handed out to the processing threads of the coordinator
+ * and, over a socket, to worker processes (see ProcessWorker) that open the
+ * same FID and dataset files and write their ranges directly into the dataset.
+ *
+ * A range that fails, or whose worker disconnects, is handed out again, up to
+ * a maximum number of attempts. When no ranges are left, a process asking for
+ * work is given a copy of a range that has been running for much longer than
+ * ranges typically take. The first copy to finish completes the range and the
+ * other copy is cancelled. A pass only ends when every copy has stopped, so no
+ * process is still writing data from a pass when the next pass reads it.
+ *
+ * Workers only see the header changes made by the vectors they write
+ * themselves, so the header values that processing changes (see
+ * DatasetGeometry) are sent over the connection rather than through the
+ * dataset file. The coordinator records its values at the start of each pass
+ * and workers fetch them before setting up the pass, including passes they
+ * join too late to take part in. Workers send their values with each range
+ * they complete, and endPass returns the latest values from each worker so
+ * they can be merged into the coordinator's header.
+ *
+ * The protocol is line based. Workers send HELLO, GEOMETRY pass, NEXT pass,
+ * DONE id geometry, RELEASE id, FAIL id message, CANCELLED and BYE, and the
+ * coordinator replies to each with a single line.
+ *
+ * @author brucejohnson
+ */
+public class ProcessCoordinator implements WorkSource {
+
+    private static final Object LOCAL = "local";
+    private static final long CHECK_INTERVAL = 1000;
+
+    private class RangeState {
+
+        final WorkRange range;
+        int attempts = 0;
+        boolean complete = false;
+
+        RangeState(WorkRange range) {
+            this.range = range;
+        }
+    }
+
+    private class Assignment {
+
+        final RangeState state;
+        final Object owner;
+        final long startTime = System.currentTimeMillis();
+        long cancelTime = 0;
+        boolean cancelled = false;
+
+        Assignment(RangeState state, Object owner) {
+            this.state = state;
+            this.owner = owner;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<Connection> connections = new ArrayList<>();
+    private final ArrayDeque<RangeState> pending = new ArrayDeque<>();
+    private final Map<Integer, RangeState> ranges = new HashMap<>();
+    private final List<Assignment> assignments = new ArrayList<>();
+    private final Map<Integer, String> geometries = new HashMap<>();
+    private final Map<Object, String> reports = new LinkedHashMap<>();
+    private int rangesPerPass = 64;
+    private int maxAttempts = 3;
+    private double stragglerFactor = 3.0;
+    private long abandonTimeout = 300000;
+    private int currentPass = -1;
+    private int nIncomplete = 0;
+    private int nextId = 0;
+    private int nDone = 0;
+    private long doneTime = 0;
+    private boolean ready = false;
+    private boolean closed = false;
+    private String error = null;
+
+    /**
+     * Create a coordinator that listens for workers on the specified port.
+     *
+     * @param port the port number
+     * @throws IOException if the socket can't be opened
+     */
+    public ProcessCoordinator(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread(this::acceptConnections, "ProcessCoordinator");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Set the number of ranges the items of each pass are divided into.
+     *
+     * @param n the number of ranges
+     */
+    public synchronized void setRangesPerPass(int n) {
+        rangesPerPass = Math.max(1, n);
+    }
+
+    /**
+     * Set the number of times a range is handed out before the pass is
+     * considered to have failed.
+     *
+     * @param n the maximum number of attempts
+     */
+    public synchronized void setMaxAttempts(int n) {
+        maxAttempts = Math.max(1, n);
+    }
+
+    /**
+     * Set how many times longer than the average range a range must have been
+     * running before a copy of it is handed out.
+     *
+     * @param factor the factor
+     */
+    public synchronized void setStragglerFactor(double factor) {
+        stragglerFactor = factor;
+    }
+
+    /**
+     * Set how long a worker has to stop processing a cancelled range before
+     * its connection is closed.
+     *
+     * @param ms the time in milliseconds
+     */
+    public synchronized void setAbandonTimeout(long ms) {
+        abandonTimeout = ms;
+    }
+
+    public synchronized int getNumWorkers() {
+        return connections.size();
+    }
+
+    @Override
+    public boolean ownsDataset() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean datasetReady() {
+        ready = true;
+        return true;
+    }
+
+    @Override
+    public synchronized String getGeometry(int pass) throws IOException {
+        try {
+            while (pass > currentPass) {
+                wait(CHECK_INTERVAL);
+            }
+        } catch (InterruptedException iE) {
+            throw new IOException("Interrupted waiting for pass " + pass);
+        }
+        return geometry(pass);
+    }
+
+    @Override
+    public synchronized void beginPass(int pass, int nItems, String geometry) {
+        currentPass = pass;
+        geometries.put(pass, geometry);
+        reports.clear();
+        pending.clear();
+        ranges.clear();
+        nIncomplete = 0;
+        nDone = 0;
+        doneTime = 0;
+        error = null;
+        int rangeSize = Math.max(1, (nItems + rangesPerPass - 1) / rangesPerPass);
+        for (int start = 0; start < nItems; start += rangeSize) {
+            WorkRange range = new WorkRange(nextId++, pass, start, Math.min(nItems, start + rangeSize));
+            RangeState state = new RangeState(range);
+            ranges.put(range.getId(), state);
+            pending.add(state);
+            nIncomplete++;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<String> endPass(int pass) throws IOException {
+        try {
+            while ((error == null) && ((nIncomplete > 0) || !assignments.isEmpty())) {
+                closeAbandoned();
+                wait(CHECK_INTERVAL);
+            }
+        } catch (InterruptedException iE) {
+            throw new IOException("Interrupted waiting for pass " + pass);
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return new ArrayList<>(reports.values());
+    }
+
+    @Override
+    public WorkRange next(int pass) throws IOException {
+        return next(LOCAL, pass);
+    }
+
+    @Override
+    public void complete(WorkRange range, String geometry) {
+        // the coordinator's own header already has its changes
+        complete(LOCAL, range.getId(), null);
+    }
+
+    @Override
+    public void release(WorkRange range) {
+        release(LOCAL, range.getId());
+    }
+
+    @Override
+    public void fail(WorkRange range, String message) {
+        fail(LOCAL, range.getId(), message);
+    }
+
+    @Override
+    public Set<Integer> cancelled() {
+        return cancelled(LOCAL);
+    }
+
+    /**
+     * Get the header values recorded at the start of a pass.
+     *
+     * @param pass the index of the pass
+     * @return the values, or null if the pass hasn't started
+     * @throws IOException if the pass was never started (it was a dataset
+     * pass, which workers don't take part in)
+     */
+    synchronized String geometry(int pass) throws IOException {
+        if (pass > currentPass) {
+            return null;
+        }
+        String geometry = geometries.get(pass);
+        if (geometry == null) {
+            throw new IOException("No geometry for pass " + pass);
+        }
+        return geometry;
+    }
+
+    synchronized WorkRange next(Object owner, int pass) throws IOException {
+        if (error != null) {
+            throw new IOException(error);
+        }
+        if (pass < currentPass) {
+            return null;
+        } else if (pass > currentPass) {
+            return WorkRange.WAIT;
+        } else if (nIncomplete == 0) {
+            return null;
+        }
+        RangeState state = pending.poll();
+        while ((state != null) && state.complete) {
+            state = pending.poll();
+        }
+        if (state == null) {
+            state = findStraggler(owner);
+        }
+        if (state == null) {
+            return WorkRange.WAIT;
+        }
+        assignments.add(new Assignment(state, owner));
+        return state.range;
+    }
+
+    synchronized void complete(Object owner, int id, String geometry) {
+        Assignment assignment = removeAssignment(owner, id);
+        if (assignment == null) {
+            return;
+        }
+        RangeState state = assignment.state;
+        if ((geometry != null) && (state.range.getPass() == currentPass)) {
+            reports.put(owner, geometry);
+        }
+        if (!state.complete) {
+            long now = System.currentTimeMillis();
+            state.complete = true;
+            nIncomplete--;
+            nDone++;
+            doneTime += now - assignment.startTime;
+            for (Assignment other : assignments) {
+                if ((other.state == state) && !other.cancelled) {
+                    other.cancelled = true;
+                    other.cancelTime = now;
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized void release(Object owner, int id) {
+        Assignment assignment = removeAssignment(owner, id);
+        if (assignment == null) {
+            return;
+        }
+        RangeState state = assignment.state;
+        if (!state.complete && !hasCopies(state)) {
+            pending.addFirst(state);
+        }
+        notifyAll();
+    }
+
+    synchronized void fail(Object owner, int id, String message) {
+        Assignment assignment = removeAssignment(owner, id);
+        if (assignment != null) {
+            retry(assignment.state, message);
+        }
+        notifyAll();
+    }
+
+    synchronized Set<Integer> cancelled(Object owner) {
+        Set<Integer> ids = new HashSet<>();
+        for (Assignment assignment : assignments) {
+            if ((assignment.owner == owner) && assignment.cancelled) {
+                ids.add(assignment.state.range.getId());
+            }
+        }
+        return ids;
+    }
+
+    synchronized void disconnected(Connection connection) {
+        connections.remove(connection);
+        Iterator<Assignment> iter = assignments.iterator();
+        List<RangeState> lost = new ArrayList<>();
+        while (iter.hasNext()) {
+            Assignment assignment = iter.next();
+            if (assignment.owner == connection) {
+                iter.remove();
+                lost.add(assignment.state);
+            }
+        }
+        for (RangeState state : lost) {
+            retry(state, "worker " + connection.name + " disconnected");
+        }
+        notifyAll();
+    }
+
+    private void retry(RangeState state, String message) {
+        if (state.complete || (state.range.getPass() != currentPass)) {
+            return;
+        }
+        state.attempts++;
+        System.err.println("Failed " + state.range + ": " + message);
+        if (state.attempts >= maxAttempts) {
+            error = "Failed " + state.range + " after " + state.attempts + " attempts: " + message;
+        } else if (!hasCopies(state)) {
+            pending.addFirst(state);
+        }
+    }
+
+    private Assignment removeAssignment(Object owner, int id) {
+        Iterator<Assignment> iter = assignments.iterator();
+        while (iter.hasNext()) {
+            Assignment assignment = iter.next();
+            if ((assignment.owner == owner) && (assignment.state.range.getId() == id)) {
+                iter.remove();
+                return assignment;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasCopies(RangeState state) {
+        for (Assignment assignment : assignments) {
+            if (assignment.state == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the range that has been running longest, if it has been running for
+     * much longer than the ranges completed so far took on average. Only ranges
+     * with a single copy, running in another process, are considered.
+     */
+    private RangeState findStraggler(Object owner) {
+        if (nDone == 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        double limit = stragglerFactor * doneTime / nDone;
+        Assignment slowest = null;
+        for (Assignment assignment : assignments) {
+            if ((assignment.owner != owner) && !assignment.cancelled && !assignment.state.complete
+                    && ((now - assignment.startTime) > limit)) {
+                if ((slowest == null) || (assignment.startTime < slowest.startTime)) {
+                    slowest = assignment;
+                }
+            }
+        }
+        if ((slowest == null) || (countCopies(slowest.state) > 1)) {
+            return null;
+        }
+        System.err.println("Copying slow " + slowest.state.range);
+        return slowest.state;
+    }
+
+    private int countCopies(RangeState state) {
+        int n = 0;
+        for (Assignment assignment : assignments) {
+            if (assignment.state == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void closeAbandoned() {
+        long now = System.currentTimeMillis();
+        for (Assignment assignment : assignments) {
+            if (assignment.cancelled && ((now - assignment.cancelTime) > abandonTimeout)
+                    && (assignment.owner instanceof Connection)) {
+                Connection connection = (Connection) assignment.owner;
+                System.err.println("Closing unresponsive worker " + connection.name);
+                connection.close();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Connection connection = new Connection(socket);
+                synchronized (this) {
+                    if (closed) {
+                        connection.close();
+                        break;
+                    }
+                    connections.add(connection);
+                }
+                Thread thread = new Thread(connection, "ProcessCoordinator connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ioE) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error accepting worker " + ioE.getMessage());
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop accepting workers, and close the socket once the connected workers
+     * have disconnected (or after 30 seconds).
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        List<Connection> remaining;
+        synchronized (this) {
+            closed = true;
+            long endTime = System.currentTimeMillis() + 30000;
+            try {
+                while (!connections.isEmpty() && (System.currentTimeMillis() < endTime)) {
+                    wait(CHECK_INTERVAL);
+                }
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+            }
+            remaining = new ArrayList<>(connections);
+        }
+        serverSocket.close();
+        for (Connection connection : remaining) {
+            connection.close();
+        }
+    }
+
+    class Connection implements Runnable {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private String name;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            name = socket.getRemoteSocketAddress().toString();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals("BYE")) {
+                        break;
+                    }
+                    out.println(reply(line));
+                }
+            } catch (SocketException sE) {
+                // connection closed
+            } catch (IOException ioE) {
+                System.err.println("Error reading from worker " + name + " " + ioE.getMessage());
+            } finally {
+                close();
+                disconnected(this);
+            }
+        }
+
+        String reply(String line) {
+            String[] fields = line.split(" ", 3);
+            String command = fields[0];
+            try {
+                switch (command) {
+                    case "HELLO": {
+                        if (fields.length > 1) {
+                            name = fields[1];
+                        }
+                        synchronized (ProcessCoordinator.this) {
+                            return ready ? "READY" : "WAIT";
+                        }
+                    }
+                    case "NEXT": {
+                        WorkRange range = next(this, Integer.parseInt(fields[1]));
+                        if (range == null) {
+                            return "END";
+                        } else if (range.isWait()) {
+                            return "WAIT";
+                        } else {
+                            return "RANGE " + range.getId() + " " + range.getPass() + " "
+                                    + range.getStart() + " " + range.getEnd();
+                        }
+                    }
+                    case "GEOMETRY": {
+                        String geometry = geometry(Integer.parseInt(fields[1]));
+                        return geometry == null ? "WAIT" : "GEOMETRY " + geometry;
+                    }
+                    case "DONE": {
+                        complete(this, Integer.parseInt(fields[1]), fields.length > 2 ? fields[2] : null);
+                        return "OK";
+                    }
+                    case "RELEASE": {
+                        release(this, Integer.parseInt(fields[1]));
+                        return "OK";
+                    }
+                    case "FAIL": {
+                        fail(this, Integer.parseInt(fields[1]), fields.length > 2 ? fields[2] : "");
+                        return "OK";
+                    }
+                    case "CANCELLED": {
+                        StringBuilder sBuilder = new StringBuilder("CANCEL");
+                        for (Integer id : cancelled(this)) {
+                            sBuilder.append(' ').append(id);
+                        }
+                        return sBuilder.toString();
+                    }
+                    default:
+                        return "ERROR unknown command " + command;
+                }
+            } catch (IOException | RuntimeException e) {
+                return "ERROR " + e.getMessage();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioE) {
+                System.err.println("Error closing connection to " + name);
+            }
+        }
+    }
+}
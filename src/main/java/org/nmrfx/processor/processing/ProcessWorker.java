@@ -0,0 +1,165 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The connection of a worker process to a ProcessCoordinator. The worker runs
+ * the same processing script as the coordinator, but opens the dataset created
+ * by the coordinator and only processes the ranges it is given. The dataset
+ * header values are taken from the coordinator at the start of each pass, and
+ * sent back to it with each completed range.
+ *
+ * @author brucejohnson
+ */
+public class ProcessWorker implements WorkSource {
+
+    private static final long WAIT_INTERVAL = 100;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final String name;
+
+    /**
+     * Connect to a coordinator.
+     *
+     * @param host the host the coordinator runs on
+     * @param port the port the coordinator listens on
+     * @throws IOException if the connection can't be made
+     */
+    public ProcessWorker(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        name = InetAddress.getLocalHost().getHostName() + ":" + ProcessHandle.current().pid();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private synchronized String request(String message) throws IOException {
+        out.println(message);
+        String reply = in.readLine();
+        if (reply == null) {
+            throw new IOException("Coordinator closed the connection");
+        } else if (reply.startsWith("ERROR")) {
+            throw new IOException(reply.substring(5).trim());
+        }
+        return reply;
+    }
+
+    @Override
+    public boolean ownsDataset() {
+        return false;
+    }
+
+    @Override
+    public boolean datasetReady() throws IOException {
+        return request("HELLO " + name).equals("READY");
+    }
+
+    @Override
+    public String getGeometry(int pass) throws IOException {
+        while (true) {
+            String reply = request("GEOMETRY " + pass);
+            if (reply.startsWith("GEOMETRY ")) {
+                return reply.substring(9);
+            } else if (!reply.equals("WAIT")) {
+                throw new IOException("Invalid reply from coordinator: " + reply);
+            }
+            try {
+                Thread.sleep(WAIT_INTERVAL);
+            } catch (InterruptedException iE) {
+                throw new IOException("Interrupted waiting for pass " + pass);
+            }
+        }
+    }
+
+    @Override
+    public void beginPass(int pass, int nItems, String geometry) {
+    }
+
+    @Override
+    public List<String> endPass(int pass) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public WorkRange next(int pass) throws IOException {
+        String reply = request("NEXT " + pass);
+        if (reply.equals("END")) {
+            return null;
+        } else if (reply.equals("WAIT")) {
+            return WorkRange.WAIT;
+        }
+        String[] fields = reply.split(" ");
+        if (!fields[0].equals("RANGE") || (fields.length != 5)) {
+            throw new IOException("Invalid reply from coordinator: " + reply);
+        }
+        return new WorkRange(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+    }
+
+    @Override
+    public void complete(WorkRange range, String geometry) throws IOException {
+        request("DONE " + range.getId() + " " + geometry);
+    }
+
+    @Override
+    public void release(WorkRange range) throws IOException {
+        request("RELEASE " + range.getId());
+    }
+
+    @Override
+    public void fail(WorkRange range, String message) throws IOException {
+        String text = message == null ? "" : message.replace('\n', ' ').replace('\r', ' ');
+        request("FAIL " + range.getId() + " " + text);
+    }
+
+    @Override
+    public Set<Integer> cancelled() throws IOException {
+        String[] fields = request("CANCELLED").split(" ");
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 1; i < fields.length; i++) {
+            ids.add(Integer.parseInt(fields[i]));
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!socket.isClosed()) {
+            out.println("BYE");
+            socket.close();
+        }
+    }
+}
@@ -23,15 +23,20 @@ import org.nmrfx.datasets.DatasetBase;
 import org.nmrfx.math.VecBase;
 import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.processor.datasets.DatasetException;
+import org.nmrfx.processor.datasets.DatasetSlab;
+import org.nmrfx.processor.datasets.MemoryBudget;
 import org.nmrfx.processor.processing.processes.ProcessOps;
 import org.nmrfx.processor.datasets.ScanRegion;
+import org.nmrfx.processor.datasets.SegmentedMemoryFile;
 import org.nmrfx.processor.datasets.vendor.NMRData;
 import org.nmrfx.processor.datasets.vendor.NMRDataUtil;
 import org.nmrfx.processor.datasets.vendor.BrukerData;
 import org.nmrfx.processor.math.Matrix;
+import org.nmrfx.processor.math.MatrixContainer;
 import org.nmrfx.processor.math.MatrixND;
 import org.nmrfx.datasets.MatrixType;
 import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.math.VecPool;
 import org.nmrfx.processor.operations.Invertible;
 import org.nmrfx.processor.operations.Operation;
 import org.nmrfx.processor.processing.processes.IncompleteProcessException;
@@ -173,6 +178,17 @@ public class Processor {
     private boolean nvComplex;
     public boolean resizeFlag = false;
     private boolean keepDatasetOpen = false;
+    private boolean buildPyramid = false;
+    private boolean useSlabReads = true;
+    private boolean fuseOperations = true;
+    private DatasetSlab datasetSlab = null;
+    /**
+     * Source of the work ranges when processing is distributed over several
+     * processes, or null.
+     */
+    private WorkSource workSource = null;
+    private RangeDispenser dispenser = null;
+    private int passIndex = 0;
     /**
      * The number of dimensions in dataset.
      */
@@ -228,12 +244,16 @@ public class Processor {
 
     private void resetVecReadCount() {
         vecReadCount.set(0);
+        VecPool.resetCounts();
     }
 
     private void printVecReadCount() {
         if (dim[0] < 1) {
             System.err.println("read FID vector count: " + vecReadCount.get());
         }
+        if (showDebugInfo) {
+            System.err.println(VecPool.getStats());
+        }
     }
 
     public static void setUpdater(ProgressUpdater updater) {
@@ -619,6 +639,19 @@ public class Processor {
         itemsToWrite = totalVecGroups;
         itemsToRead = itemsToWrite;
         scanregion = new ScanRegion(this.pt, this.dim, dataset);
+        datasetSlab = null;
+        if (useSlabReads && !dataset.isCacheFile()) {
+            DatasetSlab slab = new DatasetSlab(dataset, this.pt, this.dim);
+            if (slab.fits()) {
+                try {
+                    // slabs read blocks from the file, so earlier writes through the map must reach it
+                    dataset.forceDataFile();
+                } catch (IOException ex) {
+                    throw new ProcessingException(ex.getMessage());
+                }
+                datasetSlab = slab;
+            }
+        }
 
         vectorsPerProcess = totalVecGroups / numProcessors;
         if (vectorsPerProcess > maxVectorsPerProcess) {
@@ -825,6 +858,9 @@ public class Processor {
     }
 
     private boolean useMemoryMode(int[] datasetSizes) {
+        if (workSource != null) {
+            return false;
+        }
         long size = Float.BYTES;
         for (int i = 0; i < datasetSizes.length; i++) {
             size *= datasetSizes[i];
@@ -863,9 +899,21 @@ public class Processor {
                 return false;
             }
         }
+        if (inMemory && (workSource != null)) {
+            System.err.println("Distributed processing writes to a dataset file, not memory");
+            inMemory = false;
+        }
         try {
-            if (inMemory) {
-                this.dataset = new Dataset(outputFile, datasetSizes);
+            if ((workSource != null) && !workSource.ownsDataset()) {
+                this.dataset = openCoordinatorDataset(outputFile);
+            } else if (inMemory) {
+                long nBytes = Dataset.getNBytes(datasetSizes);
+                boolean segmented = SegmentedMemoryFile.isNeeded(nBytes);
+                if (showDebugInfo) {
+                    System.out.println("in memory dataset " + nBytes + " bytes, available "
+                            + MemoryBudget.getAvailable() + " segmented " + segmented);
+                }
+                this.dataset = new Dataset(outputFile, datasetSizes, segmented);
             } else {
                 this.dataset = Dataset.createDataset(outputFile, outputFile, datasetSizes, false);
             }
@@ -903,10 +951,96 @@ public class Processor {
             dataset.setSolvent(nmrData.getSolvent());
             dataset.setTempK(nmrData.getTempK());
         }
-        dataset.writeHeader();
+        if ((workSource == null) || workSource.ownsDataset()) {
+            dataset.writeHeader();
+        }
+        if (workSource != null) {
+            if (dataset.isCacheFile()) {
+                throw new ProcessingException("Distributed processing needs a memory mapped dataset file");
+            }
+            if (workSource.ownsDataset()) {
+                try {
+                    dataset.forceDataFile();
+                    workSource.datasetReady();
+                } catch (IOException ex) {
+                    throw new ProcessingException(ex.getMessage());
+                }
+            }
+        }
         return true;
     }
 
+    /**
+     * Wait until the coordinator has created the dataset and open it.
+     */
+    private Dataset openCoordinatorDataset(String outputFile) throws DatasetException {
+        try {
+            while (!workSource.datasetReady()) {
+                Thread.sleep(200);
+            }
+            return new Dataset(outputFile, outputFile, true, false);
+        } catch (IOException ex) {
+            throw new DatasetException("Can't open coordinator dataset: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            throw new DatasetException("Interrupted waiting for coordinator dataset");
+        }
+    }
+
+    /**
+     * Distribute the processing over this process and worker processes that
+     * connect to the specified port and run the same script. Must be called
+     * before the dataset is created.
+     *
+     * @param port the port to listen on
+     * @return the coordinator
+     * @throws IOException if the port can't be opened
+     */
+    public ProcessCoordinator startCoordinator(int port) throws IOException {
+        closeWorkSource();
+        ProcessCoordinator coordinator = new ProcessCoordinator(port);
+        workSource = coordinator;
+        passIndex = 0;
+        return coordinator;
+    }
+
+    /**
+     * Process the ranges handed out by a coordinator running the same script,
+     * writing into the dataset it creates. Must be called before the dataset is
+     * created.
+     *
+     * @param host the host the coordinator runs on
+     * @param port the port the coordinator listens on
+     * @throws IOException if the connection can't be made
+     */
+    public void connectToCoordinator(String host, int port) throws IOException {
+        closeWorkSource();
+        workSource = new ProcessWorker(host, port);
+        passIndex = 0;
+    }
+
+    public boolean isWorker() {
+        return (workSource != null) && !workSource.ownsDataset();
+    }
+
+    public boolean isDistributed() {
+        return workSource != null;
+    }
+
+    /**
+     * End distributed processing. The coordinator waits for the workers to
+     * disconnect.
+     */
+    public void closeWorkSource() {
+        if (workSource != null) {
+            try {
+                workSource.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing distributed processing " + ex.getMessage());
+            }
+            workSource = null;
+        }
+    }
+
     public void setupSim(double[] minWidths, double[] maxWidths, int[] nWidths, int[] nPoints,
             int nFrac, String datasetName) {
         double[][] simWidths = new double[minWidths.length][2];
@@ -995,9 +1129,11 @@ public class Processor {
         if (endOfFile.get()) {
             return matrix;
         }
-        int matrixCount = incrementMatricesRead();  // increment matrix count
+        int matrixCount = nextMatrixIndex();  // increment matrix count
         if (matrixCount >= getTotalMatrices()) {
-            setEndOfFile();  // matrix is null
+            if (dispenser == null) {
+                setEndOfFile();  // matrix is null
+            }
         } else {
             // zerofill matrix size for processing and writing
             int nPlanes = VecBase.checkPowerOf2(1 + pt[1][1]);
@@ -1026,9 +1162,11 @@ public class Processor {
         if (endOfFile.get()) {
             return matrix;
         }
-        int matrixCount = incrementMatricesRead();  // increment matrix count
+        int matrixCount = nextMatrixIndex();  // increment matrix count
         if (matrixCount >= getTotalMatrices()) {
-            setEndOfFile();  // matrix is null
+            if (dispenser == null) {
+                setEndOfFile();  // matrix is null
+            }
         } else {
             // zerofill matrix size for processing and writing
             int[][] writePt = calcPt(dim);
@@ -1061,7 +1199,22 @@ public class Processor {
     }
 
     public List<Vec> getNextVectors() {
-        if (useIOController) {
+        if (dispenser != null) {
+            try {
+                while (true) {
+                    dispenser.batchDone();
+                    if (!dispenser.fetch()) {
+                        return Collections.EMPTY_LIST;
+                    }
+                    List<Vec> vecs = getVectorsFromFile();
+                    if (!vecs.isEmpty()) {
+                        return vecs;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ProcessingException(ex.getMessage());
+            }
+        } else if (useIOController) {
             while (true) {
                 if (datasetWriter.finished()) {
                     return Collections.EMPTY_LIST;
@@ -1085,7 +1238,22 @@ public class Processor {
     }
 
     public MatrixType getNextMatrix() {
-        if (useIOController) {
+        if (dispenser != null) {
+            try {
+                while (true) {
+                    dispenser.batchDone();
+                    if (!dispenser.fetch()) {
+                        return null;
+                    }
+                    MatrixType matrix = getMatrixFromFile();
+                    if (matrix != null) {
+                        return matrix;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ProcessingException(ex.getMessage());
+            }
+        } else if (useIOController) {
             while (true) {
                 if (datasetWriter.finished()) {
                     return null;
@@ -1139,14 +1307,24 @@ public class Processor {
                 return vectors;
             }
             for (int i = 0; i < vectorsPerProcess; ++i) {
-                pt = scanregion.nextPoint2();
+                if (dispenser != null) {
+                    int item = dispenser.poll();
+                    pt = item < 0 ? new int[0][0] : scanregion.getPoint2(item);
+                } else {
+                    pt = scanregion.nextPoint2();
+                }
                 if (pt.length == 0) {
-                    endOfFile.set(true);
+                    if (dispenser == null) {
+                        endOfFile.set(true);
+                    }
                     break;
                 }
                 try {
-                    temp = new Vec(vectorSize, pt, dim, nvComplex);
-                    dataset.readVectorFromDatasetFile(pt, dim, temp);
+                    temp = VecPool.get().borrow(vectorSize, pt, dim, nvComplex);
+                    if ((datasetSlab != null) && !datasetSlab.contains(pt)) {
+                        datasetSlab.load(pt);
+                    }
+                    dataset.readVectorFromDatasetFile(pt, dim, temp, datasetSlab);
                     if (temp.checkExtreme(1.0e16)) {
                         System.err.println("extreme read");
                     }
@@ -1167,9 +1345,11 @@ public class Processor {
             }
             int nSteps = vectorsPerProcess / vectorsPerGroup;
             for (int iStep = 0; iStep < nSteps;) {
-                int vecGroup = incrementVecGroupsRead();
-                if (vecGroup > getTotalVecGroups() - 1) {
-                    setEndOfFile();
+                int vecGroup = dispenser != null ? dispenser.poll() : incrementVecGroupsRead();
+                if ((vecGroup < 0) || (vecGroup > getTotalVecGroups() - 1)) {
+                    if (dispenser == null) {
+                        setEndOfFile();
+                    }
                     break;
                 }
                 VecIndex vecIndex = getNextGroup(vecGroup);
@@ -1181,7 +1361,7 @@ public class Processor {
                     for (int j = 0; j < vectorsPerGroup; j++) {
                         try {
                             for (NMRData nmrData : nmrDataSets) {
-                                temp = new Vec(vectorSize, nmrData.isComplex(dim[0]));
+                                temp = VecPool.get().borrow(vectorSize, nmrData.isComplex(dim[0]));
                                 nmrData.readVector(vecIndex.inVecs[j], temp);
                                 temp.setPt(vecIndex.outVecs[j], dim);
                                 vectors.add(temp);
@@ -1415,12 +1595,13 @@ public class Processor {
             }
         }
         dimProcesses.clear();
+        MatrixContainer.closeAll();
         elapsedTime = (System.currentTimeMillis() - startTime) / 1000.0;
         if (progressUpdater != null) {
             progressUpdater.updateProgress(1.0);
             progressUpdater.updateStatus("Done in " + String.format("%.1f", elapsedTime) + "s");
         }
-        if (dataset.fFormat == DatasetBase.FFORMAT.UCSF) {
+        if ((dataset.fFormat == DatasetBase.FFORMAT.UCSF) && !isWorker()) {
             dataset.writeHeader(false);
         }
         if (!keepDatasetOpen) {
@@ -1429,10 +1610,18 @@ public class Processor {
                 dataset.setFreqDomain(i, false);
                 dataset.setComplex(i, false);
             }
-            if (!dataset.isMemoryFile()) {
+            if (!dataset.isMemoryFile() && !isWorker()) {
                 dataset.writeParFile();
+                if (buildPyramid && (dataset.getNDim() > 1)) {
+                    try {
+                        dataset.buildPyramid();
+                    } catch (IOException ex) {
+                        Logger.getLogger(Processor.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
             }
             closeDataset();
+            closeWorkSource();
         }
         System.err.printf("Elapsed time %.2f\n", elapsedTime);
     }
@@ -1489,6 +1678,15 @@ public class Processor {
             return;
         }
         synchronized (isRunning) {
+            int pass = passIndex++;
+            if (isWorker() && p.isDataset()) {
+                // dataset operations can't be split, they are run by the coordinator
+                p.getOperations().clear();
+                return;
+            }
+            if (isWorker()) {
+                syncGeometry(p, pass);
+            }
             useIOController = dataset.isCacheFile();
             doneWriting.set(false);
             matrixMode.set(p.isMatrix());
@@ -1503,6 +1701,11 @@ public class Processor {
             endOfFile.set(false);
 
             ArrayList<Future> completedProcesses = new ArrayList<>();
+            if ((workSource != null) && !p.isDataset()) {
+                int nItems = p.isMatrix() ? getTotalMatrices() : getTotalVecGroups();
+                workSource.beginPass(pass, nItems, DatasetGeometry.of(dataset).toString());
+                dispenser = new RangeDispenser(workSource, pass, dataset);
+            }
             if (useIOController && !p.isDataset()) {
                 int queueLimit = p.isMatrix() ? 4 : 128;
                 if (datasetWriter != null) {
@@ -1523,6 +1726,23 @@ public class Processor {
                     throw new ProcessingException(ex.getMessage());
                 }
             }
+            if (dispenser != null) {
+                if (getProcessorError()) {
+                    dispenser.failAll(errorMessage.get());
+                } else {
+                    try {
+                        List<String> reports = workSource.endPass(pass);
+                        if (!isWorker() && !reports.isEmpty()) {
+                            mergeGeometry(p, reports);
+                        }
+                    } catch (IOException | IllegalArgumentException ex) {
+                        if (!setProcessorError()) {
+                            setProcessorErrorMessage(ex.getMessage());
+                        }
+                    }
+                }
+                dispenser = null;
+            }
             doneWriting.set(true);
             if (useIOController && !p.isDataset()) {
                 boolean doneFlushed = datasetWriter.isDone(10000);
@@ -1544,7 +1764,9 @@ public class Processor {
                     int jDim = mapToDataset(iDim);
                     dataset.syncSize(jDim);
                 }
-                dataset.writeHeader();
+                if (!isWorker()) {
+                    dataset.writeHeader();
+                }
             }
             printVecReadCount();
             pool.shutdown();
@@ -1559,6 +1781,7 @@ public class Processor {
             isRunning = false;
             if (getProcessorError()) {
                 closeDataset();
+                closeWorkSource();
                 throw new ProcessingException(errorMessage.get());
             }
         }
@@ -1662,6 +1885,52 @@ public class Processor {
         return matricesRead.getAndIncrement();
     }
 
+    /**
+     * Set the dataset header values of a worker to those the coordinator had
+     * at the start of a pass, and set up the pass dimensions again with them.
+     */
+    private void syncGeometry(ProcessOps p, int pass) {
+        try {
+            DatasetGeometry.parse(workSource.getGeometry(pass)).apply(dataset);
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new ProcessingException("Can't get dataset geometry for pass " + pass + ": " + ex.getMessage());
+        }
+        if (nvDataset) {
+            if (p.isMatrix()) {
+                setMatDims(p.getDims());
+            } else {
+                setDim(p.getDim());
+            }
+        }
+    }
+
+    /**
+     * Merge the dataset header values reported by workers for the ranges they
+     * processed into the header of the coordinator.
+     */
+    private void mergeGeometry(ProcessOps p, List<String> reports) {
+        int[] passDims;
+        if (p.isMatrix()) {
+            passDims = p.getDims();
+        } else {
+            passDims = new int[]{mapToDataset(p.getDim())};
+        }
+        DatasetGeometry geometry = DatasetGeometry.of(dataset);
+        for (String report : reports) {
+            geometry.merge(DatasetGeometry.parse(report), passDims);
+        }
+        geometry.apply(dataset);
+    }
+
+    private int nextMatrixIndex() {
+        if (dispenser != null) {
+            int item = dispenser.poll();
+            return item < 0 ? getTotalMatrices() : item;
+        } else {
+            return incrementMatricesRead();
+        }
+    }
+
     public void setNumProcessors(int n) {
         numProcessors = n;
         if (numProcessors < 1) {
@@ -1716,6 +1985,48 @@ public class Processor {
         return processorError.get();
     }
 
+    /**
+     * Set whether a multi-resolution pyramid file should be built for the
+     * dataset after processing is finished.
+     *
+     * @param state true if the pyramid should be built
+     */
+    public void setBuildPyramid(boolean state) {
+        buildPyramid = state;
+    }
+
+    public boolean getBuildPyramid() {
+        return buildPyramid;
+    }
+
+    /**
+     * Set whether vectors for indirect dimensions are read a block slab at a
+     * time, so that each block of the dataset file is read once per pass.
+     *
+     * @param state true if slab reads should be used
+     */
+    public void setUseSlabReads(boolean state) {
+        useSlabReads = state;
+    }
+
+    public boolean getUseSlabReads() {
+        return useSlabReads;
+    }
+
+    /**
+     * Set whether runs of pointwise operations are fused so each vector is
+     * traversed once for the run (see OperationPlan).
+     *
+     * @param state true to fuse operations
+     */
+    public void setFuseOperations(boolean state) {
+        fuseOperations = state;
+    }
+
+    public boolean getFuseOperations() {
+        return fuseOperations;
+    }
+
     public void keepDatasetOpen(boolean state) {
         keepDatasetOpen = state;
     }
@@ -0,0 +1,217 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * Hands out the items of the ranges a Processor gets from a WorkSource to the
+ * processing threads during one pass. The items a thread takes are processed
+ * and written before the thread asks for more, so a range is complete when all
+ * of its items have been taken and every thread that took some has asked
+ * again. The dataset file is then forced to disk and the range reported,
+ * along with the dataset header values of this process.
+ *
+ * @author brucejohnson
+ */
+class RangeDispenser {
+
+    private static final long WAIT_INTERVAL = 100;
+    private static final long CANCEL_INTERVAL = 500;
+
+    private static class Slot {
+
+        final WorkRange range;
+        int next;
+        int nHolders = 0;
+        boolean cancelled = false;
+
+        Slot(WorkRange range) {
+            this.range = range;
+            next = range.getStart();
+        }
+
+        boolean dispensed() {
+            return cancelled || (next >= range.getEnd());
+        }
+    }
+
+    private final WorkSource source;
+    private final int pass;
+    private final Dataset dataset;
+    private final ArrayDeque<Slot> queue = new ArrayDeque<>();
+    private final Map<Integer, Slot> active = new LinkedHashMap<>();
+    private final ThreadLocal<List<Slot>> held = ThreadLocal.withInitial(ArrayList::new);
+    private long lastCancelCheck = System.currentTimeMillis();
+
+    RangeDispenser(WorkSource source, int pass, Dataset dataset) {
+        this.source = source;
+        this.pass = pass;
+        this.dataset = dataset;
+    }
+
+    /**
+     * Make sure there are items to take, getting a new range from the source
+     * if needed, and waiting while the source has none available.
+     *
+     * @return false if the pass is finished
+     * @throws IOException if an I/O error occurs
+     */
+    boolean fetch() throws IOException {
+        while (true) {
+            synchronized (this) {
+                for (Slot slot : queue) {
+                    if (!slot.dispensed()) {
+                        return true;
+                    }
+                }
+            }
+            WorkRange range = source.next(pass);
+            if (range == null) {
+                return false;
+            } else if (range.isWait()) {
+                try {
+                    Thread.sleep(WAIT_INTERVAL);
+                } catch (InterruptedException iE) {
+                    throw new IOException("Interrupted waiting for work");
+                }
+                checkCancelled();
+            } else {
+                synchronized (this) {
+                    Slot slot = new Slot(range);
+                    queue.add(slot);
+                    active.put(range.getId(), slot);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the next item for the calling thread.
+     *
+     * @return the item, or -1 if no items are available
+     */
+    synchronized int poll() {
+        while (!queue.isEmpty()) {
+            Slot slot = queue.peek();
+            if (slot.dispensed()) {
+                queue.poll();
+                continue;
+            }
+            List<Slot> slots = held.get();
+            if (!slots.contains(slot)) {
+                slots.add(slot);
+                slot.nHolders++;
+            }
+            return slot.next++;
+        }
+        return -1;
+    }
+
+    /**
+     * Record that the items the calling thread took have been processed and
+     * written, and report any ranges that are now finished.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void batchDone() throws IOException {
+        List<Slot> finished = new ArrayList<>();
+        synchronized (this) {
+            List<Slot> slots = held.get();
+            for (Slot slot : slots) {
+                slot.nHolders--;
+                if ((slot.nHolders == 0) && slot.dispensed()) {
+                    active.remove(slot.range.getId());
+                    finished.add(slot);
+                }
+            }
+            slots.clear();
+        }
+        report(finished);
+        checkCancelled();
+    }
+
+    private void checkCancelled() throws IOException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (active.isEmpty() || ((now - lastCancelCheck) < CANCEL_INTERVAL)) {
+                return;
+            }
+            lastCancelCheck = now;
+        }
+        Set<Integer> ids = source.cancelled();
+        List<Slot> finished = new ArrayList<>();
+        synchronized (this) {
+            for (Integer id : ids) {
+                Slot slot = active.get(id);
+                if ((slot != null) && !slot.cancelled) {
+                    slot.cancelled = true;
+                    if (slot.nHolders == 0) {
+                        active.remove(id);
+                        finished.add(slot);
+                    }
+                }
+            }
+        }
+        report(finished);
+    }
+
+    private void report(List<Slot> finished) throws IOException {
+        if (finished.isEmpty()) {
+            return;
+        }
+        dataset.forceDataFile();
+        String geometry = DatasetGeometry.of(dataset).toString();
+        for (Slot slot : finished) {
+            if (slot.cancelled) {
+                source.release(slot.range);
+            } else {
+                source.complete(slot.range, geometry);
+            }
+        }
+    }
+
+    /**
+     * Report all the ranges that haven't been completed as failed.
+     *
+     * @param message the error message
+     */
+    void failAll(String message) {
+        List<Slot> slots;
+        synchronized (this) {
+            slots = new ArrayList<>(active.values());
+            active.clear();
+            queue.clear();
+        }
+        for (Slot slot : slots) {
+            try {
+                source.fail(slot.range, message);
+            } catch (IOException ioE) {
+                System.err.println("Couldn't report failure of " + slot.range + " " + ioE.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+/**
+ * A range of work items (vector groups read from the FID, vectors read from
+ * the dataset in ScanRegion order, or matrices) of one processing pass.
+ *
+ * @author brucejohnson
+ */
+public class WorkRange {
+
+    /**
+     * Returned by a WorkSource when there is no range available yet, but the
+     * pass is not finished.
+     */
+    public static final WorkRange WAIT = new WorkRange(-1, -1, 0, 0);
+
+    private final int id;
+    private final int pass;
+    private final int start;
+    private final int end;
+
+    /**
+     * Create a range.
+     *
+     * @param id the identifier of the range, unique over all passes
+     * @param pass the index of the processing pass
+     * @param start the first item
+     * @param end one past the last item
+     */
+    public WorkRange(int id, int pass, int start, int end) {
+        this.id = id;
+        this.pass = pass;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getPass() {
+        return pass;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int size() {
+        return end - start;
+    }
+
+    public boolean isWait() {
+        return this == WAIT;
+    }
+
+    @Override
+    public String toString() {
+        return "range " + id + " pass " + pass + " items " + start + "-" + (end - 1);
+    }
+}
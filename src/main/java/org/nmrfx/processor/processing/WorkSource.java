@@ -0,0 +1,131 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The source of the work ranges processed by one Processor when processing is
+ * distributed over several processes. The ProcessCoordinator is the source for
+ * the process that owns the dataset, and a ProcessWorker, connected to the
+ * coordinator, is the source for each of the other processes.
+ *
+ * @author brucejohnson
+ */
+public interface WorkSource extends Closeable {
+
+    /**
+     * Return whether this process creates the dataset and writes its header.
+     *
+     * @return true for the coordinator
+     */
+    boolean ownsDataset();
+
+    /**
+     * Called by the process owning the dataset once the dataset file has been
+     * created, and by other processes before opening it. Returns false if the
+     * dataset is not ready yet.
+     *
+     * @return true if the dataset file can be opened
+     * @throws IOException if an I/O error occurs
+     */
+    boolean datasetReady() throws IOException;
+
+    /**
+     * Get the dataset header values (see DatasetGeometry) that the process
+     * owning the dataset had at the start of a pass, waiting until the pass
+     * starts. Other processes set these values in their dataset before setting
+     * up the pass, as they don't see the header changes made by vectors that
+     * were written by other processes.
+     *
+     * @param pass the index of the pass
+     * @return the header values
+     * @throws IOException if an I/O error occurs
+     */
+    String getGeometry(int pass) throws IOException;
+
+    /**
+     * Start a pass. Only acts in the process owning the dataset.
+     *
+     * @param pass the index of the pass
+     * @param nItems the number of items to process in the pass
+     * @param geometry the dataset header values at the start of the pass
+     */
+    void beginPass(int pass, int nItems, String geometry);
+
+    /**
+     * Wait until all the ranges of a pass have been processed and no process
+     * is still writing data from the pass. Only waits in the process owning
+     * the dataset.
+     *
+     * @param pass the index of the pass
+     * @return the dataset header values reported by other processes with the
+     * ranges they completed
+     * @throws IOException if an I/O error occurs or the pass failed
+     */
+    List<String> endPass(int pass) throws IOException;
+
+    /**
+     * Get the next range to process.
+     *
+     * @param pass the index of the pass
+     * @return a range, WorkRange.WAIT if no range is available yet, or null if
+     * the pass is finished
+     * @throws IOException if an I/O error occurs or the pass failed
+     */
+    WorkRange next(int pass) throws IOException;
+
+    /**
+     * Report that all the items of a range have been processed and written.
+     *
+     * @param range the range
+     * @param geometry the dataset header values of this process after writing
+     * the range
+     * @throws IOException if an I/O error occurs
+     */
+    void complete(WorkRange range, String geometry) throws IOException;
+
+    /**
+     * Report that processing of a cancelled range has stopped.
+     *
+     * @param range the range
+     * @throws IOException if an I/O error occurs
+     */
+    void release(WorkRange range) throws IOException;
+
+    /**
+     * Report that a range could not be processed.
+     *
+     * @param range the range
+     * @param message the error message
+     * @throws IOException if an I/O error occurs
+     */
+    void fail(WorkRange range, String message) throws IOException;
+
+    /**
+     * Get the ranges assigned to this process that have since been completed
+     * by another process, and should no longer be processed.
+     *
+     * @return the ids of the ranges
+     * @throws IOException if an I/O error occurs
+     */
+    Set<Integer> cancelled() throws IOException;
+}
@@ -0,0 +1,196 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data 
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing.processes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.operations.Extract;
+import org.nmrfx.processor.operations.Operation;
+import org.nmrfx.processor.operations.PointwiseOperation;
+import org.nmrfx.processor.operations.Zf;
+import org.nmrfx.processor.processing.ProcessingException;
+
+/**
+ * A run of pointwise operations, optionally with a zero fill between them and
+ * ending with an extract, that is applied to each vector in one pass. The
+ * vector is traversed in blocks small enough to stay in cache, with each
+ * operation applied to a block in turn. Points in the zero-filled tail are
+ * skipped by operations that leave zeros unchanged, points outside the
+ * extracted region are skipped by all operations, and once an operation
+ * makes the vector real the following operations only change the real values.
+ *
+ * @author brucejohnson
+ */
+public class FusedOperation extends Operation {
+
+    static final int BLOCK_SIZE = 1024;
+
+    private final List<Operation> operations;
+    private final List<PointwiseOperation> beforeZf = new ArrayList<>();
+    private final List<PointwiseOperation> afterZf = new ArrayList<>();
+    private Zf zf = null;
+    private Extract extract = null;
+
+    /**
+     * Create a fused operation. The operations must be PointwiseOperations,
+     * except for at most one Zf and a final Extract, which can't both be
+     * present.
+     *
+     * @param operations the operations in the order they are applied
+     */
+    public FusedOperation(List<Operation> operations) {
+        this.operations = new ArrayList<>(operations);
+        for (Operation op : operations) {
+            if (op instanceof PointwiseOperation) {
+                if (zf == null) {
+                    beforeZf.add((PointwiseOperation) op);
+                } else {
+                    afterZf.add((PointwiseOperation) op);
+                }
+            } else if ((op instanceof Zf) && (zf == null) && (extract == null)) {
+                zf = (Zf) op;
+            } else if ((op instanceof Extract) && (zf == null) && (op == operations.get(operations.size() - 1))) {
+                extract = (Extract) op;
+            } else {
+                throw new IllegalArgumentException("Can't fuse operation " + op.getName());
+            }
+        }
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Return whether the zero-filled tail of the vector is skipped by the
+     * operations after the zero fill.
+     *
+     * @return true if the tail is skipped
+     */
+    public boolean skipsZeroTail() {
+        return (zf != null) && !afterZf.isEmpty() && afterZf.stream().allMatch(PointwiseOperation::preservesZero);
+    }
+
+    /**
+     * Return whether the operations are only applied to the region kept by a
+     * final extract.
+     *
+     * @return true if the operations are limited to the extracted region
+     */
+    public boolean limitedToExtract() {
+        return extract != null;
+    }
+
+    public boolean hasZeroFill() {
+        return zf != null;
+    }
+
+    /**
+     * Return whether the vector ends with the zero-filled tail after this
+     * operation.
+     *
+     * @return true if the last part of the operation is a zero fill followed
+     * by operations that leave zeros unchanged
+     */
+    public boolean endsWithZeroFill() {
+        return (zf != null) && afterZf.stream().allMatch(PointwiseOperation::preservesZero);
+    }
+
+    /**
+     * Get the extract this operation ends with.
+     *
+     * @return the extract or null
+     */
+    public Extract getExtract() {
+        return extract;
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder sBuilder = new StringBuilder("Fused(");
+        for (int i = 0; i < operations.size(); i++) {
+            if (i > 0) {
+                sBuilder.append(',');
+            }
+            sBuilder.append(operations.get(i).getName());
+        }
+        sBuilder.append(')');
+        return sBuilder.toString();
+    }
+
+    @Override
+    public Operation eval(Vec vector) throws ProcessingException {
+        if (vector.useApache()) {
+            for (Operation op : operations) {
+                op.eval(vector);
+            }
+            return this;
+        }
+        boolean wasComplex = vector.isComplex();
+        int first = 0;
+        int last = vector.getSize();
+        if (extract != null) {
+            int[] range = extract.getRange(vector);
+            first = range[0];
+            last = range[1] + 1;
+        }
+        boolean complex = applyOps(vector, beforeZf, wasComplex, first, last);
+        if (zf != null) {
+            if (wasComplex && !complex) {
+                vector.makeReal();
+                wasComplex = false;
+            }
+            int dataSize = vector.getSize();
+            zf.eval(vector);
+            last = skipsZeroTail() ? Math.min(dataSize, vector.getSize()) : vector.getSize();
+            complex = applyOps(vector, afterZf, complex, 0, last);
+        }
+        if (wasComplex && !complex) {
+            vector.makeReal();
+        }
+        if (extract != null) {
+            extract.eval(vector);
+        }
+        return this;
+    }
+
+    private boolean applyOps(Vec vector, List<PointwiseOperation> ops, boolean complex, int first, int last) {
+        int nOps = ops.size();
+        if (nOps == 0) {
+            return complex;
+        }
+        boolean[] opComplex = new boolean[nOps];
+        for (int k = 0; k < nOps; k++) {
+            PointwiseOperation op = ops.get(k);
+            op.prepare(vector);
+            opComplex[k] = complex;
+            if (op.makesReal()) {
+                complex = false;
+            }
+        }
+        for (int start = first; start < last; start += BLOCK_SIZE) {
+            int end = Math.min(last, start + BLOCK_SIZE);
+            for (int k = 0; k < nOps; k++) {
+                ops.get(k).apply(vector, opComplex[k], start, end);
+            }
+        }
+        return complex;
+    }
+}
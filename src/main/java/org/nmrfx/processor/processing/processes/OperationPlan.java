@@ -0,0 +1,185 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data 
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing.processes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.nmrfx.processor.operations.Extract;
+import org.nmrfx.processor.operations.Ft;
+import org.nmrfx.processor.operations.Operation;
+import org.nmrfx.processor.operations.PointwiseOperation;
+import org.nmrfx.processor.operations.Zf;
+
+/**
+ * The sequence of steps used to execute the operations of a ProcessOps. Runs
+ * of adjacent pointwise operations (apodization, Mult, Add and Real), together
+ * with a zero fill between them or an extract following them, are replaced by
+ * a FusedOperation so each vector is traversed once for the run instead of
+ * once for each operation. Forward transforms that follow a
+ * zero fill or precede an extract are replaced by a PrunedFt. Other
+ * operations are executed as they are.
+ *
+ * @author brucejohnson
+ */
+public class OperationPlan {
+
+    private final List<Operation> steps = new ArrayList<>();
+
+    /**
+     * Plan the execution of a list of operations.
+     *
+     * @param operations the operations in the order they are applied
+     * @param fuse if false each operation is executed as it is
+     */
+    public OperationPlan(List<Operation> operations, boolean fuse) {
+        if (!fuse) {
+            steps.addAll(operations);
+            return;
+        }
+        int nOps = operations.size();
+        int i = 0;
+        while (i < nOps) {
+            List<Operation> group = new ArrayList<>();
+            int nPointwise = 0;
+            int zfIndex = -1;
+            boolean hasExtract = false;
+            int j = i;
+            while (j < nOps) {
+                Operation op = operations.get(j);
+                if (isPointwise(op)) {
+                    nPointwise++;
+                } else if ((op instanceof Zf) && (zfIndex < 0)) {
+                    zfIndex = group.size();
+                } else if ((op instanceof Extract) && (zfIndex < 0) && (nPointwise > 0)) {
+                    hasExtract = true;
+                    group.add(op);
+                    j++;
+                    break;
+                } else {
+                    break;
+                }
+                group.add(op);
+                j++;
+            }
+            // a zero fill is only worth including if operations follow it
+            if ((zfIndex >= 0) && (zfIndex == group.size() - 1)) {
+                group.remove(zfIndex);
+                j--;
+                zfIndex = -1;
+            }
+            if ((nPointwise > 1) || ((nPointwise == 1) && ((zfIndex >= 0) || hasExtract))) {
+                steps.add(new FusedOperation(group));
+                i = j;
+            } else {
+                steps.add(operations.get(i));
+                i++;
+            }
+        }
+        pruneTransforms();
+    }
+
+    /**
+     * Replace forward transforms that follow a zero fill, or are followed by an
+     * extract, with a PrunedFt.
+     */
+    private void pruneTransforms() {
+        for (int i = 0; i < steps.size(); i++) {
+            Operation step = steps.get(i);
+            if ((step.getClass() != Ft.class) || ((Ft) step).isInverse()) {
+                continue;
+            }
+            boolean zeroFilled = false;
+            if (i > 0) {
+                Operation prev = steps.get(i - 1);
+                zeroFilled = (prev instanceof Zf)
+                        || ((prev instanceof FusedOperation) && ((FusedOperation) prev).endsWithZeroFill());
+            }
+            Extract extract = null;
+            for (int j = i + 1; j < steps.size(); j++) {
+                Operation next = steps.get(j);
+                if (next instanceof Extract) {
+                    extract = (Extract) next;
+                    break;
+                } else if (next instanceof FusedOperation) {
+                    FusedOperation fusedOp = (FusedOperation) next;
+                    // a zero fill changes the size of the vector
+                    if ((fusedOp.getExtract() != null) || fusedOp.hasZeroFill()) {
+                        extract = fusedOp.getExtract();
+                        break;
+                    }
+                } else if (!isPointwise(next)) {
+                    break;
+                }
+            }
+            if (zeroFilled || (extract != null)) {
+                steps.set(i, new PrunedFt((Ft) step, zeroFilled, extract));
+            }
+        }
+    }
+
+    private static boolean isPointwise(Operation op) {
+        return (op instanceof PointwiseOperation) && ((PointwiseOperation) op).isPointwise();
+    }
+
+    /**
+     * Get the steps of the plan.
+     *
+     * @return the operations, fused or not, in the order they are executed
+     */
+    public List<Operation> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Describe the plan, one line per step, with the work that fused steps
+     * skip.
+     *
+     * @return the description
+     */
+    public String describe() {
+        StringBuilder sBuilder = new StringBuilder();
+        for (Operation step : steps) {
+            sBuilder.append(step.getName());
+            if (step instanceof FusedOperation) {
+                FusedOperation fusedOp = (FusedOperation) step;
+                if (fusedOp.skipsZeroTail()) {
+                    sBuilder.append(" skip zero-filled tail");
+                }
+                if (fusedOp.limitedToExtract()) {
+                    sBuilder.append(" only extracted region");
+                }
+            } else if (step instanceof PrunedFt) {
+                PrunedFt prunedFt = (PrunedFt) step;
+                if (prunedFt.isZeroFilled()) {
+                    sBuilder.append(" skip zero-filled input");
+                }
+                if (prunedFt.isExtracted()) {
+                    sBuilder.append(" only extracted output");
+                }
+            }
+            sBuilder.append('\n');
+        }
+        return sBuilder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+}
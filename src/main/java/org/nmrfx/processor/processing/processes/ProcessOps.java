@@ -21,6 +21,7 @@ package org.nmrfx.processor.processing.processes;
 import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.datasets.MatrixType;
 import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.math.VecPool;
 import org.nmrfx.math.VecException;
 import org.nmrfx.processor.operations.DatasetOperation;
 import org.nmrfx.processor.operations.MatrixOperation;
@@ -161,6 +162,16 @@ public class ProcessOps implements Callable<Object> {
         return isUndo;
     }
 
+    /**
+     * Get the plan used to execute the operations of this process on vectors.
+     * Operations are fused if the Processor's fuseOperations setting is on.
+     *
+     * @return the plan
+     */
+    public OperationPlan getPlan() {
+        return new OperationPlan(operations, Processor.getProcessor().getFuseOperations());
+    }
+
     /**
      * Add operation to the ProcessOps if the Processor has not raised an error.
      *
@@ -221,6 +232,7 @@ public class ProcessOps implements Callable<Object> {
                 operations.add(new WriteVector(true));
             }
         }
+        List<Operation> steps = getPlan().getSteps();
         while (!error) {
             if (processor.getProcessorError()) {
                 return this;
@@ -240,7 +252,7 @@ public class ProcessOps implements Callable<Object> {
                 break;
             }
 
-            for (Operation op : operations) {
+            for (Operation op : steps) {
                 if (processor.getProcessorError()) {
                     error = true;
                     return this;
@@ -271,6 +283,10 @@ public class ProcessOps implements Callable<Object> {
             }
 
             vectorsProcessed += vectors.size();
+            // vectors have been written to the dataset unless writes are queued
+            if (!processor.useIOController) {
+                VecPool.get().releaseAll(vectors);
+            }
             vectors.clear();
 
         }
@@ -0,0 +1,95 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data 
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.processor.processing.processes;
+
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.operations.Extract;
+import org.nmrfx.processor.operations.Ft;
+import org.nmrfx.processor.operations.Operation;
+import org.nmrfx.processor.processing.ProcessingException;
+
+/**
+ * A forward Fourier transform that skips the work of transforming the
+ * zero-filled tail of the vector when the transform follows a zero fill, and
+ * of calculating the points of the spectrum that are discarded when the
+ * transform is followed (possibly after pointwise operations) by an extract.
+ *
+ * @author brucejohnson
+ */
+public class PrunedFt extends Operation {
+
+    private final Ft ft;
+    private final boolean zeroFilled;
+    private final Extract extract;
+
+    /**
+     * Create a pruned transform.
+     *
+     * @param ft the transform
+     * @param zeroFilled true if the transform follows a zero fill
+     * @param extract the extract that follows the transform or null
+     */
+    public PrunedFt(Ft ft, boolean zeroFilled, Extract extract) {
+        this.ft = ft;
+        this.zeroFilled = zeroFilled;
+        this.extract = extract;
+    }
+
+    public boolean isZeroFilled() {
+        return zeroFilled;
+    }
+
+    public boolean isExtracted() {
+        return extract != null;
+    }
+
+    @Override
+    public String getName() {
+        return "Pruned(" + ft.getName() + ")";
+    }
+
+    @Override
+    public Operation eval(Vec vector) throws ProcessingException {
+        if (!vector.isComplex() || vector.useApache()) {
+            ft.eval(vector);
+            return this;
+        }
+        int size = vector.getSize();
+        // the zero fill makes the tail zero, but the data may end before it
+        int nInput = zeroFilled ? vector.getNonZeroSize() : size;
+        int first = 0;
+        int last = size - 1;
+        if (extract != null) {
+            // the region is calculated as it will be by the extract, after the
+            // transform
+            boolean freqDomain = vector.getFreqDomain();
+            vector.setFreqDomain(true);
+            try {
+                int[] range = extract.getRange(vector);
+                first = range[0];
+                last = range[1];
+            } catch (ProcessingException pE) {
+                // let the extract report the error
+            } finally {
+                vector.setFreqDomain(freqDomain);
+            }
+        }
+        ft.evalPruned(vector, nInput, first, last);
+        return this;
+    }
+}
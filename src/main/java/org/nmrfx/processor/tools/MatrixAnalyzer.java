@@ -3,20 +3,25 @@ package org.nmrfx.processor.tools;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.util.MultidimensionalCounter;
 import org.nmrfx.processor.datasets.Dataset;
+import org.nmrfx.processor.math.TruncatedSVD;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.math.VecPool;
 import org.nmrfx.datasets.RegionData;
 import org.nmrfx.peaks.io.PeakReader;
 
@@ -36,6 +41,8 @@ public class MatrixAnalyzer {
     int[] deltas;
     RealMatrix A;
     SingularValueDecomposition svd = null;
+    TruncatedSVD truncatedSVD = null;
+    List<int[]> bucketCorners = null;
     double[][] pcValues = null;
 
     public MatrixAnalyzer() {
@@ -114,9 +121,235 @@ public class MatrixAnalyzer {
             }
             j++;
         }
+        if (nDim > dimNames.length) {
+            for (int i = 0; i < nDim; i++) {
+                boolean used = false;
+                for (int k = 0; k < dimNames.length; k++) {
+                    if (dims[k] == i) {
+                        used = true;
+                        break;
+                    }
+                }
+                if (!used) {
+                    dims[nDim - 1] = i;
+                }
+            }
+        }
     }
 
+    /**
+     * Calculate the volume of each bucket in every spectrum and store the
+     * buckets whose maximum value (over all spectra) exceeds the threshold as
+     * the rows of the data matrix. Each spectrum is processed as an
+     * independent task, reading each line of its data once, in bulk, and
+     * adding the values to the buckets that contain them. The volumes are
+     * stored in a primitive column-major matrix, one column per spectrum.
+     *
+     * @param threshold buckets whose maximum value doesn't exceed this are
+     * ignored
+     * @throws IOException if an I/O error occurs
+     */
     public void bucket(double threshold) throws IOException {
+        int nBuckets = 1;
+        for (int nElem : nElems) {
+            nBuckets *= nElem;
+        }
+        int nCols = scannerRows.size();
+        int nTotalBuckets = nBuckets;
+        double[] volumes = new double[nBuckets * nCols];
+        double[] maxes = new double[nBuckets];
+        Arrays.fill(maxes, Double.NEGATIVE_INFINITY);
+        try {
+            IntStream.range(0, nCols).parallel().forEach(iCol -> {
+                double[] colMaxes = new double[nTotalBuckets];
+                Arrays.fill(colMaxes, Double.NEGATIVE_INFINITY);
+                try {
+                    bucketSpectrum(scannerRows.get(iCol), volumes, iCol * nTotalBuckets, colMaxes);
+                } catch (IOException ioE) {
+                    throw new UncheckedIOException(ioE);
+                }
+                synchronized (maxes) {
+                    for (int i = 0; i < nTotalBuckets; i++) {
+                        maxes[i] = Math.max(maxes[i], colMaxes[i]);
+                    }
+                }
+            });
+        } catch (UncheckedIOException uioE) {
+            throw uioE.getCause();
+        }
+        int nActive = 0;
+        for (double max : maxes) {
+            if (max > threshold) {
+                nActive++;
+            }
+        }
+        System.out.println("elems " + nBuckets + " active " + nActive + " cols " + nCols);
+
+        double[][] matrix = new double[nActive][nCols];
+        bucketCorners = new ArrayList<>();
+        int[] elems = new int[nElems.length];
+        int iRow = 0;
+        for (int iBucket = 0; iBucket < nBuckets; iBucket++) {
+            if (maxes[iBucket] > threshold) {
+                for (int iCol = 0; iCol < nCols; iCol++) {
+                    matrix[iRow][iCol] = volumes[iCol * nBuckets + iBucket];
+                }
+                int[] corners = new int[dimNames.length];
+                for (int k = 0; k < corners.length; k++) {
+                    corners[k] = pt[k][0] + deltas[k] * elems[k];
+                }
+                bucketCorners.add(corners);
+                iRow++;
+            }
+            // buckets are ordered with the last dimension varying fastest
+            for (int k = elems.length - 1; k >= 0; k--) {
+                if (++elems[k] < nElems[k]) {
+                    break;
+                }
+                elems[k] = 0;
+            }
+        }
+        A = new Array2DRowRealMatrix(matrix, false);
+    }
+
+    /**
+     * Add the values of one spectrum to its buckets. Buckets span deltas + 1
+     * points, so points on the boundary between two buckets are added to
+     * both. Values are read in lines along the last bucket dimension.
+     *
+     * @param scannerInfo the spectrum
+     * @param volumes the column-major matrix of bucket volumes
+     * @param colStart the index in volumes of the first bucket of this
+     * spectrum
+     * @param colMaxes array to store the maximum value of each bucket in
+     * @throws IOException if an I/O error occurs
+     */
+    private void bucketSpectrum(LigandScannerInfo scannerInfo, double[] volumes, int colStart, double[] colMaxes) throws IOException {
+        Dataset dataset = scannerInfo.getDataset();
+        int nBDim = dimNames.length;
+        int lineDim = nBDim - 1;
+        int lineSize = dataset.getSize(dims[lineDim]);
+        int[] strides = new int[nBDim];
+        int[] extSizes = new int[nBDim];
+        int stride = 1;
+        for (int k = nBDim - 1; k >= 0; k--) {
+            strides[k] = stride;
+            stride *= nElems[k];
+            extSizes[k] = deltas[k] * nElems[k] + 1;
+        }
+
+        // read along the last bucket dimension, other entries are single points
+        int[][] linePt = new int[nDim][2];
+        int[] lineDims = new int[nDim];
+        lineDims[0] = dims[lineDim];
+        linePt[0][0] = 0;
+        linePt[0][1] = lineSize - 1;
+        for (int k = 0; k < lineDim; k++) {
+            lineDims[k + 1] = dims[k];
+        }
+        if (nDim > nBDim) {
+            lineDims[nDim - 1] = dims[nDim - 1];
+            int nIncr = getNIncr(dataset);
+            int index = nIncr > 1 ? scannerInfo.getIndex() : 0;
+            linePt[nDim - 1][0] = index;
+            linePt[nDim - 1][1] = index;
+        }
+        int[][] lineTable = new int[extSizes[lineDim]][];
+        for (int o = 0; o < lineTable.length; o++) {
+            lineTable[o] = getBuckets(o, lineDim);
+        }
+        VecPool pool = VecPool.get();
+        Vec lineVec = pool.borrow(lineSize, false);
+        int[] offsets = new int[nBDim];
+        boolean done = false;
+        while (!done) {
+            int lineBase = 0;
+            int nLineBuckets = 1;
+            int[][] lineBuckets = new int[lineDim][];
+            for (int k = 0; k < lineDim; k++) {
+                int point = pt[k][0] + offsets[k];
+                if (point >= dataset.getSize(dims[k])) {
+                    point -= dataset.getSize(dims[k]);
+                }
+                linePt[k + 1][0] = point;
+                linePt[k + 1][1] = point;
+                lineBuckets[k] = getBuckets(offsets[k], k);
+                nLineBuckets *= lineBuckets[k].length;
+            }
+            synchronized (dataset) {
+                dataset.readVectorFromDatasetFile(linePt, lineDims, lineVec);
+            }
+            for (int o = 0; o < extSizes[lineDim]; o++) {
+                int point = pt[lineDim][0] + o;
+                if (point >= lineSize) {
+                    point -= lineSize;
+                }
+                double value = lineVec.getReal(point);
+                if (value == Double.MAX_VALUE) {
+                    continue;
+                }
+                int[] buckets = lineTable[o];
+                for (int iLine = 0; iLine < nLineBuckets; iLine++) {
+                    int base = 0;
+                    int rem = iLine;
+                    for (int k = 0; k < lineDim; k++) {
+                        base += lineBuckets[k][rem % lineBuckets[k].length] * strides[k];
+                        rem /= lineBuckets[k].length;
+                    }
+                    for (int bucket : buckets) {
+                        int iBucket = base + bucket;
+                        volumes[colStart + iBucket] += value;
+                        colMaxes[iBucket] = Math.max(colMaxes[iBucket], value);
+                    }
+                }
+            }
+            done = true;
+            for (int k = lineDim - 1; k >= 0; k--) {
+                if (++offsets[k] < extSizes[k]) {
+                    done = false;
+                    break;
+                }
+                offsets[k] = 0;
+            }
+        }
+        pool.release(lineVec);
+    }
+
+    /**
+     * Get the buckets along a dimension that contain a point.
+     *
+     * @param offset the offset of the point from the start of the first
+     * bucket
+     * @param k the bucket dimension
+     * @return the bucket indices
+     */
+    private int[] getBuckets(int offset, int k) {
+        int bucket = offset / deltas[k];
+        boolean inNext = bucket < nElems[k];
+        boolean inPrev = (bucket > 0) && ((offset % deltas[k]) == 0);
+        if (inNext && inPrev) {
+            return new int[]{bucket - 1, bucket};
+        } else if (inPrev) {
+            return new int[]{bucket - 1};
+        } else {
+            return new int[]{bucket};
+        }
+    }
+
+    public List<int[]> getBucketCorners() {
+        return bucketCorners;
+    }
+
+    /**
+     * Bucket the spectra by analyzing the region of each bucket in each
+     * spectrum. This is much slower than bucket, but can be used to validate
+     * it.
+     *
+     * @param threshold buckets whose maximum value doesn't exceed this are
+     * ignored
+     * @throws IOException if an I/O error occurs
+     */
+    public void bucketByRegion(double threshold) throws IOException {
         MultidimensionalCounter counter = new MultidimensionalCounter(nElems);
         MultidimensionalCounter.Iterator iter = counter.iterator();
         int[][] bpt = new int[nDim][2];
@@ -166,17 +399,17 @@ public class MatrixAnalyzer {
             matrix[iRow++] = rowData;
         }
         A = new Array2DRowRealMatrix(matrix);
+        bucketCorners = indices;
     }
 
     public void subtractMean() {
-        int nRows = A.getRowDimension();
-        for (int iRow = 0; iRow < nRows; iRow++) {
-            RealVector vec = A.getRowVector(iRow);
-            DescriptiveStatistics dStat = new DescriptiveStatistics(vec.toArray());
-            double mean = dStat.getMean();
-            vec.mapSubtractToSelf(mean);
-            A.setRowVector(iRow, vec);
-        }
+        double[][] rows = ((Array2DRowRealMatrix) A).getDataRef();
+        Arrays.stream(rows).parallel().forEach(row -> {
+            double mean = Arrays.stream(row).average().orElse(0.0);
+            for (int i = 0; i < row.length; i++) {
+                row[i] -= mean;
+            }
+        });
 
     }
 
@@ -186,9 +419,9 @@ public class MatrixAnalyzer {
 
     public double[][] doPCA(int nPC) {
         subtractMean();
-        svd();
-        RealMatrix V = svd.getV();
-        double[] sVals = svd.getSingularValues();
+        truncatedSVD = new TruncatedSVD(((Array2DRowRealMatrix) A).getDataRef(), nPC);
+        RealMatrix V = truncatedSVD.getV();
+        double[] sVals = truncatedSVD.getSingularValues();
         double s0 = sVals[0];
         int nCols = A.getColumnDimension();
         pcValues = new double[nPC][nCols];
@@ -859,7 +859,7 @@ def createDataset(nvFileName=None, datasetSize=None):
     datasetSize = list(newDatasetSize)
         
     dataInfo.createdSize = datasetSize
-    if not processor.isDatasetOpen():
+    if not processor.isDatasetOpen() and not processor.isWorker():
         try:
             os.remove(nvFileName)
         except OSError:
@@ -3312,7 +3312,7 @@ def SHIFT(shift=0, adjref=False, disabled=False, vector=None, process=None):
     op = Shift(shift, adjref)
     return op
 
-def SCRIPT(script="", initialScript="", execFileName="", encapsulate=False, disabled=False, vector=None, process=None):
+def SCRIPT(script="", initialScript="", execFileName="", encapsulate=False, compiled=False, batch=False, disabled=False, vector=None, process=None):
     '''Execute a Python script as an Operation. Current vector is available as object named "vec". 
     Parameters
     ---------
@@ -3324,11 +3324,15 @@ def SCRIPT(script="", initialScript="", execFileName="", encapsulate=False, disa
         An initial file that will be executed on initialization.
     encapsulate : bool
         Whether the interpreter should persist between evaluations or be reinitialized for each evaluation.
+    compiled : bool
+        Compile the script once and keep an interpreter for each processing thread.
+    batch : bool
+        With compiled, run the script once for each group of vectors, available as the list named "vecs".
 '''
     if disabled:
         return None
     process = process or getCurrentProcess()
-    op=PythonScript(script, initialScript, execFileName, encapsulate)
+    op=PythonScript(script, initialScript, execFileName, encapsulate, compiled, batch)
     if (vector != None):
         op.eval(vector)
     else:
@@ -3599,6 +3603,23 @@ def procOpts(nprocess=None,nvectors=None):
         processor.setVectorsPerProcess(nvectors)
     return {'nprocess':processor.getNumProcessors(),'nvectors':processor.getVectorsPerProcess()}
 
+def distribute(port=None, coordinator=None):
+    ''' Distribute processing over several processes running the same script.
+    Must be called before CREATE.
+    Parameters
+    ---------
+    port : int
+        The port the coordinator listens on for workers.
+    coordinator : str
+        The host the coordinator runs on.  If specified, this process is a worker
+        that opens the dataset created by the coordinator and processes the
+        ranges of each pass it is given.  Otherwise this process is the coordinator.
+    '''
+    if (coordinator != None):
+        processor.connectToCoordinator(coordinator, port)
+    else:
+        processor.startCoordinator(port)
+
 def writeVec(vector,fileName):
     f = open(fileName,'w')
     size = vector.getSize()
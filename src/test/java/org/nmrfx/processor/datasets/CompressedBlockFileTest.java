@@ -0,0 +1,129 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.datasets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressedBlockFileTest {
+
+    static final int NX = 100;
+    static final int NY = 60;
+
+    Dataset createDataset(File dir, double scale) throws IOException, DatasetException {
+        File file = new File(dir, "source.nv");
+        Dataset dataset = Dataset.createDataset(file.toString(), file.getName(), new int[]{NX, NY}, false);
+        dataset.setScale(scale);
+        int[] point = new int[2];
+        for (int j = 0; j < NY; j++) {
+            point[1] = j;
+            for (int i = 0; i < NX; i++) {
+                point[0] = i;
+                dataset.writePoint(point, Math.sin(i * 0.1) * Math.cos(j * 0.07) * 1000.0);
+            }
+        }
+        return dataset;
+    }
+
+    @Test
+    public void testCompressRoundTrip() throws IOException {
+        Random random = new Random(3);
+        float[] values = new float[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.intBitsToFloat(random.nextInt());
+        }
+        values[0] = -0.0f;
+        values[1] = Float.NaN;
+        float[] result = new float[values.length];
+        CompressedBlockFile.decompress(CompressedBlockFile.compress(values), result);
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(Float.floatToRawIntBits(values[i]), Float.floatToRawIntBits(result[i]));
+        }
+    }
+
+    @Test
+    public void testDatasetRoundTrip() throws IOException, DatasetException {
+        File dir = Files.createTempDirectory("compressed").toFile();
+        Dataset source = createDataset(dir, 4.0);
+        File compressedFile = new File(dir, "source.nvz");
+        try {
+            source.compressDataset(compressedFile.toString());
+            Dataset compressed = new Dataset(compressedFile.toString(), compressedFile.getName(), false, false);
+            try {
+                compressed.setScale(source.getScale());
+                int[] point = new int[2];
+                for (int j = 0; j < NY; j++) {
+                    point[1] = j;
+                    for (int i = 0; i < NX; i++) {
+                        point[0] = i;
+                        Assert.assertEquals(source.readPoint(point), compressed.readPoint(point), 0.0);
+                    }
+                }
+            } finally {
+                compressed.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testRewriteReusesSpace() throws IOException, DatasetException {
+        File dir = Files.createTempDirectory("compressed").toFile();
+        Dataset source = createDataset(dir, 1.0);
+        File compressedFile = new File(dir, "source.nvz");
+        source.compressDataset(compressedFile.toString());
+        source.close();
+        Dataset compressed = new Dataset(compressedFile.toString(), compressedFile.getName(), true, false);
+        try {
+            Random random = new Random(5);
+            int[] point = new int[2];
+            long maxLength = 0;
+            for (int round = 0; round < 8; round++) {
+                for (int j = 0; j < NY; j++) {
+                    point[1] = j;
+                    for (int i = 0; i < NX; i++) {
+                        point[0] = i;
+                        double value = (round % 2) == 0 ? random.nextGaussian() : i;
+                        compressed.writePoint(point, value);
+                    }
+                }
+                compressed.forceDataFile();
+                if (round < 2) {
+                    maxLength = Math.max(maxLength, compressedFile.length());
+                } else {
+                    Assert.assertTrue(compressedFile.length() <= maxLength + 2 * NX * NY);
+                }
+            }
+            for (int j = 0; j < NY; j++) {
+                point[1] = j;
+                for (int i = 0; i < NX; i++) {
+                    point[0] = i;
+                    Assert.assertEquals(i, compressed.readPoint(point), 0.0);
+                }
+            }
+        } finally {
+            compressed.close();
+        }
+    }
+}
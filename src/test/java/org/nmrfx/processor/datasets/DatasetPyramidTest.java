@@ -0,0 +1,134 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.datasets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DatasetPyramidTest {
+
+    static final int NX = 300;
+    static final int NY = 200;
+
+    Dataset createDataset(File dir) throws IOException, DatasetException {
+        File file = new File(dir, "pyramid.nv");
+        Dataset dataset = Dataset.createDataset(file.toString(), file.getName(), new int[]{NX, NY}, false);
+        Random random = new Random(11);
+        int[] point = new int[2];
+        for (int j = 0; j < NY; j++) {
+            point[1] = j;
+            for (int i = 0; i < NX; i++) {
+                point[0] = i;
+                dataset.writePoint(point, random.nextGaussian());
+            }
+        }
+        return dataset;
+    }
+
+    float[][] expected(Dataset dataset, int factor) throws IOException {
+        int nx = (NX + factor - 1) / factor;
+        int ny = (NY + factor - 1) / factor;
+        float[][] cells = new float[ny][nx];
+        int[] point = new int[2];
+        for (int j = 0; j < NY; j++) {
+            point[1] = j;
+            for (int i = 0; i < NX; i++) {
+                point[0] = i;
+                cells[j / factor][i / factor] = DatasetPyramid.maxAbs(cells[j / factor][i / factor], (float) dataset.readPoint(point));
+            }
+        }
+        return cells;
+    }
+
+    float[][] readLevel(DatasetPyramid pyramid, int factor) throws IOException {
+        int nx = (NX + factor - 1) / factor;
+        int ny = (NY + factor - 1) / factor;
+        float[][] matrix = new float[ny][nx];
+        int[][] pt = {{0, nx * factor - 1}, {0, ny * factor - 1}};
+        pyramid.readMatrix(pt, new int[]{0, 1}, matrix);
+        return matrix;
+    }
+
+    void checkLevel(Dataset dataset, int factor) throws IOException {
+        float[][] expected = expected(dataset, factor);
+        float[][] values = readLevel(dataset.getPyramid(), factor);
+        for (int j = 0; j < expected.length; j++) {
+            Assert.assertArrayEquals(expected[j], values[j], 0.0f);
+        }
+    }
+
+    @Test
+    public void testBuild() throws IOException, DatasetException {
+        File dir = Files.createTempDirectory("pyramid").toFile();
+        Dataset dataset = createDataset(dir);
+        try {
+            dataset.buildPyramid();
+            checkLevel(dataset, DatasetPyramid.MIN_FACTOR);
+            checkLevel(dataset, 2 * DatasetPyramid.MIN_FACTOR);
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testWritePointMarksDirty() throws IOException, DatasetException {
+        File dir = Files.createTempDirectory("pyramid").toFile();
+        Dataset dataset = createDataset(dir);
+        try {
+            dataset.buildPyramid();
+            dataset.writePoint(new int[]{123, 45}, 100.0);
+            dataset.writePoint(new int[]{7, 190}, -100.0);
+            checkLevel(dataset, DatasetPyramid.MIN_FACTOR);
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testBufferAndCopyMarkDirty() throws IOException, DatasetException {
+        File dir = Files.createTempDirectory("pyramid").toFile();
+        Dataset dataset = createDataset(dir);
+        try {
+            dataset.buildPyramid();
+            dataset.toBuffer("a");
+            double[] buffer = dataset.getBuffer("a");
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] *= -3.0;
+            }
+            dataset.fromBuffer("a");
+            checkLevel(dataset, DatasetPyramid.MIN_FACTOR);
+
+            File copyFile = new File(dir, "copy.nv");
+            Dataset copy = Dataset.createDataset(copyFile.toString(), copyFile.getName(), new int[]{NX, NY}, false);
+            try {
+                copy.buildPyramid();
+                DatasetCopier.copy(dataset, copy);
+                checkLevel(copy, DatasetPyramid.MIN_FACTOR);
+            } finally {
+                copy.close();
+            }
+        } finally {
+            dataset.close();
+        }
+    }
+}
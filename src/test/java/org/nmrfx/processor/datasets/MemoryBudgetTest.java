@@ -0,0 +1,73 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.datasets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testReserve() {
+        long limit = MemoryBudget.getLimit();
+        long used = MemoryBudget.getUsed();
+        try {
+            MemoryBudget.setLimit(used + 1000);
+            Assert.assertEquals(1000, MemoryBudget.getAvailable());
+            Assert.assertTrue(MemoryBudget.tryReserve(600));
+            Assert.assertEquals(400, MemoryBudget.getAvailable());
+            Assert.assertFalse(MemoryBudget.tryReserve(600));
+            Assert.assertEquals(used + 600, MemoryBudget.getUsed());
+            MemoryBudget.reserve(600);
+            Assert.assertEquals(used + 1200, MemoryBudget.getUsed());
+            Assert.assertEquals(0, MemoryBudget.getAvailable());
+            MemoryBudget.release(1200);
+            Assert.assertEquals(used, MemoryBudget.getUsed());
+        } finally {
+            MemoryBudget.setLimit(limit);
+        }
+    }
+
+    @Test
+    public void testMemoryFile() throws Exception {
+        int[] sizes = {64, 32};
+        long nBytes = 64 * 32 * Float.BYTES;
+        Dataset dataset = new Dataset("budget", sizes, false);
+        long limit = MemoryBudget.getLimit();
+        long used = MemoryBudget.getUsed();
+        try {
+            MemoryBudget.setLimit(used + nBytes);
+            MemoryFile memFile = new MemoryFile(dataset, true);
+            Assert.assertEquals(used + nBytes, MemoryBudget.getUsed());
+            // no room left, so this one is on the heap and isn't counted
+            MemoryFile heapFile = new MemoryFile(dataset, true);
+            Assert.assertEquals(used + nBytes, MemoryBudget.getUsed());
+            heapFile.setFloat(2.5f, 3, 7);
+            Assert.assertEquals(2.5f, heapFile.getFloat(3, 7), 0.0f);
+            heapFile.close();
+            Assert.assertEquals(used + nBytes, MemoryBudget.getUsed());
+            memFile.close();
+            memFile.close();
+            Assert.assertEquals(used, MemoryBudget.getUsed());
+        } finally {
+            MemoryBudget.setLimit(limit);
+            dataset.close();
+        }
+    }
+}
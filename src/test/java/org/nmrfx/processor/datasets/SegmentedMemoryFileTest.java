@@ -0,0 +1,110 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.datasets;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SegmentedMemoryFileTest {
+
+    static final int SHIFT = 10;
+    static final int SEGMENT_BYTES = (1 << SHIFT) * Float.BYTES;
+    static final int[] SIZES = {100, 50};
+
+    float value(int i, int j) {
+        return i + 1000.0f * j;
+    }
+
+    void fill(SegmentedMemoryFile memFile) throws IOException {
+        for (int j = 0; j < SIZES[1]; j++) {
+            for (int i = 0; i < SIZES[0]; i++) {
+                memFile.setFloat(value(i, j), i, j);
+            }
+        }
+    }
+
+    void check(SegmentedMemoryFile memFile) throws IOException {
+        for (int j = 0; j < SIZES[1]; j++) {
+            for (int i = 0; i < SIZES[0]; i++) {
+                Assert.assertEquals(value(i, j), memFile.getFloat(i, j), 0.0f);
+            }
+        }
+    }
+
+    SegmentedMemoryFile create(Dataset dataset) {
+        SegmentedMemoryFile.setSegmentShift(SHIFT);
+        try {
+            return new SegmentedMemoryFile(dataset, true);
+        } finally {
+            SegmentedMemoryFile.setSegmentShift(24);
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        long used = MemoryBudget.getUsed();
+        Dataset dataset = new Dataset("segmented", SIZES, true);
+        SegmentedMemoryFile memFile = create(dataset);
+        try {
+            Assert.assertEquals(SIZES[0] * SIZES[1], memFile.getTotalSize());
+            Assert.assertEquals(0.0f, memFile.getFloat(5, 40), 0.0f);
+            Assert.assertEquals(0, memFile.getResidentBytes());
+            memFile.setFloat(3.0f, 5, 40);
+            Assert.assertEquals(3.0f, memFile.getFloat(5, 40), 0.0f);
+            Assert.assertEquals(SEGMENT_BYTES, memFile.getResidentBytes());
+            Assert.assertEquals(used + SEGMENT_BYTES, MemoryBudget.getUsed());
+            fill(memFile);
+            check(memFile);
+            long nSegments = (SIZES[0] * SIZES[1] + (1 << SHIFT) - 1) >> SHIFT;
+            long lastBytes = (SIZES[0] * SIZES[1] - (nSegments - 1) * (1 << SHIFT)) * Float.BYTES;
+            long expected = (nSegments - 1) * SEGMENT_BYTES + lastBytes;
+            Assert.assertEquals(expected, memFile.getResidentBytes());
+            Assert.assertEquals(used + expected, MemoryBudget.getUsed());
+            memFile.zero();
+            Assert.assertEquals(0.0f, memFile.getFloat(5, 40), 0.0f);
+            Assert.assertEquals(used, MemoryBudget.getUsed());
+        } finally {
+            memFile.close();
+            dataset.close();
+        }
+        Assert.assertEquals(used, MemoryBudget.getUsed());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        long limit = MemoryBudget.getLimit();
+        long used = MemoryBudget.getUsed();
+        Dataset dataset = new Dataset("segmented", SIZES, true);
+        SegmentedMemoryFile memFile = create(dataset);
+        try {
+            MemoryBudget.setLimit(used + 2 * SEGMENT_BYTES);
+            fill(memFile);
+            Assert.assertTrue(memFile.getResidentBytes() <= 2 * SEGMENT_BYTES);
+            Assert.assertTrue(MemoryBudget.getUsed() <= used + 2 * SEGMENT_BYTES);
+            check(memFile);
+            Assert.assertEquals(used + memFile.getResidentBytes(), MemoryBudget.getUsed());
+        } finally {
+            MemoryBudget.setLimit(limit);
+            memFile.close();
+            dataset.close();
+        }
+        Assert.assertEquals(used, MemoryBudget.getUsed());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.datasets.peaks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDistance;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.peaks.PeakPath;
+import org.nmrfx.peaks.PeakPaths;
+import org.nmrfx.peaks.PeakPaths.PATHMODE;
+import org.nmrfx.peaks.SpectralDim;
+
+public class PeakPathEngineTest {
+
+    static final int N_PEAKS = 40;
+    static final double[] CONCS = {0.0, 0.5, 1.0, 2.0, 4.0};
+    static final double[] BINDER_CONCS = {1.0, 1.0, 1.0, 1.0, 1.0};
+    static final double[] WEIGHTS = {1.0, 5.0};
+    static final double[] TOLS = {0.05, 0.25};
+    static final double RADIUS = 0.4;
+
+    /**
+     * Make a titration series where each peak moves along a line, with a
+     * binding curve, and a few peaks missing from the later lists. Every call
+     * makes identical lists with new names.
+     */
+    List<PeakList> makeSeries(String prefix) {
+        Random random = new Random(13);
+        double[][] shifts = new double[N_PEAKS][2];
+        double[][] deltas = new double[N_PEAKS][2];
+        for (int j = 0; j < N_PEAKS; j++) {
+            shifts[j][0] = 7.0 + 3.0 * random.nextDouble();
+            shifts[j][1] = 105.0 + 25.0 * random.nextDouble();
+            deltas[j][0] = 0.3 * (random.nextDouble() - 0.5);
+            deltas[j][1] = 2.0 * (random.nextDouble() - 0.5);
+        }
+        List<PeakList> peakLists = new ArrayList<>();
+        for (int k = 0; k < CONCS.length; k++) {
+            PeakList peakList = new PeakList(prefix + k, 2);
+            String[] names = {"H_1", "N_2"};
+            for (int iDim = 0; iDim < 2; iDim++) {
+                SpectralDim sDim = peakList.getSpectralDim(iDim);
+                sDim.setDimName(names[iDim]);
+                sDim.setIdTol(TOLS[iDim]);
+            }
+            double fraction = CONCS[k] / (1.0 + CONCS[k]);
+            for (int j = 0; j < N_PEAKS; j++) {
+                if ((k > 1) && ((j + k) % 11 == 0)) {
+                    continue;
+                }
+                Peak peak = peakList.getNewPeak();
+                peak.setIntensity(100.0f);
+                for (int iDim = 0; iDim < 2; iDim++) {
+                    double shift = shifts[j][iDim] + fraction * deltas[j][iDim];
+                    peak.getPeakDim(iDim).setChemShiftValue((float) shift);
+                    peak.getPeakDim(iDim).setLineWidthValue((float) (0.2 * TOLS[iDim]));
+                    peak.getPeakDim(iDim).setBoundsValue((float) (0.4 * TOLS[iDim]));
+                }
+            }
+            peakLists.add(peakList);
+        }
+        return peakLists;
+    }
+
+    PeakPaths makePaths(String prefix) {
+        return new PeakPaths(prefix, makeSeries(prefix), CONCS, BINDER_CONCS, WEIGHTS, TOLS, PATHMODE.TITRATION);
+    }
+
+    /**
+     * Check the two PeakPaths, built from identical lists, have the same
+     * paths from the same start peaks.
+     */
+    void checkSame(PeakPaths expected, PeakPaths paths) {
+        Assert.assertEquals(expected.getPathMap().size(), paths.getPathMap().size());
+        List<Peak> expectedPeaks = expected.getPeakLists().get(0).peaks();
+        List<Peak> peaks = paths.getPeakLists().get(0).peaks();
+        int nPaths = 0;
+        for (int i = 0; i < expectedPeaks.size(); i++) {
+            PeakPath expectedPath = expected.getPathMap().get(expectedPeaks.get(i));
+            PeakPath path = paths.getPathMap().get(peaks.get(i));
+            if (expectedPath == null) {
+                Assert.assertNull(path);
+                continue;
+            }
+            Assert.assertNotNull(path);
+            nPaths++;
+            List<PeakDistance> expectedDists = expectedPath.getPeakDistances();
+            List<PeakDistance> dists = path.getPeakDistances();
+            Assert.assertEquals(expectedDists.size(), dists.size());
+            for (int k = 0; k < expectedDists.size(); k++) {
+                PeakDistance expectedDist = expectedDists.get(k);
+                PeakDistance dist = dists.get(k);
+                if (expectedDist == null) {
+                    Assert.assertNull(dist);
+                } else {
+                    Assert.assertNotNull(dist);
+                    Assert.assertEquals(expectedDist.getPeak().getIdNum(), dist.getPeak().getIdNum());
+                    Assert.assertEquals(expectedDist.getDistance(), dist.getDistance(), 0.0);
+                }
+            }
+        }
+        Assert.assertTrue(nPaths > 0);
+    }
+
+    @Test
+    public void testNearPeaks() {
+        PeakPaths peakPaths = makePaths("near");
+        PeakPathEngine engine = new PeakPathEngine(peakPaths);
+        for (Peak peak : peakPaths.getPeakLists().get(0).peaks()) {
+            ArrayList<ArrayList<PeakDistance>> expected = peakPaths.getNearPeaks(peak, RADIUS);
+            ArrayList<ArrayList<PeakDistance>> lists = engine.getNearPeaks(peak, RADIUS);
+            Assert.assertEquals(expected.size(), lists.size());
+            for (int k = 0; k < expected.size(); k++) {
+                Assert.assertEquals(expected.get(k).size(), lists.get(k).size());
+                for (int i = 0; i < expected.get(k).size(); i++) {
+                    Assert.assertSame(expected.get(k).get(i).getPeak(), lists.get(k).get(i).getPeak());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScan() {
+        PeakPaths expected = makePaths("scanA");
+        for (Peak peak : expected.getPeakLists().get(0).peaks()) {
+            PeakPathAnalyzer.scan(expected, peak, RADIUS, 3.0, 2, null, false);
+        }
+        PeakPaths paths = makePaths("scanB");
+        PeakPathEngine engine = new PeakPathEngine(paths);
+        engine.setNThreads(4);
+        engine.scan(paths.getPeakLists().get(0).peaks(), RADIUS, 3.0, 2, false);
+        checkSame(expected, paths);
+    }
+
+    @Test
+    public void testExtendPaths() {
+        PeakPaths expected = makePaths("extendA");
+        PeakPathAnalyzer.extendPaths(expected, RADIUS, 0.1);
+        PeakPaths paths = makePaths("extendB");
+        PeakPathEngine engine = new PeakPathEngine(paths);
+        engine.setNThreads(4);
+        engine.extendPaths(RADIUS, 0.1);
+        checkSame(expected, paths);
+    }
+
+    @Test
+    public void testCheckListsForUnambigous() {
+        PeakPaths expected = makePaths("unambigA");
+        PeakPathAnalyzer.checkListsForUnambigous(expected, RADIUS);
+        PeakPaths paths = makePaths("unambigB");
+        PeakPathEngine engine = new PeakPathEngine(paths);
+        engine.setNThreads(4);
+        engine.checkListsForUnambigous(RADIUS);
+        checkSame(expected, paths);
+
+        // a second pass doesn't use the last list once there are longer paths
+        PeakPathAnalyzer.checkListsForUnambigous(expected, RADIUS);
+        engine.checkListsForUnambigous(RADIUS);
+        checkSame(expected, paths);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.operations.Util;
+
+public class BaselineEngineTest {
+
+    static final int SIZE = 2048;
+    static final int N_VECS = 7;
+
+    boolean[] signalRegion(int shift) {
+        boolean[] inSignal = new boolean[SIZE];
+        for (int i = 500 + shift; i < 700 + shift; i++) {
+            inSignal[i] = true;
+        }
+        for (int i = 1500; i < 1560; i++) {
+            inSignal[i] = true;
+        }
+        return inSignal;
+    }
+
+    double[][] makeValues(boolean[] inSignal) {
+        Random random = new Random(9);
+        double[][] values = new double[N_VECS][SIZE];
+        for (int v = 0; v < N_VECS; v++) {
+            double amp = random.nextDouble();
+            for (int i = 0; i < SIZE; i++) {
+                double x = (double) i / SIZE;
+                values[v][i] = amp * (3.0 * Math.sin(6.0 * x) + 2.0 * x * x * x)
+                        + 0.1 * random.nextGaussian() + (inSignal[i] ? 50.0 : 0.0);
+            }
+        }
+        return values;
+    }
+
+    List<Vec> makeVecs(double[][] values, boolean[] inSignal) {
+        List<Vec> vectors = new ArrayList<>();
+        for (double[] vValues : values) {
+            Vec vector = new Vec(SIZE, false);
+            System.arraycopy(vValues, 0, vector.rvec, 0, SIZE);
+            vector.setSignalRegion(inSignal);
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+
+    double[] asmooth(double[] values, boolean[] inSignal, double lambda, int order) {
+        int m = values.length;
+        double[] w = new double[m + 1];
+        double[] y = new double[m + 1];
+        double[] z = new double[m + 1];
+        for (int i = 0; i < m; i++) {
+            y[i + 1] = values[i];
+            w[i + 1] = inSignal[i] ? 0.0 : 1.0;
+        }
+        double[] a = new double[order + 1];
+        Util.pascalrow(a, order);
+        Util.asmooth(w, y, z, a, lambda, m, order);
+        double[] result = new double[m];
+        System.arraycopy(z, 1, result, 0, m);
+        return result;
+    }
+
+    /**
+     * The means of the baseline windows, as BcPoly and BcSine fit them.
+     */
+    RealMatrix baselineMeans(Vec vector, int winSize) {
+        boolean[] inSignal = vector.getSignalRegion();
+        int nRegions = SIZE / winSize;
+        List<double[]> rows = new ArrayList<>();
+        for (int j = 0; j < nRegions; j++) {
+            double sum = 0.0;
+            boolean justBase = true;
+            for (int i = j * winSize; i < (j + 1) * winSize; i++) {
+                if (inSignal[i]) {
+                    justBase = false;
+                }
+                sum += vector.rvec[i];
+            }
+            if (justBase) {
+                rows.add(new double[]{((j * winSize) + (winSize / 2)) - 0.5, sum / winSize});
+            }
+        }
+        return new Array2DRowRealMatrix(rows.toArray(new double[rows.size()][]));
+    }
+
+    @Test
+    public void testWhittakerFactor() {
+        boolean[] inSignal = signalRegion(0);
+        double[][] values = makeValues(inSignal);
+        for (int order = 1; order <= 3; order++) {
+            double lambda = order == 1 ? 100.0 : 1.0e4;
+            BaselineEngine.WhittakerFactor factor = new BaselineEngine.WhittakerFactor(inSignal, SIZE, order, lambda);
+            double[][] z = new double[N_VECS][];
+            for (int v = 0; v < N_VECS; v++) {
+                z[v] = values[v].clone();
+            }
+            factor.solve(z, N_VECS);
+            for (int v = 0; v < N_VECS; v++) {
+                Assert.assertArrayEquals(asmooth(values[v], inSignal, lambda, order), z[v], 1.0e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testWhittaker() {
+        boolean[] inSignal = signalRegion(0);
+        double[][] values = makeValues(inSignal);
+        BaselineEngine engine = new BaselineEngine(4);
+        engine.setBatchSize(3);
+        List<Vec> vectors = makeVecs(values, inSignal);
+        engine.whittaker(vectors, 1000.0, 2, false);
+        Assert.assertEquals(1, engine.getNFactorizations());
+        for (int v = 0; v < N_VECS; v++) {
+            double[] expected = asmooth(values[v], inSignal, 1000.0, 2);
+            for (int i = 0; i < SIZE; i++) {
+                expected[i] = values[v][i] - expected[i];
+            }
+            Assert.assertArrayEquals(expected, vectors.get(v).rvec, 1.0e-9);
+        }
+    }
+
+    void checkFit(boolean sine, int order, int winSize) {
+        List<Vec> vectors = new ArrayList<>();
+        List<Vec> expected = new ArrayList<>();
+        // two signal patterns, so the vectors are solved in two groups
+        for (int shift = 0; shift <= 64; shift += 64) {
+            boolean[] inSignal = signalRegion(shift);
+            double[][] values = makeValues(inSignal);
+            vectors.addAll(makeVecs(values, inSignal));
+            expected.addAll(makeVecs(values, inSignal));
+        }
+        BaselineEngine engine = new BaselineEngine(4);
+        engine.setBatchSize(4);
+        if (sine) {
+            engine.sine(vectors, order, winSize);
+        } else {
+            engine.poly(vectors, order, winSize);
+        }
+        Assert.assertEquals(2, engine.getNFactorizations());
+        for (int v = 0; v < vectors.size(); v++) {
+            Vec vector = expected.get(v);
+            RealMatrix xyVals = baselineMeans(vector, winSize);
+            if (sine) {
+                RealVector X = Util.fitSine(vector, order, xyVals);
+                vector.correctVecSine(order, X);
+            } else {
+                RealVector X = Util.fitPoly(vector, order, xyVals);
+                vector.correctVec(order, X);
+            }
+            Assert.assertArrayEquals("order " + order, vector.rvec, vectors.get(v).rvec, 1.0e-9);
+        }
+    }
+
+    @Test
+    public void testPoly() {
+        for (int order = 1; order <= 16; order++) {
+            checkFit(false, order, 32);
+        }
+        checkFit(false, 4, 8);
+        checkFit(false, 12, 8);
+    }
+
+    @Test
+    public void testSine() {
+        for (int order = 1; order <= 16; order++) {
+            checkFit(true, order, 32);
+        }
+        checkFit(true, 5, 8);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.util.Random;
+import org.nmrfx.processor.processing.ProcessingException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FirFilterTest {
+
+    static final double TOL = 1.0e-10;
+
+    double[] random(int n, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextGaussian();
+        }
+        return values;
+    }
+
+    double[] direct(double[] coefs, int factor, double[] x, int nOut) {
+        double[] out = new double[nOut];
+        for (int i = 0; i < nOut; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < coefs.length; j++) {
+                int index = i * factor + j;
+                if (index < x.length) {
+                    sum += coefs[j] * x[index];
+                }
+            }
+            out[i] = sum;
+        }
+        return out;
+    }
+
+    void compare(int factor, int ncoefs, int nIn, int blockSize) throws ProcessingException {
+        FirFilter filter = new FirFilter(factor, ncoefs, "lowpass");
+        double[] coefs = filter.getCoefs();
+        Assert.assertEquals(ncoefs, coefs.length);
+        int nOut = (nIn - 2 * (ncoefs / 2)) / factor;
+        double[] re = random(nIn, 31L * nIn + factor);
+        double[] im = random(nIn, 17L * nIn + ncoefs);
+        double[] expRe = direct(coefs, factor, re, nOut);
+        double[] expIm = direct(coefs, factor, im, nOut);
+
+        double[] outRe = new double[nOut];
+        double[] outIm = new double[nOut];
+        filter.filterPolyphase(re, im, nIn, outRe, outIm);
+        Assert.assertArrayEquals(expRe, outRe, TOL);
+        Assert.assertArrayEquals(expIm, outIm, TOL);
+
+        outRe = new double[nOut];
+        filter.filterPolyphase(re, null, nIn, outRe, null);
+        Assert.assertArrayEquals(expRe, outRe, TOL);
+
+        outRe = new double[nOut];
+        outIm = new double[nOut];
+        filter.filterFFT(re, im, outRe, outIm, blockSize);
+        Assert.assertArrayEquals(expRe, outRe, TOL);
+        Assert.assertArrayEquals(expIm, outIm, TOL);
+
+        outRe = new double[nOut];
+        filter.filterFFT(re, null, outRe, null, blockSize);
+        Assert.assertArrayEquals(expRe, outRe, TOL);
+    }
+
+    @Test
+    public void testOddLengths() throws ProcessingException {
+        compare(2, 17, 101, 64);
+        compare(3, 25, 257, 128);
+        compare(4, 33, 513, 256);
+        compare(5, 41, 1001, 128);
+    }
+
+    @Test
+    public void testEvenCoefs() throws ProcessingException {
+        compare(2, 16, 100, 64);
+        compare(4, 32, 999, 128);
+        compare(7, 56, 777, 256);
+    }
+
+    @Test
+    public void testBlockBoundaries() throws ProcessingException {
+        // nValid = blockSize - ncoefs + 1 = 32 points before decimation per block
+        int factor = 4;
+        int ncoefs = 33;
+        int blockSize = 64;
+        int nValid = blockSize - ncoefs + 1;
+        for (int nBlocks = 1; nBlocks <= 4; nBlocks++) {
+            for (int delta = -1; delta <= 1; delta++) {
+                // nAll = (nOut - 1) * factor + 1 lands on, just before and just after a block end
+                int nAll = nBlocks * nValid + delta * factor;
+                int nOut = (nAll - 1) / factor + 1;
+                int nIn = nOut * factor + 2 * (ncoefs / 2);
+                for (int extra = 0; extra < factor; extra++) {
+                    compare(factor, ncoefs, nIn + extra, blockSize);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSelectedBlockSize() throws ProcessingException {
+        FirFilter filter = new FirFilter(4, 301, "lowpass");
+        int blockSize = filter.fftBlockSize(2048, true);
+        Assert.assertTrue(blockSize > 0);
+        compare(4, 301, 2048 * 4 + 300, blockSize);
+        compare(4, 301, 2048 * 4 + 303, blockSize);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MatrixContainerTest {
+
+    double[][] makeData(int n) {
+        Random random = new Random(n);
+        double[][] data = new double[n][];
+        for (int i = 0; i < n; i++) {
+            // include a matrix bigger than the write buffer
+            data[i] = new double[i == 1 ? 200000 : 64 * (i + 1)];
+            for (int j = 0; j < data[i].length; j++) {
+                data[i][j] = random.nextGaussian();
+            }
+        }
+        return data;
+    }
+
+    void writeAndRead(boolean littleEndian, int queueSize, boolean close) throws IOException {
+        File file = File.createTempFile("matrix", ".mtx");
+        file.deleteOnExit();
+        double[][] data = makeData(5);
+        MatrixContainer container = new MatrixContainer(file.getPath(), littleEndian, queueSize);
+        for (int i = data.length - 1; i >= 0; i--) {
+            container.write(i * 3, new int[]{2, data[i].length / 2}, data[i]);
+        }
+        if (close) {
+            container.close();
+        }
+        try (MatrixContainerReader reader = new MatrixContainerReader(file.getPath())) {
+            Assert.assertEquals(data.length, reader.getIndices().size());
+            Assert.assertEquals(littleEndian, reader.isLittleEndian());
+            for (int i = 0; i < data.length; i++) {
+                Assert.assertArrayEquals(new int[]{2, data[i].length / 2}, reader.getSizes(i * 3));
+                Assert.assertArrayEquals(data[i], reader.read(i * 3), 0.0);
+            }
+        } finally {
+            if (!close) {
+                container.close();
+            }
+        }
+    }
+
+    @Test
+    public void testBigEndian() throws IOException {
+        writeAndRead(false, 0, true);
+    }
+
+    @Test
+    public void testLittleEndianAsync() throws IOException {
+        writeAndRead(true, 2, true);
+    }
+
+    @Test
+    public void testUnclosed() throws IOException {
+        writeAndRead(false, 0, false);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data 
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.util.Random;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrunedFFTTest {
+
+    void compare(int n, int nInput, int kStart, int nOut) {
+        Random random = new Random(n + nInput + kStart + nOut);
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < nInput; i++) {
+            re[i] = random.nextGaussian();
+            im[i] = random.nextGaussian();
+        }
+        double[][] riVec = {re.clone(), im.clone()};
+        FastFourierTransformer.transformInPlace(riVec, DftNormalization.STANDARD, TransformType.FORWARD);
+        PrunedFFT.fft(re, im, nInput, kStart, nOut);
+        double tol = 1.0e-9;
+        for (int q = 0; q < nOut; q++) {
+            int k = (kStart + q) % n;
+            Assert.assertEquals(riVec[0][k], re[k], tol);
+            Assert.assertEquals(riVec[1][k], im[k], tol);
+        }
+    }
+
+    @Test
+    public void testFull() {
+        compare(1024, 1024, 0, 1024);
+    }
+
+    @Test
+    public void testZeroFilled() {
+        compare(1024, 256, 0, 1024);
+        compare(1024, 100, 0, 1024);
+    }
+
+    @Test
+    public void testOutputRange() {
+        compare(1024, 1024, 300, 50);
+        compare(1024, 1024, 1000, 100);
+    }
+
+    @Test
+    public void testZeroFilledOutputRange() {
+        compare(4096, 700, 3900, 400);
+        compare(64, 3, 5, 7);
+    }
+
+    void compareVec(int n, int nInput, int first, int last, boolean negateImaginary) {
+        Random random = new Random(n + nInput + first + last);
+        Vec expected = new Vec(n, true);
+        Vec vec = new Vec(n, true);
+        for (int i = 0; i < n; i++) {
+            double re = i < nInput ? random.nextGaussian() : 0.0;
+            double im = i < nInput ? random.nextGaussian() : 0.0;
+            expected.set(i, re, im);
+            vec.set(i, re, im);
+        }
+        expected.fft(false, negateImaginary, false);
+        vec.fft(false, negateImaginary, false, nInput, first, last);
+        Assert.assertTrue(vec.getFreqDomain());
+        double tol = 1.0e-9;
+        for (int i = 0; i < n; i++) {
+            if ((i >= first) && (i <= last)) {
+                Assert.assertEquals(expected.getReal(i), vec.getReal(i), tol);
+                Assert.assertEquals(expected.getImag(i), vec.getImag(i), tol);
+            } else {
+                Assert.assertEquals(0.0, vec.getReal(i), 0.0);
+                Assert.assertEquals(0.0, vec.getImag(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testVecPrunedRange() {
+        // ranges below, across and above the center of the spectrum
+        compareVec(1024, 1024, 100, 200, false);
+        compareVec(1024, 1024, 480, 560, false);
+        compareVec(1024, 1024, 900, 1023, true);
+        compareVec(1024, 1024, 0, 60, false);
+    }
+
+    @Test
+    public void testVecZeroFilled() {
+        compareVec(1024, 200, 0, 1023, false);
+        compareVec(1024, 128, 300, 700, true);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RelaxBatchTest {
+
+    static final double[] SFS = {600.0e6, 800.0e6};
+    static final int N_RES = 20;
+    static final double TAU_M = 8.0e-9;
+
+    double[] s2 = new double[N_RES];
+    double[] tauF = new double[N_RES];
+    double[] rex = new double[N_RES];
+
+    public RelaxBatchTest() {
+        Random random = new Random(5);
+        for (int i = 0; i < N_RES; i++) {
+            s2[i] = 0.6 + 0.35 * random.nextDouble();
+            tauF[i] = random.nextDouble() * 50.0e-12;
+            rex[i] = (i % 5) == 0 ? 2.0 : 0.0;
+        }
+    }
+
+    @Test
+    public void testRates() {
+        RelaxBatch relaxBatch = new RelaxBatch(SFS, "H", "N");
+        double[] jValues = new double[SFS.length * N_RES * 5];
+        relaxBatch.spectralDensities(new double[]{TAU_M}, s2, tauF, null, null, jValues);
+        double[] r1 = new double[SFS.length * N_RES];
+        double[] r2 = new double[r1.length];
+        double[] noe = new double[r1.length];
+        relaxBatch.rates(jValues, rex, r1, r2, noe);
+        for (int iField = 0; iField < SFS.length; iField++) {
+            RelaxEquations relaxEquations = new RelaxEquations(SFS[iField], "H", "N");
+            for (int iRes = 0; iRes < N_RES; iRes++) {
+                int index = iField * N_RES + iRes;
+                double[] J = relaxEquations.getJModelFree(tauF[iRes], TAU_M, s2[iRes]);
+                Assert.assertEquals(relaxEquations.R1(J), r1[index], 0.0);
+                Assert.assertEquals(relaxEquations.R2(J, rex[iRes]), r2[index], 0.0);
+                Assert.assertEquals(relaxEquations.NOE(J), noe[index], 0.0);
+            }
+            Assert.assertEquals(relaxEquations.TRACTdeltaAlphaBeta(5.0e-9),
+                    relaxBatch.tractDeltaAlphaBeta(iField, 5.0e-9, relaxEquations.getSigma(), 17.0), 0.0);
+        }
+    }
+
+    @Test
+    public void testFitModelFree() {
+        RelaxBatch relaxBatch = new RelaxBatch(SFS, "H", "N");
+        double[] jValues = new double[SFS.length * N_RES * 5];
+        relaxBatch.spectralDensities(new double[]{TAU_M}, s2, tauF, null, null, jValues);
+        int n = SFS.length * N_RES;
+        double[] r1 = new double[n];
+        double[] r2 = new double[n];
+        double[] noe = new double[n];
+        relaxBatch.rates(jValues, rex, r1, r2, noe);
+        double[] r1Err = new double[n];
+        double[] r2Err = new double[n];
+        double[] noeErr = new double[n];
+        for (int i = 0; i < n; i++) {
+            r1Err[i] = 0.01 * r1[i];
+            r2Err[i] = 0.01 * r2[i];
+            noeErr[i] = 0.02;
+        }
+        RelaxBatch.ModelFreeFit fit = relaxBatch.fitModelFree(r1, r1Err, r2, r2Err, noe, noeErr,
+                true, true, 2.0e-9, 20.0e-9);
+        Assert.assertEquals(TAU_M, fit.getTauM(), 1.0e-12);
+        Assert.assertArrayEquals(s2, fit.getS2(), 1.0e-4);
+        Assert.assertArrayEquals(rex, fit.getRex(), 1.0e-3);
+    }
+}
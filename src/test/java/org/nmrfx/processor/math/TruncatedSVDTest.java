@@ -0,0 +1,135 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TruncatedSVDTest {
+
+    /**
+     * Make an m x n matrix with rapidly decreasing singular values plus a
+     * little noise.
+     */
+    double[][] makeMatrix(int m, int n, int rank) {
+        Random random = new Random(m * 31 + n);
+        double[][] a = new double[m][n];
+        for (int r = 0; r < rank; r++) {
+            double s = 100.0 / ((r + 1) * (r + 1));
+            double[] x = new double[m];
+            double[] y = new double[n];
+            for (int i = 0; i < m; i++) {
+                x[i] = random.nextGaussian();
+            }
+            for (int j = 0; j < n; j++) {
+                y[j] = random.nextGaussian();
+            }
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < n; j++) {
+                    a[i][j] += s * x[i] * y[j];
+                }
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                a[i][j] += 1.0e-3 * random.nextGaussian();
+            }
+        }
+        return a;
+    }
+
+    static double dotColumns(RealMatrix a, RealMatrix b, int c) {
+        return a.getColumnVector(c).dotProduct(b.getColumnVector(c));
+    }
+
+    void compare(double[][] a, int nComp) {
+        SingularValueDecomposition svd = new SingularValueDecomposition(new Array2DRowRealMatrix(a));
+        TruncatedSVD tsvd = new TruncatedSVD(a, nComp);
+        double[] expected = svd.getSingularValues();
+        double[] values = tsvd.getSingularValues();
+        Assert.assertEquals(nComp, values.length);
+        for (int c = 0; c < nComp; c++) {
+            Assert.assertEquals(expected[c], values[c], 1.0e-6 * expected[0]);
+        }
+        RealMatrix u = tsvd.getU();
+        RealMatrix v = tsvd.getV();
+        Assert.assertEquals(a.length, u.getRowDimension());
+        Assert.assertEquals(a[0].length, v.getRowDimension());
+        for (int c = 0; c < nComp; c++) {
+            // vectors match up to sign
+            Assert.assertEquals(1.0, Math.abs(dotColumns(u, svd.getU(), c)), 1.0e-6);
+            Assert.assertEquals(1.0, Math.abs(dotColumns(v, svd.getV(), c)), 1.0e-6);
+            Assert.assertEquals(Math.signum(dotColumns(u, svd.getU(), c)), Math.signum(dotColumns(v, svd.getV(), c)), 0.0);
+        }
+        // the truncated reconstruction is close to the matrix
+        RealMatrix sigma = new Array2DRowRealMatrix(nComp, nComp);
+        for (int c = 0; c < nComp; c++) {
+            sigma.setEntry(c, c, values[c]);
+        }
+        RealMatrix recon = u.multiply(sigma).multiply(v.transpose());
+        double residual = recon.subtract(new Array2DRowRealMatrix(a)).getFrobeniusNorm();
+        Assert.assertTrue("residual " + residual, residual < 1.0e-3 * Math.sqrt(a.length * a[0].length) * 2.0);
+    }
+
+    @Test
+    public void testTallMatrix() {
+        compare(makeMatrix(600, 40, 5), 5);
+    }
+
+    @Test
+    public void testWideMatrix() {
+        compare(makeMatrix(30, 300, 4), 4);
+    }
+
+    @Test
+    public void testMultiplyTransposedIndependentOfThreads() throws Exception {
+        int m = 1000;
+        int n = 20;
+        int l = 7;
+        double[][] a = makeMatrix(m, n, 3);
+        Random random = new Random(5);
+        double[][] b = new double[m][l];
+        for (int i = 0; i < m; i++) {
+            for (int c = 0; c < l; c++) {
+                b[i][c] = random.nextGaussian();
+            }
+        }
+        double[][] result = TruncatedSVD.multiplyTransposed(a, b, n, l);
+        RealMatrix expected = new Array2DRowRealMatrix(a).transpose().multiply(new Array2DRowRealMatrix(b));
+        for (int j = 0; j < n; j++) {
+            Assert.assertArrayEquals(expected.getRow(j), result[j], 1.0e-9);
+        }
+        for (int nThreads : new int[]{1, 3}) {
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            try {
+                double[][] poolResult = pool.submit(() -> TruncatedSVD.multiplyTransposed(a, b, n, l)).get();
+                for (int j = 0; j < n; j++) {
+                    Assert.assertArrayEquals(result[j], poolResult[j], 0.0);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
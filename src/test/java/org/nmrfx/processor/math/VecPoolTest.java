@@ -0,0 +1,66 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.math;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VecPoolTest {
+
+    @Test
+    public void testResetMatchesNewVector() {
+        Vec fresh = new Vec(64, true);
+        Vec vec = new Vec(128, false);
+        vec.dwellTime = 0.25;
+        vec.centerFreq = 600.0;
+        vec.refValue = 4.7;
+        vec.setSignalRegion(new boolean[128]);
+        vec.setFreqDomain(true);
+        vec.setGroupDelay(67.98);
+        vec.reset(64, null, null, true);
+
+        Assert.assertEquals(fresh.getSize(), vec.getSize());
+        Assert.assertEquals(fresh.isComplex(), vec.isComplex());
+        Assert.assertEquals(fresh.dwellTime, vec.dwellTime, 0.0);
+        Assert.assertEquals(fresh.centerFreq, vec.centerFreq, 0.0);
+        Assert.assertEquals(fresh.refValue, vec.refValue, 0.0);
+        Assert.assertNull(vec.getSignalRegion());
+        Assert.assertEquals(fresh.getFreqDomain(), vec.getFreqDomain());
+        Assert.assertEquals(fresh.getGroupDelay(), vec.getGroupDelay(), 0.0);
+        Assert.assertEquals(fresh.useApache(), vec.useApache());
+    }
+
+    @Test
+    public void testBorrowedVectorIsReset() {
+        VecPool pool = VecPool.get();
+        Vec vec = pool.borrow(32, true);
+        vec.dwellTime = 0.5;
+        vec.refValue = 1.0;
+        vec.setSignalRegion(new boolean[32]);
+        pool.release(vec);
+        Vec reused = pool.borrow(16, false);
+        Vec fresh = new Vec(16, false);
+        Assert.assertEquals(16, reused.getSize());
+        Assert.assertFalse(reused.isComplex());
+        Assert.assertEquals(fresh.dwellTime, reused.dwellTime, 0.0);
+        Assert.assertEquals(fresh.refValue, reused.refValue, 0.0);
+        Assert.assertNull(reused.getSignalRegion());
+        pool.release(reused);
+    }
+}
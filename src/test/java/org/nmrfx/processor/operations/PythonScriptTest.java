@@ -0,0 +1,99 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.processing.ProcessingException;
+
+public class PythonScriptTest {
+
+    static final String COUNT_SCRIPT = "count += 1\nvec.rvec[0] = count";
+
+    static double evalCount(PythonScript op) {
+        Vec vec = new Vec(4, false);
+        op.eval(vec);
+        return vec.rvec[0];
+    }
+
+    @Test
+    public void testCompiledStatePerThread() throws Exception {
+        PythonScript op = new PythonScript(COUNT_SCRIPT, "count = 0", "", false, true, false);
+        Assert.assertEquals(1.0, evalCount(op), 0.0);
+        Assert.assertEquals(2.0, evalCount(op), 0.0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // another thread gets its own interpreter, initialized separately
+            Assert.assertEquals(1.0, executor.submit(() -> evalCount(op)).get(), 0.0);
+            Assert.assertEquals(2.0, executor.submit(() -> evalCount(op)).get(), 0.0);
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(3.0, evalCount(op), 0.0);
+    }
+
+    @Test
+    public void testCompiledEncapsulated() {
+        PythonScript op = new PythonScript(COUNT_SCRIPT, "count = 0", "", true, true, false);
+        Assert.assertEquals(1.0, evalCount(op), 0.0);
+        Assert.assertEquals(1.0, evalCount(op), 0.0);
+    }
+
+    @Test
+    public void testCompiledMatchesInterpreted() {
+        String script = "vec.rvec[1] = vec.rvec[0] * 2.0 + offset\nvec.rvec[2] = 1.0 if vecmat is vec else 0.0";
+        PythonScript interpreted = new PythonScript(script, "offset = 3.0", "", true);
+        PythonScript compiled = new PythonScript(script, "offset = 3.0", "", true, true, false);
+        for (PythonScript op : new PythonScript[]{interpreted, compiled}) {
+            Vec vec = new Vec(4, false);
+            vec.rvec[0] = 5.0;
+            op.eval(vec);
+            Assert.assertEquals(13.0, vec.rvec[1], 0.0);
+            Assert.assertEquals(1.0, vec.rvec[2], 0.0);
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        String script = "if 'vecmat' in globals():\n    raise Exception('vecmat set')\n"
+                + "for i, v in enumerate(vecs):\n    v.rvec[0] = len(vecs) * 10 + i";
+        PythonScript op = new PythonScript(script, "", "", true, true, true);
+        List<Vec> vecs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            vecs.add(new Vec(4, false));
+        }
+        op.eval(vecs);
+        for (int i = 0; i < vecs.size(); i++) {
+            Assert.assertEquals(30.0 + i, vecs.get(i).rvec[0], 0.0);
+        }
+    }
+
+    @Test(expected = ProcessingException.class)
+    public void testBatchError() {
+        PythonScript op = new PythonScript("raise Exception('fail')", "", "", true, true, true);
+        List<Vec> vecs = new ArrayList<>();
+        vecs.add(new Vec(4, false));
+        op.eval(vecs);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.optimization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakList;
+
+public class ClusterPairScorerTest {
+
+    static final int N_CLUSTERS = 40;
+
+    /**
+     * Make clusters of 1 to 3 peaks that share a shift in dimension 0. The
+     * predicted clusters are the experimental ones with perturbed shifts and
+     * intensities.
+     */
+    PeakCluster[] makeClusters(String name, long seed, boolean predicted) {
+        Random random = new Random(seed);
+        Random perturb = new Random(seed + 100);
+        PeakList peakList = new PeakList(name, 2);
+        peakList.scale = predicted ? 0.8 : 1.0;
+        PeakCluster[] clusters = new PeakCluster[N_CLUSTERS];
+        for (int i = 0; i < N_CLUSTERS; i++) {
+            double shift = 7.0 + 3.0 * random.nextDouble();
+            if (predicted) {
+                shift += 0.2 * perturb.nextGaussian();
+            }
+            int nPeaks = 1 + random.nextInt(3);
+            List<Peak> peaks = new ArrayList<>();
+            for (int k = 0; k < nPeaks; k++) {
+                Peak peak = peakList.getNewPeak();
+                double intensity = 100.0 + 50.0 * random.nextDouble();
+                double shift1 = 105.0 + 25.0 * random.nextDouble();
+                if (predicted) {
+                    intensity *= 1.0 + 0.2 * perturb.nextDouble();
+                    shift1 += 0.5 * perturb.nextGaussian();
+                }
+                peak.setIntensity((float) intensity);
+                peak.getPeakDim(0).setChemShiftValue((float) shift);
+                peak.getPeakDim(1).setChemShiftValue((float) shift1);
+                peaks.add(peak);
+            }
+            clusters[i] = new PeakCluster(peaks, 0);
+        }
+        return clusters;
+    }
+
+    /**
+     * Score every pair of clusters, as PeakClusterMatcher did before the
+     * candidates were pruned.
+     */
+    static double[][] scoreAllPairs(PeakCluster[] expClusters, PeakCluster[] predClusters) {
+        double[][] weights = new double[expClusters.length][predClusters.length];
+        for (int i = 0; i < expClusters.length; i++) {
+            for (int j = 0; j < predClusters.length; j++) {
+                if (expClusters[i].isInTol(predClusters[j])) {
+                    weights[i][j] = expClusters[i].comparisonScore(predClusters[j]);
+                } else {
+                    weights[i][j] = Double.NaN;
+                }
+            }
+        }
+        return weights;
+    }
+
+    static int[] match(double[][] weights, int nExp, int nPred) {
+        BipartiteMatcher matcher = new BipartiteMatcher();
+        matcher.reset(nExp + nPred, true);
+        for (int i = 0; i < nExp; i++) {
+            for (int j = 0; j < nPred; j++) {
+                if (!Double.isNaN(weights[i][j])) {
+                    matcher.setWeight(i, j, weights[i][j]);
+                }
+            }
+        }
+        return matcher.getMatching();
+    }
+
+    static int countCandidates(double[][] weights) {
+        int n = 0;
+        for (double[] row : weights) {
+            for (double w : row) {
+                if (!Double.isNaN(w)) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    static void checkSame(double[][] expected, double[][] weights) {
+        Assert.assertEquals(expected.length, weights.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertArrayEquals(expected[i], weights[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testMatchesAllPairs() {
+        PeakCluster[] expClusters = makeClusters("exp", 1, false);
+        PeakCluster[] predClusters = makeClusters("pred", 1, true);
+        double[][] expected = scoreAllPairs(expClusters, predClusters);
+        ClusterPairScorer scorer = new ClusterPairScorer();
+        double[][] weights = scorer.score(expClusters, predClusters);
+        checkSame(expected, weights);
+        int nCandidates = countCandidates(expected);
+        Assert.assertTrue(nCandidates > 0);
+        Assert.assertTrue(nCandidates < N_CLUSTERS * N_CLUSTERS);
+        Assert.assertEquals(nCandidates, scorer.getNScored());
+        Assert.assertEquals(0, scorer.getNReused());
+        Assert.assertArrayEquals(match(expected, N_CLUSTERS, N_CLUSTERS), match(weights, N_CLUSTERS, N_CLUSTERS));
+    }
+
+    @Test
+    public void testRescoreOnlyChangedPairs() {
+        PeakCluster[] expClusters = makeClusters("exp", 2, false);
+        PeakCluster[] predClusters = makeClusters("pred", 2, true);
+        ClusterPairScorer scorer = new ClusterPairScorer();
+        scorer.score(expClusters, predClusters);
+
+        // freeze a matched pair and rerun with the remaining clusters
+        expClusters[0].setFreeze(true);
+        predClusters[0].setFreeze(true);
+        PeakCluster[] nonFrozenExp = PeakCluster.getNonFrozenClusters(expClusters);
+        PeakCluster[] nonFrozenPred = PeakCluster.getNonFrozenClusters(predClusters);
+        double[][] expected = scoreAllPairs(nonFrozenExp, nonFrozenPred);
+        double[][] weights = scorer.score(nonFrozenExp, nonFrozenPred);
+        checkSame(expected, weights);
+        Assert.assertEquals(0, scorer.getNScored());
+        Assert.assertEquals(countCandidates(expected), scorer.getNReused());
+
+        // moving a cluster only rescores the pairs it is in
+        PeakCluster moved = nonFrozenPred[3];
+        moved.setShift(moved.getShift() + 0.05);
+        expected = scoreAllPairs(nonFrozenExp, nonFrozenPred);
+        int nChanged = 0;
+        for (double[] row : expected) {
+            if (!Double.isNaN(row[3])) {
+                nChanged++;
+            }
+        }
+        weights = scorer.score(nonFrozenExp, nonFrozenPred);
+        checkSame(expected, weights);
+        Assert.assertEquals(nChanged, scorer.getNScored());
+        Assert.assertEquals(countCandidates(expected) - nChanged, scorer.getNReused());
+        Assert.assertArrayEquals(match(expected, nonFrozenExp.length, nonFrozenPred.length),
+                match(weights, nonFrozenExp.length, nonFrozenPred.length));
+    }
+}
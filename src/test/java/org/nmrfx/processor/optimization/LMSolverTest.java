@@ -0,0 +1,110 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.optimization;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LMSolverTest {
+
+    static final int N_POINTS = 40;
+
+    double[] xValues() {
+        double[] t = new double[N_POINTS];
+        for (int i = 0; i < N_POINTS; i++) {
+            t[i] = i * 0.1;
+        }
+        return t;
+    }
+
+    LMSolver.Model expModel(double[] t, double[] y) {
+        return (x, r, jac) -> {
+            for (int i = 0; i < t.length; i++) {
+                double e = Math.exp(-t[i] / x[1]);
+                r[i] = x[0] * e + x[2] - y[i];
+                if (jac != null) {
+                    jac[i * 3] = e;
+                    jac[i * 3 + 1] = x[0] * e * t[i] / (x[1] * x[1]);
+                    jac[i * 3 + 2] = 1.0;
+                }
+            }
+            return jac != null;
+        };
+    }
+
+    double[] expData(double[] t) {
+        double[] y = new double[t.length];
+        for (int i = 0; i < t.length; i++) {
+            y[i] = 5.0 * Math.exp(-t[i] / 1.7) + 0.4;
+        }
+        return y;
+    }
+
+    @Test
+    public void testExp() {
+        double[] t = xValues();
+        LMSolver solver = new LMSolver(N_POINTS, 3);
+        double[] x = {1.0, 0.5, 0.0};
+        solver.solve(expModel(t, expData(t)), N_POINTS, x);
+        Assert.assertArrayEquals(new double[]{5.0, 1.7, 0.4}, x, 1.0e-6);
+        Assert.assertEquals(0.0, solver.getRms(), 1.0e-8);
+    }
+
+    @Test
+    public void testFiniteDifferences() {
+        double[] t = xValues();
+        LMSolver.Model model = expModel(t, expData(t));
+        LMSolver solver = new LMSolver(N_POINTS, 3);
+        solver.setJacobianInterval(3);
+        double[] x = {1.0, 0.5, 0.0};
+        solver.solve((p, r, jac) -> model.evaluate(p, r, null), N_POINTS, x);
+        Assert.assertArrayEquals(new double[]{5.0, 1.7, 0.4}, x, 1.0e-5);
+    }
+
+    @Test
+    public void testBounds() {
+        double[] t = xValues();
+        LMSolver solver = new LMSolver(N_POINTS, 3);
+        double[] x = {1.0, 0.5, 0.0};
+        solver.solve(expModel(t, expData(t)), N_POINTS, x,
+                new double[]{0.0, 0.1, -1.0}, new double[]{10.0, 10.0, 0.2});
+        Assert.assertEquals(0.2, x[2], 0.0);
+        Assert.assertTrue(solver.getRms() > 0.0);
+    }
+
+    @Test
+    public void testRosenbrock() {
+        LMSolver.Model model = (x, r, jac) -> {
+            r[0] = 10.0 * (x[1] - x[0] * x[0]);
+            r[1] = 1.0 - x[0];
+            if (jac != null) {
+                jac[0] = -20.0 * x[0];
+                jac[1] = 10.0;
+                jac[2] = -1.0;
+                jac[3] = 0.0;
+            }
+            return jac != null;
+        };
+        LMSolver solver = new LMSolver(2, 2);
+        double[] x = {-1.2, 1.0};
+        solver.solve(model, 2, x);
+        Assert.assertArrayEquals(new double[]{1.0, 1.0}, x, 1.0e-8);
+        Assert.assertTrue(solver.getAcceleratedSteps() > 0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.optimization;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LorentzGaussNDTest {
+
+    static final int[] SIZES = {12, 10};
+
+    void checkJacobian(LorentzGaussND peakFit, double[] start) {
+        int nValues = peakFit.nDelays * peakFit.positions.length;
+        int nFloating = peakFit.nFloating;
+        double[] scaled = peakFit.newStart.clone();
+        double[] values = new double[nValues];
+        double[][] jacobian = new double[nValues][nFloating];
+        peakFit.calculateJacobian(peakFit.unscalePar(scaled).clone(), values, jacobian);
+        for (int iDelay = 0; iDelay < peakFit.nDelays; iDelay++) {
+            for (int i = 0; i < peakFit.positions.length; i++) {
+                double expected = peakFit.calculate(start, peakFit.positions[i], iDelay);
+                Assert.assertEquals(expected, values[iDelay * peakFit.positions.length + i], 1.0e-10);
+            }
+        }
+        double h = 1.0e-4;
+        double[] valuesP = new double[nValues];
+        double[] valuesM = new double[nValues];
+        for (int j = 0; j < nFloating; j++) {
+            double[] point = scaled.clone();
+            point[j] = scaled[j] + h;
+            peakFit.calculateJacobian(peakFit.unscalePar(point).clone(), valuesP, new double[nValues][nFloating]);
+            point[j] = scaled[j] - h;
+            peakFit.calculateJacobian(peakFit.unscalePar(point).clone(), valuesM, new double[nValues][nFloating]);
+            for (int i = 0; i < nValues; i++) {
+                double numerical = (valuesP[i] - valuesM[i]) / (2.0 * h);
+                Assert.assertEquals("parameter " + j + " value " + i, numerical, jacobian[i][j],
+                        1.0e-6 * Math.max(1.0, Math.abs(numerical)));
+            }
+        }
+    }
+
+    double[] bound(double[] start, double delta) {
+        double[] bound = start.clone();
+        for (int i = 0; i < bound.length; i++) {
+            bound[i] += delta * Math.max(1.0, Math.abs(start[i]));
+        }
+        return bound;
+    }
+
+    @Test
+    public void testJacobian() {
+        double[] start = {0.2, 10.0, 2.5, 4.3, 3.0, 5.1, 6.0, 1.8, 7.2, 2.2, 3.4};
+        boolean[] floating = new boolean[start.length];
+        Arrays.fill(floating, true);
+        LorentzGaussND peakFit = new LorentzGaussND(SIZES);
+        peakFit.setIntensities(new double[1][SIZES[0] * SIZES[1]]);
+        peakFit.setOffsets(start, bound(start, -0.5), bound(start, 0.5), floating, null);
+        checkJacobian(peakFit, start);
+    }
+
+    @Test
+    public void testJacobianFixedPars() {
+        double[] start = {0.2, 10.0, 2.5, 4.3, 3.0, 5.1, 6.0, 1.8, 7.2, 2.2, 3.4};
+        boolean[] floating = new boolean[start.length];
+        Arrays.fill(floating, true);
+        floating[0] = false;
+        floating[4] = false;
+        LorentzGaussND peakFit = new LorentzGaussND(SIZES);
+        peakFit.setIntensities(new double[1][SIZES[0] * SIZES[1]]);
+        peakFit.setOffsets(start, bound(start, -0.5), bound(start, 0.5), floating, null);
+        checkJacobian(peakFit, start);
+    }
+
+    @Test
+    public void testJacobianDelays() {
+        // amplitude, decay time and offset for each signal
+        double[] start = {0.2, 10.0, 0.08, 0.5, 2.5, 4.3, 3.0, 5.1, 6.0, 0.05, 0.2, 1.8, 7.2, 2.2, 3.4};
+        boolean[] floating = new boolean[start.length];
+        Arrays.fill(floating, true);
+        LorentzGaussND peakFit = new LorentzGaussND(SIZES);
+        peakFit.setIntensities(new double[3][SIZES[0] * SIZES[1]]);
+        peakFit.setDelays(new double[]{0.01, 0.05, 0.1}, true);
+        peakFit.setOffsets(start, bound(start, -0.5), bound(start, 0.5), floating, null);
+        checkJacobian(peakFit, start);
+    }
+}
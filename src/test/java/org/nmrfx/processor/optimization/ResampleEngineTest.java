@@ -0,0 +1,142 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.optimization;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResampleEngineTest {
+
+    static final int N_VALUES = 60;
+    static final int[] THREADS = {1, 4, 8};
+
+    final double[] x = new double[N_VALUES];
+    final double[] y = new double[N_VALUES];
+
+    public ResampleEngineTest() {
+        Random random = new Random(3);
+        for (int i = 0; i < N_VALUES; i++) {
+            x[i] = i * 0.1;
+            y[i] = 2.0 + 0.5 * x[i] + 0.2 * random.nextGaussian();
+        }
+    }
+
+    /**
+     * Straight line fit of the selected values. Samples that use the first
+     * value three or more times are treated as failed fits.
+     */
+    ResampleEngine.SampleFit lineFit() {
+        return (indices, nValues) -> {
+            double sx = 0.0;
+            double sy = 0.0;
+            double sxx = 0.0;
+            double sxy = 0.0;
+            int nFirst = 0;
+            for (int i = 0; i < nValues; i++) {
+                int k = indices[i];
+                if (k == 0) {
+                    nFirst++;
+                }
+                sx += x[k];
+                sy += y[k];
+                sxx += x[k] * x[k];
+                sxy += x[k] * y[k];
+            }
+            if (nFirst >= 3) {
+                return null;
+            }
+            double slope = (nValues * sxy - sx * sy) / (nValues * sxx - sx * sx);
+            double intercept = (sy - slope * sx) / nValues;
+            double score = 0.0;
+            for (int i = 0; i < nValues; i++) {
+                int k = indices[i];
+                double delta = y[k] - intercept - slope * x[k];
+                score += delta * delta;
+            }
+            return new double[]{intercept, slope, score};
+        };
+    }
+
+    double[][] bootstrap(int nThreads, int minSamples, double sdTolerance) {
+        ResampleEngine engine = new ResampleEngine(7);
+        engine.setNThreads(nThreads);
+        engine.setBatchSize(20);
+        engine.setStopping(minSamples, sdTolerance);
+        return engine.bootstrap(N_VALUES, 2, 300, this::lineFit);
+    }
+
+    void checkSame(double[][] expected, double[][] values) {
+        Assert.assertEquals(expected.length, values.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertArrayEquals(expected[i], values[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testBootstrapThreads() {
+        double[][] expected = bootstrap(1, 100, 0.0);
+        Assert.assertEquals(300, expected[0].length);
+        for (int nThreads : THREADS) {
+            checkSame(expected, bootstrap(nThreads, 100, 0.0));
+        }
+    }
+
+    @Test
+    public void testBootstrapStoppingThreads() {
+        double[][] expected = bootstrap(1, 60, 0.05);
+        Assert.assertTrue(expected[0].length < 300);
+        for (int nThreads : THREADS) {
+            checkSame(expected, bootstrap(nThreads, 60, 0.05));
+        }
+    }
+
+    @Test
+    public void testJackknifeThreads() {
+        double[][] expected = null;
+        for (int nThreads : THREADS) {
+            ResampleEngine engine = new ResampleEngine(7);
+            engine.setNThreads(nThreads);
+            double[][] values = engine.jackknife(N_VALUES, 2, this::lineFit);
+            Assert.assertEquals(N_VALUES, engine.getNSamples());
+            if (expected == null) {
+                expected = values;
+            } else {
+                checkSame(expected, values);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleThreadUsesCallingThread() {
+        ResampleEngine engine = new ResampleEngine(7);
+        engine.setNThreads(1);
+        Thread caller = Thread.currentThread();
+        engine.bootstrap(N_VALUES, 2, 50, () -> (indices, nValues) -> {
+            Assert.assertSame(caller, Thread.currentThread());
+            return lineFit().fit(indices, nValues);
+        });
+        Assert.assertEquals(50, engine.getNSamples());
+    }
+
+    @Test
+    public void testDefaultFitsAllSamples() {
+        Assert.assertEquals(0.0, Fitter.getDefaultResampleEngine().getSDTolerance(), 0.0);
+    }
+}
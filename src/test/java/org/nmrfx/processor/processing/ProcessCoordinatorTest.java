@@ -0,0 +1,166 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.processing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProcessCoordinatorTest {
+
+    static final int N_PASSES = 4;
+    static final int N_ITEMS = 100;
+
+    final AtomicIntegerArray[] counts = new AtomicIntegerArray[N_PASSES];
+
+    public ProcessCoordinatorTest() {
+        for (int i = 0; i < N_PASSES; i++) {
+            counts[i] = new AtomicIntegerArray(N_ITEMS);
+        }
+    }
+
+    static String geometry(int pass) {
+        return (pass + 1) + ".0,0.0/" + (2 * pass + 1) + ".0,1.0";
+    }
+
+    class WorkerRun implements Runnable {
+
+        final String name;
+        final int port;
+        final String[] geometries = new String[N_PASSES];
+        final int[] nItems = new int[N_PASSES];
+        volatile Exception error = null;
+
+        WorkerRun(String name, int port) {
+            this.name = name;
+            this.port = port;
+        }
+
+        @Override
+        public void run() {
+            try (ProcessWorker worker = new ProcessWorker("localhost", port)) {
+                while (!worker.datasetReady()) {
+                    Thread.sleep(10);
+                }
+                for (int pass = 0; pass < N_PASSES; pass++) {
+                    geometries[pass] = worker.getGeometry(pass);
+                    WorkRange range;
+                    while ((range = worker.next(pass)) != null) {
+                        if (range.isWait()) {
+                            Thread.sleep(5);
+                            continue;
+                        }
+                        for (int i = range.getStart(); i < range.getEnd(); i++) {
+                            counts[pass].incrementAndGet(i);
+                            nItems[pass]++;
+                        }
+                        worker.complete(range, name + "-" + pass);
+                    }
+                    worker.endPass(pass);
+                }
+            } catch (IOException | InterruptedException e) {
+                error = e;
+            }
+        }
+    }
+
+    @Test
+    public void testWorkers() throws Exception {
+        ProcessCoordinator coordinator = new ProcessCoordinator(0);
+        coordinator.setRangesPerPass(16);
+        coordinator.setStragglerFactor(1000.0);
+        List<WorkerRun> runs = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            WorkerRun run = new WorkerRun("w" + i, coordinator.getPort());
+            runs.add(run);
+            threads.add(new Thread(run));
+        }
+        WorkerRun lateRun = new WorkerRun("late", coordinator.getPort());
+        Thread lateThread = new Thread(lateRun);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        coordinator.datasetReady();
+        for (int pass = 0; pass < N_PASSES; pass++) {
+            coordinator.beginPass(pass, N_ITEMS, geometry(pass));
+            List<String> reports = coordinator.endPass(pass);
+            Assert.assertFalse(reports.isEmpty());
+            for (String report : reports) {
+                Assert.assertTrue(report, report.endsWith("-" + pass));
+            }
+            for (int i = 0; i < N_ITEMS; i++) {
+                Assert.assertTrue(counts[pass].get(i) >= 1);
+            }
+            if (pass == 1) {
+                // joins after two passes, so it only takes part in the last two
+                lateThread.start();
+            }
+        }
+        threads.add(lateThread);
+        runs.add(lateRun);
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        coordinator.close();
+        for (WorkerRun run : runs) {
+            Assert.assertNull(run.error);
+            for (int pass = 0; pass < N_PASSES; pass++) {
+                Assert.assertEquals(geometry(pass), run.geometries[pass]);
+            }
+        }
+        Assert.assertEquals(0, lateRun.nItems[0]);
+        Assert.assertEquals(0, lateRun.nItems[1]);
+        for (int pass = 0; pass < N_PASSES; pass++) {
+            int nProcessed = 0;
+            for (WorkerRun run : runs) {
+                nProcessed += run.nItems[pass];
+            }
+            // slow ranges may have been copied to another worker
+            Assert.assertTrue(nProcessed >= N_ITEMS);
+        }
+    }
+
+    @Test
+    public void testMergeGeometry() {
+        DatasetGeometry coordinator = DatasetGeometry.parse(values(64, 1.0) + "/" + values(10, 2.0));
+        // the worker wrote vectors along the first dimension, up to row 20
+        DatasetGeometry worker = DatasetGeometry.parse(values(32, 5.0) + "/" + values(20, 3.0));
+        coordinator.merge(worker, new int[]{0});
+        DatasetGeometry expected = DatasetGeometry.parse(values(32, 5.0) + "/" + values(20, 2.0));
+        Assert.assertEquals(expected.toString(), coordinator.toString());
+
+        DatasetGeometry smaller = DatasetGeometry.parse(values(32, 5.0) + "/" + values(8, 3.0));
+        coordinator.merge(smaller, new int[]{0});
+        Assert.assertEquals(20, coordinator.getVSize(1));
+        Assert.assertEquals(coordinator.toString(), DatasetGeometry.parse(coordinator.toString()).toString());
+    }
+
+    static String values(int vSize, double value) {
+        StringBuilder sBuilder = new StringBuilder();
+        sBuilder.append(vSize).append(',').append(vSize);
+        for (int i = 2; i < 22; i++) {
+            sBuilder.append(',').append(value);
+        }
+        return sBuilder.toString();
+    }
+}
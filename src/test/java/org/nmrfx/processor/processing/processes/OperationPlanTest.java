@@ -0,0 +1,156 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.processing.processes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.operations.Add;
+import org.nmrfx.processor.operations.Expd;
+import org.nmrfx.processor.operations.Extract;
+import org.nmrfx.processor.operations.Ft;
+import org.nmrfx.processor.operations.Imag;
+import org.nmrfx.processor.operations.Mult;
+import org.nmrfx.processor.operations.Operation;
+import org.nmrfx.processor.operations.Phase;
+import org.nmrfx.processor.operations.Real;
+import org.nmrfx.processor.operations.SinebellApod;
+import org.nmrfx.processor.operations.Zf;
+
+public class OperationPlanTest {
+
+    static final int SIZE = 1500;
+
+    /**
+     * Makes a new list of new operations, so the fused and unfused runs don't
+     * share the state (such as apodization windows) kept by operations.
+     */
+    interface OpList {
+
+        List<Operation> make() throws Exception;
+    }
+
+    Vec makeFID() {
+        Random random = new Random(23);
+        Vec vector = new Vec(SIZE, true);
+        vector.dwellTime = 1.0 / 5000.0;
+        for (int i = 0; i < SIZE; i++) {
+            double decay = Math.exp(-i / 400.0);
+            double re = decay * (Math.cos(0.3 * i) + 0.5 * Math.cos(1.1 * i)) + 0.01 * random.nextGaussian();
+            double im = decay * (Math.sin(0.3 * i) + 0.5 * Math.sin(1.1 * i)) + 0.01 * random.nextGaussian();
+            vector.set(i, re, im);
+        }
+        return vector;
+    }
+
+    /**
+     * Check that executing the plan gives the same vector as evaluating each
+     * operation in turn.
+     *
+     * @return the plan
+     */
+    OperationPlan check(OpList opList) throws Exception {
+        Vec expected = makeFID();
+        for (Operation op : opList.make()) {
+            op.eval(expected);
+        }
+        OperationPlan plan = new OperationPlan(opList.make(), true);
+        Vec vector = makeFID();
+        for (Operation step : plan.getSteps()) {
+            step.eval(vector);
+        }
+        String msg = plan.describe();
+        Assert.assertEquals(msg, expected.getSize(), vector.getSize());
+        Assert.assertEquals(msg, expected.isComplex(), vector.isComplex());
+        int size = expected.getSize();
+        Assert.assertArrayEquals(msg, Arrays.copyOf(expected.rvec, size), Arrays.copyOf(vector.rvec, size), 1.0e-9);
+        if (expected.isComplex()) {
+            Assert.assertArrayEquals(msg, Arrays.copyOf(expected.ivec, size), Arrays.copyOf(vector.ivec, size), 1.0e-9);
+        }
+        return plan;
+    }
+
+    static boolean hasFused(OperationPlan plan) {
+        return plan.getSteps().stream().anyMatch(step -> step instanceof FusedOperation);
+    }
+
+    @Test
+    public void testUnfusedPlan() throws Exception {
+        List<Operation> ops = Arrays.asList(new SinebellApod(0.5, 1.0, 1.0, 0.5, 0), new Mult(2.0, 0.0, 0, -1));
+        OperationPlan plan = new OperationPlan(ops, false);
+        Assert.assertEquals(ops, plan.getSteps());
+    }
+
+    @Test
+    public void testSbZfFtPhaseRealExtract() throws Exception {
+        check(() -> Arrays.asList(new SinebellApod(0.5, 1.0, 1.0, 0.5, 0), new Zf(1, null, null),
+                new Ft(false, false), new Phase(30.0, -20.0, false), new Real(), new Extract(500, 1800)));
+    }
+
+    @Test
+    public void testPrunedFt() throws Exception {
+        OperationPlan plan = check(() -> Arrays.asList(new SinebellApod(0.5, 1.0, 1.0, 0.5, 0),
+                new Zf(1, null, null), new Ft(false, false), new Extract(700, 2100)));
+        Assert.assertTrue(plan.describe(), plan.getSteps().stream().anyMatch(step -> step instanceof PrunedFt));
+    }
+
+    @Test
+    public void testApodZfMultFt() throws Exception {
+        OperationPlan plan = check(() -> Arrays.asList(new Expd(5.0, 0.5, false),
+                new SinebellApod(0.5, 1.0, 2.0, 0.5, 1200), new Zf(2, null, null), new Mult(1.5, 0.5, 0, -1),
+                new Ft(false, false), new Phase(10.0, 5.0, false), new Real(), new Extract(1000, 5000)));
+        Assert.assertTrue(plan.describe(), hasFused(plan));
+    }
+
+    @Test
+    public void testExtractAfterPointwise() throws Exception {
+        OperationPlan plan = check(() -> Arrays.asList(new Ft(false, false), new Mult(2.0, 0.0, 0, -1),
+                new Add(0.25, -0.5), new Real(), new Extract(200, 900)));
+        Assert.assertTrue(plan.describe(), hasFused(plan));
+    }
+
+    @Test
+    public void testInverseApodization() throws Exception {
+        OperationPlan plan = check(() -> Arrays.asList(new SinebellApod(0.5, 0.95, 1.0, 1.0, 0, true),
+                new Expd(3.0, 1.0, true), new Zf(1, null, null), new Mult(0.5, 0.0, 0, -1),
+                new Ft(false, false), new Phase(0.0, 0.0, true)));
+        Assert.assertTrue(plan.describe(), hasFused(plan));
+        check(() -> Arrays.asList(new SinebellApod(0.5, 1.0, 1.0, 0.5, 0),
+                new SinebellApod(0.5, 1.0, 1.0, 0.5, 0, true), new Zf(1, null, null), new Ft(false, false)));
+    }
+
+    @Test
+    public void testImag() throws Exception {
+        check(() -> Arrays.asList(new SinebellApod(0.5, 1.0, 1.0, 0.5, 0), new Ft(false, false),
+                new Imag(), new Add(1.0), new Mult(3.0, 0.0, 0, -1), new Extract(100, 1200)));
+        check(() -> Arrays.asList(new Mult(2.0, 1.0, 0, -1), new Imag(), new Mult(3.0, 0.0, 0, -1)));
+    }
+
+    @Test
+    public void testPhaseAndImagAreNotFused() throws Exception {
+        OperationPlan plan = check(() -> Arrays.asList(new Mult(2.0, 0.0, 0, -1), new Phase(30.0, 0.0, false),
+                new Mult(3.0, 0.0, 0, -1), new Imag(), new Add(1.0)));
+        for (Operation step : plan.getSteps()) {
+            Assert.assertFalse(step instanceof FusedOperation);
+        }
+    }
+}
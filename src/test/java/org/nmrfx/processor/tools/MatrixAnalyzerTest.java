@@ -0,0 +1,100 @@
+/*
+ * NMRFx Processor : A Program for Processing NMR Data
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.nmrfx.processor.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.datasets.Dataset;
+
+public class MatrixAnalyzerTest {
+
+    static final int[] SIZES = {64, 48};
+    static final String[] LABELS = {"1H", "15N"};
+
+    Dataset createDataset(String name, long seed) throws Exception {
+        Dataset dataset = new Dataset(name, SIZES, false);
+        Random random = new Random(seed);
+        for (int i = 0; i < SIZES.length; i++) {
+            dataset.setLabel(i, LABELS[i]);
+            dataset.setSf(i, 600.0);
+            dataset.setSw(i, 6000.0);
+            dataset.setRefValue(i, 10.0);
+            dataset.setRefPt(i, 0.0);
+            dataset.setComplex(i, false);
+            dataset.setFreqDomain(i, true);
+        }
+        int[] pt = new int[SIZES.length];
+        for (int j = 0; j < SIZES[1]; j++) {
+            for (int i = 0; i < SIZES[0]; i++) {
+                pt[0] = i;
+                pt[1] = j;
+                double value = Math.exp(-((i - 20) * (i - 20) + (j - 30) * (j - 30)) / 30.0)
+                        + 0.1 * random.nextGaussian();
+                dataset.writePoint(pt, value);
+            }
+        }
+        return dataset;
+    }
+
+    MatrixAnalyzer createAnalyzer(List<Dataset> datasets) {
+        Dataset dataset = datasets.get(0);
+        double[][] ppms = {
+            {dataset.pointToPPM(0, 3), dataset.pointToPPM(0, 58)},
+            {dataset.pointToPPM(1, 5), dataset.pointToPPM(1, 40)}
+        };
+        MatrixAnalyzer analyzer = new MatrixAnalyzer();
+        analyzer.setDatasets(datasets);
+        analyzer.setup(LABELS, ppms, new int[]{4, 3});
+        return analyzer;
+    }
+
+    @Test
+    public void testBucketMatchesBucketByRegion() throws Exception {
+        List<Dataset> datasets = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            datasets.add(createDataset("bucket" + i, i + 1));
+        }
+        try {
+            for (double threshold : new double[]{Double.NEGATIVE_INFINITY, 0.2}) {
+                MatrixAnalyzer byRegion = createAnalyzer(datasets);
+                byRegion.bucketByRegion(threshold);
+                MatrixAnalyzer bucketed = createAnalyzer(datasets);
+                bucketed.bucket(threshold);
+
+                RealMatrix expected = byRegion.A;
+                RealMatrix matrix = bucketed.A;
+                Assert.assertTrue(expected.getRowDimension() > 0);
+                Assert.assertEquals(expected.getRowDimension(), matrix.getRowDimension());
+                Assert.assertEquals(expected.getColumnDimension(), matrix.getColumnDimension());
+                for (int i = 0; i < expected.getRowDimension(); i++) {
+                    Assert.assertArrayEquals(byRegion.getBucketCorners().get(i), bucketed.getBucketCorners().get(i));
+                    Assert.assertArrayEquals(expected.getRow(i), matrix.getRow(i), 1.0e-4);
+                }
+            }
+        } finally {
+            for (Dataset dataset : datasets) {
+                dataset.close();
+            }
+        }
+    }
+}